@@ -0,0 +1,104 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.client;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.excilys.soja.client.exception.ConfirmWindowFullException;
+import com.excilys.soja.core.future.StompFuture;
+import com.excilys.soja.core.future.StompFutureListener;
+
+/**
+ * Bound on the number of messages sent with a receipt request which are not confirmed yet. A message takes a place in
+ * the window when it's sent and gives it back when its receipt arrives or when it fails, so the sender runs at full
+ * speed as long as the server keeps up, without keeping an unbounded number of unconfirmed messages.
+ * <p/>
+ * When the window is full, the sender waits up to the block time for a place, then the message fails with a
+ * {@link ConfirmWindowFullException}. Each message is released by its own receipt, batched or not : receipts may come
+ * back in any order, so a receipt never releases the places of the messages sent before it.
+ * <p/>
+ * <b>NOTE :</b> The places are released by the I/O threads : a sender waiting for a place must not be an I/O thread,
+ * which is the case of the future listeners.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class ConfirmWindow {
+
+	private final int maxInFlight;
+	private final long blockTime;
+	private final Semaphore places;
+	private final StompFutureListener<Void> releaseListener = new StompFutureListener<Void>() {
+		@Override
+		public void operationComplete(StompFuture<Void> future) throws Exception {
+			places.release();
+		}
+	};
+
+	/**
+	 * @param maxInFlight
+	 *            number of messages which may wait for their receipt at the same time
+	 * @param blockTime
+	 *            number of milliseconds to wait for a place when the window is full, 0 to fail right away
+	 */
+	public ConfirmWindow(int maxInFlight, long blockTime) {
+		if (maxInFlight <= 0)
+			throw new IllegalArgumentException("Maximum in flight messages have to be a strictly positive number");
+		if (blockTime < 0)
+			throw new IllegalArgumentException("Block time have to be a positive number");
+		this.maxInFlight = maxInFlight;
+		this.blockTime = blockTime;
+		this.places = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Take a place in the window, waiting for one if it's full
+	 * 
+	 * @throws ConfirmWindowFullException
+	 *             if no place has been released in time
+	 * @throws InterruptedException
+	 */
+	public void acquire() throws ConfirmWindowFullException, InterruptedException {
+		if (!places.tryAcquire() && !places.tryAcquire(blockTime, TimeUnit.MILLISECONDS))
+			throw new ConfirmWindowFullException(maxInFlight, blockTime);
+	}
+
+	/**
+	 * Give the place back once the future of the message is completed, whether it succeeded or not
+	 * 
+	 * @param receiptFuture
+	 */
+	public void releaseOnCompletion(StompFuture<Void> receiptFuture) {
+		receiptFuture.addListener(releaseListener);
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public long getBlockTime() {
+		return blockTime;
+	}
+
+	/**
+	 * @return the number of messages waiting for their receipt
+	 */
+	public int getInFlight() {
+		return maxInFlight - places.availablePermits();
+	}
+
+}
@@ -18,26 +18,51 @@ package com.excilys.soja.client;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.excilys.soja.client.events.StompClientListener;
 import com.excilys.soja.client.events.StompMessageStateCallback;
 import com.excilys.soja.client.events.StompTopicListener;
+import com.excilys.soja.client.exception.ConfirmWindowFullException;
 import com.excilys.soja.client.exception.NotConnectedException;
+import com.excilys.soja.client.handler.AckManager;
 import com.excilys.soja.client.handler.ClientHandler;
+import com.excilys.soja.client.handler.ReceiptTracker;
+import com.excilys.soja.client.handler.SendBatcher;
+import com.excilys.soja.core.factory.SslHandlerFactory;
 import com.excilys.soja.core.factory.StompPipelineFactory;
+import com.excilys.soja.core.future.StompFuture;
+import com.excilys.soja.core.future.StompFutureListener;
 import com.excilys.soja.core.model.Ack;
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.core.model.Header;
 import com.excilys.soja.core.model.frame.DisconnectFrame;
+import com.excilys.soja.core.model.frame.SendFrame;
 
 /**
  * @author dvilleneuve
@@ -49,36 +74,86 @@ public class StompClient {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(StompClient.class);
 
+	public static final long DEFAULT_RECONNECT_INITIAL_DELAY = 100;
+	public static final long DEFAULT_RECONNECT_MAX_DELAY = 30000;
+	public static final int DEFAULT_RECONNECT_BUFFER_SIZE = 1024;
+	/**
+	 * Tick of the timer created by the client, in milliseconds. The ACK interval and the send linger time are a few
+	 * milliseconds, with the default tick of 100 ms they would be delayed until the next one.
+	 */
+	static final long TIMER_TICK_DURATION = 5;
+
 	private static final long CONNECT_TIMEOUT_DEFAULT = 30000;
+	private static final long DISCONNECT_TIMEOUT_DEFAULT = 30000;
 
 	private final String hostname;
 	private final int port;
 	private final ClientBootstrap clientBootstrap;
 	private final ClientHandler clientHandler;
+	private final Timer timer;
+	private final boolean sharedResources;
+	private final AtomicLong outstandingBytes = new AtomicLong();
+	private final AtomicBoolean reconnecting = new AtomicBoolean();
+	private final Queue<PendingSend> pendingSends = new LinkedList<PendingSend>();
+	private final Random random = new Random();
 
-	private Channel channel;
+	private volatile Channel channel;
+	private SslHandlerFactory sslHandlerFactory;
+	private volatile String username;
+	private volatile String password;
+	private volatile boolean loggedInOnce = false;
+	private volatile boolean closing = false;
+	private volatile boolean autoReconnect = false;
+	private volatile long reconnectInitialDelay = DEFAULT_RECONNECT_INITIAL_DELAY;
+	private volatile long reconnectMaxDelay = DEFAULT_RECONNECT_MAX_DELAY;
+	private volatile int reconnectBufferSize = DEFAULT_RECONNECT_BUFFER_SIZE;
+	private volatile Timeout reconnectTimeout;
+	private volatile ConfirmWindow confirmWindow;
 
 	public StompClient(final String hostname, final int port) {
+		this(hostname, port, new NioClientSocketChannelFactory(Executors.newCachedThreadPool(),
+				Executors.newCachedThreadPool()), new HashedWheelTimer(TIMER_TICK_DURATION, TimeUnit.MILLISECONDS),
+				false);
+	}
+
+	/**
+	 * @param hostname
+	 * @param port
+	 * @param channelFactory
+	 *            factory of the connection, which may be shared with other clients
+	 * @param timer
+	 *            timer used to schedule heart-beats, which may be shared with other clients
+	 * @param sharedResources
+	 *            true if the factory and the timer are shared, so they are not released when this client disconnects
+	 */
+	StompClient(final String hostname, final int port, ChannelFactory channelFactory, Timer timer,
+			boolean sharedResources) {
 		this.hostname = hostname;
 		this.port = port;
-		this.clientHandler = new ClientHandler();
+		this.timer = timer;
+		this.sharedResources = sharedResources;
+		this.clientHandler = new ClientHandler(timer);
 
-		this.clientBootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(Executors.newCachedThreadPool(),
-				Executors.newCachedThreadPool()));
+		this.clientBootstrap = new ClientBootstrap(channelFactory);
 		this.clientBootstrap.setPipelineFactory(new StompPipelineFactory() {
 			@Override
 			public ChannelPipeline getPipeline() throws Exception {
 				ChannelPipeline pipeline = super.getPipeline();
+				if (sslHandlerFactory != null) {
+					pipeline.addFirst("ssl", sslHandlerFactory.newHandler(hostname, port));
+				}
 				pipeline.addLast("handler", clientHandler);
 				return pipeline;
 			}
 		});
 		this.clientBootstrap.setOption("tcpNoDelay", true);
 		this.clientBootstrap.setOption("keepAlive", true);
+		this.clientHandler.addListener(new ConnectionLostListener());
 	}
 
 	public boolean isConnected() {
-		return channel.isConnected();
+		Channel currentChannel = channel;
+		return currentChannel != null && currentChannel.isConnected();
 	}
 
 	/**
@@ -110,34 +185,102 @@ public class StompClient {
 
 	/**
 	 * Connect and login to the server with a timeout value. Once the network connection is up the STOMP shakehand phase
-	 * will begin.
+	 * will begin. This method returns once the server accepted the login.
 	 * 
 	 * @param username
 	 * @param password
 	 * @param connectTimeout
 	 * @throws SocketException
+	 *             if the connection failed or the server rejected the login
 	 * @throws TimeoutException
 	 */
 	public void connect(String username, String password, long connectTimeout) throws SocketException, TimeoutException {
-		// Start the connection attempt
-		ChannelFuture channelFuture = clientBootstrap.connect(new InetSocketAddress(hostname, port));
-		if (!channelFuture.awaitUninterruptibly(connectTimeout)) {
-			clientBootstrap.releaseExternalResources();
+		StompFuture<Frame> future = connectAsync(username, password);
+		if (!future.awaitUninterruptibly(connectTimeout)) {
+			closeChannel();
+			releaseExternalResources();
 			throw new TimeoutException("Connection timeout to server " + hostname + ":" + port);
 		}
 
-		// After waiting until the connection attempt, test if succeeds or fails.
-		if (!channelFuture.isSuccess()) {
-			clientBootstrap.releaseExternalResources();
-			throw new ConnectException("Client failed to connect to " + hostname + ":" + port);
+		if (!future.isSuccess()) {
+			closeChannel();
+			releaseExternalResources();
+			ConnectException exception = new ConnectException("Client failed to connect to " + hostname + ":" + port
+					+ " : " + future.getCause().getMessage());
+			exception.initCause(future.getCause());
+			throw exception;
 		}
+	}
+
+	/**
+	 * Connect and login to the server without blocking : the network connection, the TLS handshake if enabled and the
+	 * STOMP login are chained by the I/O threads.
+	 * 
+	 * @param username
+	 *            a username to use for connection. Leave <code>null</code> to connect as a guest
+	 * @param password
+	 *            a password to use for connection. Leave <code>null</code> to connect as a guest
+	 * @return a future completed with the CONNECTED frame, or failed if any of these steps failed
+	 */
+	public StompFuture<Frame> connectAsync(final String username, final String password) {
+		final StompFuture<Frame> future = new StompFuture<Frame>();
+		this.username = username;
+		this.password = password;
+		this.closing = false;
+
+		// Start the connection attempt
+		clientBootstrap.connect(new InetSocketAddress(hostname, port)).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture channelFuture) throws Exception {
+				if (!channelFuture.isSuccess()) {
+					future.setFailure(channelFuture.getCause());
+					return;
+				}
+				channel = channelFuture.getChannel();
+
+				// The STOMP frames are sent once the TLS handshake is done
+				SslHandler sslHandler = channel.getPipeline().get(SslHandler.class);
+				if (sslHandler == null) {
+					login(future, username, password);
+					return;
+				}
+				sslHandler.handshake().addListener(new ChannelFutureListener() {
+					@Override
+					public void operationComplete(ChannelFuture handshakeFuture) throws Exception {
+						if (handshakeFuture.isSuccess()) {
+							login(future, username, password);
+						} else {
+							handshakeFuture.getChannel().close();
+							future.setFailure(handshakeFuture.getCause());
+						}
+					}
+				});
+			}
+		});
+		return future;
+	}
 
-		channel = channelFuture.getChannel();
-		if (channel.isConnected()) {
-			LOGGER.debug("Connected to {}:{}. Login with username {}...", new Object[] { hostname, port, username });
+	/**
+	 * Send the CONNECT frame and complete the future with the server's answer
+	 */
+	private void login(final StompFuture<Frame> future, String username, String password) {
+		LOGGER.debug("Connected to {}:{}. Login with username {}...", new Object[] { hostname, port, username });
 
-			// When connected, send a CONNECT command
-			clientHandler.connect(channel, SUPPORTED_STOMP_VERSION, hostname, username, password);
+		try {
+			clientHandler.connect(channel, SUPPORTED_STOMP_VERSION, hostname, username, password).addListener(
+					new StompFutureListener<Frame>() {
+						@Override
+						public void operationComplete(StompFuture<Frame> connectFuture) throws Exception {
+							if (connectFuture.isSuccess()) {
+								loggedInOnce = true;
+								future.setSuccess(connectFuture.getNow());
+							} else {
+								future.setFailure(connectFuture.getCause());
+							}
+						}
+					});
+		} catch (SocketException e) {
+			future.setFailure(e);
 		}
 	}
 
@@ -154,29 +297,219 @@ public class StompClient {
 
 	/**
 	 * Disconnect the STOMP client from the server and call back the {@link StompMessageStateCallback#receiptReceived()}
-	 * method when the receipt is received.
+	 * method when the receipt is received. This method waits for the receipt, but no more than 30s : the connection is
+	 * closed anyway.
 	 * 
 	 * @throws SocketException
 	 * @throws NotConnectedException
 	 */
-	public void disconnect(StompMessageStateCallback callback) throws NotConnectedException, SocketException {
+	public void disconnect(final StompMessageStateCallback callback) throws NotConnectedException, SocketException {
+		if (!clientHandler.isLoginRequested())
+			throw new NotConnectedException("You have to be connected to send a " + Frame.COMMAND_DISCONNECT
+					+ " command");
+
+		StompFuture<Void> future = disconnectAsync();
+		if (callback != null) {
+			future.addListener(new StompFutureListener<Void>() {
+				@Override
+				public void operationComplete(StompFuture<Void> future) throws Exception {
+					if (future.isSuccess()) {
+						callback.receiptReceived();
+					}
+				}
+			});
+		}
+
+		if (!future.awaitUninterruptibly(DISCONNECT_TIMEOUT_DEFAULT)) {
+			LOGGER.warn("No receipt received for the DISCONNECT frame, closing the connection anyway");
+			closeChannel();
+			releaseExternalResources();
+		}
+	}
+
+	/**
+	 * Disconnect the STOMP client from the server without blocking. Once the server confirmed the disconnection, the
+	 * connection is closed and the thread pools are shut down.
+	 * 
+	 * @return a future completed once the connection is closed and the resources released. It fails if the server
+	 *         didn't confirm the disconnection, in which case the connection is closed too
+	 */
+	public StompFuture<Void> disconnectAsync() {
 		LOGGER.debug("Disconnecting...");
+		closing = true;
+
+		// A connection being re-established is given up
+		Timeout currentReconnectTimeout = reconnectTimeout;
+		if (currentReconnectTimeout != null) {
+			currentReconnectTimeout.cancel();
+		}
+		if (reconnecting.get()) {
+			failPendingSends(new NotConnectedException("The client has been disconnected"));
+			return shutdown(null);
+		}
 
-		ChannelFuture channelFuture = clientHandler.sendFrame(channel, new DisconnectFrame(), callback);
-		channelFuture.awaitUninterruptibly();
+		StompFuture<Void> receiptFuture;
+		try {
+			receiptFuture = clientHandler.sendFrameWithReceipt(channel, new DisconnectFrame());
+		} catch (Exception e) {
+			return StompFuture.failedFuture(e);
+		}
+		return shutdown(receiptFuture);
+	}
+
+	/**
+	 * Close the connection and shut down the thread pools once the receipt of the DISCONNECT frame is received
+	 * 
+	 * @param receiptFuture
+	 *            the future of the receipt, or null to shut down now
+	 * @return a future completed once the resources are released, with the result of the receipt
+	 */
+	private StompFuture<Void> shutdown(final StompFuture<Void> receiptFuture) {
+		final StompFuture<Void> future = new StompFuture<Void>();
+		final Runnable shutdownTask = new Runnable() {
+			@Override
+			public void run() {
+				closeChannel();
+				releaseExternalResources();
+				LOGGER.debug("Disconnected");
+
+				if (receiptFuture == null || receiptFuture.isSuccess()) {
+					future.setSuccess(null);
+				} else {
+					future.setFailure(receiptFuture.getCause());
+				}
+			}
+		};
+
+		// The receipt is received by an I/O thread, which can't wait for the thread pools to shut down
+		if (receiptFuture == null) {
+			new Thread(shutdownTask, "Client shutdown").start();
+		} else {
+			receiptFuture.addListener(new StompFutureListener<Void>() {
+				@Override
+				public void operationComplete(StompFuture<Void> completedFuture) throws Exception {
+					new Thread(shutdownTask, "Client shutdown").start();
+				}
+			});
+		}
+		return future;
+	}
+
+	/**
+	 * The connection has been lost : start reconnecting if it wasn't closed on purpose
+	 */
+	private void connectionLost() {
+		if (!autoReconnect || closing || !loggedInOnce)
+			return;
+
+		if (reconnecting.compareAndSet(false, true)) {
+			LOGGER.info("Connection to {}:{} lost, reconnecting...", hostname, port);
+			scheduleReconnect(0);
+		}
+	}
+
+	private void scheduleReconnect(int attempt) {
+		long delay = getReconnectDelay(attempt);
+		LOGGER.debug("Reconnection attempt {} in {} ms", attempt + 1, delay);
+		try {
+			reconnectTimeout = timer.newTimeout(new ReconnectTask(attempt), delay, TimeUnit.MILLISECONDS);
+		} catch (IllegalStateException e) {
+			LOGGER.debug("The timer is stopped, giving up reconnecting");
+			failPendingSends(new NotConnectedException("The client has been shut down"));
+		}
+	}
+
+	/**
+	 * Exponential backoff with jitter : the delay doubles at each attempt up to the maximum delay, and a random half of
+	 * it is taken off so the clients of a failed server don't reconnect all at once.
+	 * 
+	 * @param attempt
+	 *            number of the attempt, starting from 0
+	 * @return the delay before the attempt, in milliseconds
+	 */
+	long getReconnectDelay(int attempt) {
+		long maxDelay = Math.min(reconnectMaxDelay, reconnectInitialDelay << Math.min(attempt, 30));
+		long halfDelay = maxDelay / 2;
+		return maxDelay - halfDelay + (long) (random.nextDouble() * halfDelay);
+	}
+
+	/**
+	 * Subscribe again and send the messages buffered while the connection was lost
+	 */
+	private void reconnected(int attempt) {
+		try {
+			clientHandler.resubscribe(channel);
+		} catch (SocketException e) {
+			LOGGER.debug("Connection lost again while subscribing");
+			scheduleReconnect(attempt + 1);
+			return;
+		}
+
+		synchronized (pendingSends) {
+			LOGGER.info("Reconnected to {}:{}, sending {} buffered messages", new Object[] { hostname, port,
+					pendingSends.size() });
+			PendingSend pendingSend;
+			while ((pendingSend = pendingSends.poll()) != null) {
+				pendingSend.send();
+			}
+			reconnecting.set(false);
+		}
+	}
+
+	/**
+	 * Keep a message while the connection is being re-established
+	 * 
+	 * @param pendingSend
+	 * @return false if the client is not reconnecting anymore, so the message can be sent right away
+	 * @throws NotConnectedException
+	 *             if the buffer is full
+	 */
+	private boolean bufferSend(PendingSend pendingSend) throws NotConnectedException {
+		synchronized (pendingSends) {
+			if (!reconnecting.get())
+				return false;
+			if (pendingSends.size() >= reconnectBufferSize)
+				throw new NotConnectedException("The connection is lost and " + reconnectBufferSize
+						+ " messages are already waiting for the reconnection");
+
+			pendingSends.add(pendingSend);
+			return true;
+		}
+	}
+
+	private void failPendingSends(Exception cause) {
+		synchronized (pendingSends) {
+			PendingSend pendingSend;
+			while ((pendingSend = pendingSends.poll()) != null) {
+				if (pendingSend.future != null) {
+					pendingSend.future.setFailure(cause);
+				}
+			}
+			reconnecting.set(false);
+		}
+	}
 
-		if (channel != null && channel.isOpen()) {
-			// Close the connection. Make sure the close operation ends because
-			// all I/O operations are asynchronous in Netty.
-			channel.close().awaitUninterruptibly();
+	/**
+	 * Close the connection. Make sure the close operation ends because all I/O operations are asynchronous in Netty.
+	 */
+	void closeChannel() {
+		Channel currentChannel = channel;
+		if (currentChannel != null && currentChannel.isOpen()) {
+			currentChannel.close().awaitUninterruptibly();
 		}
+	}
+
+	/**
+	 * Shut down all thread pools and the heart-beat timer
+	 */
+	private void releaseExternalResources() {
+		if (sharedResources)
+			return;
 
 		if (clientBootstrap != null) {
-			// Shut down all thread pools to exit.
 			clientBootstrap.releaseExternalResources();
 		}
-
-		LOGGER.debug("Disconnected");
+		timer.stop();
 	}
 
 	/**
@@ -219,6 +552,79 @@ public class StompClient {
 		return clientHandler.subscribe(channel, topic, topicListener, callback, ackMode);
 	}
 
+	/**
+	 * Subscribe to the topic named <code>topic</code> with a prefetch window. The server won't send more than
+	 * <code>prefetchCount</code> messages to this subscription until they are acknowledged, the following ones are
+	 * held back on the server. This is only used with {@link Ack#CLIENT} and {@link Ack#CLIENT_INDIVIDUAL} modes.
+	 * 
+	 * @param topic
+	 * @param topicListener
+	 * @param callback
+	 * @param ackMode
+	 * @param prefetchCount
+	 *            maximum number of unacknowledged messages, 0 means no limit
+	 * @return
+	 * @throws NotConnectedException
+	 * @throws SocketException
+	 * @see {@link #subscribe(String, StompTopicListener, StompMessageStateCallback, Ack)}
+	 */
+	public Long subscribe(String topic, StompTopicListener topicListener, StompMessageStateCallback callback,
+			Ack ackMode, int prefetchCount) throws NotConnectedException, SocketException {
+		return clientHandler.subscribe(channel, topic, topicListener, callback, ackMode, prefetchCount);
+	}
+
+	/**
+	 * Subscribe to the topic named <code>topic</code> without blocking.
+	 * 
+	 * @param topic
+	 * @param topicListener
+	 * @return a future completed with the subscription id once the server confirmed the subscription
+	 * @see {@link #subscribeAsync(String, StompTopicListener, Ack, int)}
+	 */
+	public StompFuture<Long> subscribeAsync(String topic, StompTopicListener topicListener) {
+		return subscribeAsync(topic, topicListener, Ack.AUTO, 0);
+	}
+
+	/**
+	 * Subscribe to the topic named <code>topic</code> without blocking. The listener is registered before the SUBSCRIBE
+	 * frame is sent, so it can receive messages before the future is completed.
+	 * 
+	 * @param topic
+	 * @param topicListener
+	 * @param ackMode
+	 * @param prefetchCount
+	 *            maximum number of unacknowledged messages, 0 means no limit
+	 * @return a future completed with the subscription id once the server confirmed the subscription
+	 */
+	public StompFuture<Long> subscribeAsync(String topic, StompTopicListener topicListener, Ack ackMode,
+			int prefetchCount) {
+		return subscribeAsync(topic, topicListener, ackMode, prefetchCount, null);
+	}
+
+	/**
+	 * Subscribe to the topic named <code>topic</code> without blocking, with a listener run by its own executor. The
+	 * listener receives the messages in order, one at a time.
+	 * 
+	 * @param topic
+	 * @param topicListener
+	 * @param ackMode
+	 * @param prefetchCount
+	 *            maximum number of unacknowledged messages, 0 means no limit
+	 * @param listenerExecutor
+	 *            the executor which runs the listener, or null to use the one of the client
+	 * @return a future completed with the subscription id once the server confirmed the subscription
+	 * @see {@link #setListenerExecutor(Executor)}
+	 */
+	public StompFuture<Long> subscribeAsync(String topic, StompTopicListener topicListener, Ack ackMode,
+			int prefetchCount, Executor listenerExecutor) {
+		try {
+			return clientHandler.subscribeAsync(channel, topic, topicListener, ackMode, prefetchCount,
+					listenerExecutor);
+		} catch (Exception e) {
+			return StompFuture.failedFuture(e);
+		}
+	}
+
 	/**
 	 * Unsubscribe the client from a topic whith the <code>subscriptionId</code> send back by subscribing methods.
 	 * 
@@ -248,6 +654,21 @@ public class StompClient {
 		clientHandler.unsubscribe(channel, subscriptionId, callback);
 	}
 
+	/**
+	 * Unsubscribe the client from a topic without blocking. No message is delivered to the listener of this
+	 * subscription anymore, even before the future is completed.
+	 * 
+	 * @param subscriptionId
+	 * @return a future completed once the server confirmed the unsubscription
+	 */
+	public StompFuture<Void> unsubscribeAsync(Long subscriptionId) {
+		try {
+			return clientHandler.unsubscribeAsync(channel, subscriptionId);
+		} catch (Exception e) {
+			return StompFuture.failedFuture(e);
+		}
+	}
+
 	/**
 	 * Send the message <code>message</code> to the topic <code>topic</code>.
 	 * 
@@ -294,7 +715,389 @@ public class StompClient {
 	 */
 	public void send(String topic, String message, Map<String, String> additionalHeaders,
 			StompMessageStateCallback callback) throws NotConnectedException, SocketException {
-		clientHandler.send(channel, topic, message, additionalHeaders, callback);
+		send(clientHandler.createSendFrame(topic, message, additionalHeaders), callback);
+	}
+
+	/**
+	 * Send the raw body <code>body</code> to the topic <code>topic</code> with additional headers. The body is sent
+	 * as is, without any charset conversion.
+	 * 
+	 * @param topic
+	 * @param body
+	 *            the body, which must not be modified until the message is written
+	 * @param additionalHeaders
+	 * @param callback
+	 * @throws NotConnectedException
+	 * @throws SocketException
+	 * @see {@link #send(String, String, Map, StompMessageStateCallback)}
+	 */
+	public void send(String topic, byte[] body, Map<String, String> additionalHeaders,
+			StompMessageStateCallback callback) throws NotConnectedException, SocketException {
+		send(clientHandler.createSendFrame(topic, body, additionalHeaders), callback);
+	}
+
+	/**
+	 * Send the remaining bytes of <code>body</code> to the topic <code>topic</code> with additional headers. They're
+	 * copied, the buffer's position is left unchanged.
+	 * 
+	 * @param topic
+	 * @param body
+	 * @param additionalHeaders
+	 * @param callback
+	 * @throws NotConnectedException
+	 * @throws SocketException
+	 * @see {@link #send(String, byte[], Map, StompMessageStateCallback)}
+	 */
+	public void send(String topic, ByteBuffer body, Map<String, String> additionalHeaders,
+			StompMessageStateCallback callback) throws NotConnectedException, SocketException {
+		send(topic, toByteArray(body), additionalHeaders, callback);
+	}
+
+	private void send(SendFrame frame, StompMessageStateCallback callback) throws NotConnectedException,
+			SocketException {
+		if (reconnecting.get() && bufferSend(new PendingSend(frame, callback, null)))
+			return;
+		doSend(frame, callback);
+	}
+
+	private void doSend(SendFrame frame, StompMessageStateCallback callback) throws NotConnectedException,
+			SocketException {
+		final int size = frame.getBodySize();
+		outstandingBytes.addAndGet(size);
+		ChannelFuture channelFuture;
+		try {
+			channelFuture = clientHandler.send(channel, frame, callback);
+		} catch (SocketException e) {
+			outstandingBytes.addAndGet(-size);
+			throw e;
+		} catch (NotConnectedException e) {
+			outstandingBytes.addAndGet(-size);
+			throw e;
+		}
+		channelFuture.addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				outstandingBytes.addAndGet(-size);
+			}
+		});
+	}
+
+	/**
+	 * Send the message <code>message</code> to the topic <code>topic</code> without blocking.
+	 * 
+	 * @param topic
+	 * @param message
+	 * @return a future completed once the server confirmed it processed the message
+	 * @see {@link #sendAsync(String, String, Map)}
+	 */
+	public StompFuture<Void> sendAsync(String topic, String message) {
+		return sendAsync(topic, message, null);
+	}
+
+	/**
+	 * Send the message <code>message</code> to the topic <code>topic</code> with additional headers, without blocking.
+	 * A receipt is requested for the message.
+	 * 
+	 * @param topic
+	 * @param message
+	 * @param additionalHeaders
+	 * @return a future completed once the server confirmed it processed the message. It fails if the server answered
+	 *         with an ERROR frame or if the connection has been closed before
+	 * @see #setConfirmWindow(int, long)
+	 */
+	public StompFuture<Void> sendAsync(String topic, String message, Map<String, String> additionalHeaders) {
+		return sendAsync(clientHandler.createSendFrame(topic, message, additionalHeaders));
+	}
+
+	/**
+	 * Send the raw body <code>body</code> to the topic <code>topic</code> with additional headers, without blocking.
+	 * The body is sent as is, without any charset conversion.
+	 * 
+	 * @param topic
+	 * @param body
+	 *            the body, which must not be modified until the message is written
+	 * @param additionalHeaders
+	 * @return a future completed once the server confirmed it processed the message
+	 * @see {@link #sendAsync(String, String, Map)}
+	 */
+	public StompFuture<Void> sendAsync(String topic, byte[] body, Map<String, String> additionalHeaders) {
+		return sendAsync(clientHandler.createSendFrame(topic, body, additionalHeaders));
+	}
+
+	/**
+	 * Send the remaining bytes of <code>body</code> to the topic <code>topic</code> with additional headers, without
+	 * blocking. They're copied, the buffer's position is left unchanged.
+	 * 
+	 * @param topic
+	 * @param body
+	 * @param additionalHeaders
+	 * @return a future completed once the server confirmed it processed the message
+	 * @see {@link #sendAsync(String, byte[], Map)}
+	 */
+	public StompFuture<Void> sendAsync(String topic, ByteBuffer body, Map<String, String> additionalHeaders) {
+		return sendAsync(topic, toByteArray(body), additionalHeaders);
+	}
+
+	private StompFuture<Void> sendAsync(SendFrame frame) {
+		ConfirmWindow window = confirmWindow;
+		if (window == null)
+			return sendOrBufferAsync(frame);
+
+		try {
+			window.acquire();
+		} catch (ConfirmWindowFullException e) {
+			return StompFuture.failedFuture(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return StompFuture.failedFuture(e);
+		}
+		StompFuture<Void> future = sendOrBufferAsync(frame);
+		window.releaseOnCompletion(future);
+		return future;
+	}
+
+	private StompFuture<Void> sendOrBufferAsync(SendFrame frame) {
+		if (reconnecting.get()) {
+			StompFuture<Void> future = new StompFuture<Void>();
+			try {
+				if (bufferSend(new PendingSend(frame, null, future)))
+					return future;
+			} catch (NotConnectedException e) {
+				return StompFuture.failedFuture(e);
+			}
+		}
+		return doSendAsync(frame);
+	}
+
+	private StompFuture<Void> doSendAsync(SendFrame frame) {
+		final int size = frame.getBodySize();
+		StompFuture<Void> future;
+		try {
+			future = clientHandler.sendAsync(channel, frame);
+		} catch (Exception e) {
+			return StompFuture.failedFuture(e);
+		}
+
+		outstandingBytes.addAndGet(size);
+		future.addListener(new StompFutureListener<Void>() {
+			@Override
+			public void operationComplete(StompFuture<Void> future) throws Exception {
+				outstandingBytes.addAndGet(-size);
+			}
+		});
+		return future;
+	}
+
+	private static byte[] toByteArray(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @return the size of the messages sent but not written yet, or not confirmed yet for the messages sent with
+	 *         {@link #sendAsync(String, String, Map)}
+	 */
+	public long getOutstandingBytes() {
+		return outstandingBytes.get();
+	}
+
+	/**
+	 * Write the messages in batches : they're gathered until a batch reaches <code>maxBatchSize</code> messages or
+	 * <code>maxBatchBytes</code> bytes, or until <code>lingerTime</code> milliseconds elapsed since its first message.
+	 * A receipt is only requested on the messages a callback or a future is waiting for.
+	 * 
+	 * @param maxBatchSize
+	 * @param maxBatchBytes
+	 * @param lingerTime
+	 * @see {@link SendBatcher}
+	 */
+	public void setBatching(int maxBatchSize, int maxBatchBytes, long lingerTime) {
+		clientHandler.setSendBatcher(new SendBatcher(clientHandler, timer, maxBatchSize, maxBatchBytes, lingerTime));
+	}
+
+	/**
+	 * Write the pending batch, then write each message as soon as it's sent
+	 */
+	public void disableBatching() {
+		clientHandler.setSendBatcher(null);
+	}
+
+	/**
+	 * Write the pending batch now, without waiting for it to fill up
+	 */
+	public void flush() {
+		SendBatcher sendBatcher = clientHandler.getSendBatcher();
+		if (sendBatcher != null) {
+			sendBatcher.flush();
+		}
+	}
+
+	public Executor getListenerExecutor() {
+		return clientHandler.getListenerExecutor();
+	}
+
+	/**
+	 * Run the topic listeners on an executor instead of the I/O thread, so a slow listener doesn't stall the
+	 * connection. The messages of a subscription are queued in a mailbox and passed to its listener in order. When a
+	 * mailbox is full, the client stops reading from the connection until the listener catches up.
+	 * 
+	 * <p/>
+	 * <b>NOTE :</b> This only applies to the next subscriptions.
+	 * 
+	 * @param listenerExecutor
+	 *            the executor, or null to run the listeners on the I/O thread
+	 * @see {@link #setMailboxCapacity(int)}
+	 */
+	public void setListenerExecutor(Executor listenerExecutor) {
+		clientHandler.setListenerExecutor(listenerExecutor);
+	}
+
+	public int getMailboxCapacity() {
+		return clientHandler.getMailboxCapacity();
+	}
+
+	/**
+	 * <b>NOTE :</b> This only applies to the next subscriptions.
+	 * 
+	 * @param mailboxCapacity
+	 *            number of messages waiting for a listener above which the client stops reading
+	 */
+	public void setMailboxCapacity(int mailboxCapacity) {
+		clientHandler.setMailboxCapacity(mailboxCapacity);
+	}
+
+	/**
+	 * Gather the acknowledgements of the messages received with {@link Ack#CLIENT} or {@link Ack#CLIENT_INDIVIDUAL}
+	 * mode. A message is acknowledged once its listener returned, and rejected with a NACK frame if the listener
+	 * failed. By default, the acknowledgements are written by {@value AckManager#DEFAULT_MAX_PENDING_ACKS} or after
+	 * {@value AckManager#DEFAULT_ACK_INTERVAL} ms.
+	 * 
+	 * @param maxPendingAcks
+	 *            number of acknowledged messages above which the acknowledgements are written, 1 to write each one
+	 *            right away
+	 * @param ackInterval
+	 *            maximum number of milliseconds an acknowledgement waits for the other ones
+	 */
+	public void setAckBatching(int maxPendingAcks, long ackInterval) {
+		clientHandler.setAckManager(new AckManager(timer, maxPendingAcks, ackInterval));
+	}
+
+	public ConfirmWindow getConfirmWindow() {
+		return confirmWindow;
+	}
+
+	/**
+	 * Bound the number of messages sent by {@link #sendAsync(String, String, Map)} which are waiting for their receipt.
+	 * Once <code>maxInFlight</code> messages are waiting, the sender is blocked until a receipt arrives, or fails with
+	 * a {@link ConfirmWindowFullException} after <code>blockTime</code> milliseconds.
+	 * 
+	 * @param maxInFlight
+	 * @param blockTime
+	 *            number of milliseconds to wait for room in the window, 0 to fail right away
+	 */
+	public void setConfirmWindow(int maxInFlight, long blockTime) {
+		this.confirmWindow = new ConfirmWindow(maxInFlight, blockTime);
+	}
+
+	/**
+	 * Send messages without limiting the number of messages waiting for their receipt. This is the default.
+	 */
+	public void disableConfirmWindow() {
+		this.confirmWindow = null;
+	}
+
+	public long getReceiptTimeout() {
+		return clientHandler.getReceiptTracker().getDefaultTimeout();
+	}
+
+	/**
+	 * @param receiptTimeout
+	 *            number of milliseconds to wait for a receipt before its future fails with a
+	 *            {@link java.util.concurrent.TimeoutException}, or 0 to wait until the connection is closed. Default
+	 *            is {@link ReceiptTracker#DEFAULT_RECEIPT_TIMEOUT}
+	 */
+	public void setReceiptTimeout(long receiptTimeout) {
+		clientHandler.getReceiptTracker().setDefaultTimeout(receiptTimeout);
+	}
+
+	public boolean isAutoReconnect() {
+		return autoReconnect;
+	}
+
+	/**
+	 * Reconnect automatically when the connection is lost after a successful login. Attempts are delayed by a jittered
+	 * exponential backoff, see {@link #setReconnectDelays(long, long)}. Once logged in again, the subscriptions are
+	 * sent again with their ids, so their listeners keep receiving messages. Messages sent meanwhile are buffered, see
+	 * {@link #setReconnectBufferSize(int)}.
+	 * 
+	 * @param autoReconnect
+	 */
+	public void setAutoReconnect(boolean autoReconnect) {
+		this.autoReconnect = autoReconnect;
+	}
+
+	/**
+	 * @return true if the connection has been lost and is being re-established
+	 */
+	public boolean isReconnecting() {
+		return reconnecting.get();
+	}
+
+	public long getReconnectInitialDelay() {
+		return reconnectInitialDelay;
+	}
+
+	public long getReconnectMaxDelay() {
+		return reconnectMaxDelay;
+	}
+
+	/**
+	 * @param initialDelay
+	 *            delay before the first reconnection attempt, in milliseconds. It doubles at each attempt
+	 * @param maxDelay
+	 *            maximum delay between two attempts, in milliseconds
+	 */
+	public void setReconnectDelays(long initialDelay, long maxDelay) {
+		if (initialDelay <= 0 || maxDelay < initialDelay)
+			throw new IllegalArgumentException("Reconnection delays have to be strictly positive, initial delay first");
+		this.reconnectInitialDelay = initialDelay;
+		this.reconnectMaxDelay = maxDelay;
+	}
+
+	public int getReconnectBufferSize() {
+		return reconnectBufferSize;
+	}
+
+	/**
+	 * @param reconnectBufferSize
+	 *            number of messages kept while reconnecting. Once reached, sends fail with a
+	 *            {@link NotConnectedException}
+	 */
+	public void setReconnectBufferSize(int reconnectBufferSize) {
+		if (reconnectBufferSize < 0)
+			throw new IllegalArgumentException("Reconnection buffer size have to be a positive number");
+		this.reconnectBufferSize = reconnectBufferSize;
+	}
+
+	public SslHandlerFactory getSslHandlerFactory() {
+		return sslHandlerFactory;
+	}
+
+	/**
+	 * Connect to the server over TLS. Clients sharing the same factory resume their TLS session when they reconnect to
+	 * the same server.
+	 * 
+	 * <p/>
+	 * <b>NOTE :</b> This can only be set while the client is not connected yet.
+	 * 
+	 * @param sslHandlerFactory
+	 *            a factory in client mode, or null to disable TLS
+	 */
+	public void setSslHandlerFactory(SslHandlerFactory sslHandlerFactory) {
+		if (sslHandlerFactory != null && !sslHandlerFactory.isClientMode())
+			throw new IllegalArgumentException("The TLS handler of the client has to be in client mode");
+		this.sslHandlerFactory = sslHandlerFactory;
 	}
 
 	public void addListener(StompClientListener stompClientListener) {
@@ -329,4 +1132,105 @@ public class StompClient {
 		clientHandler.setHeartBeat(guaranteedHeartBeat, expectedHeartBeat);
 	}
 
+	/**
+	 * Start reconnecting when the connection is lost
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private class ConnectionLostListener implements StompClientListener {
+
+		@Override
+		public void connected() {
+		}
+
+		@Override
+		public void disconnected() {
+			connectionLost();
+		}
+
+		@Override
+		public void receivedError(String shortMessage, String description) {
+		}
+	}
+
+	/**
+	 * A reconnection attempt, which schedules the next one if it fails
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private class ReconnectTask implements TimerTask {
+
+		private final int attempt;
+
+		public ReconnectTask(int attempt) {
+			this.attempt = attempt;
+		}
+
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			if (closing)
+				return;
+
+			connectAsync(username, password).addListener(new StompFutureListener<Frame>() {
+				@Override
+				public void operationComplete(StompFuture<Frame> future) throws Exception {
+					if (closing) {
+						if (channel != null) {
+							channel.close();
+						}
+					} else if (future.isSuccess()) {
+						reconnected(attempt);
+					} else {
+						LOGGER.debug("Reconnection attempt {} failed : {}", attempt + 1, future.getCause().getMessage());
+						scheduleReconnect(attempt + 1);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * A message sent while the connection was lost
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private class PendingSend {
+
+		private final SendFrame frame;
+		private final StompMessageStateCallback callback;
+		private final StompFuture<Void> future;
+
+		public PendingSend(SendFrame frame, StompMessageStateCallback callback, StompFuture<Void> future) {
+			this.frame = frame;
+			this.callback = callback;
+			this.future = future;
+		}
+
+		public void send() {
+			if (future == null) {
+				try {
+					doSend(frame, callback);
+				} catch (Exception e) {
+					LOGGER.error("Failed to send a buffered message to "
+							+ frame.getHeaderValue(Header.HEADER_DESTINATION), e);
+				}
+				return;
+			}
+
+			doSendAsync(frame).addListener(new StompFutureListener<Void>() {
+				@Override
+				public void operationComplete(StompFuture<Void> sendFuture) throws Exception {
+					if (sendFuture.isSuccess()) {
+						future.setSuccess(null);
+					} else {
+						future.setFailure(sendFuture.getCause());
+					}
+				}
+			});
+		}
+	}
+
 }
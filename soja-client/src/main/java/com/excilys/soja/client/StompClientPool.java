@@ -0,0 +1,476 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.client;
+
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.excilys.soja.client.events.StompClientListener;
+import com.excilys.soja.client.events.StompMessageStateCallback;
+import com.excilys.soja.client.exception.NotConnectedException;
+import com.excilys.soja.core.factory.SslHandlerFactory;
+import com.excilys.soja.core.future.StompFuture;
+import com.excilys.soja.core.future.StompFutureListener;
+
+/**
+ * Set of connections to the same server, used as a single publisher. Each send is written on one connection only :
+ * <ul>
+ * <li>by default, the connection with the fewest outstanding bytes (see {@link StompClient#getOutstandingBytes()}), so
+ * a slow connection doesn't hold back the others</li>
+ * <li>if ordered by destination, the connection chosen by hashing the destination, so the messages of a destination
+ * are all written on the same connection and received by the server in the order they were sent</li>
+ * </ul>
+ * All the connections share the same I/O thread pools and the same heart-beat timer.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class StompClientPool {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StompClientPool.class);
+
+	private static final long CONNECT_TIMEOUT_DEFAULT = 30000;
+
+	private final List<StompClient> clients;
+	private final NioClientSocketChannelFactory channelFactory;
+	private final HashedWheelTimer timer;
+	private final AtomicInteger nextClientIndex = new AtomicInteger();
+
+	private volatile boolean orderedByDestination = false;
+
+	/**
+	 * @param hostname
+	 * @param port
+	 * @param size
+	 *            number of connections to open
+	 */
+	public StompClientPool(String hostname, int port, int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException("Pool size have to be a strictly positive number");
+
+		this.channelFactory = new NioClientSocketChannelFactory(Executors.newCachedThreadPool(),
+				Executors.newCachedThreadPool());
+		this.timer = new HashedWheelTimer(StompClient.TIMER_TICK_DURATION, TimeUnit.MILLISECONDS);
+
+		List<StompClient> poolClients = new ArrayList<StompClient>(size);
+		for (int i = 0; i < size; i++) {
+			poolClients.add(new StompClient(hostname, port, channelFactory, timer, true));
+		}
+		this.clients = Collections.unmodifiableList(poolClients);
+	}
+
+	/**
+	 * Connect all the connections as a guest with default timeout value (30s)
+	 * 
+	 * @throws SocketException
+	 * @throws TimeoutException
+	 * @see {@link #connect(String, String, long)}
+	 */
+	public void connect() throws SocketException, TimeoutException {
+		connect(null, null, CONNECT_TIMEOUT_DEFAULT);
+	}
+
+	/**
+	 * Connect and login all the connections with a timeout value. If one of them fails, all are closed.
+	 * 
+	 * @param username
+	 * @param password
+	 * @param connectTimeout
+	 * @throws SocketException
+	 * @throws TimeoutException
+	 */
+	public void connect(String username, String password, long connectTimeout) throws SocketException,
+			TimeoutException {
+		StompFuture<Void> future = connectAsync(username, password);
+		if (!future.awaitUninterruptibly(connectTimeout)) {
+			disconnectAsync();
+			throw new TimeoutException("Connection timeout of the pool");
+		}
+
+		if (!future.isSuccess()) {
+			disconnectAsync();
+			ConnectException exception = new ConnectException("Pool failed to connect : "
+					+ future.getCause().getMessage());
+			exception.initCause(future.getCause());
+			throw exception;
+		}
+	}
+
+	/**
+	 * Connect and login all the connections without blocking
+	 * 
+	 * @param username
+	 * @param password
+	 * @return a future completed once all the connections are logged in, or failed as soon as one of them failed
+	 */
+	public StompFuture<Void> connectAsync(String username, String password) {
+		List<StompFuture<?>> futures = new ArrayList<StompFuture<?>>(clients.size());
+		for (StompClient client : clients) {
+			futures.add(client.connectAsync(username, password));
+		}
+		return allOf(futures, true);
+	}
+
+	/**
+	 * Disconnect all the connections, then shut down the thread pools and the heart-beat timer
+	 * 
+	 * @return a future completed once all the connections are closed
+	 */
+	public StompFuture<Void> disconnectAsync() {
+		List<StompFuture<?>> futures = new ArrayList<StompFuture<?>>(clients.size());
+		for (StompClient client : clients) {
+			if (client.isConnected() || client.isReconnecting()) {
+				futures.add(client.disconnectAsync());
+			}
+		}
+
+		final StompFuture<Void> future = new StompFuture<Void>();
+		allOf(futures, false).addListener(new StompFutureListener<Void>() {
+			@Override
+			public void operationComplete(StompFuture<Void> disconnectFuture) throws Exception {
+				// Connections which were not logged in can't be disconnected, but the I/O threads can't stop until
+				// they're closed. This is never run on an I/O thread : clients are closed on their own shutdown thread
+				for (StompClient client : clients) {
+					client.closeChannel();
+				}
+				channelFactory.releaseExternalResources();
+				timer.stop();
+				LOGGER.debug("Pool disconnected");
+
+				if (disconnectFuture.isSuccess()) {
+					future.setSuccess(null);
+				} else {
+					future.setFailure(disconnectFuture.getCause());
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Send the message <code>message</code> to the topic <code>topic</code> on one of the connections.
+	 * 
+	 * @param topic
+	 * @param message
+	 * @throws NotConnectedException
+	 * @throws SocketException
+	 * @see {@link StompClient#send(String, String)}
+	 */
+	public void send(String topic, String message) throws NotConnectedException, SocketException {
+		send(topic, message, null, null);
+	}
+
+	/**
+	 * Send the message <code>message</code> to the topic <code>topic</code> with additional headers on one of the
+	 * connections.
+	 * 
+	 * @param topic
+	 * @param message
+	 * @param additionalHeaders
+	 * @param callback
+	 * @throws NotConnectedException
+	 * @throws SocketException
+	 * @see {@link StompClient#send(String, String, Map, StompMessageStateCallback)}
+	 */
+	public void send(String topic, String message, Map<String, String> additionalHeaders,
+			StompMessageStateCallback callback) throws NotConnectedException, SocketException {
+		selectClient(topic).send(topic, message, additionalHeaders, callback);
+	}
+
+	/**
+	 * Send the message <code>message</code> to the topic <code>topic</code> on one of the connections, without
+	 * blocking.
+	 * 
+	 * @param topic
+	 * @param message
+	 * @param additionalHeaders
+	 * @return a future completed once the server confirmed it processed the message
+	 * @see {@link StompClient#sendAsync(String, String, Map)}
+	 */
+	public StompFuture<Void> sendAsync(String topic, String message, Map<String, String> additionalHeaders) {
+		return selectClient(topic).sendAsync(topic, message, additionalHeaders);
+	}
+
+	/**
+	 * Send the raw body <code>body</code> to the topic <code>topic</code> with additional headers on one of the
+	 * connections.
+	 *
+	 * @param topic
+	 * @param body
+	 * @param additionalHeaders
+	 * @param callback
+	 * @throws NotConnectedException
+	 * @throws SocketException
+	 * @see {@link StompClient#send(String, byte[], Map, StompMessageStateCallback)}
+	 */
+	public void send(String topic, byte[] body, Map<String, String> additionalHeaders,
+			StompMessageStateCallback callback) throws NotConnectedException, SocketException {
+		selectClient(topic).send(topic, body, additionalHeaders, callback);
+	}
+
+	/**
+	 * Send the raw body <code>body</code> to the topic <code>topic</code> on one of the connections, without blocking.
+	 *
+	 * @param topic
+	 * @param body
+	 * @param additionalHeaders
+	 * @return a future completed once the server confirmed it processed the message
+	 * @see {@link StompClient#sendAsync(String, byte[], Map)}
+	 */
+	public StompFuture<Void> sendAsync(String topic, byte[] body, Map<String, String> additionalHeaders) {
+		return selectClient(topic).sendAsync(topic, body, additionalHeaders);
+	}
+
+	/**
+	 * @param topic
+	 * @return the connection to use to send a message on this topic
+	 */
+	StompClient selectClient(String topic) {
+		int size = clients.size();
+		if (orderedByDestination) {
+			return clients.get((topic.hashCode() & Integer.MAX_VALUE) % size);
+		}
+
+		// Start from a different connection each time, so they're evenly used when none has outstanding bytes
+		int start = (nextClientIndex.getAndIncrement() & Integer.MAX_VALUE) % size;
+		StompClient selectedClient = null;
+		long selectedOutstandingBytes = Long.MAX_VALUE;
+		for (int i = 0; i < size; i++) {
+			StompClient client = clients.get((start + i) % size);
+			long outstandingBytes = client.getOutstandingBytes();
+			if (client.isConnected() && outstandingBytes < selectedOutstandingBytes) {
+				selectedClient = client;
+				selectedOutstandingBytes = outstandingBytes;
+				if (outstandingBytes == 0)
+					break;
+			}
+		}
+
+		// If no connection is up, let the client buffer the message while reconnecting, or report the error
+		return selectedClient != null ? selectedClient : clients.get(start);
+	}
+
+	/**
+	 * @param futures
+	 * @param failFast
+	 *            true to fail as soon as one of the futures failed, false to wait for all of them anyway
+	 * @return a future completed once all the futures succeeded, or failed with the cause of the first one which failed
+	 */
+	private static StompFuture<Void> allOf(List<StompFuture<?>> futures, boolean failFast) {
+		final StompFuture<Void> future = new StompFuture<Void>();
+		if (futures.isEmpty()) {
+			future.setSuccess(null);
+			return future;
+		}
+
+		AtomicInteger remaining = new AtomicInteger(futures.size());
+		AtomicReference<Throwable> firstCause = new AtomicReference<Throwable>();
+		for (StompFuture<?> each : futures) {
+			addCountDownListener(each, future, remaining, firstCause, failFast);
+		}
+		return future;
+	}
+
+	private static <V> void addCountDownListener(StompFuture<V> each, final StompFuture<Void> future,
+			final AtomicInteger remaining, final AtomicReference<Throwable> firstCause, final boolean failFast) {
+		each.addListener(new StompFutureListener<V>() {
+			@Override
+			public void operationComplete(StompFuture<V> completedFuture) throws Exception {
+				if (!completedFuture.isSuccess()) {
+					firstCause.compareAndSet(null, completedFuture.getCause());
+					if (failFast) {
+						future.setFailure(completedFuture.getCause());
+					}
+				}
+
+				if (remaining.decrementAndGet() == 0) {
+					Throwable cause = firstCause.get();
+					if (cause == null) {
+						future.setSuccess(null);
+					} else {
+						future.setFailure(cause);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the connections of this pool
+	 */
+	public List<StompClient> getClients() {
+		return clients;
+	}
+
+	public int getSize() {
+		return clients.size();
+	}
+
+	/**
+	 * @return the outstanding bytes of all the connections
+	 */
+	public long getOutstandingBytes() {
+		long outstandingBytes = 0;
+		for (StompClient client : clients) {
+			outstandingBytes += client.getOutstandingBytes();
+		}
+		return outstandingBytes;
+	}
+
+	public boolean isOrderedByDestination() {
+		return orderedByDestination;
+	}
+
+	/**
+	 * @param orderedByDestination
+	 *            true to send all the messages of a destination on the same connection, so the server receives them in
+	 *            order. Otherwise, messages are sent on the least loaded connection
+	 */
+	public void setOrderedByDestination(boolean orderedByDestination) {
+		this.orderedByDestination = orderedByDestination;
+	}
+
+	/**
+	 * Connect all the connections over TLS.
+	 * 
+	 * <p/>
+	 * <b>NOTE :</b> This can only be set while the pool is not connected yet.
+	 * 
+	 * @param sslHandlerFactory
+	 *            a factory in client mode, or null to disable TLS
+	 * @see {@link StompClient#setSslHandlerFactory(SslHandlerFactory)}
+	 */
+	public void setSslHandlerFactory(SslHandlerFactory sslHandlerFactory) {
+		for (StompClient client : clients) {
+			client.setSslHandlerFactory(sslHandlerFactory);
+		}
+	}
+
+	/**
+	 * Gather the acknowledgements of each connection, see {@link StompClient#setAckBatching(int, long)}
+	 * 
+	 * @param maxPendingAcks
+	 * @param ackInterval
+	 */
+	public void setAckBatching(int maxPendingAcks, long ackInterval) {
+		for (StompClient client : clients) {
+			client.setAckBatching(maxPendingAcks, ackInterval);
+		}
+	}
+
+	/**
+	 * Bound the number of messages waiting for their receipt on each connection, see
+	 * {@link StompClient#setConfirmWindow(int, long)}
+	 * 
+	 * @param maxInFlight
+	 *            number of messages which may wait for their receipt on each connection
+	 * @param blockTime
+	 */
+	public void setConfirmWindow(int maxInFlight, long blockTime) {
+		for (StompClient client : clients) {
+			client.setConfirmWindow(maxInFlight, blockTime);
+		}
+	}
+
+	/**
+	 * @param receiptTimeout
+	 *            number of milliseconds each connection waits for a receipt, see
+	 *            {@link StompClient#setReceiptTimeout(long)}
+	 */
+	public void setReceiptTimeout(long receiptTimeout) {
+		for (StompClient client : clients) {
+			client.setReceiptTimeout(receiptTimeout);
+		}
+	}
+
+	/**
+	 * Reconnect each connection automatically when it's lost, see {@link StompClient#setAutoReconnect(boolean)}. The
+	 * messages are sent through the remaining connections meanwhile.
+	 * 
+	 * @param autoReconnect
+	 */
+	public void setAutoReconnect(boolean autoReconnect) {
+		for (StompClient client : clients) {
+			client.setAutoReconnect(autoReconnect);
+		}
+	}
+
+	/**
+	 * Write the messages of each connection in batches
+	 * 
+	 * @param maxBatchSize
+	 * @param maxBatchBytes
+	 * @param lingerTime
+	 * @see {@link StompClient#setBatching(int, int, long)}
+	 */
+	public void setBatching(int maxBatchSize, int maxBatchBytes, long lingerTime) {
+		for (StompClient client : clients) {
+			client.setBatching(maxBatchSize, maxBatchBytes, lingerTime);
+		}
+	}
+
+	/**
+	 * Write the pending batch of each connection now
+	 */
+	public void flush() {
+		for (StompClient client : clients) {
+			client.flush();
+		}
+	}
+
+	/**
+	 * Configure the head-beat system of all the connections.
+	 * 
+	 * <p/>
+	 * <b>NOTE :</b> This can only be set while the pool is not connected yet.
+	 * 
+	 * @param guaranteedHeartBeat
+	 * @param expectedHeartBeat
+	 * @see {@link StompClient#setHeartBeat(long, long)}
+	 */
+	public void setHeartBeat(long guaranteedHeartBeat, long expectedHeartBeat) {
+		for (StompClient client : clients) {
+			client.setHeartBeat(guaranteedHeartBeat, expectedHeartBeat);
+		}
+	}
+
+	public void addListener(StompClientListener stompClientListener) {
+		for (StompClient client : clients) {
+			client.addListener(stompClientListener);
+		}
+	}
+
+	public void removeListener(StompClientListener stompClientListener) {
+		for (StompClient client : clients) {
+			client.removeListener(stompClientListener);
+		}
+	}
+
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.client.events;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * A topic listener receiving the body of the messages as it was read, without decoding it as a string. The headers
+ * are a read-only view of the frame's headers, so nothing is copied for each message.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public abstract class StompRawTopicListener implements StompTopicListener {
+
+	/**
+	 * This method is called when the client received a message from the server.
+	 * 
+	 * @param body
+	 *            a read-only buffer of the body, empty if the message has no body
+	 * @param headers
+	 *            a read-only view of all the headers of the MESSAGE frame
+	 */
+	public abstract void receivedMessage(ByteBuffer body, Map<String, String> headers);
+
+	/**
+	 * Encode the message in UTF-8, for the callers giving it as a string
+	 */
+	@Override
+	public void receivedMessage(String message, Map<String, String> userHeaders) {
+		byte[] body = message == null ? new byte[0] : message.getBytes(CharsetUtil.UTF_8);
+		receivedMessage(ByteBuffer.wrap(body).asReadOnlyBuffer(), userHeaders);
+	}
+
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.client.exception;
+
+/**
+ * Failure of a message which couldn't be sent because too many messages are waiting for their receipt
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class ConfirmWindowFullException extends Exception {
+
+	private static final long serialVersionUID = 6210871468353129874L;
+
+	private final int maxInFlight;
+
+	/**
+	 * @param maxInFlight
+	 *            the size of the confirm window
+	 * @param waitTime
+	 *            number of milliseconds the sender waited for room in the window
+	 */
+	public ConfirmWindowFullException(int maxInFlight, long waitTime) {
+		super(maxInFlight + " messages are still waiting for their receipt after " + waitTime + " ms");
+		this.maxInFlight = maxInFlight;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+}
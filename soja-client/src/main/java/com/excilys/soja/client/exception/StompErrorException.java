@@ -0,0 +1,51 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.client.exception;
+
+/**
+ * Failure of a request rejected by the server with an ERROR frame
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class StompErrorException extends Exception {
+
+	private static final long serialVersionUID = -3125718372451913262L;
+
+	private final String shortMessage;
+	private final String description;
+
+	/**
+	 * @param shortMessage
+	 *            the message header of the ERROR frame
+	 * @param description
+	 *            the body of the ERROR frame
+	 */
+	public StompErrorException(String shortMessage, String description) {
+		super(description == null ? shortMessage : shortMessage + " : " + description);
+		this.shortMessage = shortMessage;
+		this.description = description;
+	}
+
+	public String getShortMessage() {
+		return shortMessage;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+}
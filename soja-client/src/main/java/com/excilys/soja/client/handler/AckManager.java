@@ -0,0 +1,237 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.client.handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.excilys.soja.client.model.Subscription;
+import com.excilys.soja.core.handler.StompFrameEncoder;
+import com.excilys.soja.core.model.Ack;
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.core.model.frame.AckFrame;
+import com.excilys.soja.core.model.frame.NackFrame;
+
+/**
+ * Gather the ACK frames of the messages processed by the listeners and write them at once, as soon as
+ * {@link #getMaxPendingAcks()} messages are acknowledged or {@link #getAckInterval()} milliseconds after the first
+ * one. A subscription with a prefetch count has its acknowledgements written once half of its window is processed,
+ * so the server never waits for them to send the next messages.
+ * <p/>
+ * With {@link Ack#CLIENT} mode, ACKs are cumulative : only the last message processed by each subscription is
+ * acknowledged. NACK frames of messages whose listener failed are written right away, after the ACK frames gathered
+ * before them so a cumulative NACK only rejects the failed message.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class AckManager {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AckManager.class);
+
+	public static final int DEFAULT_MAX_PENDING_ACKS = 64;
+	public static final long DEFAULT_ACK_INTERVAL = 10;
+
+	private final Timer timer;
+	private final int maxPendingAcks;
+	private final long ackInterval;
+
+	private final List<Frame> frames = new ArrayList<Frame>();
+	private final Map<Long, SubscriptionAcks> subscriptionAcks = new HashMap<Long, SubscriptionAcks>();
+	private Channel channel;
+	private int pendingAcks = 0;
+	private Timeout flushTimeout;
+
+	/**
+	 * @param timer
+	 *            timer used to write the acknowledgements which don't reach the maximum count
+	 * @param maxPendingAcks
+	 *            number of acknowledged messages above which the acknowledgements are written, 1 to write each one
+	 *            right away
+	 * @param ackInterval
+	 *            maximum number of milliseconds an acknowledgement waits for the other ones
+	 */
+	public AckManager(Timer timer, int maxPendingAcks, long ackInterval) {
+		if (maxPendingAcks <= 0)
+			throw new IllegalArgumentException("Maximum pending acks have to be a strictly positive number");
+		if (ackInterval < 0)
+			throw new IllegalArgumentException("Ack interval have to be a positive number");
+		this.timer = timer;
+		this.maxPendingAcks = maxPendingAcks;
+		this.ackInterval = ackInterval;
+	}
+
+	/**
+	 * Acknowledge a message whose listener returned successfully
+	 * 
+	 * @param channel
+	 *            the channel the message was read from
+	 * @param subscription
+	 * @param messageId
+	 */
+	public synchronized void ack(Channel channel, Subscription subscription, String messageId) {
+		SubscriptionAcks acks = prepare(channel, subscription);
+		Frame frame = new AckFrame(messageId, subscription.getId());
+		if (subscription.getAckMode() == Ack.CLIENT && acks.cumulativeAckIndex >= 0) {
+			frames.set(acks.cumulativeAckIndex, frame);
+		} else {
+			if (subscription.getAckMode() == Ack.CLIENT) {
+				acks.cumulativeAckIndex = frames.size();
+			}
+			frames.add(frame);
+		}
+		acks.count++;
+		pendingAcks++;
+
+		int prefetchCount = subscription.getPrefetchCount();
+		if (pendingAcks >= maxPendingAcks || (prefetchCount > 0 && acks.count * 2 >= prefetchCount)) {
+			flush();
+		} else if (flushTimeout == null) {
+			flushTimeout = timer.newTimeout(new FlushTask(), ackInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Reject a message whose listener failed, so the server redelivers it
+	 * 
+	 * @param channel
+	 *            the channel the message was read from
+	 * @param subscription
+	 * @param messageId
+	 */
+	public synchronized void nack(Channel channel, Subscription subscription, String messageId) {
+		prepare(channel, subscription);
+		frames.add(new NackFrame(messageId, subscription.getId()));
+		flush();
+	}
+
+	/**
+	 * Write the pending acknowledgements now, if any
+	 */
+	public synchronized void flush() {
+		if (frames.isEmpty())
+			return;
+
+		if (flushTimeout != null) {
+			flushTimeout.cancel();
+			flushTimeout = null;
+		}
+
+		ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(frames.size() * 64);
+		for (Frame frame : frames) {
+			StompFrameEncoder.writeFrame(frame, null, buffer);
+		}
+		final int frameCount = frames.size();
+		channel.write(buffer).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				if (!future.isSuccess()) {
+					LOGGER.debug("Failed to write {} acknowledgements, their messages will be redelivered", frameCount);
+				}
+			}
+		});
+		reset();
+	}
+
+	/**
+	 * Drop the pending acknowledgements, the connection is closed : the server will redeliver their messages
+	 */
+	public synchronized void discard() {
+		if (flushTimeout != null) {
+			flushTimeout.cancel();
+			flushTimeout = null;
+		}
+		reset();
+	}
+
+	/**
+	 * @return the acknowledgements of the subscription since the last write
+	 */
+	private SubscriptionAcks prepare(Channel channel, Subscription subscription) {
+		// Acknowledgements are only valid on the connection the messages were received from
+		if (this.channel != channel) {
+			discard();
+			this.channel = channel;
+		}
+
+		SubscriptionAcks acks = subscriptionAcks.get(subscription.getId());
+		if (acks == null) {
+			acks = new SubscriptionAcks();
+			subscriptionAcks.put(subscription.getId(), acks);
+		}
+		return acks;
+	}
+
+	private void reset() {
+		frames.clear();
+		subscriptionAcks.clear();
+		pendingAcks = 0;
+	}
+
+	public int getMaxPendingAcks() {
+		return maxPendingAcks;
+	}
+
+	public long getAckInterval() {
+		return ackInterval;
+	}
+
+	/**
+	 * Acknowledgements of a subscription since the last write
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private static class SubscriptionAcks {
+
+		/** Index of the cumulative ACK frame to replace by the next one, -1 if there is none */
+		private int cumulativeAckIndex = -1;
+		private int count = 0;
+	}
+
+	/**
+	 * Write the acknowledgements if they didn't reach the maximum count before the interval
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private class FlushTask implements TimerTask {
+
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			synchronized (AckManager.this) {
+				if (timeout == flushTimeout) {
+					flush();
+				}
+			}
+		}
+	}
+
+}
@@ -29,30 +29,38 @@ import static com.excilys.soja.core.model.Header.HEADER_RECEIPT_ID_RESPONSE;
 import static com.excilys.soja.core.model.Header.HEADER_SUBSCRIPTION;
 
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Executor;
 
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.util.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.excilys.soja.client.events.StompClientListener;
 import com.excilys.soja.client.events.StompMessageStateCallback;
+import com.excilys.soja.client.events.StompRawTopicListener;
 import com.excilys.soja.client.events.StompTopicListener;
 import com.excilys.soja.client.exception.NotConnectedException;
+import com.excilys.soja.client.exception.StompErrorException;
+import com.excilys.soja.client.model.HeaderView;
 import com.excilys.soja.client.model.Subscription;
+import com.excilys.soja.client.model.SubscriptionRegistry;
+import com.excilys.soja.core.future.StompFuture;
+import com.excilys.soja.core.future.StompFutureListener;
 import com.excilys.soja.core.handler.StompHandler;
 import com.excilys.soja.core.model.Ack;
 import com.excilys.soja.core.model.Frame;
-import com.excilys.soja.core.model.frame.AckFrame;
 import com.excilys.soja.core.model.frame.ConnectFrame;
 import com.excilys.soja.core.model.frame.SendFrame;
 import com.excilys.soja.core.model.frame.SubscribeFrame;
@@ -67,20 +75,51 @@ public class ClientHandler extends StompHandler {
 	private static final Logger LOGGER = LoggerFactory.getLogger(ClientHandler.class);
 	private static final String[] MESSAGE_USER_HEADERS_FILTER = new String[] { HEADER_DESTINATION, HEADER_SUBSCRIPTION,
 			HEADER_MESSAGE_ID, HEADER_CONTENT_TYPE, HEADER_CONTENT_LENGTH };
+	private static final ByteBuffer EMPTY_BODY = ByteBuffer.allocate(0).asReadOnlyBuffer();
 
 	private final List<StompClientListener> stompClientListeners = new ArrayList<StompClientListener>();
-	private final Map<String, StompMessageStateCallback> messageStateCallbacks = new HashMap<String, StompMessageStateCallback>();
-	private final Map<Long, Subscription> subscriptions = new HashMap<Long, Subscription>();
+	private final ReceiptTracker receiptTracker;
+	private final SubscriptionRegistry subscriptions = new SubscriptionRegistry();
+
+	private volatile boolean loginRequested = false;
+	private volatile boolean loggedIn = false;
+	private volatile StompFuture<Frame> connectFuture;
+	private volatile SendBatcher sendBatcher;
+	private volatile AckManager ackManager;
+	private volatile Executor listenerExecutor;
+	private volatile int mailboxCapacity = SubscriptionMailbox.DEFAULT_CAPACITY;
+	private int fullMailboxes = 0;
 
-	private static long messageSent = 0;
-
-	private boolean loginRequested = false;
-	private boolean loggedIn = false;
+	/**
+	 * @param timer
+	 *            timer used to schedule heart-beats and receipt timeouts
+	 */
+	public ClientHandler(Timer timer) {
+		super(timer);
+		this.receiptTracker = new ReceiptTracker(timer);
+		this.ackManager = new AckManager(timer, AckManager.DEFAULT_MAX_PENDING_ACKS, AckManager.DEFAULT_ACK_INTERVAL);
+	}
 
 	@Override
 	public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
 		super.channelDisconnected(ctx, e);
 		LOGGER.debug("Client channel {} closed", ctx.getChannel().getRemoteAddress());
+		loggedIn = false;
+		resetReading();
+
+		// The responses of the requests in progress won't come anymore
+		NotConnectedException cause = new NotConnectedException("The connection to the server has been closed");
+		SendBatcher batcher = sendBatcher;
+		if (batcher != null) {
+			batcher.discard(cause);
+		}
+		ackManager.discard();
+		StompFuture<Frame> pendingConnectFuture = connectFuture;
+		if (pendingConnectFuture != null) {
+			pendingConnectFuture.setFailure(cause);
+		}
+		receiptTracker.failAll(cause);
+
 		fireDisconnectedListeners(ctx.getChannel());
 	}
 
@@ -101,7 +140,7 @@ public class ClientHandler extends StompHandler {
 
 		// ERROR
 		if (frame.isCommand(Frame.COMMAND_ERROR)) {
-			LOGGER.error("STOMP error '{}' : {}", frame.getHeaderValue(HEADER_MESSAGE), frame.getBody());
+			handleError(channel, frame);
 		} else {
 			LOGGER.trace("Received frame from {} : {}", channel.getRemoteAddress(), frame);
 
@@ -134,48 +173,131 @@ public class ClientHandler extends StompHandler {
 	 * @param frame
 	 */
 	private void handleConnected(final Channel channel, Frame frame) {
-		// Start the heart-beat scheduler if needed
+		// Start the heart-beat scheduler and the check of the server's heart-beats if needed
 		startLocalHeartBeat(channel, frame);
+		startRemoteHeartBeatMonitoring(channel, frame);
 
 		loggedIn = true;
 
 		fireConnectedListeners(channel);
+		StompFuture<Frame> pendingConnectFuture = connectFuture;
+		if (pendingConnectFuture != null) {
+			pendingConnectFuture.setSuccess(frame);
+		}
 	}
 
 	/**
-	 * Handle MESSAGE command : send back an ACK to the server if asked during subscription, then notify listeners.
+	 * Handle ERROR command : fail the request it's related to, or the login if the client isn't logged in yet
+	 * 
+	 * @param frame
+	 */
+	private void handleError(final Channel channel, Frame frame) {
+		String shortMessage = frame.getHeaderValue(HEADER_MESSAGE);
+		LOGGER.error("STOMP error '{}' : {}", shortMessage, frame.getBody());
+
+		StompErrorException cause = new StompErrorException(shortMessage, frame.getBody());
+		String receiptId = frame.getHeaderValue(HEADER_RECEIPT_ID_RESPONSE);
+		if (receiptId != null && receiptTracker.fail(receiptId, cause)) {
+			LOGGER.debug("Receipt {} failed", receiptId);
+		} else if (!loggedIn && connectFuture != null) {
+			connectFuture.setFailure(cause);
+		}
+
+		fireReceivedErrorListeners(channel, shortMessage, frame.getBody());
+	}
+
+	/**
+	 * Handle MESSAGE command : notify the listener of the subscription the message was sent for, then acknowledge the
+	 * message if asked during subscription.
 	 * 
 	 * @param frame
 	 * @throws SocketException
 	 */
 	private void handleMessage(final Channel channel, Frame frame) throws SocketException {
-		String message = frame.getBody();
 		String topic = frame.getHeaderValue(HEADER_DESTINATION);
-		String messageId = frame.getHeaderValue(HEADER_MESSAGE_ID);
-		Long subscriptionId = Long.valueOf(frame.getHeaderValue(HEADER_SUBSCRIPTION));
-
-		// Retrieve user keys
-		Map<String, String> userHeaders = new HashMap<String, String>();
-		Set<String> userKeys = frame.getHeader().allKeys(MESSAGE_USER_HEADERS_FILTER);
-		for (String userKey : userKeys) {
-			userHeaders.put(userKey, frame.getHeaderValue(userKey));
+
+		String subscriptionHeader = frame.getHeaderValue(HEADER_SUBSCRIPTION);
+		if (subscriptionHeader != null) {
+			long subscriptionId;
+			try {
+				subscriptionId = Long.parseLong(subscriptionHeader);
+			} catch (NumberFormatException e) {
+				LOGGER.error("Invalid subscription id '{}' in a message of topic {}", subscriptionHeader, topic);
+				return;
+			}
+
+			Subscription subscription = subscriptions.get(subscriptionId);
+			if (subscription != null) {
+				deliverMessage(channel, subscription, frame);
+			} else {
+				LOGGER.debug("Message received for the unknown subscription {}", subscriptionHeader);
+			}
+		} else {
+			// STOMP 1.0 servers may not tell which subscription the message was sent for
+			for (Subscription subscription : subscriptions.getByTopic(topic)) {
+				deliverMessage(channel, subscription, frame);
+			}
 		}
+	}
 
-		// Send an ACK to the server if needed
-		Subscription subscription = subscriptions.get(subscriptionId);
-		if (subscription != null && subscription.getAckMode() != Ack.AUTO) {
-			sendFrame(channel, new AckFrame(messageId, subscriptionId));
+	private void deliverMessage(final Channel channel, Subscription subscription, Frame frame) {
+		SubscriptionMailbox mailbox = subscription.getMailbox();
+		if (mailbox != null) {
+			mailbox.offer(channel, subscription, frame);
+			return;
 		}
 
-		// Notify all listeners
-		for (Subscription subscription2 : subscriptions.values()) {
-			if (subscription2.getTopic().equals(topic)) {
-				try {
-					subscription2.getTopicListener().receivedMessage(message, userHeaders);
-				} catch (Exception err) {
-					LOGGER.error("ReceivedMessage listener (topic {}) thrown an exception", topic, err);
-				}
+		boolean processed = notifyListener(subscription, frame);
+		acknowledge(channel, subscription, frame.getHeaderValue(HEADER_MESSAGE_ID), processed);
+	}
+
+	/**
+	 * Pass a message to the listener of a subscription. A {@link StompRawTopicListener} receives the raw body and all
+	 * the headers, other listeners receive the body as a string and the user headers. Headers are given as views of
+	 * the frame's ones.
+	 * 
+	 * @param subscription
+	 * @param frame
+	 * @return true if the listener returned successfully
+	 */
+	boolean notifyListener(Subscription subscription, Frame frame) {
+		StompTopicListener topicListener = subscription.getTopicListener();
+		try {
+			if (topicListener instanceof StompRawTopicListener) {
+				byte[] body = frame.getBodyBytes();
+				ByteBuffer bodyBuffer = body == null ? EMPTY_BODY : ByteBuffer.wrap(body).asReadOnlyBuffer();
+				((StompRawTopicListener) topicListener).receivedMessage(bodyBuffer,
+						Collections.unmodifiableMap(frame.getHeader()));
+			} else {
+				topicListener.receivedMessage(frame.getBody(), new HeaderView(frame.getHeader(),
+						MESSAGE_USER_HEADERS_FILTER));
 			}
+			return true;
+		} catch (Exception err) {
+			LOGGER.error("ReceivedMessage listener (topic " + subscription.getTopic() + ") thrown an exception", err);
+			return false;
+		}
+	}
+
+	/**
+	 * Send back an ACK to the server once the listener processed the message, or a NACK if it failed, if asked during
+	 * subscription
+	 * 
+	 * @param channel
+	 *            the channel the message was read from
+	 * @param subscription
+	 * @param messageId
+	 * @param processed
+	 *            true if the listener returned successfully
+	 */
+	void acknowledge(Channel channel, Subscription subscription, String messageId, boolean processed) {
+		if (subscription.getAckMode() == Ack.AUTO || messageId == null)
+			return;
+
+		if (processed) {
+			ackManager.ack(channel, subscription, messageId);
+		} else {
+			ackManager.nack(channel, subscription, messageId);
 		}
 	}
 
@@ -186,20 +308,27 @@ public class ClientHandler extends StompHandler {
 	 */
 	private void handleReceipt(final Channel channel, Frame frame) {
 		String receiptId = frame.getHeaderValue(HEADER_RECEIPT_ID_RESPONSE);
-		if (receiptId != null) {
-			synchronized (messageStateCallbacks) {
-				StompMessageStateCallback messageCallback = messageStateCallbacks.remove(receiptId);
-				if (messageCallback != null) {
-					try {
-						messageCallback.receiptReceived();
-					} catch (Exception err) {
-						LOGGER.error("ReceiptReceived listener thrown an exception", err);
-					}
-				}
-			}
+		if (receiptId != null && !receiptTracker.receiptReceived(receiptId)) {
+			LOGGER.debug("Received an unexpected or expired receipt {}", receiptId);
 		}
 	}
 
+	/**
+	 * Write the pending batch of SEND frames before any other frame, so the server receives them in order.
+	 */
+	@Override
+	public ChannelFuture sendFrame(Channel channel, Frame frame) throws SocketException {
+		SendBatcher batcher = sendBatcher;
+		if (batcher != null) {
+			batcher.flush();
+		}
+		// The messages already processed mustn't be redelivered after a clean disconnection
+		if (frame.isCommand(Frame.COMMAND_DISCONNECT)) {
+			ackManager.flush();
+		}
+		return super.sendFrame(channel, frame);
+	}
+
 	/**
 	 * Add a receipt if a callback is passed and send the frame. When the server has successfully processed the client's
 	 * request, he send back a receipt to notify the client.
@@ -211,23 +340,117 @@ public class ClientHandler extends StompHandler {
 	 *             if the frame to send requiere the user to be connected
 	 * @throws SocketException
 	 */
-	public ChannelFuture sendFrame(final Channel channel, Frame frame, StompMessageStateCallback callback)
+	public ChannelFuture sendFrame(final Channel channel, Frame frame, final StompMessageStateCallback callback)
 			throws NotConnectedException, SocketException {
-		if (!isLoginRequested()) {
-			fireReceivedErrorListeners(channel, "You're not logged in",
-					"You must connect to the server before trying to send a " + frame.getCommand() + " command");
+		checkLoginRequested(channel, frame.getCommand());
 
-			throw new NotConnectedException("You have to be connected to send a " + frame.getCommand() + " command");
+		if (callback != null) {
+			requestReceipt(frame).addListener(new StompFutureListener<Void>() {
+				@Override
+				public void operationComplete(StompFuture<Void> future) throws Exception {
+					if (future.isSuccess()) {
+						callback.receiptReceived();
+					}
+				}
+			});
 		}
+		return sendFrame(channel, frame);
+	}
 
-		if (callback != null) {
-			synchronized (messageStateCallbacks) {
-				String receiptId = frame.getCommand() + "-" + messageSent++;
-				messageStateCallbacks.put(receiptId, callback);
-				frame.getHeader().put(HEADER_RECEIPT_ID_REQUEST, receiptId);
+	/**
+	 * Send a frame with a receipt request, without blocking.
+	 * 
+	 * @param channel
+	 * @param frame
+	 * @return a future completed when the receipt is received. It fails if the frame can't be written, if the server
+	 *         answers with an ERROR frame or if the connection is closed before
+	 * @throws NotConnectedException
+	 *             if the frame to send requiere the user to be connected
+	 * @throws SocketException
+	 */
+	public StompFuture<Void> sendFrameWithReceipt(Channel channel, Frame frame) throws NotConnectedException,
+			SocketException {
+		return sendFrameWithReceipt(channel, frame, receiptTracker.getDefaultTimeout());
+	}
+
+	/**
+	 * Send a frame with a receipt request, without blocking.
+	 * 
+	 * @param channel
+	 * @param frame
+	 * @param receiptTimeout
+	 *            number of milliseconds after which the future fails with a
+	 *            {@link java.util.concurrent.TimeoutException}, or 0 to wait until the connection is closed
+	 * @return a future completed when the receipt is received
+	 * @throws NotConnectedException
+	 *             if the frame to send requiere the user to be connected
+	 * @throws SocketException
+	 */
+	public StompFuture<Void> sendFrameWithReceipt(final Channel channel, Frame frame, long receiptTimeout)
+			throws NotConnectedException, SocketException {
+		checkLoginRequested(channel, frame.getCommand());
+
+		final StompFuture<Void> receiptFuture = receiptTracker.requestReceipt(frame, receiptTimeout);
+		final String receiptId = frame.getHeaderValue(HEADER_RECEIPT_ID_REQUEST);
+		sendFrame(channel, frame).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				if (!future.isSuccess()) {
+					failReceipt(receiptId, future.getCause());
+				}
 			}
+		});
+		return receiptFuture;
+	}
+
+	private void checkLoginRequested(Channel channel, String command) throws NotConnectedException {
+		if (!isLoginRequested()) {
+			fireReceivedErrorListeners(channel, "You're not logged in",
+					"You must connect to the server before trying to send a " + command + " command");
+
+			throw new NotConnectedException("You have to be connected to send a " + command + " command");
 		}
-		return sendFrame(channel, frame);
+	}
+
+	/**
+	 * Add a receipt header to the frame and register the future of the receipt
+	 * 
+	 * @param frame
+	 * @return the future completed when the receipt is received
+	 */
+	StompFuture<Void> requestReceipt(Frame frame) {
+		return receiptTracker.requestReceipt(frame);
+	}
+
+	/**
+	 * Fail the future of a receipt which won't come, because its frame couldn't be written
+	 * 
+	 * @param receiptId
+	 * @param cause
+	 */
+	void failReceipt(String receiptId, Throwable cause) {
+		receiptTracker.fail(receiptId, cause);
+	}
+
+	public AckManager getAckManager() {
+		return ackManager;
+	}
+
+	/**
+	 * Replace the acknowledgement manager, after writing the acknowledgements of the current one
+	 * 
+	 * @param ackManager
+	 */
+	public void setAckManager(AckManager ackManager) {
+		if (ackManager == null)
+			throw new NullPointerException();
+		AckManager previousAckManager = this.ackManager;
+		this.ackManager = ackManager;
+		previousAckManager.flush();
+	}
+
+	public ReceiptTracker getReceiptTracker() {
+		return receiptTracker;
 	}
 
 	/**
@@ -243,10 +466,13 @@ public class ClientHandler extends StompHandler {
 	 *            a username to use for connection. Leave <code>null</code> to connect as a guest
 	 * @param password
 	 *            a password to use for connection. Leave <code>null</code> to connect as a guest
+	 * @return a future completed with the CONNECTED frame, or failed if the server rejects the login
 	 * @throws SocketException
 	 */
-	public void connect(final Channel channel, String stompVersionSupported, String hostname, String username,
-			String password) throws SocketException {
+	public StompFuture<Frame> connect(final Channel channel, String stompVersionSupported, String hostname,
+			String username, String password) throws SocketException {
+		final StompFuture<Frame> future = new StompFuture<Frame>();
+		connectFuture = future;
 		loginRequested = true;
 
 		ConnectFrame connectFrame = new ConnectFrame(stompVersionSupported, hostname, username, password);
@@ -255,7 +481,15 @@ public class ClientHandler extends StompHandler {
 
 			connectFrame.setHeartBeat(getLocalGuaranteedHeartBeat(), getLocalExpectedHeartBeat());
 		}
-		sendFrame(channel, connectFrame);
+		sendFrame(channel, connectFrame).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture channelFuture) throws Exception {
+				if (!channelFuture.isSuccess()) {
+					future.setFailure(channelFuture.getCause());
+				}
+			}
+		});
+		return future;
 	}
 
 	/**
@@ -270,22 +504,158 @@ public class ClientHandler extends StompHandler {
 	 */
 	public Long subscribe(final Channel channel, String topic, StompTopicListener topicListener,
 			StompMessageStateCallback callback, Ack ackMode) throws NotConnectedException, SocketException {
+		return subscribe(channel, topic, topicListener, callback, ackMode, 0);
+	}
+
+	/**
+	 * Send a SUBSCRIBE command frame and keep in memory the subscription and the ACK mode for this. The server won't
+	 * send more than <code>prefetchCount</code> messages to this subscription until they are acknowledged.
+	 * 
+	 * @param topic
+	 * @param callback
+	 * @param ackMode
+	 * @param prefetchCount
+	 *            maximum number of unacknowledged messages, 0 means no limit
+	 * @return the subscription id. The subscription is forgotten if the frame can't be written
+	 * @throws SocketException
+	 * @throws NotConnectedException
+	 */
+	public Long subscribe(final Channel channel, String topic, StompTopicListener topicListener,
+			StompMessageStateCallback callback, Ack ackMode, int prefetchCount) throws NotConnectedException,
+			SocketException {
 		SubscribeFrame frame = new SubscribeFrame(topic);
 		frame.setAck(ackMode);
-
-		ChannelFuture channelFuture = sendFrame(channel, frame, callback);
-		channelFuture.awaitUninterruptibly();
-		if (!channelFuture.isSuccess()) {
-			return -1L;
+		if (prefetchCount > 0) {
+			frame.setPrefetchCount(prefetchCount);
 		}
 
-		Long subscriptionId = frame.getSubscriptionId();
+		// The subscription is registered first, so the messages sent right after the SUBSCRIBE frame can't be missed
+		final Long subscriptionId = frame.getSubscriptionId();
+		subscriptions.put(createSubscription(subscriptionId, ackMode, prefetchCount, topic, topicListener, null));
 
-		Subscription subscription = new Subscription(subscriptionId, ackMode, topic, topicListener);
-		subscriptions.put(subscriptionId, subscription);
+		sendFrame(channel, frame, callback).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				if (!future.isSuccess()) {
+					subscriptions.remove(subscriptionId);
+				}
+			}
+		});
 		return subscriptionId;
 	}
 
+	/**
+	 * Register the subscription then send a SUBSCRIBE command frame with a receipt request, without blocking.
+	 * 
+	 * @param channel
+	 * @param topic
+	 * @param topicListener
+	 * @param ackMode
+	 * @param prefetchCount
+	 *            maximum number of unacknowledged messages, 0 means no limit
+	 * @param listenerExecutor
+	 *            the executor which runs the listener of this subscription, or null to use the one of the client
+	 * @return a future completed with the subscription id when the server confirms the subscription
+	 * @throws NotConnectedException
+	 * @throws SocketException
+	 */
+	public StompFuture<Long> subscribeAsync(final Channel channel, String topic, StompTopicListener topicListener,
+			Ack ackMode, int prefetchCount, Executor listenerExecutor) throws NotConnectedException, SocketException {
+		SubscribeFrame frame = new SubscribeFrame(topic);
+		frame.setAck(ackMode);
+		if (prefetchCount > 0) {
+			frame.setPrefetchCount(prefetchCount);
+		}
+
+		// The subscription is registered first, so the messages sent right after the receipt can't be missed
+		final Long subscriptionId = frame.getSubscriptionId();
+		subscriptions.put(createSubscription(subscriptionId, ackMode, prefetchCount, topic, topicListener,
+				listenerExecutor));
+
+		final StompFuture<Long> future = new StompFuture<Long>();
+		sendFrameWithReceipt(channel, frame).addListener(new StompFutureListener<Void>() {
+			@Override
+			public void operationComplete(StompFuture<Void> receiptFuture) throws Exception {
+				if (receiptFuture.isSuccess()) {
+					future.setSuccess(subscriptionId);
+				} else {
+					subscriptions.remove(subscriptionId);
+					future.setFailure(receiptFuture.getCause());
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * @param listenerExecutor
+	 *            the executor of the subscription, or null to use the one of the client
+	 * @return a subscription whose listener is run by the executor, or by the I/O thread if there is none
+	 */
+	private Subscription createSubscription(Long subscriptionId, Ack ackMode, int prefetchCount, String topic,
+			StompTopicListener topicListener, Executor listenerExecutor) {
+		Executor executor = listenerExecutor != null ? listenerExecutor : this.listenerExecutor;
+		SubscriptionMailbox mailbox = null;
+		if (executor != null) {
+			mailbox = new SubscriptionMailbox(this, topic, executor, mailboxCapacity);
+		}
+		return new Subscription(subscriptionId, ackMode, prefetchCount, topic, topicListener, mailbox);
+	}
+
+	/**
+	 * Send again the SUBSCRIBE frames of all the subscriptions, with their ids, on a new connection. Messages received
+	 * on the new connection are passed to the same listeners.
+	 * 
+	 * @param channel
+	 *            the new connection, once logged in
+	 * @throws SocketException
+	 */
+	public void resubscribe(Channel channel) throws SocketException {
+		for (Subscription subscription : subscriptions.values()) {
+			SubscribeFrame frame = new SubscribeFrame(subscription.getTopic(), subscription.getId());
+			frame.setAck(subscription.getAckMode());
+			if (subscription.getPrefetchCount() > 0) {
+				frame.setPrefetchCount(subscription.getPrefetchCount());
+			}
+			sendFrame(channel, frame);
+		}
+	}
+
+	/**
+	 * Stop reading from the connection, a mailbox is full
+	 * 
+	 * @param channel
+	 */
+	synchronized void suspendReading(Channel channel) {
+		if (fullMailboxes++ == 0) {
+			channel.setReadable(false);
+		}
+	}
+
+	/**
+	 * Resume reading from the connection once no mailbox is full anymore
+	 * 
+	 * @param channel
+	 */
+	synchronized void resumeReading(Channel channel) {
+		if (fullMailboxes > 0 && --fullMailboxes == 0 && channel.isOpen()) {
+			channel.setReadable(true);
+		}
+	}
+
+	/**
+	 * Forget the reads suspended on a closed connection, so the next connection starts reading with empty counts
+	 */
+	synchronized void resetReading() {
+		fullMailboxes = 0;
+		for (Subscription subscription : subscriptions.values()) {
+			SubscriptionMailbox mailbox = subscription.getMailbox();
+			if (mailbox != null) {
+				mailbox.connectionLost();
+			}
+		}
+	}
+
 	/**
 	 * Send an UNSUBSCRIBE command frame and remove the subscription and ACK mode for this one from the memory.
 	 * 
@@ -302,6 +672,21 @@ public class ClientHandler extends StompHandler {
 		sendFrame(channel, frame, callback);
 	}
 
+	/**
+	 * Remove the subscription and send an UNSUBSCRIBE command frame with a receipt request, without blocking.
+	 * 
+	 * @param channel
+	 * @param subscriptionId
+	 * @return a future completed when the server confirms the unsubscription
+	 * @throws NotConnectedException
+	 * @throws SocketException
+	 */
+	public StompFuture<Void> unsubscribeAsync(final Channel channel, Long subscriptionId)
+			throws NotConnectedException, SocketException {
+		subscriptions.remove(subscriptionId);
+		return sendFrameWithReceipt(channel, new UnsubscribeFrame(subscriptionId));
+	}
+
 	/**
 	 * Send a SEND command frame. If the message contains a null charactere, content-type header will automaticaly
 	 * added, so as the content-length.
@@ -310,22 +695,170 @@ public class ClientHandler extends StompHandler {
 	 * @param message
 	 * @param additionalHeaders
 	 * @param callback
+	 * @return the future of the write
+	 * @throws SocketException
+	 * @throws NotConnectedException
+	 */
+	public ChannelFuture send(final Channel channel, String topic, String message,
+			Map<String, String> additionalHeaders, final StompMessageStateCallback callback)
+			throws NotConnectedException, SocketException {
+		return send(channel, createSendFrame(topic, message, additionalHeaders), callback);
+	}
+
+	/**
+	 * Send a SEND command frame built by one of the <code>createSendFrame</code> methods
+	 * 
+	 * @param channel
+	 * @param frame
+	 * @param callback
+	 * @return the future of the write
+	 * @throws NotConnectedException
 	 * @throws SocketException
+	 */
+	public ChannelFuture send(final Channel channel, SendFrame frame, final StompMessageStateCallback callback)
+			throws NotConnectedException, SocketException {
+		SendBatcher batcher = sendBatcher;
+		if (batcher == null) {
+			return sendFrame(channel, frame, callback);
+		}
+
+		checkLoginRequested(channel, Frame.COMMAND_SEND);
+		StompFuture<Void> receiptFuture = null;
+		if (callback != null) {
+			receiptFuture = new StompFuture<Void>();
+			receiptFuture.addListener(new StompFutureListener<Void>() {
+				@Override
+				public void operationComplete(StompFuture<Void> future) throws Exception {
+					if (future.isSuccess()) {
+						callback.receiptReceived();
+					}
+				}
+			});
+		}
+		return batcher.add(channel, frame, receiptFuture);
+	}
+
+	/**
+	 * Send a SEND command frame with a receipt request, without blocking.
+	 * 
+	 * @param channel
+	 * @param topic
+	 * @param message
+	 * @param additionalHeaders
+	 * @return a future completed when the server confirms it processed the message
 	 * @throws NotConnectedException
+	 * @throws SocketException
 	 */
-	public void send(final Channel channel, String topic, String message, Map<String, String> additionalHeaders,
-			StompMessageStateCallback callback) throws NotConnectedException, SocketException {
-		SendFrame frame = new SendFrame(topic, message);
+	public StompFuture<Void> sendAsync(final Channel channel, String topic, String message,
+			Map<String, String> additionalHeaders) throws NotConnectedException, SocketException {
+		return sendAsync(channel, createSendFrame(topic, message, additionalHeaders));
+	}
 
-		if (message.indexOf(Frame.EOL_FRAME) != -1) {
-			// TODO: Try to auto-detect content-type, and allow specify it
-			frame.setContentType("application/octet-stream");
+	/**
+	 * Send a SEND command frame built by one of the <code>createSendFrame</code> methods with a receipt request,
+	 * without blocking.
+	 * 
+	 * @param channel
+	 * @param frame
+	 * @return a future completed when the server confirms it processed the message
+	 * @throws NotConnectedException
+	 * @throws SocketException
+	 */
+	public StompFuture<Void> sendAsync(final Channel channel, SendFrame frame) throws NotConnectedException,
+			SocketException {
+		SendBatcher batcher = sendBatcher;
+		if (batcher == null) {
+			return sendFrameWithReceipt(channel, frame);
 		}
 
+		checkLoginRequested(channel, Frame.COMMAND_SEND);
+		StompFuture<Void> receiptFuture = new StompFuture<Void>();
+		batcher.add(channel, frame, receiptFuture);
+		return receiptFuture;
+	}
+
+	/**
+	 * @param topic
+	 * @param message
+	 * @param additionalHeaders
+	 * @return the SEND frame, with a content-length header
+	 */
+	public SendFrame createSendFrame(String topic, String message, Map<String, String> additionalHeaders) {
+		// No need to look for null characters in the message : the content-length tells where the body ends
+		return completeSendFrame(new SendFrame(topic, message), additionalHeaders);
+	}
+
+	/**
+	 * @param topic
+	 * @param body
+	 *            the raw body, which is not copied
+	 * @param additionalHeaders
+	 * @return the SEND frame, with a content-length header
+	 */
+	public SendFrame createSendFrame(String topic, byte[] body, Map<String, String> additionalHeaders) {
+		SendFrame frame = new SendFrame(topic, null);
+		frame.setBodyBytes(body);
+		return completeSendFrame(frame, additionalHeaders);
+	}
+
+	/**
+	 * Add the user headers, then the content-length : the server reads the body at once instead of scanning it for
+	 * the null character ending the frame
+	 */
+	private SendFrame completeSendFrame(SendFrame frame, Map<String, String> additionalHeaders) {
 		if (additionalHeaders != null) {
 			frame.getHeader().putAll(additionalHeaders);
 		}
-		sendFrame(channel, frame, callback);
+		frame.setHeaderValue(HEADER_CONTENT_LENGTH, String.valueOf(frame.getBodySize()));
+		return frame;
+	}
+
+	public Executor getListenerExecutor() {
+		return listenerExecutor;
+	}
+
+	/**
+	 * Run the listeners of the next subscriptions on an executor instead of the I/O thread. Each subscription gets its
+	 * own mailbox, so its listener receives the messages in order.
+	 * 
+	 * @param listenerExecutor
+	 *            the executor, or null to run the listeners on the I/O thread
+	 */
+	public void setListenerExecutor(Executor listenerExecutor) {
+		this.listenerExecutor = listenerExecutor;
+	}
+
+	public int getMailboxCapacity() {
+		return mailboxCapacity;
+	}
+
+	/**
+	 * @param mailboxCapacity
+	 *            number of messages a subscription's mailbox can hold before the client stops reading, for the next
+	 *            subscriptions
+	 */
+	public void setMailboxCapacity(int mailboxCapacity) {
+		if (mailboxCapacity <= 0)
+			throw new IllegalArgumentException("Mailbox capacity have to be a strictly positive number");
+		this.mailboxCapacity = mailboxCapacity;
+	}
+
+	public SendBatcher getSendBatcher() {
+		return sendBatcher;
+	}
+
+	/**
+	 * Write the SEND frames in batches, or one by one. The pending batch of the previous batcher is written first.
+	 * 
+	 * @param sendBatcher
+	 *            the batcher of this connection, or null to disable batching
+	 */
+	public void setSendBatcher(SendBatcher sendBatcher) {
+		SendBatcher previousBatcher = this.sendBatcher;
+		this.sendBatcher = sendBatcher;
+		if (previousBatcher != null) {
+			previousBatcher.flush();
+		}
 	}
 
 	/**
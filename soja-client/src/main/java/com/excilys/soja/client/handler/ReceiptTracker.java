@@ -0,0 +1,196 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.client.handler;
+
+import static com.excilys.soja.core.model.Header.HEADER_RECEIPT_ID_REQUEST;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import com.excilys.soja.core.future.StompFuture;
+import com.excilys.soja.core.model.Frame;
+
+/**
+ * Track the receipts requested by a client until they're received. Each receipt is a future which is completed when the
+ * RECEIPT frame arrives, and failed if the server answers with an ERROR frame, if the connection is closed, or if no
+ * receipt came before its timeout.
+ * <p/>
+ * Receipt ids are taken from an atomic counter and written in base 36, so requesting a receipt takes neither a lock
+ * nor more than the id itself and its future. Timeouts are scheduled on the given timer, which is meant to be the
+ * hashed wheel timer shared with the heart-beats : its timeouts are cheap to create and cancel.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class ReceiptTracker {
+
+	public static final long DEFAULT_RECEIPT_TIMEOUT = 30000;
+
+	private final Timer timer;
+	private final ConcurrentMap<String, PendingReceipt> pendingReceipts = new ConcurrentHashMap<String, PendingReceipt>();
+	private final AtomicLong nextReceiptId = new AtomicLong();
+	private volatile long defaultTimeout = DEFAULT_RECEIPT_TIMEOUT;
+
+	/**
+	 * @param timer
+	 *            timer used to expire the receipts
+	 */
+	public ReceiptTracker(Timer timer) {
+		this.timer = timer;
+	}
+
+	/**
+	 * Add a receipt header to the frame and track its receipt with the default timeout
+	 * 
+	 * @param frame
+	 * @return the future completed when the receipt is received
+	 */
+	public StompFuture<Void> requestReceipt(Frame frame) {
+		return requestReceipt(frame, defaultTimeout);
+	}
+
+	/**
+	 * Add a receipt header to the frame and track its receipt
+	 * 
+	 * @param frame
+	 * @param timeout
+	 *            number of milliseconds after which the future fails with a {@link TimeoutException}, or 0 to wait
+	 *            until the connection is closed
+	 * @return the future completed when the receipt is received
+	 */
+	public StompFuture<Void> requestReceipt(Frame frame, long timeout) {
+		String receiptId = Long.toString(nextReceiptId.incrementAndGet(), Character.MAX_RADIX);
+		PendingReceipt pendingReceipt = new PendingReceipt(receiptId, frame.getCommand());
+		pendingReceipts.put(receiptId, pendingReceipt);
+		frame.getHeader().put(HEADER_RECEIPT_ID_REQUEST, receiptId);
+
+		if (timeout > 0) {
+			pendingReceipt.schedule(timeout);
+		}
+		return pendingReceipt;
+	}
+
+	/**
+	 * @param receiptId
+	 * @return true if the receipt was waited for
+	 */
+	public boolean receiptReceived(String receiptId) {
+		PendingReceipt pendingReceipt = pendingReceipts.remove(receiptId);
+		if (pendingReceipt == null)
+			return false;
+
+		pendingReceipt.cancelTimeout();
+		return pendingReceipt.setSuccess(null);
+	}
+
+	/**
+	 * Fail the future of a receipt which won't come
+	 * 
+	 * @param receiptId
+	 * @param cause
+	 * @return true if the receipt was waited for
+	 */
+	public boolean fail(String receiptId, Throwable cause) {
+		PendingReceipt pendingReceipt = pendingReceipts.remove(receiptId);
+		if (pendingReceipt == null)
+			return false;
+
+		pendingReceipt.cancelTimeout();
+		return pendingReceipt.setFailure(cause);
+	}
+
+	/**
+	 * Fail all the receipts waited for, when the connection is closed
+	 * 
+	 * @param cause
+	 */
+	public void failAll(Throwable cause) {
+		for (String receiptId : pendingReceipts.keySet()) {
+			fail(receiptId, cause);
+		}
+	}
+
+	/**
+	 * @return the number of receipts waited for
+	 */
+	public int size() {
+		return pendingReceipts.size();
+	}
+
+	public long getDefaultTimeout() {
+		return defaultTimeout;
+	}
+
+	/**
+	 * @param defaultTimeout
+	 *            number of milliseconds to wait for a receipt when no timeout is given, or 0 to wait until the
+	 *            connection is closed
+	 */
+	public void setDefaultTimeout(long defaultTimeout) {
+		if (defaultTimeout < 0)
+			throw new IllegalArgumentException("Receipt timeout have to be a positive number");
+		this.defaultTimeout = defaultTimeout;
+	}
+
+	/**
+	 * The future of a receipt, which is also the task failing it once expired
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private class PendingReceipt extends StompFuture<Void> implements TimerTask {
+
+		private final String receiptId;
+		private final String command;
+		private volatile Timeout timeout;
+
+		public PendingReceipt(String receiptId, String command) {
+			this.receiptId = receiptId;
+			this.command = command;
+		}
+
+		public void schedule(long timeoutMillis) {
+			try {
+				timeout = timer.newTimeout(this, timeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (IllegalStateException e) {
+				// The timer is stopped, the client is shutting down : the receipt will be failed with the connection
+			}
+		}
+
+		public void cancelTimeout() {
+			Timeout currentTimeout = timeout;
+			if (currentTimeout != null) {
+				currentTimeout.cancel();
+			}
+		}
+
+		@Override
+		public void run(Timeout expiredTimeout) throws Exception {
+			if (pendingReceipts.remove(receiptId, this)) {
+				setFailure(new TimeoutException("No receipt received for the " + command + " frame "
+						+ receiptId + " in time"));
+			}
+		}
+	}
+
+}
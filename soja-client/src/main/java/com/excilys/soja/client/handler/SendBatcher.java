@@ -0,0 +1,232 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.client.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import com.excilys.soja.core.future.StompFuture;
+import com.excilys.soja.core.future.StompFutureListener;
+import com.excilys.soja.core.handler.StompFrameEncoder;
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.core.model.Header;
+
+/**
+ * Gather the SEND frames of a connection and write them at once, as soon as the batch reaches
+ * {@link #getMaxBatchSize()} frames or {@link #getMaxBatchBytes()} encoded bytes, or {@link #getLingerTime()}
+ * milliseconds after its first frame was added.
+ * <p/>
+ * Frames are encoded when they're added, with a content-length header so their body doesn't have to be scanned for
+ * null characters. A receipt is requested on each frame a caller waits for, and completes the future of this frame
+ * only : receipts may come back in any order, so the receipt of a frame doesn't confirm the frames before it.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class SendBatcher {
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+	public static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+	public static final long DEFAULT_LINGER_TIME = 5;
+
+	private final ClientHandler clientHandler;
+	private final Timer timer;
+	private final int maxBatchSize;
+	private final int maxBatchBytes;
+	private final long lingerTime;
+
+	private final List<String> receiptIds = new ArrayList<String>();
+	private Channel channel;
+	private ChannelBuffer buffer;
+	private ChannelFuture writeFuture;
+	private int batchSize = 0;
+	private Timeout lingerTimeout;
+
+	/**
+	 * @param clientHandler
+	 *            the handler which tracks the receipts
+	 * @param timer
+	 *            timer used to flush the batches which don't fill up
+	 * @param maxBatchSize
+	 *            number of frames above which a batch is written
+	 * @param maxBatchBytes
+	 *            size of the encoded frames above which a batch is written
+	 * @param lingerTime
+	 *            maximum number of milliseconds a frame waits for other frames before its batch is written
+	 */
+	public SendBatcher(ClientHandler clientHandler, Timer timer, int maxBatchSize, int maxBatchBytes, long lingerTime) {
+		if (maxBatchSize <= 0)
+			throw new IllegalArgumentException("Maximum batch size have to be a strictly positive number");
+		if (maxBatchBytes <= 0)
+			throw new IllegalArgumentException("Maximum batch bytes have to be a strictly positive number");
+		if (lingerTime < 0)
+			throw new IllegalArgumentException("Linger time have to be a positive number");
+		this.clientHandler = clientHandler;
+		this.timer = timer;
+		this.maxBatchSize = maxBatchSize;
+		this.maxBatchBytes = maxBatchBytes;
+		this.lingerTime = lingerTime;
+	}
+
+	/**
+	 * Add a SEND frame to the current batch
+	 * 
+	 * @param channel
+	 * @param frame
+	 * @param receiptFuture
+	 *            the future to complete when the server confirms this frame, or null if the caller doesn't need a
+	 *            receipt
+	 * @return the future notified when the batch is written
+	 */
+	public synchronized ChannelFuture add(Channel channel, Frame frame, final StompFuture<Void> receiptFuture) {
+		if (this.channel != channel) {
+			flush();
+			this.channel = channel;
+		}
+
+		if (batchSize == 0) {
+			buffer = ChannelBuffers.dynamicBuffer(Math.min(maxBatchBytes, DEFAULT_MAX_BATCH_BYTES));
+			writeFuture = Channels.future(channel);
+		}
+
+		byte[] body = frame.getBodyBytes();
+		frame.setHeaderValue(Header.HEADER_CONTENT_LENGTH, String.valueOf(body != null ? body.length : 0));
+		if (receiptFuture != null) {
+			clientHandler.requestReceipt(frame).addListener(new StompFutureListener<Void>() {
+				@Override
+				public void operationComplete(StompFuture<Void> future) throws Exception {
+					if (future.isSuccess()) {
+						receiptFuture.setSuccess(null);
+					} else {
+						receiptFuture.setFailure(future.getCause());
+					}
+				}
+			});
+			receiptIds.add(frame.getHeaderValue(Header.HEADER_RECEIPT_ID_REQUEST));
+		}
+		StompFrameEncoder.writeFrame(frame, body, buffer);
+		batchSize++;
+
+		ChannelFuture future = writeFuture;
+		if (batchSize >= maxBatchSize || buffer.writerIndex() >= maxBatchBytes) {
+			flush();
+		} else if (batchSize == 1) {
+			lingerTimeout = timer.newTimeout(new LingerTask(), lingerTime, TimeUnit.MILLISECONDS);
+		}
+		return future;
+	}
+
+	/**
+	 * Write the current batch now, if it's not empty
+	 */
+	public synchronized void flush() {
+		if (batchSize == 0)
+			return;
+
+		if (lingerTimeout != null) {
+			lingerTimeout.cancel();
+			lingerTimeout = null;
+		}
+
+		final List<String> batchReceiptIds = new ArrayList<String>(receiptIds);
+		final ChannelFuture batchWriteFuture = writeFuture;
+		channel.write(buffer).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				if (future.isSuccess()) {
+					batchWriteFuture.setSuccess();
+				} else {
+					batchWriteFuture.setFailure(future.getCause());
+					failReceipts(batchReceiptIds, future.getCause());
+				}
+			}
+		});
+		reset();
+	}
+
+	/**
+	 * Drop the current batch, the connection is closed
+	 * 
+	 * @param cause
+	 */
+	public synchronized void discard(Throwable cause) {
+		if (batchSize == 0)
+			return;
+
+		if (lingerTimeout != null) {
+			lingerTimeout.cancel();
+			lingerTimeout = null;
+		}
+		writeFuture.setFailure(cause);
+		failReceipts(receiptIds, cause);
+		reset();
+	}
+
+	private void failReceipts(List<String> batchReceiptIds, Throwable cause) {
+		for (String receiptId : batchReceiptIds) {
+			clientHandler.failReceipt(receiptId, cause);
+		}
+	}
+
+	private void reset() {
+		receiptIds.clear();
+		buffer = null;
+		writeFuture = null;
+		batchSize = 0;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public int getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	public long getLingerTime() {
+		return lingerTime;
+	}
+
+	/**
+	 * Write the batch if it didn't fill up before the linger time
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private class LingerTask implements TimerTask {
+
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			synchronized (SendBatcher.this) {
+				if (timeout == lingerTimeout) {
+					flush();
+				}
+			}
+		}
+	}
+
+}
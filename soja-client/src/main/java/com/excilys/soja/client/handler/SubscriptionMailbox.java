@@ -0,0 +1,204 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.client.handler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.excilys.soja.client.model.Subscription;
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.core.model.Header;
+
+/**
+ * Messages of a subscription waiting to be passed to its listener on an executor. At most one task of a mailbox is
+ * running at a time, so the listener receives the messages in order, while the mailboxes of different subscriptions
+ * are run concurrently.
+ * <p/>
+ * Messages are acknowledged once the listener returned, or rejected if it failed.
+ * <p/>
+ * When the mailbox holds {@link #getCapacity()} messages, the client stops reading from the connection until the
+ * listener has caught up to half of the capacity. The messages already read when reading stops are still queued, so
+ * the capacity may be slightly exceeded. If the executor rejects the mailbox, its messages are delivered on the calling
+ * thread.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class SubscriptionMailbox implements Runnable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionMailbox.class);
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** Maximum number of messages passed to the listener before the task gives the thread back to the executor */
+	private static final int MAX_MESSAGES_PER_RUN = 64;
+
+	private final ClientHandler clientHandler;
+	private final String topic;
+	private final Executor executor;
+	private final int capacity;
+
+	private final Queue<Delivery> deliveries = new ConcurrentLinkedQueue<Delivery>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final AtomicBoolean readingSuspended = new AtomicBoolean();
+
+	/**
+	 * @param clientHandler
+	 *            the handler which notifies the listener, suspends and resumes the reads
+	 * @param topic
+	 * @param executor
+	 *            the executor which runs the listener
+	 * @param capacity
+	 *            number of queued messages above which the client stops reading
+	 */
+	public SubscriptionMailbox(ClientHandler clientHandler, String topic, Executor executor, int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Mailbox capacity have to be a strictly positive number");
+		this.clientHandler = clientHandler;
+		this.topic = topic;
+		this.executor = executor;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Queue a message for the listener. Called by the I/O thread.
+	 * 
+	 * @param channel
+	 *            the channel the message was read from
+	 * @param subscription
+	 *            the subscription the message is delivered to
+	 * @param frame
+	 *            the MESSAGE frame
+	 */
+	public void offer(Channel channel, Subscription subscription, Frame frame) {
+		deliveries.add(new Delivery(channel, subscription, frame));
+		if (size.incrementAndGet() >= capacity && readingSuspended.compareAndSet(false, true)) {
+			LOGGER.debug("Mailbox of topic {} is full, suspending reads", topic);
+			clientHandler.suspendReading(channel);
+		}
+		schedule();
+	}
+
+	@Override
+	public void run() {
+		try {
+			deliver(MAX_MESSAGES_PER_RUN);
+		} finally {
+			scheduled.set(false);
+		}
+
+		// A message may have been queued after the last poll but before the task was marked as not scheduled
+		if (!deliveries.isEmpty()) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Pass the queued messages to the listener, up to the given count
+	 * 
+	 * @param maxMessages
+	 */
+	private void deliver(int maxMessages) {
+		for (int i = 0; i < maxMessages; i++) {
+			Delivery delivery = deliveries.poll();
+			if (delivery == null)
+				break;
+
+			boolean processed = clientHandler.notifyListener(delivery.subscription, delivery.frame);
+			clientHandler.acknowledge(delivery.channel, delivery.subscription,
+					delivery.frame.getHeaderValue(Header.HEADER_MESSAGE_ID), processed);
+
+			if (size.decrementAndGet() <= capacity / 2 && readingSuspended.compareAndSet(true, false)) {
+				LOGGER.debug("Mailbox of topic {} caught up, resuming reads", topic);
+				clientHandler.resumeReading(delivery.channel);
+			}
+		}
+	}
+
+	/**
+	 * Run the mailbox on the executor. If the executor rejects it, the messages are delivered on the calling thread
+	 * rather than left in the mailbox, where they would keep the reads suspended.
+	 */
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				LOGGER.warn("Listener executor of topic {} rejected the delivery, delivering {} messages on the calling "
+						+ "thread", topic, size.get());
+				do {
+					try {
+						deliver(Integer.MAX_VALUE);
+					} finally {
+						scheduled.set(false);
+					}
+				} while (!deliveries.isEmpty() && scheduled.compareAndSet(false, true));
+			}
+		}
+	}
+
+	/**
+	 * The connection the messages were read from is closed. The reads it suspended are forgotten : the next connection
+	 * starts reading, and is only suspended if the mailbox fills up again.
+	 */
+	void connectionLost() {
+		readingSuspended.set(false);
+	}
+
+	/**
+	 * @return the number of messages waiting for the listener
+	 */
+	public int getSize() {
+		return size.get();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * A message waiting for the listener
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private static class Delivery {
+
+		private final Channel channel;
+		private final Subscription subscription;
+		private final Frame frame;
+
+		public Delivery(Channel channel, Subscription subscription, Frame frame) {
+			this.channel = channel;
+			this.subscription = subscription;
+			this.frame = frame;
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.client.model;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.commons.lang.ArrayUtils;
+
+import com.excilys.soja.core.model.Header;
+
+/**
+ * Read-only view of the headers of a frame, without some of its keys. Nothing is copied : lookups go to the frame's
+ * headers and the hidden keys are skipped while iterating.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class HeaderView extends AbstractMap<String, String> {
+
+	private final Header header;
+	private final String[] hiddenKeys;
+	private Set<Entry<String, String>> entrySet;
+
+	/**
+	 * @param header
+	 * @param hiddenKeys
+	 *            the keys which are not part of the view
+	 */
+	public HeaderView(Header header, String[] hiddenKeys) {
+		this.header = header;
+		this.hiddenKeys = hiddenKeys;
+	}
+
+	@Override
+	public String get(Object key) {
+		return isHidden(key) ? null : header.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return !isHidden(key) && header.containsKey(key);
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new EntrySet();
+		}
+		return entrySet;
+	}
+
+	private boolean isHidden(Object key) {
+		return ArrayUtils.contains(hiddenKeys, key);
+	}
+
+	/**
+	 * Entries of the frame's headers whose key is not hidden
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private class EntrySet extends AbstractSet<Entry<String, String>> {
+
+		@Override
+		public Iterator<Entry<String, String>> iterator() {
+			final Iterator<Entry<String, String>> iterator = header.entrySet().iterator();
+			return new Iterator<Entry<String, String>>() {
+
+				private Entry<String, String> next = findNext();
+
+				@Override
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				@Override
+				public Entry<String, String> next() {
+					if (next == null)
+						throw new NoSuchElementException();
+
+					Entry<String, String> entry = next;
+					next = findNext();
+					return new SimpleImmutableEntry<String, String>(entry);
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+
+				private Entry<String, String> findNext() {
+					while (iterator.hasNext()) {
+						Entry<String, String> entry = iterator.next();
+						if (!isHidden(entry.getKey()))
+							return entry;
+					}
+					return null;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			int size = 0;
+			for (String key : header.keySet()) {
+				if (!isHidden(key)) {
+					size++;
+				}
+			}
+			return size;
+		}
+	}
+
+}
@@ -7,6 +7,7 @@
 package com.excilys.soja.client.model;
 
 import com.excilys.soja.client.events.StompTopicListener;
+import com.excilys.soja.client.handler.SubscriptionMailbox;
 import com.excilys.soja.core.model.Ack;
 
 /**
@@ -17,8 +18,10 @@ public class Subscription {
 
 	private final Long id;
 	private final Ack ackMode;
+	private final int prefetchCount;
 	private final String topic;
 	private final StompTopicListener topicListener;
+	private final SubscriptionMailbox mailbox;
 
 	/**
 	 * @param id
@@ -30,11 +33,32 @@ public class Subscription {
 	 *            the topic listener to call when the client received a message
 	 */
 	public Subscription(Long id, Ack ackMode, String topic, StompTopicListener topicListener) {
+		this(id, ackMode, 0, topic, topicListener, null);
+	}
+
+	/**
+	 * @param id
+	 *            unique subscription id
+	 * @param ackMode
+	 * @param prefetchCount
+	 *            maximum number of unacknowledged messages, 0 means no limit
+	 * @param topic
+	 *            the topic for wich the subscription is for
+	 * @param topicListener
+	 *            the topic listener to call when the client received a message
+	 * @param mailbox
+	 *            the mailbox which passes the messages to the listener on an executor, or null to call the listener on
+	 *            the I/O thread
+	 */
+	public Subscription(Long id, Ack ackMode, int prefetchCount, String topic, StompTopicListener topicListener,
+			SubscriptionMailbox mailbox) {
 		super();
 		this.id = id;
 		this.ackMode = ackMode;
+		this.prefetchCount = prefetchCount;
 		this.topic = topic;
 		this.topicListener = topicListener;
+		this.mailbox = mailbox;
 	}
 
 	public Long getId() {
@@ -45,6 +69,10 @@ public class Subscription {
 		return ackMode;
 	}
 
+	public int getPrefetchCount() {
+		return prefetchCount;
+	}
+
 	public String getTopic() {
 		return topic;
 	}
@@ -53,4 +81,8 @@ public class Subscription {
 		return topicListener;
 	}
 
+	public SubscriptionMailbox getMailbox() {
+		return mailbox;
+	}
+
 }
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.client.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Subscriptions of a client, indexed by their id and by their topic. Lookups are made by the I/O thread for each
+ * received message, while subscriptions are added and removed by the caller's threads.
+ * <p/>
+ * The registry is copy-on-write : lookups read an immutable snapshot without any lock nor boxing of the id, and each
+ * change builds a new snapshot. Subscribing is rare compared to receiving messages, so the O(n) copy is paid on the
+ * rare path only.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class SubscriptionRegistry {
+
+	private static final Subscription[] NO_SUBSCRIPTION = new Subscription[0];
+
+	private volatile Snapshot snapshot = new Snapshot(NO_SUBSCRIPTION);
+
+	/**
+	 * @param id
+	 * @return the subscription with this id, or null if there is none
+	 */
+	public Subscription get(long id) {
+		return snapshot.get(id);
+	}
+
+	/**
+	 * @param topic
+	 * @return the subscriptions to this topic. The array must not be modified
+	 */
+	public Subscription[] getByTopic(String topic) {
+		Subscription[] subscriptions = snapshot.subscriptionsByTopic.get(topic);
+		return subscriptions != null ? subscriptions : NO_SUBSCRIPTION;
+	}
+
+	/**
+	 * Add a subscription, replacing the one with the same id if any
+	 * 
+	 * @param subscription
+	 */
+	public synchronized void put(Subscription subscription) {
+		Subscription[] subscriptions = snapshot.subscriptions;
+		List<Subscription> newSubscriptions = new ArrayList<Subscription>(subscriptions.length + 1);
+		for (Subscription each : subscriptions) {
+			if (each.getId().longValue() != subscription.getId().longValue()) {
+				newSubscriptions.add(each);
+			}
+		}
+		newSubscriptions.add(subscription);
+		snapshot = new Snapshot(newSubscriptions.toArray(new Subscription[newSubscriptions.size()]));
+	}
+
+	/**
+	 * @param id
+	 * @return the removed subscription, or null if there was no subscription with this id
+	 */
+	public synchronized Subscription remove(long id) {
+		Subscription removed = snapshot.get(id);
+		if (removed == null)
+			return null;
+
+		Subscription[] subscriptions = snapshot.subscriptions;
+		List<Subscription> newSubscriptions = new ArrayList<Subscription>(subscriptions.length);
+		for (Subscription each : subscriptions) {
+			if (each != removed) {
+				newSubscriptions.add(each);
+			}
+		}
+		snapshot = new Snapshot(newSubscriptions.toArray(new Subscription[newSubscriptions.size()]));
+		return removed;
+	}
+
+	/**
+	 * @return all the subscriptions, in the order they were added
+	 */
+	public List<Subscription> values() {
+		return Collections.unmodifiableList(Arrays.asList(snapshot.subscriptions));
+	}
+
+	public int size() {
+		return snapshot.subscriptions.length;
+	}
+
+	/**
+	 * Immutable state of the registry : an open addressing table of the ids, and the subscriptions grouped by topic
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private static class Snapshot {
+
+		private final Subscription[] subscriptions;
+		private final long[] ids;
+		private final Subscription[] table;
+		private final int mask;
+		private final Map<String, Subscription[]> subscriptionsByTopic;
+
+		public Snapshot(Subscription[] subscriptions) {
+			this.subscriptions = subscriptions;
+
+			// Keep the table at most half full, so probe sequences stay short
+			int capacity = 2;
+			while (capacity < subscriptions.length * 2) {
+				capacity <<= 1;
+			}
+			this.ids = new long[capacity];
+			this.table = new Subscription[capacity];
+			this.mask = capacity - 1;
+
+			Map<String, List<Subscription>> topics = new HashMap<String, List<Subscription>>();
+			for (Subscription subscription : subscriptions) {
+				long id = subscription.getId().longValue();
+				int index = hash(id) & mask;
+				while (table[index] != null) {
+					index = (index + 1) & mask;
+				}
+				ids[index] = id;
+				table[index] = subscription;
+
+				List<Subscription> topicSubscriptions = topics.get(subscription.getTopic());
+				if (topicSubscriptions == null) {
+					topicSubscriptions = new ArrayList<Subscription>(1);
+					topics.put(subscription.getTopic(), topicSubscriptions);
+				}
+				topicSubscriptions.add(subscription);
+			}
+
+			this.subscriptionsByTopic = new HashMap<String, Subscription[]>(topics.size() * 2);
+			for (Map.Entry<String, List<Subscription>> entry : topics.entrySet()) {
+				List<Subscription> topicSubscriptions = entry.getValue();
+				subscriptionsByTopic.put(entry.getKey(),
+						topicSubscriptions.toArray(new Subscription[topicSubscriptions.size()]));
+			}
+		}
+
+		public Subscription get(long id) {
+			int index = hash(id) & mask;
+			Subscription subscription;
+			while ((subscription = table[index]) != null) {
+				if (ids[index] == id)
+					return subscription;
+				index = (index + 1) & mask;
+			}
+			return null;
+		}
+
+		/**
+		 * Spread the sequential ids over the table
+		 */
+		private static int hash(long id) {
+			int hash = (int) (id ^ (id >>> 32));
+			return hash * 0x9E3779B9;
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+package com.excilys.soja.client;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.excilys.soja.client.exception.ConfirmWindowFullException;
+import com.excilys.soja.core.future.StompFuture;
+
+public class ConfirmWindowTest {
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructor_max_in_flight_zero() throws Exception {
+		new ConfirmWindow(0, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructor_block_time_negative() throws Exception {
+		new ConfirmWindow(1, -1);
+	}
+
+	@Test
+	public void testAcquire_full() throws Exception {
+		ConfirmWindow window = new ConfirmWindow(2, 0);
+		window.acquire();
+		window.acquire();
+		assertEquals(2, window.getInFlight());
+
+		try {
+			window.acquire();
+			fail("The window should be full");
+		} catch (ConfirmWindowFullException e) {
+			assertEquals(2, e.getMaxInFlight());
+		}
+		assertEquals(2, window.getInFlight());
+	}
+
+	@Test
+	public void testAcquire_full_after_block_time() throws Exception {
+		ConfirmWindow window = new ConfirmWindow(1, 50);
+		window.acquire();
+
+		long start = System.currentTimeMillis();
+		try {
+			window.acquire();
+			fail("The window should be full");
+		} catch (ConfirmWindowFullException e) {
+			assertTrue(System.currentTimeMillis() - start >= 40);
+		}
+	}
+
+	@Test
+	public void testReleaseOnCompletion() throws Exception {
+		ConfirmWindow window = new ConfirmWindow(2, 0);
+		StompFuture<Void> succeededFuture = new StompFuture<Void>();
+		StompFuture<Void> failedFuture = new StompFuture<Void>();
+		window.acquire();
+		window.releaseOnCompletion(succeededFuture);
+		window.acquire();
+		window.releaseOnCompletion(failedFuture);
+
+		succeededFuture.setSuccess(null);
+		assertEquals(1, window.getInFlight());
+		failedFuture.setFailure(new IOException("Connection closed"));
+		assertEquals(0, window.getInFlight());
+
+		window.acquire();
+		window.acquire();
+	}
+
+	@Test
+	public void testAcquire_released_while_blocked() throws Exception {
+		ConfirmWindow window = new ConfirmWindow(1, 5000);
+		final StompFuture<Void> future = new StompFuture<Void>();
+		window.acquire();
+		window.releaseOnCompletion(future);
+
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+				}
+				future.setSuccess(null);
+			}
+		}.start();
+		window.acquire();
+
+		assertEquals(1, window.getInFlight());
+	}
+}
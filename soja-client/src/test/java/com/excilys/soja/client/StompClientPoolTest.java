@@ -0,0 +1,111 @@
+package com.excilys.soja.client;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.excilys.soja.core.future.StompFuture;
+import com.excilys.soja.server.StompServer;
+import com.excilys.soja.server.authentication.Authentication;
+
+public class StompClientPoolTest {
+
+	private static final String HOSTNAME = "localhost";
+	private static final int POOL_SIZE = 3;
+	private static final String TOPIC = "/topic";
+	private static final long TIMEOUT = 10000;
+
+	private int port;
+	private StompServer server;
+	private StompClientPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		port = socket.getLocalPort();
+		socket.close();
+
+		server = new StompServer(HOSTNAME, port, Authentication.ALLOW_ALL_INSTANCE);
+		assertTrue(server.start());
+		pool = new StompClientPool(HOSTNAME, port, POOL_SIZE);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pool.disconnectAsync().awaitUninterruptibly(TIMEOUT);
+		server.stop();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructor_size_zero() throws Exception {
+		new StompClientPool(HOSTNAME, port, 0);
+	}
+
+	@Test
+	public void testSelectClient_not_connected() throws Exception {
+		assertNotNull(pool.selectClient(TOPIC));
+	}
+
+	@Test
+	public void testSelectClient_ordered_by_destination() throws Exception {
+		pool.setOrderedByDestination(true);
+
+		StompClient client = pool.selectClient(TOPIC);
+		for (int i = 0; i < 10; i++) {
+			assertSame(client, pool.selectClient(TOPIC));
+		}
+	}
+
+	@Test
+	public void testConnect() throws Exception {
+		pool.connect();
+
+		assertEquals(POOL_SIZE, pool.getClients().size());
+		for (StompClient client : pool.getClients()) {
+			assertTrue(client.isConnected());
+		}
+	}
+
+	@Test
+	public void testSelectClient_spread_over_connections() throws Exception {
+		pool.connect();
+
+		Set<StompClient> selectedClients = new HashSet<StompClient>();
+		for (int i = 0; i < POOL_SIZE; i++) {
+			selectedClients.add(pool.selectClient(TOPIC));
+		}
+
+		assertEquals(POOL_SIZE, selectedClients.size());
+	}
+
+	@Test
+	public void testSendAsync() throws Exception {
+		pool.connect();
+
+		StompFuture<Void> future = pool.sendAsync(TOPIC, "message", null);
+
+		assertTrue(future.await(TIMEOUT));
+		assertTrue(future.isSuccess());
+	}
+
+	@Test
+	public void testDisconnectAsync() throws Exception {
+		pool.connect();
+
+		assertTrue(pool.disconnectAsync().await(TIMEOUT));
+
+		for (StompClient client : pool.getClients()) {
+			assertFalse(client.isConnected());
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.excilys.soja.client;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.excilys.soja.client.events.StompTopicListener;
+import com.excilys.soja.client.exception.NotConnectedException;
+import com.excilys.soja.core.future.StompFuture;
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.server.StompServer;
+import com.excilys.soja.server.authentication.Authentication;
+
+public class StompClientTest {
+
+	private static final String HOSTNAME = "localhost";
+	private static final String TOPIC = "/topic";
+	private static final long TIMEOUT = 10000;
+
+	private final BlockingQueue<String> receivedMessages = new ArrayBlockingQueue<String>(16);
+	private final StompTopicListener topicListener = new StompTopicListener() {
+		@Override
+		public void receivedMessage(String message, Map<String, String> userHeaders) {
+			receivedMessages.add(message);
+		}
+	};
+
+	private int port;
+	private StompServer server;
+	private StompClient client;
+
+	@Before
+	public void setUp() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		port = socket.getLocalPort();
+		socket.close();
+
+		server = new StompServer(HOSTNAME, port, Authentication.ALLOW_ALL_INSTANCE);
+		assertTrue(server.start());
+		client = new StompClient(HOSTNAME, port);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnectAsync().awaitUninterruptibly(TIMEOUT);
+		}
+		server.stop();
+	}
+
+	private void connect() {
+		StompFuture<Frame> future = client.connectAsync(null, null);
+		assertTrue(future.awaitUninterruptibly(TIMEOUT));
+		assertTrue(future.isSuccess());
+	}
+
+	@Test
+	public void testConnectAsync() throws Exception {
+		StompFuture<Frame> future = client.connectAsync(null, null);
+
+		assertTrue(future.await(TIMEOUT));
+		assertTrue(future.getNow().isCommand(Frame.COMMAND_CONNECTED));
+		assertTrue(client.isConnected());
+	}
+
+	@Test
+	public void testSendAsync_not_connected() throws Exception {
+		StompFuture<Void> future = client.sendAsync(TOPIC, "message");
+
+		assertTrue(future.isDone());
+		assertTrue(future.getCause() instanceof NotConnectedException);
+
+		// Release the resources of the client
+		connect();
+	}
+
+	@Test
+	public void testSendAsync() throws Exception {
+		connect();
+		StompFuture<Long> subscribeFuture = client.subscribeAsync(TOPIC, topicListener);
+		assertTrue(subscribeFuture.await(TIMEOUT));
+		assertNotNull(subscribeFuture.getNow());
+
+		StompFuture<Void> future = client.sendAsync(TOPIC, "message");
+
+		assertTrue(future.await(TIMEOUT));
+		assertTrue(future.isSuccess());
+		assertEquals("message", receivedMessages.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testUnsubscribeAsync() throws Exception {
+		connect();
+		StompFuture<Long> subscribeFuture = client.subscribeAsync(TOPIC, topicListener);
+		assertTrue(subscribeFuture.await(TIMEOUT));
+
+		StompFuture<Void> future = client.unsubscribeAsync(subscribeFuture.getNow());
+		assertTrue(future.await(TIMEOUT));
+		assertTrue(future.isSuccess());
+
+		assertTrue(client.sendAsync(TOPIC, "message").await(TIMEOUT));
+		assertNull(receivedMessages.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testDisconnectAsync() throws Exception {
+		connect();
+
+		StompFuture<Void> future = client.disconnectAsync();
+
+		assertTrue(future.await(TIMEOUT));
+		assertTrue(future.isSuccess());
+		assertFalse(client.isConnected());
+	}
+
+	@Test
+	public void testAutoReconnect() throws Exception {
+		client.setAutoReconnect(true);
+		client.setReconnectDelays(50, 100);
+		connect();
+		assertTrue(client.subscribeAsync(TOPIC, topicListener).await(TIMEOUT));
+
+		server.stop();
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!client.isReconnecting() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(client.isReconnecting());
+
+		// The message is buffered until the connection is back, then delivered to the restored subscription
+		StompFuture<Void> future = client.sendAsync(TOPIC, "message");
+		assertFalse(future.isDone());
+		server = new StompServer(HOSTNAME, port, Authentication.ALLOW_ALL_INSTANCE);
+		assertTrue(server.start());
+
+		assertTrue(future.await(TIMEOUT));
+		assertTrue(future.isSuccess());
+		assertEquals("message", receivedMessages.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+}
@@ -0,0 +1,96 @@
+package com.excilys.soja.client.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.excilys.soja.client.StompClient;
+import com.excilys.soja.core.future.StompFuture;
+import com.excilys.soja.server.StompServer;
+import com.excilys.soja.server.authentication.Authentication;
+
+/**
+ * Measure the throughput of messages sent with a receipt request, for several sizes of confirm window, against an
+ * embedded server. A window of 1 waits for each receipt before sending the next message. The throughput of messages
+ * sent without receipt is given as a reference.
+ * <p/>
+ * Arguments : [messages per run] [message size] [port]
+ */
+public class ConfirmWindowBenchmark {
+
+	private static final int[] WINDOW_SIZES = { 1, 4, 16, 64, 256, 1024, 4096 };
+	private static final String TOPIC = "/benchmark";
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int messageSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 61651;
+
+		StringBuilder messageBuilder = new StringBuilder(messageSize);
+		for (int i = 0; i < messageSize; i++) {
+			messageBuilder.append((char) ('a' + i % 26));
+		}
+		String message = messageBuilder.toString();
+
+		StompServer server = new StompServer("localhost", port, Authentication.ALLOW_ALL_INSTANCE);
+		server.start();
+		StompClient client = new StompClient("localhost", port);
+		try {
+			client.connect();
+
+			// Warm up both paths
+			runWithoutReceipt(client, message, messages / 10);
+			client.setConfirmWindow(256, 60000);
+			runWithWindow(client, message, messages / 10);
+
+			long time = runWithoutReceipt(client, message, messages);
+			System.out.println(String.format("No receipt   : %d messages in %d ms (%.0f/s)", messages, time, messages
+					* 1000.0 / time));
+			for (int windowSize : WINDOW_SIZES) {
+				client.setConfirmWindow(windowSize, 60000);
+				time = runWithWindow(client, message, messages);
+				System.out.println(String.format("Window %5d : %d messages in %d ms (%.0f/s)", windowSize, messages,
+						time, messages * 1000.0 / time));
+			}
+		} finally {
+			client.disconnect();
+			server.stop();
+		}
+	}
+
+	/**
+	 * Send the messages without receipt, then wait for the receipt of a last message so they're all processed
+	 * 
+	 * @return the elapsed time in milliseconds
+	 */
+	private static long runWithoutReceipt(StompClient client, String message, int messages) throws Exception {
+		client.disableConfirmWindow();
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < messages - 1; i++) {
+			client.send(TOPIC, message);
+		}
+		client.sendAsync(TOPIC, message).get();
+		return System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * Send the messages with a receipt request each, through the current confirm window, and wait for all receipts
+	 * 
+	 * @return the elapsed time in milliseconds
+	 */
+	private static long runWithWindow(StompClient client, String message, int messages) throws Exception {
+		long start = System.currentTimeMillis();
+		List<StompFuture<Void>> futures = new ArrayList<StompFuture<Void>>(messages);
+		for (int i = 0; i < messages; i++) {
+			StompFuture<Void> future = client.sendAsync(TOPIC, message);
+			if (future.isDone() && !future.isSuccess())
+				throw new IllegalStateException("Message " + i + " failed", future.getCause());
+			futures.add(future);
+		}
+		// Receipts may arrive in any order, the last one doesn't confirm the messages before it
+		for (StompFuture<Void> future : futures) {
+			future.get();
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+}
@@ -0,0 +1,185 @@
+package com.excilys.soja.client.handler;
+
+import static com.excilys.soja.core.model.Header.HEADER_MESSAGE_ID;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.excilys.soja.client.model.Subscription;
+import com.excilys.soja.core.model.Ack;
+import com.excilys.soja.core.model.Frame;
+
+public class AckManagerTest {
+
+	private static final String TOPIC = "/topic";
+	private static final long LONG_ACK_INTERVAL = 60000;
+
+	private final List<String> writtenFrames = Collections.synchronizedList(new ArrayList<String>());
+	private HashedWheelTimer timer;
+	private Channel channel;
+
+	@Before
+	public void setUp() throws Exception {
+		timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS);
+		channel = createChannel();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		timer.stop();
+	}
+
+	private Channel createChannel() {
+		return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("hashCode"))
+							return System.identityHashCode(proxy);
+						if (name.equals("equals"))
+							return proxy == args[0];
+						if (name.equals("write")) {
+							String batch = ((ChannelBuffer) args[0]).toString(Charset.forName("UTF-8"));
+							for (String frame : batch.split("\0")) {
+								if (frame.trim().length() > 0) {
+									writtenFrames.add(frame.trim());
+								}
+							}
+							return Channels.succeededFuture((Channel) proxy);
+						}
+						throw new UnsupportedOperationException(name);
+					}
+				});
+	}
+
+	private static void assertFrame(String command, String messageId, String frame) {
+		assertTrue(frame, frame.startsWith(command + "\n"));
+		assertTrue(frame, frame.contains(HEADER_MESSAGE_ID + ":" + messageId + "\n"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructor_max_pending_acks_zero() throws Exception {
+		new AckManager(timer, 0, LONG_ACK_INTERVAL);
+	}
+
+	@Test
+	public void testAck_flush_on_max_pending_acks() throws Exception {
+		AckManager ackManager = new AckManager(timer, 3, LONG_ACK_INTERVAL);
+		Subscription subscription = new Subscription(1L, Ack.CLIENT_INDIVIDUAL, TOPIC, null);
+
+		ackManager.ack(channel, subscription, "m1");
+		ackManager.ack(channel, subscription, "m2");
+		assertTrue(writtenFrames.isEmpty());
+
+		ackManager.ack(channel, subscription, "m3");
+
+		assertEquals(3, writtenFrames.size());
+		assertFrame(Frame.COMMAND_ACK, "m1", writtenFrames.get(0));
+		assertFrame(Frame.COMMAND_ACK, "m3", writtenFrames.get(2));
+	}
+
+	@Test
+	public void testAck_flush_after_interval() throws Exception {
+		AckManager ackManager = new AckManager(timer, 100, 10);
+		Subscription subscription = new Subscription(1L, Ack.CLIENT_INDIVIDUAL, TOPIC, null);
+
+		ackManager.ack(channel, subscription, "m1");
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (writtenFrames.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, writtenFrames.size());
+	}
+
+	@Test
+	public void testAck_flush_on_half_prefetch_window() throws Exception {
+		AckManager ackManager = new AckManager(timer, 100, LONG_ACK_INTERVAL);
+		Subscription subscription = new Subscription(1L, Ack.CLIENT_INDIVIDUAL, 4, TOPIC, null, null);
+
+		ackManager.ack(channel, subscription, "m1");
+		assertTrue(writtenFrames.isEmpty());
+
+		ackManager.ack(channel, subscription, "m2");
+
+		assertEquals(2, writtenFrames.size());
+	}
+
+	@Test
+	public void testAck_cumulative_replaces_previous() throws Exception {
+		AckManager ackManager = new AckManager(timer, 100, LONG_ACK_INTERVAL);
+		Subscription subscription = new Subscription(1L, Ack.CLIENT, TOPIC, null);
+		Subscription otherSubscription = new Subscription(2L, Ack.CLIENT, TOPIC, null);
+
+		ackManager.ack(channel, subscription, "m1");
+		ackManager.ack(channel, otherSubscription, "o1");
+		ackManager.ack(channel, subscription, "m2");
+		ackManager.ack(channel, subscription, "m3");
+		ackManager.flush();
+
+		assertEquals(2, writtenFrames.size());
+		assertFrame(Frame.COMMAND_ACK, "m3", writtenFrames.get(0));
+		assertFrame(Frame.COMMAND_ACK, "o1", writtenFrames.get(1));
+	}
+
+	@Test
+	public void testNack_flush_previous_acks() throws Exception {
+		AckManager ackManager = new AckManager(timer, 100, LONG_ACK_INTERVAL);
+		Subscription subscription = new Subscription(1L, Ack.CLIENT, TOPIC, null);
+
+		ackManager.ack(channel, subscription, "m1");
+		ackManager.ack(channel, subscription, "m2");
+		ackManager.nack(channel, subscription, "m3");
+
+		assertEquals(2, writtenFrames.size());
+		assertFrame(Frame.COMMAND_ACK, "m2", writtenFrames.get(0));
+		assertFrame(Frame.COMMAND_NACK, "m3", writtenFrames.get(1));
+
+		// The next ACK starts a new batch instead of replacing the one already written
+		ackManager.ack(channel, subscription, "m4");
+		ackManager.flush();
+		assertEquals(3, writtenFrames.size());
+		assertFrame(Frame.COMMAND_ACK, "m4", writtenFrames.get(2));
+	}
+
+	@Test
+	public void testAck_other_channel_discards_pending_acks() throws Exception {
+		AckManager ackManager = new AckManager(timer, 100, LONG_ACK_INTERVAL);
+		Subscription subscription = new Subscription(1L, Ack.CLIENT_INDIVIDUAL, TOPIC, null);
+
+		ackManager.ack(channel, subscription, "m1");
+		ackManager.ack(createChannel(), subscription, "m2");
+		ackManager.flush();
+
+		assertEquals(1, writtenFrames.size());
+		assertFrame(Frame.COMMAND_ACK, "m2", writtenFrames.get(0));
+	}
+
+	@Test
+	public void testDiscard() throws Exception {
+		AckManager ackManager = new AckManager(timer, 100, LONG_ACK_INTERVAL);
+		ackManager.ack(channel, new Subscription(1L, Ack.CLIENT, TOPIC, null), "m1");
+
+		ackManager.discard();
+		ackManager.flush();
+
+		assertTrue(writtenFrames.isEmpty());
+	}
+}
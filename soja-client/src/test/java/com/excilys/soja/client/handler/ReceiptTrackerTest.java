@@ -0,0 +1,133 @@
+package com.excilys.soja.client.handler;
+
+import static com.excilys.soja.core.model.Header.HEADER_RECEIPT_ID_REQUEST;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.excilys.soja.core.future.StompFuture;
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.core.model.frame.SendFrame;
+
+public class ReceiptTrackerTest {
+
+	private static final String TOPIC = "/topic";
+
+	private HashedWheelTimer timer;
+	private ReceiptTracker receiptTracker;
+
+	@Before
+	public void setUp() throws Exception {
+		timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS);
+		receiptTracker = new ReceiptTracker(timer);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		timer.stop();
+	}
+
+	@Test
+	public void testRequestReceipt_unique_ids() throws Exception {
+		Frame frame1 = new SendFrame(TOPIC, "1");
+		Frame frame2 = new SendFrame(TOPIC, "2");
+
+		receiptTracker.requestReceipt(frame1);
+		receiptTracker.requestReceipt(frame2);
+
+		assertNotNull(frame1.getHeaderValue(HEADER_RECEIPT_ID_REQUEST));
+		assertFalse(frame1.getHeaderValue(HEADER_RECEIPT_ID_REQUEST).equals(
+				frame2.getHeaderValue(HEADER_RECEIPT_ID_REQUEST)));
+		assertEquals(2, receiptTracker.size());
+	}
+
+	@Test
+	public void testReceiptReceived() throws Exception {
+		Frame frame = new SendFrame(TOPIC, "1");
+		StompFuture<Void> future = receiptTracker.requestReceipt(frame);
+
+		assertTrue(receiptTracker.receiptReceived(frame.getHeaderValue(HEADER_RECEIPT_ID_REQUEST)));
+
+		assertTrue(future.isSuccess());
+		assertEquals(0, receiptTracker.size());
+		assertFalse(receiptTracker.receiptReceived(frame.getHeaderValue(HEADER_RECEIPT_ID_REQUEST)));
+	}
+
+	@Test
+	public void testReceiptReceived_unknown() throws Exception {
+		assertFalse(receiptTracker.receiptReceived("unknown"));
+	}
+
+	@Test
+	public void testRequestReceipt_timeout() throws Exception {
+		Frame frame = new SendFrame(TOPIC, "1");
+		StompFuture<Void> future = receiptTracker.requestReceipt(frame, 20);
+
+		assertTrue(future.await(5000));
+
+		assertFalse(future.isSuccess());
+		assertTrue(future.getCause() instanceof TimeoutException);
+		assertEquals(0, receiptTracker.size());
+		assertFalse(receiptTracker.receiptReceived(frame.getHeaderValue(HEADER_RECEIPT_ID_REQUEST)));
+	}
+
+	@Test
+	public void testRequestReceipt_no_timeout() throws Exception {
+		StompFuture<Void> future = receiptTracker.requestReceipt(new SendFrame(TOPIC, "1"), 0);
+
+		assertFalse(future.await(50));
+		assertEquals(1, receiptTracker.size());
+	}
+
+	@Test
+	public void testReceiptReceived_before_timeout() throws Exception {
+		Frame frame = new SendFrame(TOPIC, "1");
+		StompFuture<Void> future = receiptTracker.requestReceipt(frame, 20);
+
+		receiptTracker.receiptReceived(frame.getHeaderValue(HEADER_RECEIPT_ID_REQUEST));
+		Thread.sleep(50);
+
+		assertTrue(future.isSuccess());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetDefaultTimeout_negative() throws Exception {
+		receiptTracker.setDefaultTimeout(-1);
+	}
+
+	@Test
+	public void testFail() throws Exception {
+		Frame frame = new SendFrame(TOPIC, "1");
+		StompFuture<Void> future = receiptTracker.requestReceipt(frame);
+		IOException cause = new IOException("Write failed");
+
+		assertTrue(receiptTracker.fail(frame.getHeaderValue(HEADER_RECEIPT_ID_REQUEST), cause));
+
+		assertSame(cause, future.getCause());
+		assertEquals(0, receiptTracker.size());
+	}
+
+	@Test
+	public void testFailAll() throws Exception {
+		StompFuture<Void> future1 = receiptTracker.requestReceipt(new SendFrame(TOPIC, "1"));
+		StompFuture<Void> future2 = receiptTracker.requestReceipt(new SendFrame(TOPIC, "2"), 0);
+		IOException cause = new IOException("Connection closed");
+
+		receiptTracker.failAll(cause);
+
+		assertSame(cause, future1.getCause());
+		assertSame(cause, future2.getCause());
+		assertEquals(0, receiptTracker.size());
+	}
+}
@@ -0,0 +1,205 @@
+package com.excilys.soja.client.handler;
+
+import static com.excilys.soja.core.model.Header.HEADER_RECEIPT_ID_REQUEST;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.excilys.soja.core.future.StompFuture;
+import com.excilys.soja.core.model.frame.SendFrame;
+
+public class SendBatcherTest {
+
+	private static final String TOPIC = "/topic";
+	private static final long LONG_LINGER_TIME = 60000;
+
+	private final List<String> writtenBatches = Collections.synchronizedList(new ArrayList<String>());
+	private HashedWheelTimer timer;
+	private ClientHandler clientHandler;
+	private Channel channel;
+
+	@Before
+	public void setUp() throws Exception {
+		timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS);
+		clientHandler = new ClientHandler(timer);
+		channel = createChannel();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		timer.stop();
+	}
+
+	private Channel createChannel() {
+		return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("hashCode"))
+							return System.identityHashCode(proxy);
+						if (name.equals("equals"))
+							return proxy == args[0];
+						if (name.equals("write")) {
+							writtenBatches.add(((ChannelBuffer) args[0]).toString(Charset.forName("UTF-8")));
+							return Channels.succeededFuture((Channel) proxy);
+						}
+						throw new UnsupportedOperationException(name);
+					}
+				});
+	}
+
+	private static int countFrames(String batch) {
+		return batch.split("SEND\n", -1).length - 1;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructor_batch_size_zero() throws Exception {
+		new SendBatcher(clientHandler, timer, 0, 1024, LONG_LINGER_TIME);
+	}
+
+	@Test
+	public void testAdd_flush_on_batch_size() throws Exception {
+		SendBatcher sendBatcher = new SendBatcher(clientHandler, timer, 3, 64 * 1024, LONG_LINGER_TIME);
+
+		ChannelFuture firstFuture = sendBatcher.add(channel, new SendFrame(TOPIC, "1"), null);
+		sendBatcher.add(channel, new SendFrame(TOPIC, "2"), null);
+		assertTrue(writtenBatches.isEmpty());
+		assertFalse(firstFuture.isDone());
+
+		sendBatcher.add(channel, new SendFrame(TOPIC, "3"), null);
+
+		assertEquals(1, writtenBatches.size());
+		assertEquals(3, countFrames(writtenBatches.get(0)));
+		assertTrue(firstFuture.isSuccess());
+	}
+
+	@Test
+	public void testAdd_flush_on_batch_bytes() throws Exception {
+		SendBatcher sendBatcher = new SendBatcher(clientHandler, timer, 100, 64, LONG_LINGER_TIME);
+
+		sendBatcher.add(channel, new SendFrame(TOPIC, "small"), null);
+		assertTrue(writtenBatches.isEmpty());
+
+		sendBatcher.add(channel, new SendFrame(TOPIC, new String(new char[64]).replace('\0', 'x')), null);
+
+		assertEquals(1, writtenBatches.size());
+		assertEquals(2, countFrames(writtenBatches.get(0)));
+	}
+
+	@Test
+	public void testAdd_flush_after_linger_time() throws Exception {
+		SendBatcher sendBatcher = new SendBatcher(clientHandler, timer, 100, 64 * 1024, 10);
+
+		ChannelFuture future = sendBatcher.add(channel, new SendFrame(TOPIC, "1"), null);
+
+		assertTrue(future.await(5000));
+		assertEquals(1, writtenBatches.size());
+		assertEquals(1, countFrames(writtenBatches.get(0)));
+	}
+
+	@Test
+	public void testAdd_other_channel() throws Exception {
+		SendBatcher sendBatcher = new SendBatcher(clientHandler, timer, 100, 64 * 1024, LONG_LINGER_TIME);
+		sendBatcher.add(channel, new SendFrame(TOPIC, "1"), null);
+
+		sendBatcher.add(createChannel(), new SendFrame(TOPIC, "2"), null);
+
+		assertEquals(1, writtenBatches.size());
+	}
+
+	@Test
+	public void testAdd_receipt_per_frame() throws Exception {
+		SendBatcher sendBatcher = new SendBatcher(clientHandler, timer, 3, 64 * 1024, LONG_LINGER_TIME);
+		SendFrame firstFrame = new SendFrame(TOPIC, "1");
+		SendFrame secondFrame = new SendFrame(TOPIC, "2");
+		SendFrame thirdFrame = new SendFrame(TOPIC, "3");
+		StompFuture<Void> firstFuture = new StompFuture<Void>();
+		StompFuture<Void> thirdFuture = new StompFuture<Void>();
+
+		sendBatcher.add(channel, firstFrame, firstFuture);
+		sendBatcher.add(channel, secondFrame, null);
+		sendBatcher.add(channel, thirdFrame, thirdFuture);
+
+		String[] writtenFrames = writtenBatches.get(0).split("\0");
+		assertTrue(writtenFrames[0].contains(HEADER_RECEIPT_ID_REQUEST + ":"));
+		assertFalse(writtenFrames[1].contains(HEADER_RECEIPT_ID_REQUEST + ":"));
+		assertTrue(writtenFrames[2].contains(HEADER_RECEIPT_ID_REQUEST + ":"));
+
+		// Receipts may come back in any order, each one only confirms its own frame
+		ReceiptTracker receiptTracker = clientHandler.getReceiptTracker();
+		receiptTracker.receiptReceived(thirdFrame.getHeaderValue(HEADER_RECEIPT_ID_REQUEST));
+		assertTrue(thirdFuture.isSuccess());
+		assertFalse(firstFuture.isDone());
+
+		receiptTracker.receiptReceived(firstFrame.getHeaderValue(HEADER_RECEIPT_ID_REQUEST));
+		assertTrue(firstFuture.isSuccess());
+	}
+
+	@Test
+	public void testFlush_write_failed() throws Exception {
+		final IOException cause = new IOException("Connection reset");
+		Channel failingChannel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+				new Class<?>[] { Channel.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("write"))
+							return Channels.failedFuture((Channel) proxy, cause);
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+		SendBatcher sendBatcher = new SendBatcher(clientHandler, timer, 2, 64 * 1024, LONG_LINGER_TIME);
+		StompFuture<Void> firstFuture = new StompFuture<Void>();
+		StompFuture<Void> secondFuture = new StompFuture<Void>();
+
+		sendBatcher.add(failingChannel, new SendFrame(TOPIC, "1"), firstFuture);
+		sendBatcher.add(failingChannel, new SendFrame(TOPIC, "2"), secondFuture);
+
+		assertEquals(cause, firstFuture.getCause());
+		assertEquals(cause, secondFuture.getCause());
+		assertEquals(0, clientHandler.getReceiptTracker().size());
+	}
+
+	@Test
+	public void testFlush_empty() throws Exception {
+		SendBatcher sendBatcher = new SendBatcher(clientHandler, timer, 3, 64 * 1024, LONG_LINGER_TIME);
+
+		sendBatcher.flush();
+
+		assertTrue(writtenBatches.isEmpty());
+	}
+
+	@Test
+	public void testDiscard() throws Exception {
+		SendBatcher sendBatcher = new SendBatcher(clientHandler, timer, 3, 64 * 1024, LONG_LINGER_TIME);
+		StompFuture<Void> receiptFuture = new StompFuture<Void>();
+		ChannelFuture writeFuture = sendBatcher.add(channel, new SendFrame(TOPIC, "1"), receiptFuture);
+		IOException cause = new IOException("Connection closed");
+
+		sendBatcher.discard(cause);
+		sendBatcher.flush();
+
+		assertTrue(writtenBatches.isEmpty());
+		assertEquals(cause, writeFuture.getCause());
+		assertEquals(cause, receiptFuture.getCause());
+	}
+}
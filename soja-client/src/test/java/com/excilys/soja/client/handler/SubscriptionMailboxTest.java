@@ -0,0 +1,206 @@
+package com.excilys.soja.client.handler;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.excilys.soja.client.events.StompTopicListener;
+import com.excilys.soja.client.model.Subscription;
+import com.excilys.soja.core.model.Ack;
+import com.excilys.soja.core.model.frame.MessageFrame;
+
+public class SubscriptionMailboxTest {
+
+	private static final String TOPIC = "/topic";
+	private static final int CAPACITY = 4;
+
+	private final List<Boolean> readableCalls = new ArrayList<Boolean>();
+	private final List<String> receivedMessages = new ArrayList<String>();
+	private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+	private final Executor executor = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+		}
+	};
+	private final StompTopicListener topicListener = new StompTopicListener() {
+		@Override
+		public void receivedMessage(String message, Map<String, String> userHeaders) {
+			receivedMessages.add(message);
+		}
+	};
+
+	private final List<Integer> sizesWhenReadableSet = new ArrayList<Integer>();
+	private SubscriptionMailbox observedMailbox;
+	private HashedWheelTimer timer;
+	private ClientHandler clientHandler;
+	private Channel channel;
+
+	@Before
+	public void setUp() throws Exception {
+		timer = new HashedWheelTimer();
+		clientHandler = new ClientHandler(timer);
+		channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("hashCode"))
+							return System.identityHashCode(proxy);
+						if (name.equals("equals"))
+							return proxy == args[0];
+						if (name.equals("isOpen"))
+							return true;
+						if (name.equals("setReadable")) {
+							readableCalls.add((Boolean) args[0]);
+							if (observedMailbox != null) {
+								sizesWhenReadableSet.add(observedMailbox.getSize());
+							}
+							return null;
+						}
+						throw new UnsupportedOperationException(name);
+					}
+				});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		timer.stop();
+	}
+
+	private Subscription createSubscription(long id) {
+		SubscriptionMailbox mailbox = new SubscriptionMailbox(clientHandler, TOPIC, executor, CAPACITY);
+		return new Subscription(id, Ack.AUTO, 0, TOPIC, topicListener, mailbox);
+	}
+
+	private void offer(Subscription subscription, int count) {
+		for (int i = 0; i < count; i++) {
+			MessageFrame frame = new MessageFrame(TOPIC, String.valueOf(i), subscription.getId().toString());
+			subscription.getMailbox().offer(channel, subscription, frame);
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructor_capacity_zero() throws Exception {
+		new SubscriptionMailbox(clientHandler, TOPIC, executor, 0);
+	}
+
+	@Test
+	public void testOffer_single_task() throws Exception {
+		Subscription subscription = createSubscription(1);
+
+		offer(subscription, 3);
+
+		assertEquals(1, tasks.size());
+		assertEquals(3, subscription.getMailbox().getSize());
+		runTasks();
+		assertEquals(0, subscription.getMailbox().getSize());
+		assertEquals(3, receivedMessages.size());
+		assertEquals("0", receivedMessages.get(0));
+		assertEquals("2", receivedMessages.get(2));
+	}
+
+	@Test
+	public void testOffer_suspend_at_capacity() throws Exception {
+		Subscription subscription = createSubscription(1);
+
+		offer(subscription, CAPACITY - 1);
+		assertTrue(readableCalls.isEmpty());
+
+		offer(subscription, 2);
+		assertEquals(1, readableCalls.size());
+		assertFalse(readableCalls.get(0));
+	}
+
+	@Test
+	public void testRun_resume_at_half_capacity() throws Exception {
+		Subscription subscription = createSubscription(1);
+		observedMailbox = subscription.getMailbox();
+		offer(subscription, CAPACITY);
+		assertEquals(CAPACITY, sizesWhenReadableSet.get(0).intValue());
+
+		runTasks();
+
+		assertEquals(CAPACITY, receivedMessages.size());
+		assertEquals(2, readableCalls.size());
+		assertTrue(readableCalls.get(1));
+		assertEquals(CAPACITY / 2, sizesWhenReadableSet.get(1).intValue());
+	}
+
+	@Test
+	public void testRun_resume_once_all_mailboxes_caught_up() throws Exception {
+		Subscription subscription1 = createSubscription(1);
+		Subscription subscription2 = createSubscription(2);
+		offer(subscription1, CAPACITY);
+		offer(subscription2, CAPACITY);
+		assertEquals(1, readableCalls.size());
+
+		tasks.poll().run();
+		assertEquals(1, readableCalls.size());
+
+		tasks.poll().run();
+		assertEquals(2, readableCalls.size());
+		assertTrue(readableCalls.get(1));
+	}
+
+	@Test
+	public void testOffer_executor_rejects() throws Exception {
+		Executor rejectingExecutor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException("Executor shut down");
+			}
+		};
+		SubscriptionMailbox mailbox = new SubscriptionMailbox(clientHandler, TOPIC, rejectingExecutor, CAPACITY);
+		Subscription subscription = new Subscription(1L, Ack.AUTO, 0, TOPIC, topicListener, mailbox);
+
+		offer(subscription, CAPACITY);
+
+		// The messages are delivered by the caller instead of filling the mailbox up and suspending the reads forever
+		assertEquals(CAPACITY, receivedMessages.size());
+		assertEquals(0, mailbox.getSize());
+		assertTrue(readableCalls.isEmpty());
+	}
+
+	@Test
+	public void testResetReading() throws Exception {
+		Subscription subscription = createSubscription(1);
+		offer(subscription, CAPACITY);
+		assertEquals(1, readableCalls.size());
+
+		// The subscription isn't registered in the handler, its mailbox is reset as the handler would do
+		clientHandler.resetReading();
+		subscription.getMailbox().connectionLost();
+		runTasks();
+
+		// The closed connection isn't resumed, and a full mailbox suspends the next one again
+		assertEquals(1, readableCalls.size());
+		offer(subscription, CAPACITY);
+		assertEquals(2, readableCalls.size());
+		assertFalse(readableCalls.get(1));
+	}
+}
@@ -0,0 +1,95 @@
+package com.excilys.soja.client.model;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.excilys.soja.core.model.Header;
+
+public class HeaderViewTest {
+
+	private static final String[] HIDDEN_KEYS = new String[] { Header.HEADER_DESTINATION, Header.HEADER_MESSAGE_ID };
+
+	private Header header;
+	private HeaderView headerView;
+
+	@Before
+	public void setUp() throws Exception {
+		header = new Header();
+		header.set(Header.HEADER_DESTINATION, "/topic").set(Header.HEADER_MESSAGE_ID, "message-1").set("user", "value");
+		headerView = new HeaderView(header, HIDDEN_KEYS);
+	}
+
+	@Test
+	public void testGet() throws Exception {
+		assertEquals("value", headerView.get("user"));
+		assertNull(headerView.get(Header.HEADER_DESTINATION));
+		assertNull(headerView.get("unknown"));
+	}
+
+	@Test
+	public void testContainsKey() throws Exception {
+		assertTrue(headerView.containsKey("user"));
+		assertFalse(headerView.containsKey(Header.HEADER_MESSAGE_ID));
+		assertFalse(headerView.containsKey("unknown"));
+	}
+
+	@Test
+	public void testSize() throws Exception {
+		assertEquals(1, headerView.size());
+		assertFalse(headerView.isEmpty());
+	}
+
+	@Test
+	public void testEquals() throws Exception {
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put("user", "value");
+
+		assertEquals(expected, headerView);
+	}
+
+	@Test
+	public void testIterator() throws Exception {
+		Iterator<Entry<String, String>> iterator = headerView.entrySet().iterator();
+
+		assertTrue(iterator.hasNext());
+		Entry<String, String> entry = iterator.next();
+		assertEquals("user", entry.getKey());
+		assertEquals("value", entry.getValue());
+		assertFalse(iterator.hasNext());
+	}
+
+	@Test
+	public void testView_follows_header() throws Exception {
+		header.put("other", "value");
+
+		assertEquals(2, headerView.size());
+		assertEquals("value", headerView.get("other"));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testPut() throws Exception {
+		headerView.put("user", "other");
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testEntry_setValue() throws Exception {
+		headerView.entrySet().iterator().next().setValue("other");
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testIterator_remove() throws Exception {
+		Iterator<Entry<String, String>> iterator = headerView.entrySet().iterator();
+		iterator.next();
+		iterator.remove();
+	}
+}
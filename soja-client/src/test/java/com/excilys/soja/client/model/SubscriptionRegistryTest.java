@@ -0,0 +1,114 @@
+package com.excilys.soja.client.model;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.excilys.soja.core.model.Ack;
+
+public class SubscriptionRegistryTest {
+
+	private static final String TOPIC = "/topic";
+	private static final String OTHER_TOPIC = "/other";
+	// Both ids have the same hash, so the second one is stored further in the probe sequence of the first one
+	private static final long ID = 1L;
+	private static final long COLLIDING_ID = 1L << 32;
+
+	private final SubscriptionRegistry registry = new SubscriptionRegistry();
+
+	@Test
+	public void testGet_empty() throws Exception {
+		assertNull(registry.get(ID));
+		assertEquals(0, registry.getByTopic(TOPIC).length);
+		assertEquals(0, registry.size());
+	}
+
+	@Test
+	public void testPut() throws Exception {
+		Subscription subscription = new Subscription(ID, Ack.AUTO, TOPIC, null);
+
+		registry.put(subscription);
+
+		assertSame(subscription, registry.get(ID));
+		assertEquals(1, registry.getByTopic(TOPIC).length);
+		assertSame(subscription, registry.getByTopic(TOPIC)[0]);
+		assertEquals(0, registry.getByTopic(OTHER_TOPIC).length);
+	}
+
+	@Test
+	public void testPut_replace() throws Exception {
+		Subscription subscription = new Subscription(ID, Ack.AUTO, TOPIC, null);
+		Subscription newSubscription = new Subscription(ID, Ack.CLIENT, OTHER_TOPIC, null);
+		registry.put(subscription);
+
+		registry.put(newSubscription);
+
+		assertEquals(1, registry.size());
+		assertSame(newSubscription, registry.get(ID));
+		assertEquals(0, registry.getByTopic(TOPIC).length);
+		assertSame(newSubscription, registry.getByTopic(OTHER_TOPIC)[0]);
+	}
+
+	@Test
+	public void testPut_colliding_ids() throws Exception {
+		Subscription subscription = new Subscription(ID, Ack.AUTO, TOPIC, null);
+		Subscription collidingSubscription = new Subscription(COLLIDING_ID, Ack.AUTO, TOPIC, null);
+
+		registry.put(subscription);
+		registry.put(collidingSubscription);
+
+		assertSame(subscription, registry.get(ID));
+		assertSame(collidingSubscription, registry.get(COLLIDING_ID));
+		assertNull(registry.get(2L << 32));
+		assertEquals(2, registry.getByTopic(TOPIC).length);
+	}
+
+	@Test
+	public void testPut_many() throws Exception {
+		for (long id = 0; id < 1000; id++) {
+			registry.put(new Subscription(id, Ack.AUTO, TOPIC, null));
+		}
+
+		assertEquals(1000, registry.size());
+		for (long id = 0; id < 1000; id++) {
+			assertEquals(Long.valueOf(id), registry.get(id).getId());
+		}
+		assertNull(registry.get(1000));
+	}
+
+	@Test
+	public void testRemove_not_found() throws Exception {
+		registry.put(new Subscription(ID, Ack.AUTO, TOPIC, null));
+
+		assertNull(registry.remove(COLLIDING_ID));
+		assertEquals(1, registry.size());
+	}
+
+	@Test
+	public void testRemove_first_of_colliding_ids() throws Exception {
+		Subscription subscription = new Subscription(ID, Ack.AUTO, TOPIC, null);
+		Subscription collidingSubscription = new Subscription(COLLIDING_ID, Ack.AUTO, TOPIC, null);
+		registry.put(subscription);
+		registry.put(collidingSubscription);
+
+		assertSame(subscription, registry.remove(ID));
+
+		assertNull(registry.get(ID));
+		assertSame(collidingSubscription, registry.get(COLLIDING_ID));
+		assertEquals(1, registry.getByTopic(TOPIC).length);
+		assertEquals(1, registry.values().size());
+	}
+
+	@Test
+	public void testRemove_last() throws Exception {
+		registry.put(new Subscription(ID, Ack.AUTO, TOPIC, null));
+
+		registry.remove(ID);
+
+		assertNull(registry.get(ID));
+		assertEquals(0, registry.getByTopic(TOPIC).length);
+		assertEquals(0, registry.size());
+	}
+}
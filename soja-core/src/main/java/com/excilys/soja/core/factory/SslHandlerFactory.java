@@ -0,0 +1,247 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.core.factory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.jboss.netty.handler.ssl.SslHandler;
+
+/**
+ * Create the {@link SslHandler} of each connection, all sharing the same {@link SSLContext}, so they share its TLS
+ * session cache : a client reconnecting to the same server resumes its previous session instead of doing a full
+ * handshake. Session tickets are used when the JVM supports them, otherwise sessions are resumed from the server cache,
+ * sized by {@link #setSessionCacheSize(int)}.
+ * <p/>
+ * The CPU intensive tasks of the handshakes (key exchange, certificate checks) can be run by a separate executor, so
+ * a burst of handshakes doesn't delay the frames of the connected clients.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class SslHandlerFactory {
+
+	public static final int DEFAULT_SESSION_CACHE_SIZE = 20000;
+	public static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;
+
+	private final SSLContext sslContext;
+	private final boolean clientMode;
+	private String[] enabledCipherSuites;
+	private String[] enabledProtocols;
+	private boolean needClientAuth = false;
+	private Executor handshakeExecutor;
+
+	/**
+	 * @param sslContext
+	 *            the context creating the engines, with its key and trust managers initialized
+	 * @param clientMode
+	 *            true to create handlers for the client side of connections
+	 */
+	public SslHandlerFactory(SSLContext sslContext, boolean clientMode) {
+		this.sslContext = sslContext;
+		this.clientMode = clientMode;
+		setSessionCacheSize(DEFAULT_SESSION_CACHE_SIZE);
+		setSessionTimeout(DEFAULT_SESSION_TIMEOUT);
+	}
+
+	/**
+	 * Create an {@link SSLContext} from key and trust stores
+	 * 
+	 * @param keyStore
+	 *            the store containing the key and certificate of this side, or null if it doesn't have to be
+	 *            authenticated
+	 * @param keyPassword
+	 * @param trustStore
+	 *            the store containing the certificates trusted to authenticate the other side, or null to use the
+	 *            default ones of the JVM
+	 * @return a new initialized context
+	 * @throws GeneralSecurityException
+	 */
+	public static SSLContext createContext(KeyStore keyStore, char[] keyPassword, KeyStore trustStore)
+			throws GeneralSecurityException {
+		KeyManagerFactory keyManagerFactory = null;
+		if (keyStore != null) {
+			keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagerFactory.init(keyStore, keyPassword);
+		}
+
+		TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory
+				.getDefaultAlgorithm());
+		trustManagerFactory.init(trustStore);
+
+		SSLContext sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(keyManagerFactory == null ? null : keyManagerFactory.getKeyManagers(),
+				trustManagerFactory.getTrustManagers(), null);
+		return sslContext;
+	}
+
+	/**
+	 * Load a JKS key store from a file
+	 * 
+	 * @param fileName
+	 * @param password
+	 * @return the loaded key store
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public static KeyStore loadKeyStore(String fileName, char[] password) throws IOException,
+			GeneralSecurityException {
+		InputStream inputStream = new FileInputStream(fileName);
+		try {
+			return loadKeyStore(inputStream, password);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Load a JKS key store from a stream
+	 * 
+	 * @param inputStream
+	 * @param password
+	 * @return the loaded key store
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public static KeyStore loadKeyStore(InputStream inputStream, char[] password) throws IOException,
+			GeneralSecurityException {
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		keyStore.load(inputStream, password);
+		return keyStore;
+	}
+
+	/**
+	 * Create the handler of a new connection
+	 * 
+	 * @param peerHost
+	 *            the host of the other side, used by clients to find the session to resume. Null on server side
+	 * @param peerPort
+	 * @return a new handler
+	 */
+	public SslHandler newHandler(String peerHost, int peerPort) {
+		SSLEngine engine = peerHost == null ? sslContext.createSSLEngine() : sslContext.createSSLEngine(peerHost,
+				peerPort);
+		engine.setUseClientMode(clientMode);
+		if (!clientMode) {
+			engine.setNeedClientAuth(needClientAuth);
+		}
+		if (enabledCipherSuites != null) {
+			engine.setEnabledCipherSuites(enabledCipherSuites);
+		}
+		if (enabledProtocols != null) {
+			engine.setEnabledProtocols(enabledProtocols);
+		}
+
+		if (handshakeExecutor == null)
+			return new SslHandler(engine);
+		return new SslHandler(engine, handshakeExecutor);
+	}
+
+	private SSLSessionContext getSessionContext() {
+		return clientMode ? sslContext.getClientSessionContext() : sslContext.getServerSessionContext();
+	}
+
+	public SSLContext getSslContext() {
+		return sslContext;
+	}
+
+	public boolean isClientMode() {
+		return clientMode;
+	}
+
+	public int getSessionCacheSize() {
+		return getSessionContext().getSessionCacheSize();
+	}
+
+	/**
+	 * @param sessionCacheSize
+	 *            maximum number of sessions kept to be resumed, 0 means no limit
+	 */
+	public void setSessionCacheSize(int sessionCacheSize) {
+		getSessionContext().setSessionCacheSize(sessionCacheSize);
+	}
+
+	public int getSessionTimeout() {
+		return getSessionContext().getSessionTimeout();
+	}
+
+	/**
+	 * @param sessionTimeout
+	 *            number of seconds a session can be resumed after it has been created, 0 means no limit
+	 */
+	public void setSessionTimeout(int sessionTimeout) {
+		getSessionContext().setSessionTimeout(sessionTimeout);
+	}
+
+	public String[] getEnabledCipherSuites() {
+		return enabledCipherSuites;
+	}
+
+	/**
+	 * @param enabledCipherSuites
+	 *            the cipher suites allowed, or null to use the default ones of the JVM
+	 */
+	public void setEnabledCipherSuites(String[] enabledCipherSuites) {
+		this.enabledCipherSuites = enabledCipherSuites;
+	}
+
+	public String[] getEnabledProtocols() {
+		return enabledProtocols;
+	}
+
+	/**
+	 * @param enabledProtocols
+	 *            the protocol versions allowed, or null to use the default ones of the JVM
+	 */
+	public void setEnabledProtocols(String[] enabledProtocols) {
+		this.enabledProtocols = enabledProtocols;
+	}
+
+	public boolean isNeedClientAuth() {
+		return needClientAuth;
+	}
+
+	/**
+	 * @param needClientAuth
+	 *            true if the server requires the clients to be authenticated by a certificate
+	 */
+	public void setNeedClientAuth(boolean needClientAuth) {
+		this.needClientAuth = needClientAuth;
+	}
+
+	public Executor getHandshakeExecutor() {
+		return handshakeExecutor;
+	}
+
+	/**
+	 * @param handshakeExecutor
+	 *            the executor running the delegated tasks of the handshakes, or null to run them in the I/O threads
+	 */
+	public void setHandshakeExecutor(Executor handshakeExecutor) {
+		this.handshakeExecutor = handshakeExecutor;
+	}
+
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.core.future;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Result of an asynchronous operation, completed once with a value or a failure. Listeners are notified in the thread
+ * completing the future, or immediately if the future is already done when they are added.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class StompFuture<V> implements Future<V> {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StompFuture.class);
+
+	private List<StompFutureListener<V>> listeners = new ArrayList<StompFutureListener<V>>(1);
+	private boolean done = false;
+	private V value;
+	private Throwable cause;
+
+	/**
+	 * @param value
+	 * @return a future already completed with this value
+	 */
+	public static <V> StompFuture<V> succeededFuture(V value) {
+		StompFuture<V> future = new StompFuture<V>();
+		future.setSuccess(value);
+		return future;
+	}
+
+	/**
+	 * @param cause
+	 * @return a future already failed with this cause
+	 */
+	public static <V> StompFuture<V> failedFuture(Throwable cause) {
+		StompFuture<V> future = new StompFuture<V>();
+		future.setFailure(cause);
+		return future;
+	}
+
+	/**
+	 * Complete the future with a value and notify the listeners.
+	 * 
+	 * @param value
+	 * @return false if the future was already done
+	 */
+	public boolean setSuccess(V value) {
+		return complete(value, null);
+	}
+
+	/**
+	 * Fail the future and notify the listeners.
+	 * 
+	 * @param cause
+	 * @return false if the future was already done
+	 */
+	public boolean setFailure(Throwable cause) {
+		if (cause == null)
+			throw new NullPointerException("cause can't be null");
+		return complete(null, cause);
+	}
+
+	private boolean complete(V value, Throwable cause) {
+		List<StompFutureListener<V>> listenersToNotify;
+		synchronized (this) {
+			if (done)
+				return false;
+			this.done = true;
+			this.value = value;
+			this.cause = cause;
+			listenersToNotify = listeners;
+			listeners = null;
+			notifyAll();
+		}
+
+		for (StompFutureListener<V> listener : listenersToNotify) {
+			notifyListener(listener);
+		}
+		return true;
+	}
+
+	/**
+	 * Add a listener notified when the future is done. If it's already done, the listener is notified immediately.
+	 * 
+	 * @param listener
+	 */
+	public void addListener(StompFutureListener<V> listener) {
+		synchronized (this) {
+			if (!done) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		notifyListener(listener);
+	}
+
+	private void notifyListener(StompFutureListener<V> listener) {
+		try {
+			listener.operationComplete(this);
+		} catch (Exception e) {
+			LOGGER.warn("Future listener " + listener + " threw an exception", e);
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return setFailure(new CancellationException());
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cause instanceof CancellationException;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * @return true if the future has been completed with a value
+	 */
+	public synchronized boolean isSuccess() {
+		return done && cause == null;
+	}
+
+	/**
+	 * @return the cause of the failure, or null if the future is not done or succeeded
+	 */
+	public synchronized Throwable getCause() {
+		return cause;
+	}
+
+	/**
+	 * @return the value of the future, or null if it is not done or failed
+	 */
+	public synchronized V getNow() {
+		return value;
+	}
+
+	@Override
+	public synchronized V get() throws InterruptedException, ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return getValue();
+	}
+
+	@Override
+	public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		if (!await(unit.toMillis(timeout)))
+			throw new TimeoutException();
+		return getValue();
+	}
+
+	/**
+	 * Wait for the future to be done.
+	 * 
+	 * @param timeoutMillis
+	 * @return true if the future is done
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long remaining = timeoutMillis;
+		while (!done && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return done;
+	}
+
+	/**
+	 * Wait for the future to be done, without being interrupted.
+	 * 
+	 * @param timeoutMillis
+	 * @return true if the future is done
+	 */
+	public boolean awaitUninterruptibly(long timeoutMillis) {
+		boolean interrupted = false;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		try {
+			while (true) {
+				try {
+					return await(Math.max(0, deadline - System.currentTimeMillis()));
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private V getValue() throws ExecutionException {
+		if (cause instanceof CancellationException)
+			throw (CancellationException) cause;
+		if (cause != null)
+			throw new ExecutionException(cause);
+		return value;
+	}
+
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.core.future;
+
+/**
+ * Listen to the completion of a {@link StompFuture}
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public interface StompFutureListener<V> {
+
+	/**
+	 * Called once the future is done, successfully or not.
+	 * 
+	 * @param future
+	 * @throws Exception
+	 */
+	void operationComplete(StompFuture<V> future) throws Exception;
+
+}
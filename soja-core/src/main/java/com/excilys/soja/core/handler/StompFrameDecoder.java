@@ -90,23 +90,22 @@ public class StompFrameDecoder extends ReplayingDecoder<VoidEnum> {
 		}
 		buffer.readByte();
 
-		// BODY
+		// BODY : kept as raw bytes, it's decoded only if it's read as a string
 		if (isExpectedBody(currentFrame.getCommand())) {
-			String body = null;
-
 			String contentLengthString = currentFrame.getHeaderValue(Header.HEADER_CONTENT_LENGTH);
+			int contentLength;
 			if (contentLengthString != null && Long.parseLong(contentLengthString) > 0) {
-				int contentLength = Integer.parseInt(contentLengthString);
-
-				body = readString(buffer, contentLength);
-				buffer.readByte();
+				contentLength = Integer.parseInt(contentLengthString);
 			} else {
-				body = readString(buffer, Frame.EOL_FRAME);
+				contentLength = buffer.bytesBefore((byte) Frame.EOL_FRAME);
 			}
 
-			if (body != null && !body.isEmpty()) {
-				currentFrame.setBody(body);
+			if (contentLength > 0) {
+				byte[] body = new byte[contentLength];
+				buffer.readBytes(body);
+				currentFrame.setBodyBytes(body);
 			}
+			buffer.readByte(); // NULL at end of frame
 		} else {
 			buffer.readByte(); // NULL at end of frame
 		}
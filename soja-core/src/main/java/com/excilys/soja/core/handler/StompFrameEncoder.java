@@ -15,15 +15,16 @@
  */
 package com.excilys.soja.core.handler;
 
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
+import org.jboss.netty.util.CharsetUtil;
 
 import com.excilys.soja.core.model.Frame;
 import com.excilys.soja.core.model.Header;
@@ -44,7 +45,22 @@ public class StompFrameEncoder extends OneToOneEncoder {
 		}
 
 		Frame frame = (Frame) msg;
+		byte[] bodyBytes = frame.getBodyBytes();
 
+		ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(64 + (bodyBytes != null ? bodyBytes.length : 0));
+		writeFrame(frame, bodyBytes, buffer);
+		return buffer;
+	}
+
+	/**
+	 * Write a frame at the end of a buffer, so several frames can be written at once.
+	 * 
+	 * @param frame
+	 * @param bodyBytes
+	 *            the body of the frame, already encoded in UTF-8 or null if it has no body
+	 * @param buffer
+	 */
+	public static void writeFrame(Frame frame, byte[] bodyBytes, ChannelBuffer buffer) {
 		// COMMAND
 		StringBuilder formatedFrame = new StringBuilder();
 		String command = frame.getCommand();
@@ -70,17 +86,14 @@ public class StompFrameEncoder extends OneToOneEncoder {
 			}
 		}
 		formatedFrame.append(Frame.EOL_HEADERS);
+		buffer.writeBytes(formatedFrame.toString().getBytes(CharsetUtil.UTF_8));
 
 		// BODY
-		String body = frame.getBody();
-		if (body != null && body.length() > 0) {
-			formatedFrame.append(body);
+		if (bodyBytes != null) {
+			buffer.writeBytes(bodyBytes);
 		}
 
-		formatedFrame.append(Frame.EOL_FRAME);
-		String frameString = formatedFrame.toString();
-
-		return ChannelBuffers.copiedBuffer((String) frameString, Charset.forName("UTF-8"));
+		buffer.writeByte(Frame.EOL_FRAME);
 	}
 
 	public static String escapeHeader(String headerValue) {
@@ -16,20 +16,27 @@
 package com.excilys.soja.core.handler;
 
 import java.net.SocketException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.excilys.soja.core.model.Frame;
 import com.excilys.soja.core.model.Header;
-import com.excilys.soja.core.model.frame.HeartBeatFrame;
 
 /**
  * @author dvilleneuve
@@ -39,16 +46,58 @@ public abstract class StompHandler extends SimpleChannelHandler {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(StompHandler.class);
 
+	public static final double DEFAULT_HEART_BEAT_TOLERANCE = 1.5;
+	private static final ChannelBuffer HEART_BEAT_BUFFER = ChannelBuffers.unmodifiableBuffer(ChannelBuffers
+			.wrappedBuffer(new byte[] { '\n' }));
+
+	private final Timer timer;
+	private final ChannelLocal<HeartBeatState> heartBeatStates = new ChannelLocal<HeartBeatState>(true);
+	private final ChannelLocal<HeartBeatMonitor> heartBeatMonitors = new ChannelLocal<HeartBeatMonitor>(true);
+	private final AtomicLong heartBeatEvictionCount = new AtomicLong();
 	private long localGuaranteedHeartBeat;
 	private long localExpectedHeartBeat;
-	private Timer localHeartBeartTimer;
+	private double heartBeatTolerance = DEFAULT_HEART_BEAT_TOLERANCE;
+
+	/**
+	 * @param timer
+	 *            timer shared by all the channels of this handler, used to schedule their heart-beats
+	 */
+	public StompHandler(Timer timer) {
+		this.timer = timer;
+	}
 
 	@Override
 	public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
 		super.channelDisconnected(ctx, e);
-		if (localHeartBeartTimer != null) {
-			localHeartBeartTimer.cancel();
+		HeartBeatState heartBeatState = heartBeatStates.remove(ctx.getChannel());
+		if (heartBeatState != null) {
+			heartBeatState.cancel();
+		}
+		HeartBeatMonitor heartBeatMonitor = heartBeatMonitors.remove(ctx.getChannel());
+		if (heartBeatMonitor != null) {
+			heartBeatMonitor.cancel();
+		}
+	}
+
+	@Override
+	public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+		// Any frame received from the remote proves it's alive, not only heart-beats
+		if (e instanceof MessageEvent) {
+			HeartBeatMonitor heartBeatMonitor = heartBeatMonitors.get(ctx.getChannel());
+			if (heartBeatMonitor != null) {
+				heartBeatMonitor.lastReadTime = System.nanoTime();
+			}
+		}
+		super.handleUpstream(ctx, e);
+	}
+
+	@Override
+	public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		HeartBeatState heartBeatState = heartBeatStates.get(ctx.getChannel());
+		if (heartBeatState != null) {
+			heartBeatState.lastWriteTime = System.nanoTime();
 		}
+		super.writeRequested(ctx, e);
 	}
 
 	/**
@@ -57,7 +106,7 @@ public abstract class StompHandler extends SimpleChannelHandler {
 	 * @param frame
 	 */
 	public void handleHeartBeat(final Channel channel, Frame frame) {
-		// TODO: manage heart-beat
+		LOGGER.trace("Heart-beat received from {}", channel.getRemoteAddress());
 	}
 
 	/**
@@ -79,10 +128,13 @@ public abstract class StompHandler extends SimpleChannelHandler {
 	}
 
 	/**
-	 * Start a scheduler for the heart-beating system.
+	 * Start sending heart-beats to the remote if both parts agreed on it. Heart-beats are scheduled on the shared timer
+	 * and skipped when another frame has been written during the interval.
 	 * 
 	 * @param channel
-	 * @param remoteExpectedHeartBeat
+	 * @param frame
+	 *            the CONNECT or CONNECTED frame received from the remote
+	 * @return true if heart-beats will be sent
 	 */
 	public boolean startLocalHeartBeat(final Channel channel, final Frame frame) {
 		String heartBeatString = frame.getHeaderValue(Header.HEADER_HEART_BEAT);
@@ -96,20 +148,48 @@ public abstract class StompHandler extends SimpleChannelHandler {
 				if (localGuaranteedHeartBeat != 0 && remoteExpectedHeartBeat != 0) {
 					long heartBeatInterval = Math.max(localGuaranteedHeartBeat, remoteExpectedHeartBeat);
 
-					// Launch a scheduler
-					localHeartBeartTimer = new Timer("Heart-beating");
-					localHeartBeartTimer.scheduleAtFixedRate(new TimerTask() {
-						@Override
-						public void run() {
-							try {
-								// TODO: Send an empty stream instead of a fake frame
-								sendFrame(channel, new HeartBeatFrame());
-							} catch (SocketException e) {
-								e.printStackTrace();
-							}
-						}
-					}, 0, heartBeatInterval);
+					HeartBeatState heartBeatState = new HeartBeatState(channel, heartBeatInterval);
+					HeartBeatState previousState = heartBeatStates.set(channel, heartBeatState);
+					if (previousState != null) {
+						previousState.cancel();
+					}
+					heartBeatState.schedule(heartBeatInterval);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
 
+	/**
+	 * Start checking the remote sends heart-beats if both parts agreed on it. If nothing is received from the remote
+	 * during the negotiated interval multiplied by the {@link #getHeartBeatTolerance()}, the connection is considered
+	 * dead and closed.
+	 * 
+	 * @param channel
+	 * @param frame
+	 *            the CONNECT or CONNECTED frame received from the remote
+	 * @return true if the remote heart-beats will be checked
+	 */
+	public boolean startRemoteHeartBeatMonitoring(final Channel channel, final Frame frame) {
+		String heartBeatString = frame.getHeaderValue(Header.HEADER_HEART_BEAT);
+		if (heartBeatString != null) {
+			String[] heartBeat = heartBeatString.split(",");
+			if (heartBeat.length == 2) {
+				long remoteGuaranteedHeartBeat = Long.parseLong(heartBeat[0]);
+
+				// Check it the remote can send heart-beats and if we are expecting some
+				if (localExpectedHeartBeat != 0 && remoteGuaranteedHeartBeat != 0) {
+					long heartBeatInterval = Math.max(localExpectedHeartBeat, remoteGuaranteedHeartBeat);
+					long heartBeatTimeout = (long) (heartBeatInterval * heartBeatTolerance);
+
+					HeartBeatMonitor heartBeatMonitor = new HeartBeatMonitor(channel, heartBeatInterval,
+							heartBeatTimeout);
+					HeartBeatMonitor previousMonitor = heartBeatMonitors.set(channel, heartBeatMonitor);
+					if (previousMonitor != null) {
+						previousMonitor.cancel();
+					}
+					heartBeatMonitor.schedule(heartBeatTimeout);
 					return true;
 				}
 			}
@@ -117,6 +197,24 @@ public abstract class StompHandler extends SimpleChannelHandler {
 		return false;
 	}
 
+	/**
+	 * @param channel
+	 * @return the interval between the heart-beats sent to the remote of this channel, or 0 if none are sent
+	 */
+	public long getLocalHeartBeatInterval(Channel channel) {
+		HeartBeatState heartBeatState = heartBeatStates.get(channel);
+		return heartBeatState == null ? 0 : TimeUnit.NANOSECONDS.toMillis(heartBeatState.interval);
+	}
+
+	/**
+	 * @param channel
+	 * @return the interval between the heart-beats expected from the remote of this channel, or 0 if none are expected
+	 */
+	public long getRemoteHeartBeatInterval(Channel channel) {
+		HeartBeatMonitor heartBeatMonitor = heartBeatMonitors.get(channel);
+		return heartBeatMonitor == null ? 0 : heartBeatMonitor.interval;
+	}
+
 	public long getLocalGuaranteedHeartBeat() {
 		return localGuaranteedHeartBeat;
 	}
@@ -146,6 +244,134 @@ public abstract class StompHandler extends SimpleChannelHandler {
 		this.localExpectedHeartBeat = localExpectedHeartBeat;
 	}
 
+	public double getHeartBeatTolerance() {
+		return heartBeatTolerance;
+	}
+
+	/**
+	 * Set how late the remote heart-beats can be before the connection is closed
+	 * 
+	 * @param heartBeatTolerance
+	 *            factor applied to the negotiated heart-beat interval
+	 * @throws IllegalArgumentException
+	 *             if heartBeatTolerance is lower than 1
+	 */
+	public void setHeartBeatTolerance(double heartBeatTolerance) throws IllegalArgumentException {
+		if (heartBeatTolerance < 1)
+			throw new IllegalArgumentException("Heart-beat tolerance have to be greater or equal to 1");
+		this.heartBeatTolerance = heartBeatTolerance;
+	}
+
+	/**
+	 * @return the number of connections closed because the remote stopped sending heart-beats
+	 */
+	public long getHeartBeatEvictionCount() {
+		return heartBeatEvictionCount.get();
+	}
+
+	/**
+	 * Heart-beating state of a channel. The heart-beat task is rescheduled after each run, to fire one interval after
+	 * the last write.
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private class HeartBeatState implements TimerTask {
+
+		private final Channel channel;
+		private final long interval;
+		private volatile long lastWriteTime = System.nanoTime();
+		private volatile Timeout timeout;
+		private volatile boolean cancelled = false;
+
+		public HeartBeatState(Channel channel, long interval) {
+			this.channel = channel;
+			this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+		}
+
+		public void schedule(long delay) {
+			timeout = timer.newTimeout(this, delay, TimeUnit.MILLISECONDS);
+		}
+
+		public void cancel() {
+			cancelled = true;
+			Timeout currentTimeout = timeout;
+			if (currentTimeout != null) {
+				currentTimeout.cancel();
+			}
+		}
+
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			if (cancelled || !channel.isConnected())
+				return;
+
+			long idleTime = System.nanoTime() - lastWriteTime;
+			if (idleTime >= interval) {
+				LOGGER.trace("Sending heart-beat to {}", channel.getRemoteAddress());
+				channel.write(HEART_BEAT_BUFFER.duplicate());
+				idleTime = 0;
+			}
+			schedule(Math.max(1, TimeUnit.NANOSECONDS.toMillis(interval - idleTime)));
+		}
+	}
+
+	/**
+	 * Check the remote of a channel sent something during the heart-beat timeout, and close the channel if it didn't.
+	 * The check is rescheduled after each run, to fire one timeout after the last read.
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private class HeartBeatMonitor implements TimerTask {
+
+		private final Channel channel;
+		private final long interval;
+		private final long timeout;
+		private volatile long lastReadTime = System.nanoTime();
+		private volatile Timeout checkTimeout;
+		private volatile boolean cancelled = false;
+
+		public HeartBeatMonitor(Channel channel, long interval, long timeout) {
+			this.channel = channel;
+			this.interval = interval;
+			this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+		}
+
+		public void schedule(long delay) {
+			checkTimeout = timer.newTimeout(this, delay, TimeUnit.MILLISECONDS);
+		}
+
+		public void cancel() {
+			cancelled = true;
+			Timeout currentTimeout = checkTimeout;
+			if (currentTimeout != null) {
+				currentTimeout.cancel();
+			}
+		}
+
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			if (cancelled || !channel.isConnected())
+				return;
+
+			// Heart-beats can't be received while reading is suspended on purpose, the idle time starts once it resumes
+			if (!channel.isReadable()) {
+				lastReadTime = System.nanoTime();
+			}
+
+			long idleTime = System.nanoTime() - lastReadTime;
+			if (idleTime >= this.timeout) {
+				heartBeatEvictionCount.incrementAndGet();
+				LOGGER.info("Nothing received from {} for {} ms, closing the connection", channel.getRemoteAddress(),
+						TimeUnit.NANOSECONDS.toMillis(idleTime));
+				channel.close();
+				return;
+			}
+			schedule(Math.max(1, TimeUnit.NANOSECONDS.toMillis(this.timeout - idleTime)));
+		}
+	}
+
 	/**
 	 * Notify all listeners than a remote client has been fully connected
 	 * 
@@ -15,7 +15,12 @@
  */
 package com.excilys.soja.core.model;
 
+import org.jboss.netty.util.CharsetUtil;
+
 /**
+ * A STOMP frame. Its body is kept as it was given or read, as a string or as raw bytes, and converted in UTF-8 only
+ * when the other form is asked for.
+ * 
  * @author dvilleneuve
  * 
  */
@@ -46,7 +51,8 @@ public class Frame {
 
 	private String command;
 	private Header header = new Header();
-	private String body;
+	private volatile String body;
+	private volatile byte[] bodyBytes;
 
 	public Frame() {
 	}
@@ -88,20 +94,66 @@ public class Frame {
 		header.set(key, value);
 	}
 
+	/**
+	 * @return the body, decoded from UTF-8 if it was given as bytes, or null if the frame has no body
+	 */
 	public String getBody() {
-		return body;
+		String currentBody = body;
+		if (currentBody == null) {
+			byte[] currentBodyBytes = bodyBytes;
+			if (currentBodyBytes != null) {
+				currentBody = new String(currentBodyBytes, CharsetUtil.UTF_8);
+				body = currentBody;
+			}
+		}
+		return currentBody;
 	}
 
 	public void setBody(String body) {
+		this.bodyBytes = null;
 		this.body = body;
 	}
 
+	/**
+	 * @return the body as it is written on the wire, encoded in UTF-8 if it was given as a string, or null if the
+	 *         frame has no body. The array must not be modified
+	 */
+	public byte[] getBodyBytes() {
+		byte[] currentBodyBytes = bodyBytes;
+		if (currentBodyBytes == null) {
+			String currentBody = body;
+			if (currentBody != null) {
+				currentBodyBytes = currentBody.getBytes(CharsetUtil.UTF_8);
+				bodyBytes = currentBodyBytes;
+			}
+		}
+		return currentBodyBytes;
+	}
+
+	/**
+	 * @param bodyBytes
+	 *            the raw body, which is not copied
+	 */
+	public void setBodyBytes(byte[] bodyBytes) {
+		this.body = null;
+		this.bodyBytes = bodyBytes;
+	}
+
+	/**
+	 * @return the size of the body on the wire, in bytes
+	 */
+	public int getBodySize() {
+		byte[] currentBodyBytes = getBodyBytes();
+		return currentBodyBytes == null ? 0 : currentBodyBytes.length;
+	}
+
 	public boolean isCommand(String expectedCommand) {
 		return command.equalsIgnoreCase(expectedCommand);
 	}
 
 	@Override
 	public String toString() {
+		String body = getBody();
 		String formatedBody = (body != null && body.length() > 1000) ? body.substring(0, 1000) + "..." : body;
 		return getClass().getSimpleName() + " [command=" + command + ", header=" + header + ", body=" + formatedBody
 				+ "]";
@@ -111,6 +163,7 @@ public class Frame {
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
+		String body = getBody();
 		result = prime * result + ((body == null) ? 0 : body.hashCode());
 		result = prime * result + ((command == null) ? 0 : command.hashCode());
 		result = prime * result + ((header == null) ? 0 : header.hashCode());
@@ -126,10 +179,11 @@ public class Frame {
 		if (getClass() != obj.getClass())
 			return false;
 		Frame other = (Frame) obj;
+		String body = getBody();
 		if (body == null) {
-			if (other.body != null)
+			if (other.getBody() != null)
 				return false;
-		} else if (!body.equals(other.body))
+		} else if (!body.equals(other.getBody()))
 			return false;
 		if (command == null) {
 			if (other.command != null)
@@ -47,9 +47,15 @@ public class Header extends HashMap<String, String> {
 	public static final String HEADER_CONTENT_TYPE = "content-type";
 	public static final String HEADER_CONTENT_LENGTH = "content-length";
 	public static final String HEADER_TRANSACTION = "transaction";
+	public static final String HEADER_PERSISTENT = "persistent";
 	
 	public static final String HEADER_SUBSCRIPTION_ID = "id";
 	public static final String HEADER_SUBSCRIPTION = "subscription";
+	public static final String HEADER_PREFETCH_COUNT = "prefetch-count";
+	public static final String HEADER_PREFETCH_SIZE = "prefetch-size";
+
+	public static final String HEADER_REDELIVERY_COUNT = "redelivery-count";
+	public static final String HEADER_ORIGINAL_DESTINATION = "original-destination";
 
 	public Header() {
 	}
@@ -34,7 +34,7 @@ public class MessageFrame extends Frame {
 
 	public void setContentType(String contentType) {
 		setHeaderValue(Header.HEADER_CONTENT_TYPE, contentType);
-		setHeaderValue(Header.HEADER_CONTENT_LENGTH, String.valueOf(getBody().length()));
+		setHeaderValue(Header.HEADER_CONTENT_LENGTH, String.valueOf(getBodySize()));
 	}
 
 	public String getMessageId() {
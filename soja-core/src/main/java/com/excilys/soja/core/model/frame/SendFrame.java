@@ -30,11 +30,21 @@ public class SendFrame extends Frame {
 
 	public void setContentType(String contentType) {
 		setHeaderValue(Header.HEADER_CONTENT_TYPE, contentType);
-		setHeaderValue(Header.HEADER_CONTENT_LENGTH, String.valueOf(getBody().length()));
+		setHeaderValue(Header.HEADER_CONTENT_LENGTH, String.valueOf(getBodySize()));
 	}
 
 	public void setTransactionId(String transactionId) {
 		setHeaderValue(Header.HEADER_TRANSACTION, transactionId);
 	}
 
+	/**
+	 * Ask the server to write the message in its journal. If a receipt is requested, it will be sent once the message
+	 * is on the server's disk.
+	 * 
+	 * @param persistent
+	 */
+	public void setPersistent(boolean persistent) {
+		setHeaderValue(Header.HEADER_PERSISTENT, String.valueOf(persistent));
+	}
+
 }
@@ -32,10 +32,43 @@ public class SubscribeFrame extends Frame {
 				Header.HEADER_SUBSCRIPTION_ID, String.valueOf(subscribeCount++)), null);
 	}
 
+	/**
+	 * Subscribe again with the id of an existing subscription, e.g. after a reconnection
+	 * 
+	 * @param topic
+	 * @param subscriptionId
+	 */
+	public SubscribeFrame(String topic, long subscriptionId) {
+		super(Frame.COMMAND_SUBSCRIBE, new Header().set(Header.HEADER_DESTINATION, topic).set(
+				Header.HEADER_SUBSCRIPTION_ID, String.valueOf(subscriptionId)), null);
+	}
+
 	public void setAck(Ack ack) {
 		setHeaderValue(Header.HEADER_ACK, ack.toString());
 	}
 
+	/**
+	 * Limit the number of messages the server sends to this subscription without being acknowledged. Only used
+	 * with {@link Ack#CLIENT} and {@link Ack#CLIENT_INDIVIDUAL} modes.
+	 * 
+	 * @param prefetchCount
+	 *            maximum number of unacknowledged messages, 0 means no limit
+	 */
+	public void setPrefetchCount(int prefetchCount) {
+		setHeaderValue(Header.HEADER_PREFETCH_COUNT, String.valueOf(prefetchCount));
+	}
+
+	/**
+	 * Limit the size of the messages the server sends to this subscription without being acknowledged. Only used
+	 * with {@link Ack#CLIENT} and {@link Ack#CLIENT_INDIVIDUAL} modes.
+	 * 
+	 * @param prefetchSize
+	 *            maximum size of unacknowledged messages bodies, 0 means no limit
+	 */
+	public void setPrefetchSize(long prefetchSize) {
+		setHeaderValue(Header.HEADER_PREFETCH_SIZE, String.valueOf(prefetchSize));
+	}
+
 	public long getSubscriptionId() {
 		return Long.valueOf(getHeaderValue(Header.HEADER_SUBSCRIPTION_ID));
 	}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.core.utils;
+
+import java.util.Map.Entry;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+
+import com.excilys.soja.core.exception.ParseException;
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.core.model.Header;
+
+/**
+ * Binary representation of a frame, used to store it outside of the heap. Unlike the STOMP wire format, headers and
+ * body are length-prefixed so no escaping nor scanning is needed to read them back.
+ * <p/>
+ * A record is made of : the record length (int), the command, the number of headers (int), each header key and value,
+ * and the body. Strings are written as their UTF-8 length (int, -1 for null) followed by their UTF-8 bytes.
+ *
+ * @author dvilleneuve
+ *
+ */
+public class FrameSerializer {
+
+	private FrameSerializer() {
+	}
+
+	/**
+	 * Serialize a frame into a new buffer, record length included.
+	 *
+	 * @param frame
+	 * @return a buffer containing the whole record
+	 */
+	public static ChannelBuffer serialize(Frame frame) {
+		ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(estimateSize(frame));
+		buffer.writeInt(0); // Record length, written once the record is complete
+
+		writeString(buffer, frame.getCommand());
+		Header header = frame.getHeader();
+		if (header == null) {
+			buffer.writeInt(0);
+		} else {
+			buffer.writeInt(header.size());
+			for (Entry<String, String> entry : header.entrySet()) {
+				writeString(buffer, entry.getKey());
+				writeString(buffer, entry.getValue());
+			}
+		}
+		writeBytes(buffer, frame.getBodyBytes());
+
+		buffer.setInt(0, buffer.writerIndex() - 4);
+		return buffer;
+	}
+
+	/**
+	 * Read the next record of the buffer.
+	 *
+	 * @param buffer
+	 * @return the frame, or null if the buffer doesn't contain a whole record. In this case, the reader index is left
+	 *         unchanged
+	 * @throws ParseException
+	 *             if the record is corrupted
+	 */
+	public static Frame deserialize(ChannelBuffer buffer) throws ParseException {
+		if (buffer.readableBytes() < 4)
+			return null;
+
+		int recordLength = buffer.getInt(buffer.readerIndex());
+		if (recordLength < 0)
+			throw new ParseException("Invalid record length : " + recordLength);
+		if (buffer.readableBytes() < recordLength + 4)
+			return null;
+
+		buffer.skipBytes(4);
+		int recordEnd = buffer.readerIndex() + recordLength;
+		try {
+			String command = readString(buffer);
+			Header header = new Header();
+			int headerCount = buffer.readInt();
+			for (int i = 0; i < headerCount; i++) {
+				header.set(readString(buffer), readString(buffer));
+			}
+			byte[] body = readBytes(buffer);
+
+			if (buffer.readerIndex() != recordEnd)
+				throw new ParseException("Record length doesn't match its content");
+			Frame frame = new Frame(command, header, null);
+			frame.setBodyBytes(body);
+			return frame;
+		} catch (IndexOutOfBoundsException e) {
+			throw new ParseException("Truncated record", e);
+		}
+	}
+
+	private static int estimateSize(Frame frame) {
+		return 64 + frame.getBodySize();
+	}
+
+	private static void writeString(ChannelBuffer buffer, String value) {
+		writeBytes(buffer, value == null ? null : value.getBytes(CharsetUtil.UTF_8));
+	}
+
+	private static void writeBytes(ChannelBuffer buffer, byte[] bytes) {
+		if (bytes == null) {
+			buffer.writeInt(-1);
+		} else {
+			buffer.writeInt(bytes.length);
+			buffer.writeBytes(bytes);
+		}
+	}
+
+	private static String readString(ChannelBuffer buffer) {
+		int length = buffer.readInt();
+		if (length < 0)
+			return null;
+
+		String value = buffer.toString(buffer.readerIndex(), length, CharsetUtil.UTF_8);
+		buffer.skipBytes(length);
+		return value;
+	}
+
+	private static byte[] readBytes(ChannelBuffer buffer) {
+		int length = buffer.readInt();
+		if (length < 0)
+			return null;
+
+		byte[] bytes = new byte[length];
+		buffer.readBytes(bytes);
+		return bytes;
+	}
+
+}
@@ -1,6 +1,7 @@
 package com.excilys.soja.core.handler;
 
 import static junit.framework.Assert.assertNull;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -74,6 +75,17 @@ public class StompFrameDecoderTest {
 		assertEquals(expectedFrame, decode("SEND\n\n\0"));
 	}
 
+	@Test
+	public void testDecode_binary_body() throws Exception {
+		byte[] body = { 0, (byte) 0xff, (byte) 0xc3, '\n', 0, 'A' };
+		ChannelBuffer channelBuffer = ChannelBuffers.wrappedBuffer("SEND\ncontent-length:6\n\n".getBytes(),
+				body, new byte[] { 0 });
+
+		Frame frame = (Frame) frameDecoder.decode(null, null, channelBuffer, null);
+		assertArrayEquals(body, frame.getBodyBytes());
+		assertEquals(0, channelBuffer.readableBytes());
+	}
+
 	@Test
 	public void testDecode_two_time() throws Exception {
 		// TODO: Handle message arriving in two times (ex: 1: SEND\n, 2: test-key:....)
@@ -4,6 +4,7 @@ import static junit.framework.Assert.assertNull;
 import static org.junit.Assert.assertEquals;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.util.CharsetUtil;
 import org.junit.Test;
 
@@ -81,4 +82,20 @@ public class StompFrameEncoderTest {
 		assertEquals("SEND\n\n\0", frameString);
 	}
 
+	@Test
+	public void testWriteFrame_several_frames() throws Exception {
+		Frame frame1 = new Frame();
+		frame1.setCommand(Frame.COMMAND_SEND);
+		frame1.setHeaderValue("test-key", "test-value");
+		Frame frame2 = new Frame();
+		frame2.setCommand(Frame.COMMAND_SEND);
+
+		ChannelBuffer frameBuffer = ChannelBuffers.dynamicBuffer();
+		StompFrameEncoder.writeFrame(frame1, "body\0test".getBytes(CharsetUtil.UTF_8), frameBuffer);
+		StompFrameEncoder.writeFrame(frame2, null, frameBuffer);
+		String frameString = frameBuffer.toString(CharsetUtil.UTF_8);
+
+		assertEquals("SEND\ntest-key:test-value\n\nbody\0test\0SEND\n\n\0", frameString);
+	}
+
 }
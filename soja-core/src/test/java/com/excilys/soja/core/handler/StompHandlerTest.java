@@ -0,0 +1,275 @@
+package com.excilys.soja.core.handler;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.core.model.Header;
+
+public class StompHandlerTest {
+
+	private static final long INTERVAL = 100;
+
+	private final List<Object> writtenMessages = new ArrayList<Object>();
+	private TestTimer timer;
+	private StompHandler stompHandler;
+	private Channel channel;
+	private ChannelHandlerContext context;
+	private ChannelFuture closeFuture;
+	private volatile boolean readable = true;
+	private volatile boolean closed = false;
+
+	@Before
+	public void setUp() throws Exception {
+		timer = new TestTimer();
+		stompHandler = new StompHandler(timer) {
+			@Override
+			protected void fireConnectedListeners(Channel channel) {
+			}
+
+			@Override
+			protected void fireDisconnectedListeners(Channel channel) {
+			}
+		};
+		channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("hashCode"))
+							return System.identityHashCode(proxy);
+						if (name.equals("equals"))
+							return proxy == args[0];
+						if (name.equals("isConnected"))
+							return !closed;
+						if (name.equals("isReadable"))
+							return readable;
+						if (name.equals("getRemoteAddress"))
+							return new InetSocketAddress("localhost", 61613);
+						if (name.equals("getCloseFuture"))
+							return closeFuture;
+						if (name.equals("write")) {
+							writtenMessages.add(args[0]);
+							return Channels.succeededFuture((Channel) proxy);
+						}
+						if (name.equals("close")) {
+							closed = true;
+							return Channels.succeededFuture((Channel) proxy);
+						}
+						throw new UnsupportedOperationException(name);
+					}
+				});
+		closeFuture = Channels.future(channel);
+		context = (ChannelHandlerContext) Proxy.newProxyInstance(ChannelHandlerContext.class.getClassLoader(),
+				new Class<?>[] { ChannelHandlerContext.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("getChannel"))
+							return channel;
+						if (name.equals("sendUpstream") || name.equals("sendDownstream"))
+							return null;
+						throw new UnsupportedOperationException(name);
+					}
+				});
+	}
+
+	private static Frame createFrame(long guaranteedHeartBeat, long expectedHeartBeat) {
+		Frame frame = new Frame();
+		frame.setCommand(Frame.COMMAND_CONNECT);
+		frame.setHeaderValue(Header.HEADER_HEART_BEAT, guaranteedHeartBeat + "," + expectedHeartBeat);
+		return frame;
+	}
+
+	private void receive(Object message) throws Exception {
+		stompHandler.handleUpstream(context, new UpstreamMessageEvent(channel, message, null));
+	}
+
+	private void write(Object message) throws Exception {
+		stompHandler.writeRequested(context, new DownstreamMessageEvent(channel, Channels.future(channel), message,
+				null));
+	}
+
+	@Test
+	public void testStartLocalHeartBeat() throws Exception {
+		stompHandler.setHeartBeat(INTERVAL, 0);
+
+		assertTrue(stompHandler.startLocalHeartBeat(channel, createFrame(0, INTERVAL / 2)));
+
+		// The largest of both intervals is used
+		assertEquals(INTERVAL, stompHandler.getLocalHeartBeatInterval(channel));
+		assertEquals(1, timer.getPendingTimeouts().size());
+		assertEquals(INTERVAL, timer.getPendingTimeouts().get(0).getDelay());
+	}
+
+	@Test
+	public void testStartLocalHeartBeat_not_expected() throws Exception {
+		stompHandler.setHeartBeat(INTERVAL, 0);
+
+		assertFalse(stompHandler.startLocalHeartBeat(channel, createFrame(0, 0)));
+
+		assertTrue(timer.getPendingTimeouts().isEmpty());
+	}
+
+	@Test
+	public void testHeartBeat_idle() throws Exception {
+		stompHandler.setHeartBeat(INTERVAL, 0);
+		stompHandler.startLocalHeartBeat(channel, createFrame(0, INTERVAL));
+
+		Thread.sleep(INTERVAL + 10);
+		timer.runPending();
+
+		assertEquals(1, writtenMessages.size());
+		assertEquals("\n", ((ChannelBuffer) writtenMessages.get(0)).toString(CharsetUtil.UTF_8));
+		assertEquals(INTERVAL, timer.getPendingTimeouts().get(0).getDelay());
+	}
+
+	@Test
+	public void testHeartBeat_not_idle() throws Exception {
+		stompHandler.setHeartBeat(INTERVAL, 0);
+		stompHandler.startLocalHeartBeat(channel, createFrame(0, INTERVAL));
+
+		Thread.sleep(INTERVAL + 10);
+		write(new Frame());
+		timer.runPending();
+
+		// The frame just written proves the connection is alive, the heart-beat waits for the next idle interval
+		assertTrue(writtenMessages.isEmpty());
+		assertEquals(1, timer.getPendingTimeouts().size());
+		assertTrue(timer.getPendingTimeouts().get(0).getDelay() <= INTERVAL);
+	}
+
+	@Test
+	public void testHeartBeat_disconnected() throws Exception {
+		stompHandler.setHeartBeat(INTERVAL, 0);
+		stompHandler.startLocalHeartBeat(channel, createFrame(0, INTERVAL));
+		closed = true;
+
+		Thread.sleep(INTERVAL + 10);
+		timer.runPending();
+
+		assertTrue(writtenMessages.isEmpty());
+		assertTrue(timer.getPendingTimeouts().isEmpty());
+	}
+
+	@Test
+	public void testStartRemoteHeartBeatMonitoring() throws Exception {
+		stompHandler.setHeartBeat(0, INTERVAL);
+
+		assertTrue(stompHandler.startRemoteHeartBeatMonitoring(channel, createFrame(INTERVAL, 0)));
+
+		// The remote is given the default tolerance of 1.5 interval
+		assertEquals(INTERVAL, stompHandler.getRemoteHeartBeatInterval(channel));
+		assertEquals(1, timer.getPendingTimeouts().size());
+		assertEquals(INTERVAL * 3 / 2, timer.getPendingTimeouts().get(0).getDelay());
+	}
+
+	@Test
+	public void testHeartBeatMonitor_eviction() throws Exception {
+		stompHandler.setHeartBeat(0, INTERVAL);
+		stompHandler.startRemoteHeartBeatMonitoring(channel, createFrame(INTERVAL, 0));
+
+		Thread.sleep(INTERVAL * 3 / 2 + 10);
+		timer.runPending();
+
+		assertTrue(closed);
+		assertTrue(timer.getPendingTimeouts().isEmpty());
+	}
+
+	@Test
+	public void testHeartBeatMonitor_within_tolerance() throws Exception {
+		stompHandler.setHeartBeat(0, INTERVAL);
+		stompHandler.startRemoteHeartBeatMonitoring(channel, createFrame(INTERVAL, 0));
+
+		// Late by less than half an interval, the remote is still alive
+		Thread.sleep(INTERVAL + 10);
+		timer.runPending();
+
+		assertFalse(closed);
+		assertEquals(1, timer.getPendingTimeouts().size());
+	}
+
+	@Test
+	public void testHeartBeatMonitor_frame_received() throws Exception {
+		stompHandler.setHeartBeat(0, INTERVAL);
+		stompHandler.startRemoteHeartBeatMonitoring(channel, createFrame(INTERVAL, 0));
+
+		Thread.sleep(INTERVAL * 3 / 2 + 10);
+		receive(new Frame());
+		timer.runPending();
+
+		assertFalse(closed);
+		assertEquals(1, timer.getPendingTimeouts().size());
+	}
+
+	@Test
+	public void testHeartBeatMonitor_reads_suspended() throws Exception {
+		stompHandler.setHeartBeat(0, INTERVAL);
+		stompHandler.startRemoteHeartBeatMonitoring(channel, createFrame(INTERVAL, 0));
+		readable = false;
+
+		Thread.sleep(INTERVAL * 3 / 2 + 10);
+		timer.runPending();
+
+		// Nothing can be received while the reads are suspended, the idle time starts over
+		assertFalse(closed);
+		assertTrue(timer.getPendingTimeouts().get(0).getDelay() > INTERVAL);
+
+		readable = true;
+		Thread.sleep(INTERVAL * 3 / 2 + 10);
+		timer.runPending();
+
+		assertTrue(closed);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetHeartBeatTolerance_lower_than_one() throws Exception {
+		stompHandler.setHeartBeatTolerance(0.9);
+	}
+
+	@Test
+	public void testSetHeartBeatTolerance() throws Exception {
+		stompHandler.setHeartBeat(0, INTERVAL);
+		stompHandler.setHeartBeatTolerance(3);
+		stompHandler.startRemoteHeartBeatMonitoring(channel, createFrame(INTERVAL, 0));
+		assertEquals(INTERVAL * 3, timer.getPendingTimeouts().get(0).getDelay());
+
+		// Silent for longer than the default tolerance, but not than the configured one
+		Thread.sleep(INTERVAL * 2);
+		timer.runPending();
+
+		assertFalse(closed);
+		assertEquals(0, stompHandler.getHeartBeatEvictionCount());
+	}
+
+	@Test
+	public void testGetHeartBeatEvictionCount() throws Exception {
+		stompHandler.setHeartBeat(0, INTERVAL);
+		stompHandler.startRemoteHeartBeatMonitoring(channel, createFrame(INTERVAL, 0));
+		assertEquals(0, stompHandler.getHeartBeatEvictionCount());
+
+		Thread.sleep(INTERVAL * 3 / 2 + 10);
+		timer.runPending();
+
+		assertEquals(1, stompHandler.getHeartBeatEvictionCount());
+	}
+}
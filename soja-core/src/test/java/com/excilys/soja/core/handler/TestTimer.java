@@ -0,0 +1,112 @@
+package com.excilys.soja.core.handler;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * Timer which only runs its tasks when the test asks it to
+ */
+class TestTimer implements Timer {
+
+	private final List<TestTimeout> timeouts = new ArrayList<TestTimeout>();
+
+	@Override
+	public synchronized Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+		TestTimeout timeout = new TestTimeout(task, unit.toMillis(delay));
+		timeouts.add(timeout);
+		return timeout;
+	}
+
+	@Override
+	public synchronized Set<Timeout> stop() {
+		Set<Timeout> pendingTimeouts = new HashSet<Timeout>(timeouts);
+		timeouts.clear();
+		return pendingTimeouts;
+	}
+
+	/**
+	 * @return the tasks scheduled and not run nor cancelled yet
+	 */
+	public synchronized List<TestTimeout> getPendingTimeouts() {
+		List<TestTimeout> pendingTimeouts = new ArrayList<TestTimeout>();
+		for (TestTimeout timeout : timeouts) {
+			if (!timeout.isCancelled()) {
+				pendingTimeouts.add(timeout);
+			}
+		}
+		return pendingTimeouts;
+	}
+
+	/**
+	 * Run the tasks currently pending, but not the ones they schedule
+	 *
+	 * @return the number of tasks run
+	 */
+	public int runPending() throws Exception {
+		List<TestTimeout> pendingTimeouts = getPendingTimeouts();
+		synchronized (this) {
+			timeouts.removeAll(pendingTimeouts);
+		}
+		for (TestTimeout timeout : pendingTimeouts) {
+			timeout.expire();
+		}
+		return pendingTimeouts.size();
+	}
+
+	class TestTimeout implements Timeout {
+
+		private final TimerTask task;
+		private final long delay;
+		private volatile boolean expired = false;
+		private volatile boolean cancelled = false;
+
+		public TestTimeout(TimerTask task, long delay) {
+			this.task = task;
+			this.delay = delay;
+		}
+
+		/**
+		 * @return the delay requested, in milliseconds
+		 */
+		public long getDelay() {
+			return delay;
+		}
+
+		public void expire() throws Exception {
+			expired = true;
+			task.run(this);
+		}
+
+		@Override
+		public Timer getTimer() {
+			return TestTimer.this;
+		}
+
+		@Override
+		public TimerTask getTask() {
+			return task;
+		}
+
+		@Override
+		public boolean isExpired() {
+			return expired;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+}
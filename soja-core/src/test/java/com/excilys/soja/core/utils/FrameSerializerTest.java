@@ -0,0 +1,68 @@
+package com.excilys.soja.core.utils;
+
+import static junit.framework.Assert.assertNull;
+import static org.junit.Assert.assertEquals;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import com.excilys.soja.core.exception.ParseException;
+import com.excilys.soja.core.model.Frame;
+
+public class FrameSerializerTest {
+
+	private Frame createFrame() {
+		Frame frame = new Frame();
+		frame.setCommand(Frame.COMMAND_SEND);
+		frame.setHeaderValue("test-key1", "test-value1");
+		frame.setHeaderValue("test:\n\\key2", "test:\n\\value2");
+		frame.setBody("body test \0 with a null and é");
+		return frame;
+	}
+
+	@Test
+	public void testSerialize_deserialize() throws Exception {
+		Frame frame = createFrame();
+
+		assertEquals(frame, FrameSerializer.deserialize(FrameSerializer.serialize(frame)));
+	}
+
+	@Test
+	public void testSerialize_deserialize_body_null() throws Exception {
+		Frame frame = new Frame();
+		frame.setCommand(Frame.COMMAND_SEND);
+
+		assertEquals(frame, FrameSerializer.deserialize(FrameSerializer.serialize(frame)));
+	}
+
+	@Test
+	public void testDeserialize_two_records() throws Exception {
+		Frame frame1 = createFrame();
+		Frame frame2 = new Frame(Frame.COMMAND_ACK, frame1.getHeader(), null);
+		ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(FrameSerializer.serialize(frame1),
+				FrameSerializer.serialize(frame2));
+
+		assertEquals(frame1, FrameSerializer.deserialize(buffer));
+		assertEquals(frame2, FrameSerializer.deserialize(buffer));
+		assertNull(FrameSerializer.deserialize(buffer));
+	}
+
+	@Test
+	public void testDeserialize_incomplete() throws Exception {
+		ChannelBuffer record = FrameSerializer.serialize(createFrame());
+		ChannelBuffer buffer = record.slice(0, record.readableBytes() - 1);
+
+		assertNull(FrameSerializer.deserialize(buffer));
+		assertEquals(0, buffer.readerIndex());
+	}
+
+	@Test(expected = ParseException.class)
+	public void testDeserialize_corrupted() throws Exception {
+		ChannelBuffer record = FrameSerializer.serialize(createFrame());
+		record.setInt(0, 2);
+
+		FrameSerializer.deserialize(record);
+	}
+
+}
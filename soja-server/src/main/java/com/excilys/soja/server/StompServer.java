@@ -15,20 +15,47 @@
  */
 package com.excilys.soja.server;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.group.ChannelGroupFuture;
+import org.jboss.netty.channel.group.ChannelGroupFutureListener;
+import org.jboss.netty.channel.group.DefaultChannelGroupFuture;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.util.HashedWheelTimer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.excilys.soja.core.factory.SslHandlerFactory;
 import com.excilys.soja.core.factory.StompPipelineFactory;
+import com.excilys.soja.core.handler.StompFrameDecoder;
+import com.excilys.soja.core.handler.StompFrameEncoder;
 import com.excilys.soja.server.authentication.Authentication;
 import com.excilys.soja.server.events.StompServerListener;
+import com.excilys.soja.server.handler.AdmissionHandler;
 import com.excilys.soja.server.handler.ServerHandler;
+import com.excilys.soja.server.handler.WebSocketHandler;
+import com.excilys.soja.server.journal.Journal;
+import com.excilys.soja.server.metrics.BrokerMetrics;
+import com.excilys.soja.server.model.RateLimits;
+import com.excilys.soja.server.model.RedeliveryPolicy;
 
 /**
  * @author dvilleneuve
@@ -40,69 +67,210 @@ public class StompServer {
 	public static final String SERVER_VERSION = "1.0";
 	public static final String SERVER_NAME = "Soja";
 	public static final String SERVER_HEADER_VALUE = SERVER_NAME + "/" + SERVER_VERSION;
+	public static final int DEFAULT_AUTHENTICATION_THREADS = 4;
+	public static final int DEFAULT_AUTHENTICATION_QUEUE_SIZE = 1024;
+	public static final int MAX_HANDSHAKE_SIZE = 64 * 1024;
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(StompServer.class);
 
 	private final String hostname;
 	private final int port;
 	private final ServerBootstrap serverBootstrap;
+	private final ServerBootstrap webSocketBootstrap;
 	private final ServerHandler serverHandler;
+	private final AdmissionHandler admissionHandler;
+	private final HashedWheelTimer timer;
+	private final ExecutorService authenticationExecutor;
 	private Channel acceptorChannel;
+	private Channel webSocketAcceptorChannel;
+	private int webSocketPort = -1;
+	private String webSocketPath = WebSocketHandler.DEFAULT_PATH;
+	private boolean webSocketCompressionEnabled = false;
+	private volatile SslHandlerFactory sslHandlerFactory;
 
 	public StompServer(String hostname, int port, final Authentication authentication) {
 		this.hostname = hostname;
 		this.port = port;
 		this.serverBootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(Executors.newCachedThreadPool(),
 				Executors.newCachedThreadPool()));
-		this.serverHandler = new ServerHandler(authentication);
+		this.timer = new HashedWheelTimer();
+		this.serverHandler = new ServerHandler(authentication, timer);
+
+		// Credential checks can be slow, so they have their own pool. It's bounded so a reconnection storm can't
+		// exhaust the memory : connections over its capacity are rejected
+		this.authenticationExecutor = new ThreadPoolExecutor(DEFAULT_AUTHENTICATION_THREADS,
+				DEFAULT_AUTHENTICATION_THREADS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+						DEFAULT_AUTHENTICATION_QUEUE_SIZE));
+		this.serverHandler.setAuthenticationExecutor(authenticationExecutor);
+		this.admissionHandler = new AdmissionHandler(authentication, timer);
+		this.serverHandler.setAdmissionHandler(admissionHandler);
 
 		this.serverBootstrap.setPipelineFactory(new StompPipelineFactory() {
 			@Override
 			public ChannelPipeline getPipeline() throws Exception {
 				ChannelPipeline pipeline = super.getPipeline();
+				addSslHandler(pipeline);
+				pipeline.addLast("admission", admissionHandler);
 				pipeline.addLast("handler", serverHandler);
 				return pipeline;
 			}
 		});
-		this.serverBootstrap.setOption("tcpNoDelay", true);
-		this.serverBootstrap.setOption("keepAlive", true);
+		this.serverBootstrap.setOption("child.tcpNoDelay", true);
+		this.serverBootstrap.setOption("child.keepAlive", true);
+
+		// WebSocket clients share the I/O threads and the handlers of the TCP clients, only the framing differs
+		this.webSocketBootstrap = new ServerBootstrap(serverBootstrap.getFactory());
+		this.webSocketBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+			@Override
+			public ChannelPipeline getPipeline() throws Exception {
+				ChannelPipeline pipeline = Channels.pipeline();
+				addSslHandler(pipeline);
+				pipeline.addLast("httpDecoder", new HttpRequestDecoder());
+				pipeline.addLast("httpAggregator", new HttpChunkAggregator(MAX_HANDSHAKE_SIZE));
+				pipeline.addLast("httpEncoder", new HttpResponseEncoder());
+				pipeline.addLast("webSocket", new WebSocketHandler(webSocketPath, webSocketCompressionEnabled,
+						WebSocketHandler.DEFAULT_COMPRESSION_THRESHOLD));
+				pipeline.addLast("frameDecoder", new StompFrameDecoder());
+				pipeline.addLast("frameEncoder", new StompFrameEncoder());
+				pipeline.addLast("admission", admissionHandler);
+				pipeline.addLast("handler", serverHandler);
+				return pipeline;
+			}
+		});
+		this.webSocketBootstrap.setOption("child.tcpNoDelay", true);
+		this.webSocketBootstrap.setOption("child.keepAlive", true);
+	}
+
+	/**
+	 * Add the TLS handler first in the pipeline of a new client, if TLS is enabled
+	 * 
+	 * @param pipeline
+	 */
+	private void addSslHandler(ChannelPipeline pipeline) {
+		SslHandlerFactory factory = sslHandlerFactory;
+		if (factory != null) {
+			pipeline.addFirst("ssl", factory.newHandler(null, 0));
+		}
 	}
 
 	/**
 	 * Start the server and listen to new client connection requests.
 	 */
 	public boolean start() {
+		Journal journal = serverHandler.getJournal();
+		if (journal != null) {
+			try {
+				journal.open();
+			} catch (IOException e) {
+				LOGGER.error("Server failed to open its journal in " + journal.getDirectory(), e);
+				return false;
+			}
+		}
+
 		acceptorChannel = serverBootstrap.bind(new InetSocketAddress(hostname, port));
 		if (acceptorChannel.isBound()) {
 			LOGGER.debug("Server started and bound on {}. Start listening...", acceptorChannel.getLocalAddress());
-			return true;
 		} else {
 			LOGGER.debug("Server failed to start on {}", acceptorChannel.getLocalAddress());
 			return false;
 		}
+
+		if (webSocketPort >= 0) {
+			webSocketAcceptorChannel = webSocketBootstrap.bind(new InetSocketAddress(hostname, webSocketPort));
+			if (webSocketAcceptorChannel.isBound()) {
+				LOGGER.debug("WebSocket listener bound on {}{}", webSocketAcceptorChannel.getLocalAddress(),
+						webSocketPath);
+			} else {
+				LOGGER.debug("Server failed to start its WebSocket listener on port {}", webSocketPort);
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
 	 * Disconnect all clients and stop the server
 	 */
 	public void stop() {
+		stop(0);
+	}
+
+	/**
+	 * Stop accepting new clients, let the connected ones receive the frames already queued for them during at most
+	 * <code>drainTimeout</code> milliseconds, then disconnect them and stop the server.
+	 * 
+	 * @param drainTimeout
+	 *            maximum time to wait for the queued frames to be written, 0 to disconnect the clients immediately
+	 */
+	public void stop(long drainTimeout) {
+		closeChannels(drainTimeout).awaitUninterruptibly();
+		releaseResources();
+	}
+
+	/**
+	 * Same as {@link #stop(long)}, without blocking. The thread pools, the timer and the journal are released right
+	 * after all channels are closed.
+	 * 
+	 * @param drainTimeout
+	 *            maximum time to wait for the queued frames to be written, 0 to disconnect the clients immediately
+	 * @return a future notified once all the channels are closed
+	 */
+	public ChannelGroupFuture stopAsync(long drainTimeout) {
+		ChannelGroupFuture channelGroupFuture = closeChannels(drainTimeout);
+		channelGroupFuture.addListener(new ChannelGroupFutureListener() {
+			@Override
+			public void operationComplete(ChannelGroupFuture future) throws Exception {
+				// Releasing the thread pools waits for the I/O threads, so it can't be done from one of them
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						releaseResources();
+					}
+				}, "Server shutdown").start();
+			}
+		});
+		return channelGroupFuture;
+	}
+
+	/**
+	 * Close the acceptor channel then disconnect all clients in parallel
+	 * 
+	 * @param drainTimeout
+	 * @return a future notified once the acceptor and all the clients channels are closed
+	 */
+	private ChannelGroupFuture closeChannels(long drainTimeout) {
 		LOGGER.debug("Stopping server...");
 
-		// Stop the acceptord channel
-		if (acceptorChannel != null && acceptorChannel.isOpen()) {
-			// Close the connection. Make sure the close operation ends because
-			// all I/O operations are asynchronous in Netty.
-			acceptorChannel.close().awaitUninterruptibly();
+		List<ChannelFuture> closeFutures = new ArrayList<ChannelFuture>();
+		if (acceptorChannel != null) {
+			closeFutures.add(acceptorChannel.close());
+		}
+		if (webSocketAcceptorChannel != null) {
+			closeFutures.add(webSocketAcceptorChannel.close());
 		}
 
-		// Disconnect all clients
-		serverHandler.disconnectAllClients();
+		ChannelGroupFuture clientsFuture = serverHandler.disconnectAllClients(drainTimeout);
+		for (ChannelFuture closeFuture : clientsFuture) {
+			closeFutures.add(closeFuture);
+		}
+		return new DefaultChannelGroupFuture(clientsFuture.getGroup(), closeFutures);
+	}
 
+	private void releaseResources() {
 		if (serverBootstrap != null) {
 			// Shut down all thread pools to exit.
 			serverBootstrap.releaseExternalResources();
 		}
 
+		// Cancel all scheduled tasks and stop the timer thread
+		timer.stop();
+		authenticationExecutor.shutdown();
+
+		// Flush the last persistent messages
+		if (serverHandler.getJournal() != null) {
+			serverHandler.getJournal().close();
+		}
+
 		LOGGER.debug("Server stopped");
 	}
 
@@ -114,6 +282,123 @@ public class StompServer {
 		serverHandler.removeListener(stompServerListener);
 	}
 
+	public RedeliveryPolicy getRedeliveryPolicy() {
+		return serverHandler.getRedeliveryPolicy();
+	}
+
+	/**
+	 * Configure how NACK-ed messages are redelivered and when they are sent to their dead letter destination.
+	 * 
+	 * @param redeliveryPolicy
+	 */
+	public void setRedeliveryPolicy(RedeliveryPolicy redeliveryPolicy) {
+		serverHandler.setRedeliveryPolicy(redeliveryPolicy);
+	}
+
+	public int getWebSocketPort() {
+		return webSocketPort;
+	}
+
+	public String getWebSocketPath() {
+		return webSocketPath;
+	}
+
+	/**
+	 * Configure a WebSocket listener, for browser clients. It shares the subscriptions and the settings of the TCP
+	 * listener.
+	 * 
+	 * <p/>
+	 * <b>NOTE :</b> This can only be set while the server is not started yet.
+	 * 
+	 * @param webSocketPort
+	 *            the port the WebSocket listener is bound to, -1 to disable it
+	 * @param webSocketPath
+	 *            the path of the WebSocket endpoint
+	 */
+	public void setWebSocket(int webSocketPort, String webSocketPath) {
+		this.webSocketPort = webSocketPort;
+		this.webSocketPath = webSocketPath;
+	}
+
+	public boolean isWebSocketCompressionEnabled() {
+		return webSocketCompressionEnabled;
+	}
+
+	/**
+	 * Configure whether the permessage-deflate extension is accepted when WebSocket clients offer it. Compression
+	 * saves bandwidth at the cost of CPU and of a copy of each message.
+	 * 
+	 * @param webSocketCompressionEnabled
+	 */
+	public void setWebSocketCompressionEnabled(boolean webSocketCompressionEnabled) {
+		this.webSocketCompressionEnabled = webSocketCompressionEnabled;
+	}
+
+	public SslHandlerFactory getSslHandlerFactory() {
+		return sslHandlerFactory;
+	}
+
+	/**
+	 * Enable TLS on the TCP and WebSocket listeners. The factory has to be in server mode.
+	 * 
+	 * <p/>
+	 * <b>NOTE :</b> This can only be set while the server is not started yet.
+	 * 
+	 * @param sslHandlerFactory
+	 *            the factory creating the TLS handler of each client, or null to disable TLS
+	 */
+	public void setSslHandlerFactory(SslHandlerFactory sslHandlerFactory) {
+		if (sslHandlerFactory != null && sslHandlerFactory.isClientMode())
+			throw new IllegalArgumentException("The TLS handlers of the server can't be in client mode");
+		this.sslHandlerFactory = sslHandlerFactory;
+	}
+
+	public Journal getJournal() {
+		return serverHandler.getJournal();
+	}
+
+	/**
+	 * Configure the journal where messages sent with the persistent header are written. Their receipts are sent once
+	 * they are on the disk. The journal is opened when the server starts and closed when it stops.
+	 * 
+	 * <p/>
+	 * <b>NOTE :</b> This can only be set while the server is not started yet.
+	 * 
+	 * @param journal
+	 */
+	public void setJournal(Journal journal) {
+		serverHandler.setJournal(journal);
+	}
+
+	public File getOverflowDirectory() {
+		return serverHandler.getOverflowDirectory();
+	}
+
+	/**
+	 * Configure the directory where the messages held back for slow subscriptions are spilled once they exceed
+	 * {@link #getMaxBacklogMemorySize()}, so a stalled consumer fills the disk instead of the heap. Without directory,
+	 * they are all kept in memory. Only new subscriptions are affected.
+	 * 
+	 * @param overflowDirectory
+	 */
+	public void setOverflowDirectory(File overflowDirectory) {
+		serverHandler.setOverflowDirectory(overflowDirectory);
+	}
+
+	public long getMaxBacklogMemorySize() {
+		return serverHandler.getMaxBacklogMemorySize();
+	}
+
+	/**
+	 * Configure the size of the messages held back in memory for each subscription before they are spilled in the
+	 * overflow directory.
+	 * 
+	 * @param maxBacklogMemorySize
+	 */
+	public void setMaxBacklogMemorySize(long maxBacklogMemorySize) {
+		serverHandler.setMaxBacklogMemorySize(maxBacklogMemorySize);
+	}
+
 	public long getLocalGuaranteedHeartBeat() {
 		return serverHandler.getLocalGuaranteedHeartBeat();
 	}
@@ -136,4 +421,68 @@ public class StompServer {
 		serverHandler.setHeartBeat(guaranteedHeartBeat, expectedHeartBeat);
 	}
 
+	public double getAddressConnectionRate() {
+		return admissionHandler.getAddressConnectionRate();
+	}
+
+	/**
+	 * Configure how many new connections per second are allowed from a single remote address. Connections over this
+	 * rate are not rejected, but they are not read until the rate allows it.
+	 * 
+	 * @param addressConnectionRate
+	 *            0 means no limit
+	 */
+	public void setAddressConnectionRate(double addressConnectionRate) {
+		admissionHandler.setAddressConnectionRate(addressConnectionRate);
+	}
+
+	public RateLimits getDefaultRateLimits() {
+		return admissionHandler.getDefaultRateLimits();
+	}
+
+	/**
+	 * Configure the connection and SEND rates allowed to the logins the {@link Authentication} doesn't give rate
+	 * limits for. Clients over their limits are throttled by suspending the reads of their connection.
+	 * 
+	 * @param defaultRateLimits
+	 */
+	public void setDefaultRateLimits(RateLimits defaultRateLimits) {
+		admissionHandler.setDefaultRateLimits(defaultRateLimits);
+	}
+
+	/**
+	 * @return the number of times a client has been throttled because it exceeded its rate limits
+	 */
+	public long getThrottleCount() {
+		return admissionHandler.getThrottleCount();
+	}
+
+	/**
+	 * @return the metrics of the messages published and sent by this server, per destination and per connection
+	 */
+	public BrokerMetrics getMetrics() {
+		return serverHandler.getMetrics();
+	}
+
+	public double getHeartBeatTolerance() {
+		return serverHandler.getHeartBeatTolerance();
+	}
+
+	/**
+	 * Configure how late the client heart-beats can be before the client is considered dead and disconnected. The
+	 * connection is closed when nothing has been received during the negotiated interval multiplied by this factor.
+	 * 
+	 * @param heartBeatTolerance
+	 */
+	public void setHeartBeatTolerance(double heartBeatTolerance) {
+		serverHandler.setHeartBeatTolerance(heartBeatTolerance);
+	}
+
+	/**
+	 * @return the number of clients disconnected because they stopped sending heart-beats
+	 */
+	public long getHeartBeatEvictionCount() {
+		return serverHandler.getHeartBeatEvictionCount();
+	}
+
 }
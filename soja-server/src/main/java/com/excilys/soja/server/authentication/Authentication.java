@@ -15,11 +15,14 @@
  */
 package com.excilys.soja.server.authentication;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.security.auth.login.LoginException;
 
+import com.excilys.soja.core.future.StompFuture;
+import com.excilys.soja.server.model.RateLimits;
+
 /**
  * @author dvilleneuve
  * 
@@ -29,17 +32,7 @@ public abstract class Authentication {
 	public static final Authentication ALLOW_ALL_INSTANCE = new AllowAllAuthentication();
 	public static final Authentication DENY_ALL_INSTANCE = new DenyAllAuthentication();
 
-	private static MessageDigest md5Digest;
-	private static int counter = 0;
-
-	static {
-
-		try {
-			md5Digest = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		}
-	}
+	private static final SessionIdGenerator TOKEN_GENERATOR = new SessionIdGenerator();
 
 	/**
 	 * Try to authenticate a user. If authentication failed a LoginException will be thrown, else a <b>UNIQUE</b>
@@ -53,6 +46,41 @@ public abstract class Authentication {
 	 */
 	public abstract String connect(String username, String password) throws LoginException;
 
+	/**
+	 * Try to authenticate a user without blocking the caller. The returned future is completed with the session token,
+	 * or failed with a {@link LoginException} if the credentials are rejected. The server sends the CONNECTED frame
+	 * once it's completed.
+	 * <p/>
+	 * By default, {@link #connect(String, String)} is called by the given executor. Authentications backed by an
+	 * asynchronous service can override this method to complete the future from their own callbacks.
+	 * 
+	 * @param username
+	 * @param password
+	 * @param executor
+	 *            the bounded pool of the server dedicated to credential checks
+	 * @return a future notified when the authentication is done
+	 */
+	public StompFuture<String> connectAsync(final String username, final String password, Executor executor) {
+		final StompFuture<String> future = new StompFuture<String>();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						future.setSuccess(connect(username, password));
+					} catch (LoginException e) {
+						future.setFailure(e);
+					} catch (RuntimeException e) {
+						future.setFailure(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.setFailure(e);
+		}
+		return future;
+	}
+
 	/**
 	 * Get authorization to send a message on a specific topic.
 	 * 
@@ -71,21 +99,26 @@ public abstract class Authentication {
 	 */
 	public abstract boolean canSubscribe(String token, String topic);
 
-	public String generateToken(String username) {
-		String plainToken = "token-" + (++counter) + "-" + username;
-		byte[] digestedToken = md5Digest.digest(plainToken.getBytes());
-		return convertHexToString(digestedToken);
+	/**
+	 * Get the rates allowed to a login, shared by all its connections. By default, the server's default rate limits
+	 * apply to every login.
+	 * 
+	 * @param username
+	 *            the login given in the CONNECT frame, an empty string for guests
+	 * @return the rate limits of this login, or null to use the default ones
+	 */
+	public RateLimits getRateLimits(String username) {
+		return null;
 	}
 
-	private String convertHexToString(byte[] bytes) {
-		StringBuilder hexString = new StringBuilder();
-		for (int i = 0; i < bytes.length; i++) {
-			String hex = Integer.toHexString(0xff & bytes[i]);
-			if (hex.length() == 1)
-				hexString.append('0');
-			hexString.append(hex);
-		}
-		return hexString.toString();
+	/**
+	 * Generate a new session token, unique across the servers of a cluster. It can be called by several threads at once.
+	 * 
+	 * @param username
+	 * @return a new token
+	 */
+	public String generateToken(String username) {
+		return TOKEN_GENERATOR.nextToken();
 	}
 
 }
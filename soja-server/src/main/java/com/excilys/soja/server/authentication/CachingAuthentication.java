@@ -0,0 +1,252 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.authentication;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.login.LoginException;
+
+import org.jboss.netty.util.CharsetUtil;
+
+import com.excilys.soja.core.future.StompFuture;
+import com.excilys.soja.core.future.StompFutureListener;
+import com.excilys.soja.server.model.RateLimits;
+
+/**
+ * Authentication remembering the credentials another authentication accepted, so a client reconnecting with the same
+ * credentials is connected without checking them again. This avoids a burst of slow checks when many clients reconnect
+ * at once, after a network failure or a server restart.
+ * <p/>
+ * Only a salted digest of the passwords is kept, for {@link #getTimeToLive()} milliseconds. Rejected credentials are
+ * never cached. On a cache hit, the token is created by {@link Authentication#generateToken(String)} of the delegate
+ * without calling its {@link Authentication#connect(String, String)} method, so this cache doesn't suit
+ * authentications which keep state about their tokens.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class CachingAuthentication extends Authentication {
+
+	public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000;
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	private final Authentication delegate;
+	private final long timeToLive;
+	private final int maxEntries;
+	private final byte[] salt = new byte[16];
+	private final ConcurrentMap<String, CachedCredentials> cache = new ConcurrentHashMap<String, CachedCredentials>();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	public CachingAuthentication(Authentication delegate) {
+		this(delegate, DEFAULT_TIME_TO_LIVE, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param delegate
+	 *            the authentication checking the credentials which are not cached
+	 * @param timeToLive
+	 *            number of milliseconds accepted credentials are remembered
+	 * @param maxEntries
+	 *            maximum number of logins remembered at once
+	 */
+	public CachingAuthentication(Authentication delegate, long timeToLive, int maxEntries) {
+		if (timeToLive <= 0)
+			throw new IllegalArgumentException("Time to live have to be a strictly positive number");
+		if (maxEntries <= 0)
+			throw new IllegalArgumentException("Maximum entries have to be a strictly positive number");
+		this.delegate = delegate;
+		this.timeToLive = timeToLive;
+		this.maxEntries = maxEntries;
+		new SecureRandom().nextBytes(salt);
+	}
+
+	@Override
+	public String connect(String username, String password) throws LoginException {
+		if (isCached(username, password))
+			return delegate.generateToken(username);
+
+		String token = delegate.connect(username, password);
+		cache(username, password);
+		return token;
+	}
+
+	@Override
+	public StompFuture<String> connectAsync(final String username, final String password, Executor executor) {
+		// Cached credentials don't need to go through the authentication pool
+		if (isCached(username, password))
+			return StompFuture.succeededFuture(delegate.generateToken(username));
+
+		StompFuture<String> future = delegate.connectAsync(username, password, executor);
+		future.addListener(new StompFutureListener<String>() {
+			@Override
+			public void operationComplete(StompFuture<String> future) throws Exception {
+				if (future.isSuccess()) {
+					cache(username, password);
+				}
+			}
+		});
+		return future;
+	}
+
+	@Override
+	public boolean canSend(String token, String topic) {
+		return delegate.canSend(token, topic);
+	}
+
+	@Override
+	public boolean canSubscribe(String token, String topic) {
+		return delegate.canSubscribe(token, topic);
+	}
+
+	@Override
+	public RateLimits getRateLimits(String username) {
+		return delegate.getRateLimits(username);
+	}
+
+	@Override
+	public String generateToken(String username) {
+		return delegate.generateToken(username);
+	}
+
+	/**
+	 * Forget the credentials of a login, so they are checked again on its next connection.
+	 * 
+	 * @param username
+	 */
+	public void invalidate(String username) {
+		cache.remove(getKey(username));
+	}
+
+	/**
+	 * Forget all the credentials
+	 */
+	public void invalidateAll() {
+		cache.clear();
+	}
+
+	private boolean isCached(String username, String password) {
+		CachedCredentials cachedCredentials = cache.get(getKey(username));
+		if (cachedCredentials != null && cachedCredentials.isValid(System.currentTimeMillis())
+				&& MessageDigest.isEqual(cachedCredentials.getDigest(), digest(password))) {
+			hitCount.incrementAndGet();
+			return true;
+		}
+		missCount.incrementAndGet();
+		return false;
+	}
+
+	private void cache(String username, String password) {
+		long now = System.currentTimeMillis();
+		if (cache.size() >= maxEntries) {
+			purge(now);
+			if (cache.size() >= maxEntries)
+				return;
+		}
+		cache.put(getKey(username), new CachedCredentials(digest(password), now + timeToLive));
+	}
+
+	/**
+	 * Remove the expired credentials
+	 * 
+	 * @param now
+	 */
+	private void purge(long now) {
+		Iterator<CachedCredentials> iterator = cache.values().iterator();
+		while (iterator.hasNext()) {
+			if (!iterator.next().isValid(now)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private static String getKey(String username) {
+		return username == null ? "" : username;
+	}
+
+	private byte[] digest(String password) {
+		try {
+			// Digests are not thread-safe, and creating one is cheap compared to a credential check
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(salt);
+			if (password != null) {
+				digest.update(password.getBytes(CharsetUtil.UTF_8));
+			}
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	public Authentication getDelegate() {
+		return delegate;
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * @return the number of connections accepted from the cache
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return the number of connections whose credentials had to be checked by the delegate
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * Digest of the password accepted for a login, and its expiration time
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private static class CachedCredentials {
+
+		private final byte[] digest;
+		private final long expirationTime;
+
+		public CachedCredentials(byte[] digest, long expirationTime) {
+			this.digest = digest;
+			this.expirationTime = expirationTime;
+		}
+
+		public byte[] getDigest() {
+			return digest;
+		}
+
+		public boolean isValid(long now) {
+			return now < expirationTime;
+		}
+	}
+
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.authentication;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free generator of session identifiers, unique across the nodes of a cluster as long as each node has its own
+ * node id.
+ * <p/>
+ * The <code>long</code> form of an id is made of the node id (16 bits) followed by a sequence number (48 bits). Each
+ * thread reserves blocks of {@value #BLOCK_SIZE} sequence numbers from a shared counter and uses them without any
+ * synchronization. The string form adds 64 random bits to the <code>long</code> form, written as 32 hexadecimal
+ * characters, so ids stay unique when a node restarts its sequence. The random bits are not meant to be
+ * cryptographically secure.
+ * <p/>
+ * This class is thread-safe.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class SessionIdGenerator {
+
+	public static final int MAX_NODE_ID = 0xFFFF;
+	public static final int BLOCK_SIZE = 1024;
+
+	private static final int SEQUENCE_BITS = 48;
+	private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final SecureRandom SEED_RANDOM = new SecureRandom();
+
+	private final int nodeId;
+	private final long nodeBits;
+	private final AtomicLong nextBlock = new AtomicLong();
+	private final ThreadLocal<ThreadState> threadStates = new ThreadLocal<ThreadState>() {
+		@Override
+		protected ThreadState initialValue() {
+			return new ThreadState();
+		}
+	};
+
+	/**
+	 * Create a generator with a random node id. Use {@link #SessionIdGenerator(int)} with distinct node ids when the
+	 * <code>long</code> form of the ids has to be unique across several servers.
+	 */
+	public SessionIdGenerator() {
+		this(SEED_RANDOM.nextInt(MAX_NODE_ID + 1));
+	}
+
+	/**
+	 * @param nodeId
+	 *            id of this server in the cluster, between 0 and {@link #MAX_NODE_ID}
+	 */
+	public SessionIdGenerator(int nodeId) {
+		if (nodeId < 0 || nodeId > MAX_NODE_ID)
+			throw new IllegalArgumentException("Node id have to be between 0 and " + MAX_NODE_ID);
+		this.nodeId = nodeId;
+		this.nodeBits = (long) nodeId << SEQUENCE_BITS;
+	}
+
+	/**
+	 * @return a new id, unique for this node
+	 */
+	public long nextId() {
+		return nextId(threadStates.get());
+	}
+
+	/**
+	 * @return a new id in its string form, unique across the cluster
+	 */
+	public String nextToken() {
+		ThreadState threadState = threadStates.get();
+		char[] chars = new char[32];
+		writeHex(chars, 0, nextId(threadState));
+		writeHex(chars, 16, threadState.random.nextLong());
+		return new String(chars);
+	}
+
+	private long nextId(ThreadState threadState) {
+		if (threadState.sequence == threadState.blockEnd) {
+			threadState.sequence = nextBlock.getAndAdd(BLOCK_SIZE);
+			threadState.blockEnd = threadState.sequence + BLOCK_SIZE;
+		}
+		return nodeBits | (threadState.sequence++ & SEQUENCE_MASK);
+	}
+
+	public int getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @param id
+	 * @return the id of the node which generated this id
+	 */
+	public static int getNodeId(long id) {
+		return (int) (id >>> SEQUENCE_BITS);
+	}
+
+	/**
+	 * @param id
+	 * @return the id written as 16 hexadecimal characters
+	 */
+	public static String toString(long id) {
+		char[] chars = new char[16];
+		writeHex(chars, 0, id);
+		return new String(chars);
+	}
+
+	private static void writeHex(char[] chars, int offset, long value) {
+		for (int i = offset + 15; i >= offset; i--) {
+			chars[i] = HEX_DIGITS[(int) (value & 0xF)];
+			value >>>= 4;
+		}
+	}
+
+	/**
+	 * Sequence block and random generator owned by a thread
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private static class ThreadState {
+
+		private final Random random = new Random(SEED_RANDOM.nextLong());
+		private long sequence = 0;
+		private long blockEnd = 0;
+	}
+
+}
@@ -0,0 +1,367 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.handler;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.server.authentication.Authentication;
+import com.excilys.soja.server.model.RateLimits;
+import com.excilys.soja.server.model.TokenBucket;
+
+/**
+ * Admission control of the server : limits how fast clients can connect and send messages, with token buckets per
+ * remote address for new connections, and per login for new connections, SEND frames and SEND bytes. The limits of a
+ * login are given by {@link Authentication#getRateLimits(String)}, or are the default ones. A login is only charged
+ * once authenticated, see {@link #loginAuthenticated(Channel, String)}.
+ * <p/>
+ * Clients over a limit are not rejected but throttled : the frame is processed, then the reads of the channel are
+ * suspended until the bucket isn't in debt anymore.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class AdmissionHandler extends SimpleChannelUpstreamHandler {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionHandler.class);
+	private static final long SWEEP_INTERVAL = 60000;
+	private static final String GUEST_LOGIN = "";
+
+	private final Authentication authentication;
+	private final Timer timer;
+	private final ConcurrentMap<InetAddress, TokenBucket> addressBuckets = new ConcurrentHashMap<InetAddress, TokenBucket>();
+	private final ConcurrentMap<String, LoginBuckets> loginBuckets = new ConcurrentHashMap<String, LoginBuckets>();
+	private final ChannelLocal<ChannelState> channelStates = new ChannelLocal<ChannelState>(true) {
+		@Override
+		protected ChannelState initialValue(Channel channel) {
+			return new ChannelState();
+		}
+	};
+	private final AtomicLong throttleCount = new AtomicLong();
+	private volatile double addressConnectionRate = 0;
+	private volatile RateLimits defaultRateLimits = RateLimits.UNLIMITED;
+
+	/**
+	 * @param authentication
+	 *            gives the rate limits of each login
+	 * @param timer
+	 *            timer used to resume the throttled channels
+	 */
+	public AdmissionHandler(Authentication authentication, Timer timer) {
+		this.authentication = authentication;
+		this.timer = timer;
+		timer.newTimeout(new Sweeper(), SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		double rate = addressConnectionRate;
+		SocketAddress remoteAddress = ctx.getChannel().getRemoteAddress();
+		if (rate > 0 && remoteAddress instanceof InetSocketAddress) {
+			InetAddress address = ((InetSocketAddress) remoteAddress).getAddress();
+			throttle(ctx.getChannel(), retrieveAddressBucket(address, rate).acquire(1));
+		}
+		super.channelConnected(ctx, e);
+	}
+
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		if (e.getMessage() instanceof Frame) {
+			Channel channel = ctx.getChannel();
+			Frame frame = (Frame) e.getMessage();
+
+			if (frame.isCommand(Frame.COMMAND_SEND)) {
+				ChannelState state = channelStates.get(channel);
+				String login;
+				synchronized (state) {
+					login = state.login;
+					// Frames received during the authentication are charged once the login is known
+					if (login == null) {
+						state.pendingSendFrames++;
+						state.pendingSendBytes += frame.getBodySize();
+					}
+				}
+				if (login != null) {
+					chargeSend(channel, login, 1, frame.getBodySize());
+				}
+			}
+		}
+		super.messageReceived(ctx, e);
+	}
+
+	/**
+	 * Charge a new connection to the buckets of a login, once the client has proved it owns it. Its SEND frames are
+	 * charged to the same login from now on. Must be called by the handler which authenticates the clients, since the
+	 * login of a CONNECT frame can't be trusted before.
+	 * 
+	 * @param channel
+	 * @param login
+	 *            the authenticated login, or null for a guest
+	 */
+	public void loginAuthenticated(Channel channel, String login) {
+		if (login == null) {
+			login = GUEST_LOGIN;
+		}
+
+		ChannelState state = channelStates.get(channel);
+		long sendFrames;
+		long sendBytes;
+		synchronized (state) {
+			state.login = login;
+			sendFrames = state.pendingSendFrames;
+			sendBytes = state.pendingSendBytes;
+			state.pendingSendFrames = 0;
+			state.pendingSendBytes = 0;
+		}
+		throttle(channel, acquire(retrieveLoginBuckets(login).connection, 1));
+		if (sendFrames > 0) {
+			chargeSend(channel, login, sendFrames, sendBytes);
+		}
+	}
+
+	private void chargeSend(Channel channel, String login, long frameCount, long byteCount) {
+		LoginBuckets buckets = retrieveLoginBuckets(login);
+		throttle(channel, Math.max(acquire(buckets.sendFrame, frameCount), acquire(buckets.sendByte, byteCount)));
+	}
+
+	/**
+	 * Suspend the reads of a channel during the given delay. If it's already suspended for a longer time, nothing
+	 * changes.
+	 * 
+	 * @param channel
+	 * @param delay
+	 *            in milliseconds
+	 */
+	private void throttle(Channel channel, long delay) {
+		if (delay <= 0)
+			return;
+
+		throttleCount.incrementAndGet();
+		ChannelState state = channelStates.get(channel);
+		synchronized (state) {
+			long resumeTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+			if (resumeTime - state.resumeTime > 0) {
+				state.resumeTime = resumeTime;
+			}
+			if (!state.suspended) {
+				LOGGER.debug("Throttling {} during {} ms", channel.getRemoteAddress(), delay);
+				state.suspended = true;
+				ReadSuspension.suspend(channel, ReadSuspension.THROTTLE);
+				timer.newTimeout(new Resume(channel, state), delay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private static long acquire(TokenBucket bucket, double count) {
+		return bucket == null ? 0 : bucket.acquire(count);
+	}
+
+	/**
+	 * @param address
+	 * @param rate
+	 *            the current connection rate of the addresses
+	 * @return the bucket of the address, created or replaced if the rate has been changed since it was
+	 */
+	private TokenBucket retrieveAddressBucket(InetAddress address, double rate) {
+		TokenBucket bucket = addressBuckets.get(address);
+		while (bucket == null || bucket.getRate() != rate) {
+			TokenBucket newBucket = RateLimits.createBucket(rate);
+			// Another connection from this address may have created the bucket meanwhile, its tokens must be shared
+			boolean stored = bucket == null ? addressBuckets.putIfAbsent(address, newBucket) == null : addressBuckets
+					.replace(address, bucket, newBucket);
+			bucket = stored ? newBucket : addressBuckets.get(address);
+		}
+		return bucket;
+	}
+
+	private LoginBuckets retrieveLoginBuckets(String login) {
+		LoginBuckets buckets = loginBuckets.get(login);
+		if (buckets == null) {
+			RateLimits rateLimits = authentication.getRateLimits(login);
+			if (rateLimits == null) {
+				rateLimits = defaultRateLimits;
+			}
+			buckets = new LoginBuckets(rateLimits);
+			LoginBuckets previousBuckets = loginBuckets.putIfAbsent(login, buckets);
+			if (previousBuckets != null) {
+				buckets = previousBuckets;
+			}
+		}
+		return buckets;
+	}
+
+	public double getAddressConnectionRate() {
+		return addressConnectionRate;
+	}
+
+	/**
+	 * @param addressConnectionRate
+	 *            new connections per second allowed from a single remote address, 0 means no limit
+	 */
+	public void setAddressConnectionRate(double addressConnectionRate) {
+		if (addressConnectionRate < 0)
+			throw new IllegalArgumentException("Connection rate have to be a positive number");
+		this.addressConnectionRate = addressConnectionRate;
+	}
+
+	public RateLimits getDefaultRateLimits() {
+		return defaultRateLimits;
+	}
+
+	/**
+	 * @param defaultRateLimits
+	 *            limits of the logins the {@link Authentication} doesn't give limits for. Logins which are already
+	 *            connected keep their current limits until they are idle for a while
+	 */
+	public void setDefaultRateLimits(RateLimits defaultRateLimits) {
+		if (defaultRateLimits == null)
+			throw new NullPointerException("defaultRateLimits can't be null");
+		this.defaultRateLimits = defaultRateLimits;
+	}
+
+	/**
+	 * @return the number of times a client has been throttled
+	 */
+	public long getThrottleCount() {
+		return throttleCount.get();
+	}
+
+	/**
+	 * @return the number of remote addresses whose connections are limited, until they are idle for a while
+	 */
+	public int getAddressBucketCount() {
+		return addressBuckets.size();
+	}
+
+	/**
+	 * @return the number of logins whose connections and messages are limited, until they are idle for a while
+	 */
+	public int getLoginBucketCount() {
+		return loginBuckets.size();
+	}
+
+	/**
+	 * Throttling state of a channel
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private static class ChannelState {
+		private String login;
+		private long pendingSendFrames;
+		private long pendingSendBytes;
+		private boolean suspended = false;
+		private long resumeTime;
+	}
+
+	/**
+	 * Buckets shared by all the connections of a login. A null bucket means no limit.
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private static class LoginBuckets {
+		private final TokenBucket connection;
+		private final TokenBucket sendFrame;
+		private final TokenBucket sendByte;
+
+		public LoginBuckets(RateLimits rateLimits) {
+			this.connection = RateLimits.createBucket(rateLimits.getConnectionRate());
+			this.sendFrame = RateLimits.createBucket(rateLimits.getSendFrameRate());
+			this.sendByte = RateLimits.createBucket(rateLimits.getSendByteRate());
+		}
+
+		public boolean isFull() {
+			return (connection == null || connection.isFull()) && (sendFrame == null || sendFrame.isFull())
+					&& (sendByte == null || sendByte.isFull());
+		}
+	}
+
+	/**
+	 * Resume the reads of a throttled channel, or wait again if its suspension has been extended
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private class Resume implements TimerTask {
+
+		private final Channel channel;
+		private final ChannelState state;
+
+		public Resume(Channel channel, ChannelState state) {
+			this.channel = channel;
+			this.state = state;
+		}
+
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			synchronized (state) {
+				long remaining = state.resumeTime - System.nanoTime();
+				if (remaining > 0 && channel.isOpen()) {
+					timer.newTimeout(this, Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)),
+							TimeUnit.MILLISECONDS);
+					return;
+				}
+				state.suspended = false;
+			}
+			ReadSuspension.resume(channel, ReadSuspension.THROTTLE);
+		}
+	}
+
+	/**
+	 * Drop the buckets which are full, so idle addresses and logins don't stay in memory
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private class Sweeper implements TimerTask {
+
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			for (Iterator<TokenBucket> iterator = addressBuckets.values().iterator(); iterator.hasNext();) {
+				if (iterator.next().isFull()) {
+					iterator.remove();
+				}
+			}
+			for (Iterator<LoginBuckets> iterator = loginBuckets.values().iterator(); iterator.hasNext();) {
+				if (iterator.next().isFull()) {
+					iterator.remove();
+				}
+			}
+			timer.newTimeout(this, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+}
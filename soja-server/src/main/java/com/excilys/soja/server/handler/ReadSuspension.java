@@ -0,0 +1,98 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.handler;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
+
+/**
+ * Reasons why the reads of a channel are suspended. Several handlers suspend the reads of the same channel, so the
+ * reads are only resumed once none of them has a reason to keep them suspended.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+final class ReadSuspension {
+
+	/**
+	 * The credentials of the client are being checked
+	 */
+	public static final int AUTHENTICATION = 1;
+	/**
+	 * The client is over its rate limits
+	 */
+	public static final int THROTTLE = 1 << 1;
+
+	private static final ChannelLocal<ReadSuspension> SUSPENSIONS = new ChannelLocal<ReadSuspension>(true) {
+		@Override
+		protected ReadSuspension initialValue(Channel channel) {
+			return new ReadSuspension();
+		}
+	};
+
+	private int reasons = 0;
+
+	private ReadSuspension() {
+	}
+
+	/**
+	 * Suspend the reads of a channel for the given reason
+	 * 
+	 * @param channel
+	 * @param reason
+	 *            one of {@link #AUTHENTICATION} or {@link #THROTTLE}
+	 */
+	public static void suspend(Channel channel, int reason) {
+		ReadSuspension suspension = SUSPENSIONS.get(channel);
+		synchronized (suspension) {
+			if (suspension.reasons == 0) {
+				channel.setReadable(false);
+			}
+			suspension.reasons |= reason;
+		}
+	}
+
+	/**
+	 * Remove a reason of suspension of a channel, and resume its reads if it was the last one
+	 * 
+	 * @param channel
+	 * @param reason
+	 *            one of {@link #AUTHENTICATION} or {@link #THROTTLE}
+	 */
+	public static void resume(Channel channel, int reason) {
+		ReadSuspension suspension = SUSPENSIONS.get(channel);
+		synchronized (suspension) {
+			if (suspension.reasons == 0)
+				return;
+
+			suspension.reasons &= ~reason;
+			if (suspension.reasons == 0 && channel.isOpen()) {
+				channel.setReadable(true);
+			}
+		}
+	}
+
+	/**
+	 * @param channel
+	 * @return true if the reads of the channel are suspended for at least one reason
+	 */
+	public static boolean isSuspended(Channel channel) {
+		ReadSuspension suspension = SUSPENSIONS.get(channel);
+		synchronized (suspension) {
+			return suspension.reasons != 0;
+		}
+	}
+}
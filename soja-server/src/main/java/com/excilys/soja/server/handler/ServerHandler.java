@@ -19,6 +19,8 @@ import static com.excilys.soja.core.model.Frame.COMMAND_ACK;
 import static com.excilys.soja.core.model.Frame.COMMAND_CONNECT;
 import static com.excilys.soja.core.model.Frame.COMMAND_DISCONNECT;
 import static com.excilys.soja.core.model.Frame.COMMAND_HEARBEAT;
+import static com.excilys.soja.core.model.Frame.COMMAND_MESSAGE;
+import static com.excilys.soja.core.model.Frame.COMMAND_NACK;
 import static com.excilys.soja.core.model.Frame.COMMAND_SEND;
 import static com.excilys.soja.core.model.Frame.COMMAND_SUBSCRIBE;
 import static com.excilys.soja.core.model.Frame.COMMAND_UNSUBSCRIBE;
@@ -29,13 +31,19 @@ import static com.excilys.soja.core.model.Header.HEADER_CONTENT_TYPE;
 import static com.excilys.soja.core.model.Header.HEADER_DESTINATION;
 import static com.excilys.soja.core.model.Header.HEADER_LOGIN;
 import static com.excilys.soja.core.model.Header.HEADER_MESSAGE_ID;
+import static com.excilys.soja.core.model.Header.HEADER_ORIGINAL_DESTINATION;
 import static com.excilys.soja.core.model.Header.HEADER_PASSCODE;
+import static com.excilys.soja.core.model.Header.HEADER_PERSISTENT;
+import static com.excilys.soja.core.model.Header.HEADER_PREFETCH_COUNT;
+import static com.excilys.soja.core.model.Header.HEADER_PREFETCH_SIZE;
 import static com.excilys.soja.core.model.Header.HEADER_RECEIPT_ID_REQUEST;
+import static com.excilys.soja.core.model.Header.HEADER_REDELIVERY_COUNT;
 import static com.excilys.soja.core.model.Header.HEADER_SUBSCRIPTION;
 import static com.excilys.soja.core.model.Header.HEADER_SUBSCRIPTION_ID;
 import static com.excilys.soja.core.model.Header.HEADER_TRANSACTION;
 import static com.excilys.soja.server.StompServer.STOMP_VERSION;
 
+import java.io.File;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -43,34 +51,57 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import javax.security.auth.login.LoginException;
 
 import org.apache.commons.lang.ArrayUtils;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelLocal;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.ChannelGroupFuture;
+import org.jboss.netty.channel.group.ChannelGroupFutureListener;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroupFuture;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.excilys.soja.core.future.StompFuture;
+import com.excilys.soja.core.future.StompFutureListener;
 import com.excilys.soja.core.handler.StompHandler;
 import com.excilys.soja.core.model.Ack;
 import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.core.model.Header;
 import com.excilys.soja.core.model.frame.ConnectedFrame;
 import com.excilys.soja.core.model.frame.ErrorFrame;
 import com.excilys.soja.core.model.frame.MessageFrame;
 import com.excilys.soja.core.utils.FrameFactory;
 import com.excilys.soja.server.StompServer;
 import com.excilys.soja.server.authentication.Authentication;
+import com.excilys.soja.server.authentication.SessionIdGenerator;
 import com.excilys.soja.server.events.StompServerListener;
 import com.excilys.soja.server.exception.AlreadyConnectedException;
 import com.excilys.soja.server.exception.UnsupportedVersionException;
+import com.excilys.soja.server.journal.Journal;
 import com.excilys.soja.server.manager.SubscriptionManager;
+import com.excilys.soja.server.metrics.BrokerMetrics;
+import com.excilys.soja.server.metrics.DestinationMetrics;
+import com.excilys.soja.server.metrics.Histogram;
 import com.excilys.soja.server.model.AckWaiting;
+import com.excilys.soja.server.model.OverflowBuffer;
+import com.excilys.soja.server.model.RedeliveryPolicy;
+import com.excilys.soja.server.model.StompSession;
 import com.excilys.soja.server.model.Subscription;
 
 /**
@@ -84,18 +115,43 @@ public class ServerHandler extends StompHandler {
 			HEADER_CONTENT_TYPE, HEADER_CONTENT_LENGTH, HEADER_RECEIPT_ID_REQUEST };
 	private static final SubscriptionManager subscriptionManager = SubscriptionManager.getInstance();
 	private static final Map<String, AckWaiting> waitingAcks = new HashMap<String, AckWaiting>();
+	private static final Executor SAME_THREAD_EXECUTOR = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
 
 	private final List<StompServerListener> stompServerListeners = new ArrayList<StompServerListener>();
 	private final Authentication authentication;
-	private final Map<Channel, String> clientsSessionToken = new HashMap<Channel, String>();
+	private final ChannelLocal<StompSession> sessions = new ChannelLocal<StompSession>();
+	private final ChannelLocal<List<Frame>> authenticatingFrames = new ChannelLocal<List<Frame>>(true);
+	private final ChannelGroup clientChannels = new DefaultChannelGroup("soja-clients");
+	private final Timer timer;
+	private final SessionIdGenerator sessionIdGenerator = new SessionIdGenerator();
+	private final BrokerMetrics metrics = new BrokerMetrics();
+	private Executor authenticationExecutor = SAME_THREAD_EXECUTOR;
+	private RedeliveryPolicy redeliveryPolicy = new RedeliveryPolicy();
+	private Journal journal;
+	private File overflowDirectory;
+	private long maxBacklogMemorySize = OverflowBuffer.DEFAULT_MAX_MEMORY_SIZE;
+	private AdmissionHandler admissionHandler;
 
-	public ServerHandler(Authentication authentication) {
+	/**
+	 * @param authentication
+	 * @param timer
+	 *            timer shared by all the clients, used to schedule heart-beats and the redelivery of NACK-ed messages
+	 */
+	public ServerHandler(Authentication authentication, Timer timer) {
+		super(timer);
 		this.authentication = authentication;
+		this.timer = timer;
 	}
 
 	@Override
 	public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
 		super.channelConnected(ctx, e);
+		clientChannels.add(ctx.getChannel());
 		LOGGER.debug("Channel connected to {}. Starting client session", ctx.getChannel().getRemoteAddress());
 	}
 
@@ -121,19 +177,45 @@ public class ServerHandler extends StompHandler {
 		Frame frame = (Frame) event.getMessage();
 		LOGGER.trace("Received frame from {} : {}", channel.getRemoteAddress(), frame);
 
+		// Frames received while the client is authenticated are processed once the CONNECTED frame is sent
+		List<Frame> waitingFrames = authenticatingFrames.get(channel);
+		if (waitingFrames != null) {
+			synchronized (waitingFrames) {
+				if (authenticatingFrames.get(channel) == waitingFrames) {
+					waitingFrames.add(frame);
+					return;
+				}
+			}
+		}
+		handleFrame(channel, frame);
+	}
+
+	/**
+	 * Call the handler of the frame's command
+	 * 
+	 * @param channel
+	 * @param frame
+	 * @throws Exception
+	 */
+	private void handleFrame(Channel channel, Frame frame) throws Exception {
+		StompSession session = sessions.get(channel);
+		if (session != null) {
+			session.incrementReceivedFrameCount();
+		}
+
 		// CONNECT
 		if (frame.isCommand(COMMAND_CONNECT)) {
 			try {
 				handleConnect(channel, frame);
 			} catch (RuntimeException e) {
 				LOGGER.info("Login failed", e);
-				disconnectClient(event.getChannel());
+				disconnectClient(channel);
 			}
 		}
 		// DISCONNECT
 		else if (frame.isCommand(COMMAND_DISCONNECT)) {
 			handleDisconnect(channel, frame);
-			disconnectClient(event.getChannel());
+			disconnectClient(channel);
 		}
 		// SUBSCRIBE
 		else if (frame.isCommand(COMMAND_SUBSCRIBE)) {
@@ -151,6 +233,10 @@ public class ServerHandler extends StompHandler {
 		else if (frame.isCommand(COMMAND_ACK)) {
 			handleAck(channel, frame);
 		}
+		// NACK
+		else if (frame.isCommand(COMMAND_NACK)) {
+			handleNack(channel, frame);
+		}
 		// HEARTBEAT
 		else if (frame.isCommand(COMMAND_HEARBEAT)) {
 			handleHeartBeat(channel, frame);
@@ -162,15 +248,16 @@ public class ServerHandler extends StompHandler {
 	}
 
 	/**
-	 * Handle CONNECT command
+	 * Handle CONNECT command. The credentials are checked by the authentication executor, the reads of the channel are
+	 * suspended and the frames already received are buffered until the CONNECTED frame is sent.
 	 * 
 	 * @param frame
 	 * @throws SocketException
 	 */
-	public void handleConnect(final Channel channel, Frame frame) throws LoginException, UnsupportedVersionException,
+	public void handleConnect(final Channel channel, final Frame frame) throws UnsupportedVersionException,
 			AlreadyConnectedException, SocketException {
 		// Retrieve the session for this client
-		if (clientsSessionToken.containsKey(channel)) {
+		if (sessions.get(channel) != null || authenticatingFrames.get(channel) != null) {
 			throw new AlreadyConnectedException("User try to connect but it seems to be already connected");
 		}
 
@@ -187,29 +274,129 @@ public class ServerHandler extends StompHandler {
 		String login = frame.getHeaderValue(HEADER_LOGIN);
 		String password = frame.getHeaderValue(HEADER_PASSCODE);
 
-		try {
-			LOGGER.trace("Check credentials for {}", login);
+		final List<Frame> waitingFrames = new ArrayList<Frame>();
+		authenticatingFrames.set(channel, waitingFrames);
+		ReadSuspension.suspend(channel, ReadSuspension.AUTHENTICATION);
 
-			// Check the credentials of the user
-			String clientSessionToken = authentication.connect(login, password);
-			clientsSessionToken.put(channel, clientSessionToken);
+		// Check the credentials of the user without blocking the I/O thread
+		LOGGER.trace("Check credentials for {}", login);
+		StompFuture<String> authenticationFuture = authentication.connectAsync(login, password,
+				authenticationExecutor);
+		authenticationFuture.addListener(new StompFutureListener<String>() {
+			@Override
+			public void operationComplete(StompFuture<String> future) throws Exception {
+				boolean connected = false;
+				try {
+					if (future.isSuccess()) {
+						connected = openSession(channel, frame, future.getNow());
+					} else {
+						rejectConnect(channel, future.getCause());
+					}
+				} catch (Exception e) {
+					LOGGER.debug("Failed to complete the connection. Closing channel : {}", e);
+					channel.close();
+				} finally {
+					handleWaitingFrames(channel, waitingFrames, connected);
+				}
+			}
+		});
+	}
 
-			// Create the frame to send
-			ConnectedFrame connectedFrame = new ConnectedFrame(STOMP_VERSION);
-			connectedFrame.setSession(clientSessionToken);
-			connectedFrame.setServerName(StompServer.SERVER_HEADER_VALUE);
+	/**
+	 * Create the session of an authenticated client and send the CONNECTED frame
+	 * 
+	 * @param channel
+	 * @param frame
+	 *            the CONNECT frame
+	 * @param clientSessionToken
+	 * @return false if the channel has been closed during the authentication
+	 * @throws SocketException
+	 */
+	private boolean openSession(Channel channel, Frame frame, String clientSessionToken) throws SocketException {
+		StompSession session = new StompSession(sessionIdGenerator.nextId(), channel, clientSessionToken);
+		session.setMetrics(metrics.openConnection(session));
+		sessions.set(channel, session);
 
-			// Start the heart-beat scheduler if needed
-			if (startLocalHeartBeat(channel, frame)) {
-				connectedFrame.setHeartBeat(getLocalGuaranteedHeartBeat(), getLocalExpectedHeartBeat());
-			}
+		// The client may have left while it was authenticated, in this case its disconnection has already been handled
+		if (!channel.isOpen()) {
+			sessions.remove(channel);
+			metrics.closeConnection(session);
+			return false;
+		}
+
+		if (admissionHandler != null) {
+			admissionHandler.loginAuthenticated(channel, frame.getHeaderValue(HEADER_LOGIN));
+		}
+
+		// Create the frame to send
+		ConnectedFrame connectedFrame = new ConnectedFrame(STOMP_VERSION);
+		connectedFrame.setSession(clientSessionToken);
+		connectedFrame.setServerName(StompServer.SERVER_HEADER_VALUE);
 
-			sendFrame(channel, connectedFrame);
+		// Start the heart-beat scheduler and the check of the client's heart-beats if needed
+		boolean localHeartBeat = startLocalHeartBeat(channel, frame);
+		boolean remoteHeartBeat = startRemoteHeartBeatMonitoring(channel, frame);
+		if (localHeartBeat || remoteHeartBeat) {
+			connectedFrame.setHeartBeat(getLocalGuaranteedHeartBeat(), getLocalExpectedHeartBeat());
+		}
+		session.setHeartBeat(getLocalHeartBeatInterval(channel), getRemoteHeartBeatInterval(channel));
 
-			fireConnectedListeners(channel);
-		} catch (LoginException e) {
+		sendFrame(channel, connectedFrame);
+
+		fireConnectedListeners(channel);
+		return true;
+	}
+
+	/**
+	 * Send an error to a client whose authentication failed and disconnect it
+	 * 
+	 * @param channel
+	 * @param cause
+	 * @throws SocketException
+	 */
+	private void rejectConnect(Channel channel, Throwable cause) throws SocketException {
+		if (cause instanceof LoginException) {
+			LOGGER.info("Login failed : {}", cause.getMessage());
 			sendError(channel, "Bad credentials", "Username or passcode incorrect");
-			throw e;
+		} else {
+			LOGGER.warn("Authentication failed", cause);
+			sendError(channel, "Authentication failed", "The server can't check the credentials, try again later");
+		}
+		disconnectClient(channel);
+	}
+
+	/**
+	 * Process the frames received during the authentication, then resume the reads of the channel unless they are
+	 * still suspended for another reason, like a throttling. The frames are dropped if the client hasn't been
+	 * connected.
+	 * 
+	 * @param channel
+	 * @param waitingFrames
+	 * @param connected
+	 */
+	private void handleWaitingFrames(Channel channel, List<Frame> waitingFrames, boolean connected) {
+		while (true) {
+			Frame frame = null;
+			synchronized (waitingFrames) {
+				if (!connected || waitingFrames.isEmpty()) {
+					waitingFrames.clear();
+					authenticatingFrames.remove(channel);
+					break;
+				}
+				frame = waitingFrames.remove(0);
+			}
+
+			try {
+				handleFrame(channel, frame);
+			} catch (Exception e) {
+				LOGGER.debug("Failed to handle a frame received during the authentication. Closing channel : {}", e);
+				channel.close();
+				connected = false;
+			}
+		}
+
+		if (connected) {
+			ReadSuspension.resume(channel, ReadSuspension.AUTHENTICATION);
 		}
 	}
 
@@ -240,22 +427,56 @@ public class ServerHandler extends StompHandler {
 	 * @throws SocketException
 	 */
 	public void handleSend(Channel channel, Frame sendFrame) throws SocketException {
+		long receivedTime = System.nanoTime();
 		String topic = sendFrame.getHeaderValue(HEADER_DESTINATION);
 
 		synchronized (authentication) {
-			if (!authentication.canSend(clientsSessionToken.get(channel), topic)) {
+			if (!authentication.canSend(getSessionToken(channel), topic)) {
 				sendError(channel, "Can't send message", "You're not allowed to send a message to the topic" + topic);
 				return;
 			}
 		}
 
+		// Persistent messages are written in the journal while they are dispatched
+		ChannelFuture journalFuture = null;
+		if (journal != null && Boolean.parseBoolean(sendFrame.getHeaderValue(HEADER_PERSISTENT))) {
+			journalFuture = journal.append(channel, sendFrame);
+		}
+
+		StompSession session = sessions.get(channel);
+		if (session != null) {
+			session.getMetrics().messageReceived(sendFrame.getBodySize());
+		}
+		publish(channel, topic, sendFrame, journalFuture, receivedTime);
+	}
+
+	/**
+	 * Send the message to each subscriber of the topic. If some of them have to acknowledge it, the receipt is sent
+	 * back to the publisher once all ACKs have been received.
+	 * 
+	 * @param channel
+	 *            the publisher's channel, or null if the message is published by the server itself
+	 * @param topic
+	 * @param sendFrame
+	 * @param journalFuture
+	 *            the future notified when the message is written in the journal, or null if it's not persistent
+	 * @param receivedTime
+	 *            the time the SEND frame has been handled, given by {@link System#nanoTime()}
+	 * @throws SocketException
+	 */
+	private void publish(Channel channel, String topic, Frame sendFrame, ChannelFuture journalFuture,
+			long receivedTime) throws SocketException {
 		// Retrieve subscribers for the given topic
 		Set<Subscription> subscriptions = null;
 		subscriptions = subscriptionManager.retrieveSubscriptionsByTopic(topic);
 
+		DestinationMetrics destinationMetrics = metrics.getDestination(topic);
+		destinationMetrics.messageReceived(sendFrame.getBodySize(), subscriptions == null ? 0 : subscriptions.size());
+
 		if (subscriptions != null && subscriptions.size() > 0) {
-			// Construct the MESSAGE frame
-			MessageFrame messageFrame = new MessageFrame(topic, sendFrame.getBody(), null);
+			// Construct the MESSAGE frame, the body is forwarded as it was received
+			MessageFrame messageFrame = new MessageFrame(topic, null, null);
+			messageFrame.setBodyBytes(sendFrame.getBodyBytes());
 
 			// Add content-type if it was present on the SEND command
 			String contentType = sendFrame.getHeaderValue(HEADER_CONTENT_TYPE);
@@ -263,6 +484,12 @@ public class ServerHandler extends StompHandler {
 				messageFrame.setContentType(contentType);
 			}
 
+			// Keep the content-length of the SEND command : the body may contain null characters
+			String contentLength = sendFrame.getHeaderValue(HEADER_CONTENT_LENGTH);
+			if (contentLength != null) {
+				messageFrame.setHeaderValue(HEADER_CONTENT_LENGTH, contentLength);
+			}
+
 			// Add user keys if there was some on the SEND command
 			Set<String> userKeys = sendFrame.getHeader().allKeys(SEND_USER_HEADERS_FILTER);
 			for (String userKey : userKeys) {
@@ -270,30 +497,50 @@ public class ServerHandler extends StompHandler {
 			}
 
 			// Create a set of subscription which will be used for ACKs requests
-			TreeSet<Long> acks = new TreeSet<Long>();
-
-			// Send the message frame to each subscriber
+			TreeSet<Subscription> acks = new TreeSet<Subscription>();
 			for (Subscription subscription : subscriptions) {
-				// If an ack is needed for this client, add the subscription to the ACKs queue.
 				if (subscription.getAckMode() != Ack.AUTO) {
-					acks.add(subscription.getSubscriptionId());
+					acks.add(subscription);
 				}
-
-				messageFrame.setHeaderValue(HEADER_SUBSCRIPTION, subscription.getSubscriptionId().toString());
-				sendFrame(subscription.getChannel(), messageFrame);
 			}
 
+			// Register the ACKs requests before sending the message, so an early ACK can't be missed. The body is only
+			// kept by the subscriptions, so the held back messages don't stay in memory when they are spilled
 			if (acks.size() > 0) {
+				Frame sendHeaderFrame = new Frame(sendFrame.getCommand(), sendFrame.getHeader(), null);
 				synchronized (waitingAcks) {
-					String messageId = messageFrame.getMessageId();
-					waitingAcks.put(messageId, new AckWaiting(channel, acks, sendFrame));
+					waitingAcks.put(messageFrame.getMessageId(), new AckWaiting(channel, acks, sendHeaderFrame,
+							journalFuture, receivedTime));
 				}
-			} else {
-				sendReceiptIfRequested(channel, sendFrame);
+				destinationMetrics.pendingAcksAdded(acks.size());
+			}
+
+			// Send the message frame to each subscriber
+			LatencyRecorder writeLatencyRecorder = new LatencyRecorder(destinationMetrics.getWriteLatency(),
+					receivedTime);
+			for (Subscription subscription : subscriptions) {
+				if (subscription.getAckMode() == Ack.AUTO) {
+					messageFrame.setHeaderValue(HEADER_SUBSCRIPTION, subscription.getSubscriptionId().toString());
+					sendFrame(subscription.getChannel(), messageFrame).addListener(writeLatencyRecorder);
+				} else {
+					// The message is held back if the prefetch window of the subscription is full
+					synchronized (subscription) {
+						Frame subscriptionMessageFrame = createMessageFrame(messageFrame, subscription);
+						if (subscription.offerMessage(subscriptionMessageFrame)) {
+							sendFrame(subscription.getChannel(), subscriptionMessageFrame).addListener(
+									writeLatencyRecorder);
+						}
+					}
+				}
+			}
+
+			if (acks.size() > 0) {
 				return;
 			}
+		} else if (channel == null) {
+			LOGGER.info("No subscriber on {}, message dropped : {}", topic, sendFrame);
 		}
-		sendReceiptIfRequested(channel, sendFrame);
+		sendSendReceipt(channel, sendFrame, journalFuture, receivedTime);
 	}
 
 	/**
@@ -306,10 +553,20 @@ public class ServerHandler extends StompHandler {
 		String topic = frame.getHeaderValue(HEADER_DESTINATION);
 		Long subscriptionId = Long.valueOf(frame.getHeaderValue(HEADER_SUBSCRIPTION_ID));
 		Ack ackMode = Ack.parseAck(frame.getHeaderValue(HEADER_ACK));
+		int prefetchCount = Integer.parseInt(frame.getHeader().get(HEADER_PREFETCH_COUNT, "0"));
+		long prefetchSize = Long.parseLong(frame.getHeader().get(HEADER_PREFETCH_SIZE, "0"));
 
-		String clientSessionToken = clientsSessionToken.get(channel);
-		if (authentication.canSubscribe(clientSessionToken, topic)) {
-			subscriptionManager.addSubscription(channel, clientSessionToken, subscriptionId, topic, ackMode);
+		StompSession session = sessions.get(channel);
+		if (session == null) {
+			sendError(channel, "Not connected", "You must be connected to subscribe to the topic " + topic);
+			return;
+		}
+
+		if (authentication.canSubscribe(session.getToken(), topic)) {
+			Subscription subscription = subscriptionManager.addSubscription(channel, session.getId(), subscriptionId,
+					topic, ackMode, prefetchCount, prefetchSize, new OverflowBuffer(overflowDirectory,
+							maxBacklogMemorySize));
+			session.addSubscription(subscription);
 			sendReceiptIfRequested(channel, frame);
 		} else {
 			sendError(channel, "Can't subscribe", "You're not allowed to subscribe to the topic" + topic);
@@ -325,12 +582,20 @@ public class ServerHandler extends StompHandler {
 	public void handleUnsubscribe(Channel channel, Frame frame) throws SocketException {
 		Long subscriptionId = Long.valueOf(frame.getHeaderValue(HEADER_SUBSCRIPTION_ID));
 
-		subscriptionManager.removeSubscription(clientsSessionToken.get(channel), subscriptionId);
+		StompSession session = sessions.get(channel);
+		if (session != null) {
+			Subscription subscription = session.removeSubscription(subscriptionId);
+			subscriptionManager.removeSubscription(session.getId(), subscriptionId);
+			if (subscription != null) {
+				releasePendingMessages(subscription);
+			}
+		}
 		sendReceiptIfRequested(channel, frame);
 	}
 
 	/**
-	 * Handle ACK command
+	 * Handle ACK command. With {@link Ack#CLIENT} mode, the ACK is cumulative : all messages sent to the subscription
+	 * before the acknowledged one are acknowledged too.
 	 * 
 	 * @param frame
 	 * @throws SocketException
@@ -339,18 +604,72 @@ public class ServerHandler extends StompHandler {
 		Long subscriptionId = Long.valueOf(frame.getHeaderValue(HEADER_SUBSCRIPTION));
 		String messageId = frame.getHeaderValue(HEADER_MESSAGE_ID);
 
+		Subscription subscription = retrieveSubscription(channel, subscriptionId);
+		if (subscription == null) {
+			LOGGER.debug("ACK received for an unknown subscription {}", subscriptionId);
+			return;
+		}
+
 		synchronized (waitingAcks) {
-			// Create a set of subscription which will be used for ACKs requests
-			AckWaiting waitingAck = waitingAcks.get(messageId);
-			if (waitingAck != null) {
-				waitingAck.removeSubscriptionId(subscriptionId);
+			for (String acknowledgedMessageId : subscription.removePendingMessagesUntil(messageId)) {
+				AckWaiting waitingAck = waitingAcks.get(acknowledgedMessageId);
+				if (waitingAck != null) {
+					releaseAck(acknowledgedMessageId, waitingAck, subscription);
+				}
+			}
+		}
+
+		sendHeldBackMessages(subscription);
+	}
+
+	/**
+	 * Handle NACK command : the message is redelivered to the subscription after the delay given by the
+	 * {@link RedeliveryPolicy}. Once the message has reached its maximum number of deliveries, it's sent to the dead
+	 * letter destination of its topic instead. Like ACKs, NACKs are cumulative with {@link Ack#CLIENT} mode.
+	 * 
+	 * @param frame
+	 * @throws SocketException
+	 */
+	public void handleNack(Channel channel, Frame frame) throws SocketException {
+		Long subscriptionId = Long.valueOf(frame.getHeaderValue(HEADER_SUBSCRIPTION));
+		String messageId = frame.getHeaderValue(HEADER_MESSAGE_ID);
+
+		Subscription subscription = retrieveSubscription(channel, subscriptionId);
+		if (subscription == null) {
+			LOGGER.debug("NACK received for an unknown subscription {}", subscriptionId);
+			return;
+		}
 
-				if (waitingAck.getSubscriptionIds().isEmpty()) {
-					sendReceiptIfRequested(waitingAck.getChannel(), waitingAck.getSendFrame());
-					waitingAcks.remove(messageId);
+		List<Frame> deadLetters = new ArrayList<Frame>();
+		synchronized (waitingAcks) {
+			for (String rejectedMessageId : subscription.getPendingMessagesUntil(messageId)) {
+				AckWaiting waitingAck = waitingAcks.get(rejectedMessageId);
+				if (waitingAck == null) {
+					subscription.removePendingMessage(rejectedMessageId);
+					continue;
+				}
+
+				int redeliveryCount = waitingAck.getRedeliveryCount(subscription);
+				if (redeliveryPolicy.isExhausted(redeliveryCount + 1)) {
+					Frame sendFrame = waitingAck.getSendFrame();
+					Frame pendingFrame = subscription.getPendingMessage(rejectedMessageId);
+					Frame deadLetter = new Frame(sendFrame.getCommand(), sendFrame.getHeader(), null);
+					deadLetter.setBodyBytes(pendingFrame == null ? null : pendingFrame.getBodyBytes());
+					deadLetters.add(deadLetter);
+					metrics.getDestination(sendFrame.getHeaderValue(HEADER_DESTINATION)).messageDeadLettered();
+					releaseAck(rejectedMessageId, waitingAck, subscription);
+				} else {
+					subscription.rejectPendingMessage(rejectedMessageId);
+					long delay = redeliveryPolicy.getRedeliveryDelay(redeliveryCount);
+					timer.newTimeout(new Redelivery(rejectedMessageId, subscription), delay, TimeUnit.MILLISECONDS);
 				}
 			}
 		}
+
+		for (Frame deadLetter : deadLetters) {
+			sendToDeadLetter(deadLetter);
+		}
+		sendHeldBackMessages(subscription);
 	}
 
 	/**
@@ -393,18 +712,348 @@ public class ServerHandler extends StompHandler {
 		return null;
 	}
 
-	public void disconnectAllClients() {
-		Set<Channel> channelClientsSet = clientsSessionToken.keySet();
-		for (Channel channelClient : channelClientsSet) {
-			disconnectClient(channelClient);
+	/**
+	 * Retrieve a subscription of the client connected on this channel
+	 * 
+	 * @param channel
+	 * @param subscriptionId
+	 * @return the subscription or null if the client has no subscription with this id
+	 */
+	private Subscription retrieveSubscription(Channel channel, Long subscriptionId) {
+		StompSession session = sessions.get(channel);
+		if (session == null)
+			return null;
+		return session.getSubscription(subscriptionId);
+	}
+
+	/**
+	 * @param channel
+	 * @return the session token of the client, or null if it's not connected
+	 */
+	private String getSessionToken(Channel channel) {
+		StompSession session = sessions.get(channel);
+		return session == null ? null : session.getToken();
+	}
+
+	/**
+	 * @param channel
+	 * @return the session of the client connected on this channel, or null if it's not connected
+	 */
+	public StompSession getSession(Channel channel) {
+		return sessions.get(channel);
+	}
+
+	@Override
+	public ChannelFuture sendFrame(Channel channel, Frame frame) throws SocketException {
+		ChannelFuture channelFuture = super.sendFrame(channel, frame);
+		StompSession session = sessions.get(channel);
+		if (session != null) {
+			session.incrementSentFrameCount();
+		}
+
+		if (frame.isCommand(COMMAND_MESSAGE)) {
+			int bodySize = frame.getBodySize();
+			metrics.getDestination(frame.getHeaderValue(HEADER_DESTINATION)).messageSent(bodySize);
+			if (session != null) {
+				session.getMetrics().messageSent(bodySize);
+			}
+		}
+		return channelFuture;
+	}
+
+	/**
+	 * Send the messages held back for a subscription as long as its prefetch window isn't full
+	 * 
+	 * @param subscription
+	 * @throws SocketException
+	 */
+	private void sendHeldBackMessages(Subscription subscription) throws SocketException {
+		synchronized (subscription) {
+			Frame messageFrame = null;
+			while ((messageFrame = subscription.pollMessage()) != null) {
+				sendFrame(subscription.getChannel(), messageFrame);
+			}
+		}
+	}
+
+	/**
+	 * Copy a MESSAGE frame for a subscription, so it can be kept or sent while the original one is modified.
+	 * 
+	 * @param messageFrame
+	 * @param subscription
+	 *            the subscription the message is sent to, or null to keep the subscription header unchanged
+	 * @return a new MESSAGE frame
+	 */
+	private Frame createMessageFrame(Frame messageFrame, Subscription subscription) {
+		Header header = new Header();
+		header.putAll(messageFrame.getHeader());
+		if (subscription != null) {
+			header.set(HEADER_SUBSCRIPTION, subscription.getSubscriptionId().toString());
 		}
+		Frame frame = new Frame(COMMAND_MESSAGE, header, null);
+		frame.setBodyBytes(messageFrame.getBodyBytes());
+		return frame;
 	}
 
-	private void disconnectClient(Channel channel) {
+	/**
+	 * Remove a subscription from the ones which have to acknowledge a message. When all subscriptions have
+	 * acknowledged it, the receipt is sent to the publisher. Must be called while holding the lock on waitingAcks.
+	 * 
+	 * @param messageId
+	 * @param waitingAck
+	 * @param subscription
+	 * @throws SocketException
+	 */
+	private void releaseAck(String messageId, AckWaiting waitingAck, Subscription subscription)
+			throws SocketException {
+		subscription.removePendingMessage(messageId);
+		waitingAck.removeSubscription(subscription);
+		metrics.getDestination(waitingAck.getSendFrame().getHeaderValue(HEADER_DESTINATION)).pendingAckReleased();
+
+		if (waitingAck.getSubscriptions().isEmpty()) {
+			waitingAcks.remove(messageId);
+
+			Channel publisherChannel = waitingAck.getChannel();
+			if (publisherChannel != null && publisherChannel.isConnected()) {
+				sendSendReceipt(publisherChannel, waitingAck.getSendFrame(), waitingAck.getJournalFuture(),
+						waitingAck.getReceivedTime());
+			}
+		}
+	}
+
+	/**
+	 * Release all the messages a removed subscription didn't acknowledge, so their publishers are not waiting for it
+	 * anymore.
+	 * 
+	 * @param subscription
+	 */
+	private void releasePendingMessages(Subscription subscription) {
+		synchronized (waitingAcks) {
+			for (String messageId : subscription.removePendingMessages()) {
+				AckWaiting waitingAck = waitingAcks.get(messageId);
+				if (waitingAck != null) {
+					try {
+						releaseAck(messageId, waitingAck, subscription);
+					} catch (SocketException e) {
+						LOGGER.debug("Can't send the receipt of message {} : {}", messageId, e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Publish a message which can't be redelivered anymore on the dead letter destination of its topic. The original
+	 * topic is kept in the {@link Header#HEADER_ORIGINAL_DESTINATION} header.
+	 * 
+	 * @param sendFrame
+	 * @throws SocketException
+	 */
+	private void sendToDeadLetter(Frame sendFrame) throws SocketException {
+		String topic = sendFrame.getHeaderValue(HEADER_DESTINATION);
+		String deadLetterDestination = redeliveryPolicy.getDeadLetterDestination(topic);
+		LOGGER.debug("Message of {} reached its maximum deliveries. Sending it to {}", topic, deadLetterDestination);
+
+		Header header = new Header();
+		header.putAll(sendFrame.getHeader());
+		header.remove(HEADER_RECEIPT_ID_REQUEST);
+		header.set(HEADER_DESTINATION, deadLetterDestination).set(HEADER_ORIGINAL_DESTINATION, topic);
+
+		Frame deadLetter = new Frame(sendFrame.getCommand(), header, null);
+		deadLetter.setBodyBytes(sendFrame.getBodyBytes());
+		publish(null, deadLetterDestination, deadLetter, null, System.nanoTime());
+	}
+
+	public RedeliveryPolicy getRedeliveryPolicy() {
+		return redeliveryPolicy;
+	}
+
+	public void setRedeliveryPolicy(RedeliveryPolicy redeliveryPolicy) {
+		if (redeliveryPolicy == null)
+			throw new NullPointerException("redeliveryPolicy can't be null");
+		this.redeliveryPolicy = redeliveryPolicy;
+	}
+
+	/**
+	 * Send the receipt of a SEND frame if it was requested. If the message is persistent, the receipt is sent once the
+	 * journal batch holding it has been flushed, or an ERROR frame is sent if it couldn't be written.
+	 * 
+	 * @param channel
+	 * @param sendFrame
+	 * @param journalFuture
+	 *            the future notified when the message is written in the journal, or null if it's not persistent
+	 * @param receivedTime
+	 *            the time the SEND frame has been handled, given by {@link System#nanoTime()}
+	 * @throws SocketException
+	 */
+	private void sendSendReceipt(final Channel channel, final Frame sendFrame, ChannelFuture journalFuture,
+			long receivedTime) throws SocketException {
+		final String receiptId = sendFrame.getHeaderValue(HEADER_RECEIPT_ID_REQUEST);
+		if (receiptId == null)
+			return;
+
+		final LatencyRecorder receiptLatencyRecorder = new LatencyRecorder(metrics.getDestination(
+				sendFrame.getHeaderValue(HEADER_DESTINATION)).getReceiptLatency(), receivedTime);
+		if (journalFuture == null) {
+			sendReceiptIfRequested(channel, sendFrame).addListener(receiptLatencyRecorder);
+			return;
+		}
+
+		journalFuture.addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				if (!channel.isConnected()) {
+					return;
+				}
+
+				if (future.isSuccess()) {
+					sendReceiptIfRequested(channel, sendFrame).addListener(receiptLatencyRecorder);
+				} else {
+					ErrorFrame errorFrame = new ErrorFrame("Message not persisted");
+					errorFrame.setDescription("The message couldn't be written in the journal : "
+							+ future.getCause().getMessage());
+					errorFrame.setReceipId(receiptId);
+					sendFrame(channel, errorFrame);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the metrics of the messages handled by this handler
+	 */
+	public BrokerMetrics getMetrics() {
+		return metrics;
+	}
+
+	public Executor getAuthenticationExecutor() {
+		return authenticationExecutor;
+	}
+
+	/**
+	 * Configure the executor which checks the credentials of the connecting clients. By default, they are checked by
+	 * the I/O thread which received the CONNECT frame.
+	 * 
+	 * @param authenticationExecutor
+	 */
+	public void setAuthenticationExecutor(Executor authenticationExecutor) {
+		this.authenticationExecutor = authenticationExecutor;
+	}
+
+	public Journal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * @param journal
+	 *            the journal where persistent messages are written, or null to ignore the persistent header
+	 */
+	public void setJournal(Journal journal) {
+		this.journal = journal;
+	}
+
+	public File getOverflowDirectory() {
+		return overflowDirectory;
+	}
+
+	/**
+	 * @param overflowDirectory
+	 *            the directory where the messages held back for a subscription are spilled, or null to keep them in
+	 *            memory
+	 */
+	public void setOverflowDirectory(File overflowDirectory) {
+		this.overflowDirectory = overflowDirectory;
+	}
+
+	public long getMaxBacklogMemorySize() {
+		return maxBacklogMemorySize;
+	}
+
+	/**
+	 * @param maxBacklogMemorySize
+	 *            size of the messages held back in memory for each subscription, above which they are spilled
+	 */
+	public void setMaxBacklogMemorySize(long maxBacklogMemorySize) {
+		if (maxBacklogMemorySize < 0)
+			throw new IllegalArgumentException("Maximum backlog memory size have to be a positive number");
+		this.maxBacklogMemorySize = maxBacklogMemorySize;
+	}
+
+	public AdmissionHandler getAdmissionHandler() {
+		return admissionHandler;
+	}
+
+	/**
+	 * @param admissionHandler
+	 *            the admission handler of the pipeline, told about the logins once they are authenticated, or null if
+	 *            there is none
+	 */
+	public void setAdmissionHandler(AdmissionHandler admissionHandler) {
+		this.admissionHandler = admissionHandler;
+	}
+
+	/**
+	 * Close the connection of all clients immediately, without blocking.
+	 * 
+	 * @return a future notified once all the channels are closed
+	 */
+	public ChannelGroupFuture disconnectAllClients() {
+		return disconnectAllClients(0);
+	}
+
+	/**
+	 * Disconnect all clients in parallel, without blocking. Each client first receives the frames already queued for
+	 * it, during at most <code>drainTimeout</code> milliseconds. Then the remaining connections are closed.
+	 * 
+	 * @param drainTimeout
+	 *            maximum time to wait for the queued frames to be written, 0 to close the connections immediately
+	 * @return a future notified once all the channels are closed
+	 */
+	public ChannelGroupFuture disconnectAllClients(long drainTimeout) {
+		LOGGER.debug("Disconnecting {} clients...", clientChannels.size());
+
+		final List<ChannelFuture> closeFutures = new ArrayList<ChannelFuture>();
+		for (Channel channel : clientChannels) {
+			if (drainTimeout > 0) {
+				closeFutures.add(disconnectClient(channel));
+			} else {
+				closeFutures.add(channel.close());
+			}
+		}
+		ChannelGroupFuture channelGroupFuture = new DefaultChannelGroupFuture(clientChannels, closeFutures);
+
+		// Close the clients which didn't receive their frames in time
+		if (drainTimeout > 0 && !channelGroupFuture.isDone()) {
+			final Timeout drainTimer = timer.newTimeout(new TimerTask() {
+				@Override
+				public void run(Timeout timeout) throws Exception {
+					for (ChannelFuture closeFuture : closeFutures) {
+						closeFuture.getChannel().close();
+					}
+				}
+			}, drainTimeout, TimeUnit.MILLISECONDS);
+			channelGroupFuture.addListener(new ChannelGroupFutureListener() {
+				@Override
+				public void operationComplete(ChannelGroupFuture future) throws Exception {
+					drainTimer.cancel();
+				}
+			});
+		}
+		return channelGroupFuture;
+	}
+
+	/**
+	 * Close the connection once the frames already queued for the client have been written, without blocking.
+	 * 
+	 * @param channel
+	 * @return the close future of the channel
+	 */
+	private ChannelFuture disconnectClient(Channel channel) {
 		LOGGER.debug("Disconnecting client {}...", channel.getRemoteAddress());
 
-		channel.close().awaitUninterruptibly(15000);
-		channel.unbind().awaitUninterruptibly(15000);
+		// Writes are ordered, so the empty buffer is written once all the previous frames are
+		channel.write(ChannelBuffers.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+		return channel.getCloseFuture();
 	}
 
 	public void addListener(StompServerListener stompServerListener) {
@@ -421,10 +1070,18 @@ public class ServerHandler extends StompHandler {
 	 * @param channel
 	 */
 	private void handleDisconnectingClient(Channel channel) {
-		// Remove all subscription for this client's session
-		subscriptionManager.removeSubscriptions(clientsSessionToken.get(channel));
-		// Remote session token
-		clientsSessionToken.remove(channel);
+		StompSession session = sessions.remove(channel);
+
+		// Remove all subscription for this client's session and release the messages they were waiting for
+		if (session != null) {
+			for (Subscription subscription : session.getSubscriptions()) {
+				releasePendingMessages(subscription);
+			}
+			subscriptionManager.removeSubscriptions(session.getId());
+			metrics.closeConnection(session);
+			LOGGER.debug("Session closed after receiving {} frames and sending {} frames : {}", new Object[] {
+					session.getReceivedFrameCount(), session.getSentFrameCount(), session });
+		}
 		fireDisconnectedListeners(channel);
 	}
 
@@ -440,4 +1097,75 @@ public class ServerHandler extends StompHandler {
 		}
 	}
 
+	/**
+	 * Record the time elapsed since a SEND frame has been handled once a write is done
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private static class LatencyRecorder implements ChannelFutureListener {
+
+		private final Histogram histogram;
+		private final long receivedTime;
+
+		public LatencyRecorder(Histogram histogram, long receivedTime) {
+			this.histogram = histogram;
+			this.receivedTime = receivedTime;
+		}
+
+		@Override
+		public void operationComplete(ChannelFuture future) throws Exception {
+			if (future.isSuccess()) {
+				histogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - receivedTime));
+			}
+		}
+	}
+
+	/**
+	 * Redeliver a NACK-ed message to the subscription if it's still waiting for an acknowledgment
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private class Redelivery implements TimerTask {
+
+		private final String messageId;
+		private final Subscription subscription;
+
+		public Redelivery(String messageId, Subscription subscription) {
+			this.messageId = messageId;
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			Frame messageFrame = null;
+
+			synchronized (waitingAcks) {
+				AckWaiting waitingAck = waitingAcks.get(messageId);
+				if (waitingAck == null || !waitingAck.getSubscriptions().contains(subscription)) {
+					return;
+				}
+
+				// The subscriber left, there is no one to redeliver the message to
+				if (!subscription.getChannel().isConnected()) {
+					releaseAck(messageId, waitingAck, subscription);
+					return;
+				}
+
+				Frame pendingFrame = subscription.redeliverPendingMessage(messageId);
+				if (pendingFrame == null) {
+					return;
+				}
+				int redeliveryCount = waitingAck.incrementRedeliveryCount(subscription);
+
+				messageFrame = createMessageFrame(pendingFrame, subscription);
+				messageFrame.setHeaderValue(HEADER_REDELIVERY_COUNT, String.valueOf(redeliveryCount));
+			}
+
+			LOGGER.trace("Redelivering message {} to subscription {}", messageId, subscription.getSubscriptionId());
+			sendFrame(subscription.getChannel(), messageFrame);
+		}
+	}
+
 }
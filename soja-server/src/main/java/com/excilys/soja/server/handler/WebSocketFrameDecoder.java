@@ -0,0 +1,156 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.handler;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decoder of the WebSocket frames sent by clients, as described by RFC 6455. It replaces the decoder installed by the
+ * Netty handshaker, which checks the payload of text frames is valid UTF-8 : compressed text frames are not, until
+ * they are inflated by the {@link WebSocketHandler}. The payloads are not checked at all, the STOMP decoder reads
+ * bytes.
+ * <p/>
+ * Frames breaking the protocol close the connection : unmasked frames, reserved bits or opcodes which haven't been
+ * negotiated, fragmented or too long control frames, and payloads over the maximum length.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+class WebSocketFrameDecoder extends FrameDecoder {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WebSocketFrameDecoder.class);
+
+	private static final int OPCODE_CONTINUATION = 0x0;
+	private static final int OPCODE_TEXT = 0x1;
+	private static final int OPCODE_BINARY = 0x2;
+	private static final int OPCODE_CLOSE = 0x8;
+	private static final int OPCODE_PING = 0x9;
+	private static final int OPCODE_PONG = 0xA;
+	private static final int RSV1 = 4;
+	private static final int MAX_CONTROL_PAYLOAD_LENGTH = 125;
+	private static final int MASK_LENGTH = 4;
+
+	private final boolean compressionNegotiated;
+	private final long maxPayloadLength;
+
+	/**
+	 * @param compressionNegotiated
+	 *            true if the permessage-deflate extension has been negotiated, so the RSV1 bit can be set
+	 * @param maxPayloadLength
+	 *            maximum length of a frame payload, in bytes
+	 */
+	public WebSocketFrameDecoder(boolean compressionNegotiated, long maxPayloadLength) {
+		this.compressionNegotiated = compressionNegotiated;
+		this.maxPayloadLength = maxPayloadLength;
+	}
+
+	@Override
+	protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+		if (buffer.readableBytes() < 2)
+			return null;
+
+		int start = buffer.readerIndex();
+		byte firstByte = buffer.getByte(start);
+		byte secondByte = buffer.getByte(start + 1);
+		boolean finalFragment = (firstByte & 0x80) != 0;
+		int rsv = (firstByte & 0x70) >> 4;
+		int opcode = firstByte & 0x0F;
+		boolean masked = (secondByte & 0x80) != 0;
+
+		int headerLength = 2;
+		long payloadLength = secondByte & 0x7F;
+		if (payloadLength == 126) {
+			if (buffer.readableBytes() < 4)
+				return null;
+			payloadLength = buffer.getUnsignedShort(start + 2);
+			headerLength = 4;
+		} else if (payloadLength == 127) {
+			if (buffer.readableBytes() < 10)
+				return null;
+			payloadLength = buffer.getLong(start + 2);
+			headerLength = 10;
+		}
+
+		String violation = checkHeader(finalFragment, rsv, opcode, masked, payloadLength);
+		if (violation != null) {
+			LOGGER.debug("Invalid WebSocket frame received from {} : {}. Closing channel", channel.getRemoteAddress(),
+					violation);
+			buffer.skipBytes(buffer.readableBytes());
+			channel.close();
+			return null;
+		}
+
+		if (buffer.readableBytes() < headerLength + MASK_LENGTH + payloadLength)
+			return null;
+
+		byte[] mask = new byte[MASK_LENGTH];
+		buffer.getBytes(start + headerLength, mask);
+		buffer.skipBytes(headerLength + MASK_LENGTH);
+		ChannelBuffer payload = buffer.readBytes((int) payloadLength);
+		for (int i = 0; i < payload.writerIndex(); i++) {
+			payload.setByte(i, payload.getByte(i) ^ mask[i % MASK_LENGTH]);
+		}
+
+		switch (opcode) {
+		case OPCODE_CONTINUATION:
+			return new ContinuationWebSocketFrame(finalFragment, rsv, payload);
+		case OPCODE_TEXT:
+			return new TextWebSocketFrame(finalFragment, rsv, payload);
+		case OPCODE_BINARY:
+			return new BinaryWebSocketFrame(finalFragment, rsv, payload);
+		case OPCODE_CLOSE:
+			return new CloseWebSocketFrame(finalFragment, rsv, payload);
+		case OPCODE_PING:
+			return new PingWebSocketFrame(finalFragment, rsv, payload);
+		default:
+			return new PongWebSocketFrame(finalFragment, rsv, payload);
+		}
+	}
+
+	/**
+	 * @return the reason why the frame breaks the protocol, or null if it doesn't
+	 */
+	private String checkHeader(boolean finalFragment, int rsv, int opcode, boolean masked, long payloadLength) {
+		if (!masked)
+			return "unmasked frame";
+		if (opcode != OPCODE_CONTINUATION && opcode != OPCODE_TEXT && opcode != OPCODE_BINARY && opcode != OPCODE_CLOSE
+				&& opcode != OPCODE_PING && opcode != OPCODE_PONG)
+			return "reserved opcode " + opcode;
+
+		// Only the first frame of a message can be compressed
+		boolean compressible = compressionNegotiated && (opcode == OPCODE_TEXT || opcode == OPCODE_BINARY);
+		if (rsv != 0 && (rsv != RSV1 || !compressible))
+			return "reserved bits " + rsv;
+
+		if (opcode >= OPCODE_CLOSE && (!finalFragment || payloadLength > MAX_CONTROL_PAYLOAD_LENGTH))
+			return "fragmented or too long control frame";
+		if (payloadLength < 0 || payloadLength > maxPayloadLength)
+			return "payload of " + payloadLength + " bytes";
+		return null;
+	}
+
+}
@@ -0,0 +1,466 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.handler;
+
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.HOST;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocket08FrameDecoder;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketVersion;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bridge between WebSocket and the STOMP codec. It answers the HTTP handshake on its path, then passes the payload of
+ * the received WebSocket frames to the {@link com.excilys.soja.core.handler.StompFrameDecoder} and wraps the buffers
+ * written by the {@link com.excilys.soja.core.handler.StompFrameEncoder} in WebSocket frames. Payloads are passed
+ * through as they are, without being copied.
+ * <p/>
+ * Text and binary frames are both accepted. Frames are sent with the type of the last frame received from the client,
+ * text until it sent one. Text frames must carry valid UTF-8, which the bodies delimited by a content-length header
+ * are not bound to : frames which aren't valid UTF-8 are always sent as binary frames.
+ * <p/>
+ * If compression is enabled and the client offers the <code>permessage-deflate</code> extension, the first offer with
+ * parameters the JDK can honor is accepted. It's negotiated without context takeover : each message is compressed on
+ * its own, so only one inflater and one deflater are needed per connection. The deflater always uses the largest
+ * window, so offers limiting the server window are declined. Messages smaller than
+ * {@link #getCompressionThreshold()} bytes are sent uncompressed.
+ * <p/>
+ * A new instance is needed for each channel.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class WebSocketHandler extends SimpleChannelHandler {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WebSocketHandler.class);
+
+	public static final String DEFAULT_PATH = "/stomp";
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 256;
+	public static final int MAX_INFLATED_SIZE = 16 * 1024 * 1024;
+	public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+	private static final String SEC_WEBSOCKET_EXTENSIONS = "Sec-WebSocket-Extensions";
+	private static final String SUBPROTOCOLS = "v11.stomp,v10.stomp";
+	private static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+	private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+	private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+	private static final String PERMESSAGE_DEFLATE_RESPONSE = PERMESSAGE_DEFLATE + "; " + SERVER_NO_CONTEXT_TAKEOVER
+			+ "; " + CLIENT_NO_CONTEXT_TAKEOVER;
+	private static final int MIN_WINDOW_BITS = 8;
+	private static final int MAX_WINDOW_BITS = 15;
+	private static final byte[] DEFLATE_TAIL = { 0x00, 0x00, (byte) 0xFF, (byte) 0xFF };
+	private static final int RSV1 = 4;
+
+	private final String path;
+	private final boolean compressionEnabled;
+	private final int compressionThreshold;
+
+	private volatile WebSocketServerHandshaker handshaker;
+	private volatile boolean compressing = false;
+	private volatile String negotiatedExtension;
+	private volatile boolean binary = false;
+	private ChannelBuffer compressedMessage;
+	private Inflater inflater;
+	private Deflater deflater;
+
+	/**
+	 * @param path
+	 *            the path of the WebSocket endpoint, other paths are answered with a 404 error
+	 * @param compressionEnabled
+	 *            true to accept the permessage-deflate extension
+	 * @param compressionThreshold
+	 *            size above which messages are compressed
+	 */
+	public WebSocketHandler(String path, boolean compressionEnabled, int compressionThreshold) {
+		this.path = path;
+		this.compressionEnabled = compressionEnabled;
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		Object message = e.getMessage();
+		if (message instanceof HttpRequest) {
+			handleHandshake(ctx.getChannel(), (HttpRequest) message);
+		} else if (message instanceof WebSocketFrame) {
+			handleWebSocketFrame(ctx, e, (WebSocketFrame) message);
+		} else {
+			ctx.sendUpstream(e);
+		}
+	}
+
+	@Override
+	public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		Object message = e.getMessage();
+
+		// The handshake response goes through the handler before the HTTP encoder is replaced
+		if (message instanceof HttpResponse) {
+			HttpResponse response = (HttpResponse) message;
+			if (compressing && response.getStatus().equals(HttpResponseStatus.SWITCHING_PROTOCOLS)) {
+				response.setHeader(SEC_WEBSOCKET_EXTENSIONS, negotiatedExtension);
+			}
+			ctx.sendDownstream(e);
+			return;
+		}
+
+		// Empty buffers are only written to wait for the previous writes, they don't need a frame
+		if (handshaker == null || !(message instanceof ChannelBuffer) || !((ChannelBuffer) message).readable()) {
+			ctx.sendDownstream(e);
+			return;
+		}
+
+		ChannelBuffer data = (ChannelBuffer) message;
+		boolean binaryFrame = binary || !isValidUtf8(data);
+		int rsv = 0;
+		if (compressing && data.readableBytes() >= compressionThreshold) {
+			data = deflate(data);
+			rsv = RSV1;
+		}
+		WebSocketFrame frame = binaryFrame ? new BinaryWebSocketFrame(true, rsv, data) : new TextWebSocketFrame(true,
+				rsv, data);
+		Channels.write(ctx, e.getFuture(), frame, e.getRemoteAddress());
+	}
+
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		synchronized (this) {
+			if (inflater != null) {
+				inflater.end();
+				inflater = null;
+			}
+			if (deflater != null) {
+				deflater.end();
+				deflater = null;
+			}
+		}
+		super.channelClosed(ctx, e);
+	}
+
+	private void handleHandshake(Channel channel, HttpRequest request) {
+		if (handshaker != null || !path.equals(new QueryStringDecoder(request.getUri()).getPath())) {
+			HttpResponse response = new DefaultHttpResponse(request.getProtocolVersion(), HttpResponseStatus.NOT_FOUND);
+			channel.write(response).addListener(ChannelFutureListener.CLOSE);
+			return;
+		}
+
+		String scheme = channel.getPipeline().get(SslHandler.class) == null ? "ws://" : "wss://";
+		String location = scheme + request.getHeader(HOST) + path;
+		WebSocketServerHandshakerFactory handshakerFactory = new WebSocketServerHandshakerFactory(location,
+				SUBPROTOCOLS, true);
+		WebSocketServerHandshaker newHandshaker = handshakerFactory.newHandshaker(request);
+		if (newHandshaker == null) {
+			handshakerFactory.sendUnsupportedWebSocketVersionResponse(channel);
+			return;
+		}
+
+		// The first version of the protocol has no extension
+		if (compressionEnabled && newHandshaker.getVersion() != WebSocketVersion.V00) {
+			negotiatedExtension = negotiateDeflate(request.getHeaders(SEC_WEBSOCKET_EXTENSIONS));
+		}
+		compressing = negotiatedExtension != null;
+
+		handshaker = newHandshaker;
+		handshaker.handshake(channel, request).addListener(WebSocketServerHandshaker.HANDSHAKE_LISTENER);
+
+		// The decoder installed by the handshaker rejects compressed text frames, their payload isn't UTF-8
+		ChannelPipeline pipeline = channel.getPipeline();
+		if (pipeline.get(WebSocket08FrameDecoder.class) != null) {
+			pipeline.replace(WebSocket08FrameDecoder.class, "wsdecoder", new WebSocketFrameDecoder(compressing,
+					MAX_FRAME_SIZE));
+		}
+		LOGGER.debug("WebSocket handshake with {} (compression={})", channel.getRemoteAddress(), compressing);
+	}
+
+	/**
+	 * @return true if the readable bytes of the buffer are well-formed UTF-8 : no overlong encoding, surrogate or code
+	 *         point above U+10FFFF
+	 */
+	static boolean isValidUtf8(ChannelBuffer buffer) {
+		int index = buffer.readerIndex();
+		int end = buffer.writerIndex();
+		while (index < end) {
+			int b = buffer.getByte(index++) & 0xFF;
+			if (b < 0x80) {
+				continue;
+			}
+
+			int continuationCount;
+			int minCodePoint;
+			if ((b & 0xE0) == 0xC0) {
+				continuationCount = 1;
+				minCodePoint = 0x80;
+			} else if ((b & 0xF0) == 0xE0) {
+				continuationCount = 2;
+				minCodePoint = 0x800;
+			} else if ((b & 0xF8) == 0xF0) {
+				continuationCount = 3;
+				minCodePoint = 0x10000;
+			} else {
+				return false;
+			}
+			if (end - index < continuationCount) {
+				return false;
+			}
+
+			int codePoint = b & (0x3F >> continuationCount);
+			for (int i = 0; i < continuationCount; i++) {
+				int continuation = buffer.getByte(index++) & 0xFF;
+				if ((continuation & 0xC0) != 0x80) {
+					return false;
+				}
+				codePoint = (codePoint << 6) | (continuation & 0x3F);
+			}
+			if (codePoint < minCodePoint || codePoint > 0x10FFFF || (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Pick the first <code>permessage-deflate</code> offer this handler can honor, as described by RFC 7692. Offers
+	 * with an unknown or repeated parameter, or limiting the window of the server below the largest one, are declined.
+	 * 
+	 * @param extensionHeaders
+	 *            the values of the Sec-WebSocket-Extensions headers of the handshake request
+	 * @return the extension to send in the handshake response, or null if no offer can be accepted
+	 */
+	static String negotiateDeflate(List<String> extensionHeaders) {
+		for (String extensionHeader : extensionHeaders) {
+			for (String offer : extensionHeader.split(",")) {
+				String response = acceptDeflateOffer(offer);
+				if (response != null) {
+					return response;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param offer
+	 *            an extension and its parameters, separated by semicolons
+	 * @return the extension to send in the handshake response, or null if the offer can't be accepted
+	 */
+	private static String acceptDeflateOffer(String offer) {
+		String[] parameters = offer.split(";");
+		if (!PERMESSAGE_DEFLATE.equals(parameters[0].trim()))
+			return null;
+
+		// Context takeover is always disabled, both sides can be told so even if the client didn't ask for it
+		StringBuilder response = new StringBuilder(PERMESSAGE_DEFLATE_RESPONSE);
+		Set<String> names = new HashSet<String>();
+		for (int i = 1; i < parameters.length; i++) {
+			String parameter = parameters[i].trim();
+			int separatorIndex = parameter.indexOf('=');
+			String name = separatorIndex < 0 ? parameter : parameter.substring(0, separatorIndex).trim();
+			String value = separatorIndex < 0 ? null : unquote(parameter.substring(separatorIndex + 1).trim());
+			if (!names.add(name))
+				return null;
+
+			if (name.equals(SERVER_NO_CONTEXT_TAKEOVER) || name.equals(CLIENT_NO_CONTEXT_TAKEOVER)) {
+				if (value != null)
+					return null;
+			} else if (name.equals(SERVER_MAX_WINDOW_BITS)) {
+				// The window of the JDK deflater can't be reduced, accepting the offer requires to confirm the limit
+				if (parseWindowBits(value) != MAX_WINDOW_BITS)
+					return null;
+				response.append("; ").append(SERVER_MAX_WINDOW_BITS).append('=').append(MAX_WINDOW_BITS);
+			} else if (name.equals(CLIENT_MAX_WINDOW_BITS)) {
+				// The inflater handles any window, the client keeps the one it prefers
+				if (value != null && parseWindowBits(value) < 0)
+					return null;
+			} else {
+				return null;
+			}
+		}
+		return response.toString();
+	}
+
+	private static String unquote(String value) {
+		if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"')
+			return value.substring(1, value.length() - 1);
+		return value;
+	}
+
+	/**
+	 * @param value
+	 * @return the window size, in bits, or -1 if the value isn't a valid one
+	 */
+	private static int parseWindowBits(String value) {
+		if (value == null || !value.matches("[1-9][0-9]?"))
+			return -1;
+		int windowBits = Integer.parseInt(value);
+		return windowBits >= MIN_WINDOW_BITS && windowBits <= MAX_WINDOW_BITS ? windowBits : -1;
+	}
+
+	private void handleWebSocketFrame(ChannelHandlerContext ctx, MessageEvent e, WebSocketFrame frame)
+			throws DataFormatException {
+		Channel channel = ctx.getChannel();
+		if (frame instanceof CloseWebSocketFrame) {
+			handshaker.close(channel, (CloseWebSocketFrame) frame);
+			return;
+		} else if (frame instanceof PingWebSocketFrame) {
+			channel.write(new PongWebSocketFrame(frame.getBinaryData()));
+			return;
+		} else if (frame instanceof PongWebSocketFrame) {
+			return;
+		} else if (frame instanceof TextWebSocketFrame) {
+			binary = false;
+		} else if (frame instanceof BinaryWebSocketFrame) {
+			binary = true;
+		}
+
+		// The STOMP decoder reads a stream, so fragments of uncompressed messages can be passed as they come
+		ChannelBuffer data = frame.getBinaryData();
+		if ((frame.getRsv() & RSV1) != 0 || compressedMessage != null) {
+			if (!compressing) {
+				LOGGER.debug("Compressed frame received from {} without negotiation. Closing channel",
+						channel.getRemoteAddress());
+				channel.close();
+				return;
+			}
+
+			compressedMessage = compressedMessage == null ? data : ChannelBuffers.wrappedBuffer(compressedMessage,
+					data);
+			if (!frame.isFinalFragment())
+				return;
+
+			data = inflate(compressedMessage);
+			compressedMessage = null;
+		}
+
+		if (data.readable()) {
+			Channels.fireMessageReceived(ctx, data, e.getRemoteAddress());
+		}
+	}
+
+	/**
+	 * Inflate a whole message, as described by RFC 7692
+	 * 
+	 * @param message
+	 * @return the inflated message
+	 * @throws DataFormatException
+	 *             if the message is corrupted or too big once inflated
+	 */
+	private synchronized ChannelBuffer inflate(ChannelBuffer message) throws DataFormatException {
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+
+		byte[] input = new byte[message.readableBytes() + DEFLATE_TAIL.length];
+		message.readBytes(input, 0, message.readableBytes());
+		System.arraycopy(DEFLATE_TAIL, 0, input, input.length - DEFLATE_TAIL.length, DEFLATE_TAIL.length);
+
+		try {
+			inflater.setInput(input);
+			ChannelBuffer inflated = ChannelBuffers.dynamicBuffer(input.length * 2);
+			byte[] chunk = new byte[8192];
+			while (!inflater.finished() && !inflater.needsInput()) {
+				int length = inflater.inflate(chunk);
+				if (length == 0 && inflater.needsDictionary())
+					throw new DataFormatException("Inflating a message needs a dictionary");
+				if (inflated.readableBytes() + length > MAX_INFLATED_SIZE)
+					throw new DataFormatException("Inflated message exceeds " + MAX_INFLATED_SIZE + " bytes");
+				inflated.writeBytes(chunk, 0, length);
+			}
+			return inflated;
+		} finally {
+			inflater.reset();
+		}
+	}
+
+	/**
+	 * Deflate a whole message, as described by RFC 7692. The message ends with a final block, so it doesn't end with
+	 * the empty block which would have to be removed.
+	 * 
+	 * @param message
+	 * @return the deflated message
+	 */
+	private synchronized ChannelBuffer deflate(ChannelBuffer message) {
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+
+		int length = message.readableBytes();
+		if (message.hasArray()) {
+			deflater.setInput(message.array(), message.arrayOffset() + message.readerIndex(), length);
+		} else {
+			byte[] input = new byte[length];
+			message.getBytes(message.readerIndex(), input);
+			deflater.setInput(input);
+		}
+		deflater.finish();
+
+		try {
+			ChannelBuffer deflated = ChannelBuffers.dynamicBuffer(length / 2 + 16);
+			byte[] chunk = new byte[8192];
+			while (!deflater.finished()) {
+				int deflatedLength = deflater.deflate(chunk);
+				deflated.writeBytes(chunk, 0, deflatedLength);
+			}
+			return deflated;
+		} finally {
+			deflater.reset();
+		}
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public boolean isCompressionEnabled() {
+		return compressionEnabled;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+}
@@ -0,0 +1,348 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.core.utils.FrameSerializer;
+
+/**
+ * Append-only journal of persistent frames, written with group commit : frames appended by all clients are gathered in
+ * a batch which is written and synced to the disk at once. A batch is flushed as soon as it reaches
+ * {@link #getMaxBatchSize()} frames or {@link #getMaxBatchBytes()} bytes, or {@link #getMaxBatchDelay()} milliseconds
+ * after its first frame was appended. The future of each frame is notified once its batch is on the disk.
+ * <p/>
+ * The journal is split in segment files named <code>journal-N.log</code>, a new one being started when the current
+ * one exceeds {@link #getMaxSegmentSize()} bytes. Each record is written with the {@link FrameSerializer} format.
+ *
+ * @author dvilleneuve
+ *
+ */
+public class Journal {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(Journal.class);
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 512;
+	public static final long DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+	public static final long DEFAULT_MAX_BATCH_DELAY = 5;
+	public static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/** Marker appended by {@link #close()} to wake the writer thread up if it's waiting for a batch to fill */
+	private static final JournalEntry CLOSE_MARKER = new JournalEntry(null, null);
+
+	private final File directory;
+	private final BlockingQueue<JournalEntry> pendingEntries = new LinkedBlockingQueue<JournalEntry>();
+
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+	private long maxBatchDelay = DEFAULT_MAX_BATCH_DELAY;
+	private long maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+
+	private volatile boolean opened = false;
+	private Thread writerThread;
+	private RandomAccessFile segmentFile;
+	private FileChannel segmentChannel;
+	private int segmentNumber = 0;
+
+	/**
+	 * @param directory
+	 *            the directory where segment files are written. It's created if it doesn't exist
+	 */
+	public Journal(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Open a new segment file and start the writer thread.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException {
+		if (opened)
+			return;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can't create the journal directory " + directory);
+
+		// Never append to an existing segment, start after the last one
+		String[] fileNames = directory.list();
+		for (String fileName : fileNames) {
+			if (fileName.startsWith(SEGMENT_PREFIX) && fileName.endsWith(SEGMENT_SUFFIX)) {
+				try {
+					int number = Integer.parseInt(fileName.substring(SEGMENT_PREFIX.length(), fileName.length()
+							- SEGMENT_SUFFIX.length()));
+					segmentNumber = Math.max(segmentNumber, number + 1);
+				} catch (NumberFormatException e) {
+					LOGGER.debug("Ignoring file {} in the journal directory", fileName);
+				}
+			}
+		}
+		openSegment();
+
+		opened = true;
+		writerThread = new Thread(new JournalWriter(), "Journal writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Append a frame to the journal. The frame is serialized in the caller's thread and written by the writer thread
+	 * with the other frames of its batch.
+	 *
+	 * @param channel
+	 *            the channel the frame was received from
+	 * @param frame
+	 * @return a {@link ChannelFuture} which will be notified when the frame has been synced to the disk, or failed to
+	 */
+	public ChannelFuture append(Channel channel, Frame frame) {
+		ChannelFuture future = Channels.future(channel);
+		if (!opened) {
+			future.setFailure(new IOException("The journal is closed"));
+			return future;
+		}
+
+		JournalEntry entry = new JournalEntry(FrameSerializer.serialize(frame), future);
+		pendingEntries.add(entry);
+
+		// If the journal has been closed meanwhile, the entry may have been added after the last drain. In this case
+		// it's still in the queue and nobody else will ever complete it
+		if (!opened && pendingEntries.remove(entry)) {
+			future.setFailure(new IOException("The journal is closed"));
+		}
+		return future;
+	}
+
+	/**
+	 * Flush the frames already appended, then stop the writer thread and close the current segment.
+	 */
+	public void close() {
+		Thread thread;
+		synchronized (this) {
+			if (!opened)
+				return;
+			opened = false;
+			thread = writerThread;
+		}
+		pendingEntries.add(CLOSE_MARKER);
+
+		// Don't interrupt the writer thread, it would close the file channel in the middle of a write
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// Frames appended while the journal was closing won't be written
+		JournalEntry entry = null;
+		while ((entry = pendingEntries.poll()) != null) {
+			if (entry != CLOSE_MARKER)
+				entry.getFuture().setFailure(new IOException("The journal is closed"));
+		}
+
+		try {
+			segmentChannel.close();
+			segmentFile.close();
+		} catch (IOException e) {
+			LOGGER.error("Failed to close the journal segment", e);
+		}
+	}
+
+	public boolean isOpened() {
+		return opened;
+	}
+
+	private void openSegment() throws IOException {
+		File file = new File(directory, SEGMENT_PREFIX + (segmentNumber++) + SEGMENT_SUFFIX);
+		LOGGER.debug("Opening journal segment {}", file);
+
+		segmentFile = new RandomAccessFile(file, "rw");
+		segmentChannel = segmentFile.getChannel();
+	}
+
+	/**
+	 * Write all the entries of a batch, sync them to the disk and notify their futures.
+	 *
+	 * @param batch
+	 * @param batchBytes
+	 */
+	private void flush(List<JournalEntry> batch, long batchBytes) {
+		try {
+			if (segmentChannel.position() > 0 && segmentChannel.position() + batchBytes > maxSegmentSize) {
+				segmentChannel.close();
+				segmentFile.close();
+				openSegment();
+			}
+
+			ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+			for (int i = 0; i < buffers.length; i++) {
+				buffers[i] = batch.get(i).getData().toByteBuffer();
+			}
+
+			long remaining = batchBytes;
+			while (remaining > 0) {
+				remaining -= segmentChannel.write(buffers);
+			}
+			segmentChannel.force(false);
+
+			for (JournalEntry entry : batch) {
+				entry.getFuture().setSuccess();
+			}
+		} catch (IOException e) {
+			LOGGER.error("Failed to write a batch of " + batch.size() + " frames in the journal", e);
+			for (JournalEntry entry : batch) {
+				entry.getFuture().setFailure(e);
+			}
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize <= 0)
+			throw new IllegalArgumentException("Maximum batch size have to be a strictly positive number");
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public long getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	public void setMaxBatchBytes(long maxBatchBytes) {
+		if (maxBatchBytes <= 0)
+			throw new IllegalArgumentException("Maximum batch bytes have to be a strictly positive number");
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	public long getMaxBatchDelay() {
+		return maxBatchDelay;
+	}
+
+	/**
+	 * @param maxBatchDelay
+	 *            maximum number of milliseconds a frame waits for other frames before its batch is flushed
+	 */
+	public void setMaxBatchDelay(long maxBatchDelay) {
+		if (maxBatchDelay < 0)
+			throw new IllegalArgumentException("Maximum batch delay have to be a positive number");
+		this.maxBatchDelay = maxBatchDelay;
+	}
+
+	public long getMaxSegmentSize() {
+		return maxSegmentSize;
+	}
+
+	public void setMaxSegmentSize(long maxSegmentSize) {
+		if (maxSegmentSize <= 0)
+			throw new IllegalArgumentException("Maximum segment size have to be a strictly positive number");
+		this.maxSegmentSize = maxSegmentSize;
+	}
+
+	/**
+	 * A serialized frame waiting to be written
+	 *
+	 * @author dvilleneuve
+	 *
+	 */
+	private static class JournalEntry {
+
+		private final ChannelBuffer data;
+		private final ChannelFuture future;
+
+		public JournalEntry(ChannelBuffer data, ChannelFuture future) {
+			this.data = data;
+			this.future = future;
+		}
+
+		public ChannelBuffer getData() {
+			return data;
+		}
+
+		public ChannelFuture getFuture() {
+			return future;
+		}
+	}
+
+	/**
+	 * Gather the appended entries in batches and flush them until the journal is closed and all entries are written
+	 *
+	 * @author dvilleneuve
+	 *
+	 */
+	private class JournalWriter implements Runnable {
+
+		@Override
+		public void run() {
+			List<JournalEntry> batch = new ArrayList<JournalEntry>(maxBatchSize);
+
+			while (opened || !pendingEntries.isEmpty()) {
+				JournalEntry entry = null;
+				try {
+					entry = pendingEntries.poll(100, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					LOGGER.debug("Journal writer interrupted while waiting for frames");
+				}
+				if (entry == null || entry == CLOSE_MARKER)
+					continue;
+
+				// Wait for other entries until one of the thresholds is reached
+				long batchBytes = entry.getData().readableBytes();
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBatchDelay);
+				batch.add(entry);
+				try {
+					while (batch.size() < maxBatchSize && batchBytes < maxBatchBytes) {
+						entry = pendingEntries.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+						if (entry == null || entry == CLOSE_MARKER)
+							break;
+						batch.add(entry);
+						batchBytes += entry.getData().readableBytes();
+					}
+				} catch (InterruptedException e) {
+					LOGGER.debug("Journal writer interrupted while gathering a batch");
+				}
+
+				flush(batch, batchBytes);
+				batch.clear();
+			}
+		}
+	}
+
+}
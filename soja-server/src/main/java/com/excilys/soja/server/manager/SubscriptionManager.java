@@ -24,6 +24,7 @@ import java.util.TreeSet;
 import org.jboss.netty.channel.Channel;
 
 import com.excilys.soja.core.model.Ack;
+import com.excilys.soja.server.model.OverflowBuffer;
 import com.excilys.soja.server.model.Subscription;
 
 /**
@@ -34,7 +35,7 @@ public class SubscriptionManager {
 
 	private static final SubscriptionManager instance = new SubscriptionManager();
 	private final Map<String, Set<Subscription>> topicsSubscriptions = new HashMap<String, Set<Subscription>>();
-	private final Map<String, Map<Long, Subscription>> clientsSubscriptions = new HashMap<String, Map<Long, Subscription>>();
+	private final Map<Long, Map<Long, Subscription>> clientsSubscriptions = new HashMap<Long, Map<Long, Subscription>>();
 
 	public static SubscriptionManager getInstance() {
 		return instance;
@@ -56,11 +57,11 @@ public class SubscriptionManager {
 	/**
 	 * Retrieve all subscriptions of a client. If none, return null.
 	 * 
-	 * @param clientSessionToken
+	 * @param clientSessionId
 	 * @return
 	 */
-	public synchronized Map<Long, Subscription> retrieveSubscriptionsByToken(String clientSessionToken) {
-		return clientsSubscriptions.get(clientSessionToken);
+	public synchronized Map<Long, Subscription> retrieveSubscriptionsBySession(Long clientSessionId) {
+		return clientsSubscriptions.get(clientSessionId);
 	}
 
 	/**
@@ -68,28 +69,73 @@ public class SubscriptionManager {
 	 * list unchanged and return false. Else, add the subscriber and return true
 	 * 
 	 * @param channel
-	 * @param clientSessionToken
+	 * @param clientSessionId
 	 * @param subscriptionId
 	 * @param topic
 	 * @param ackMode
 	 * @return true if the subscriber has beed added, false else (or if he's already added)
 	 */
-	public synchronized Subscription addSubscription(Channel channel, String clientSessionToken, Long subscriptionId,
+	public Subscription addSubscription(Channel channel, Long clientSessionId, Long subscriptionId,
 			String topic, Ack ackMode) {
-		if (clientSessionToken == null || clientSessionToken.isEmpty())
-			throw new NullPointerException("clientSessionToken can't be null nor empty");
+		return addSubscription(channel, clientSessionId, subscriptionId, topic, ackMode, 0, 0);
+	}
+
+	/**
+	 * Add a subscriber for the given topic with a prefetch window. If the client has already subscribed to this
+	 * topic, leave the subscribers list unchanged and return false. Else, add the subscriber and return true
+	 * 
+	 * @param channel
+	 * @param clientSessionId
+	 * @param subscriptionId
+	 * @param topic
+	 * @param ackMode
+	 * @param prefetchCount
+	 *            maximum number of unacknowledged messages, 0 means no limit
+	 * @param prefetchSize
+	 *            maximum size of unacknowledged messages, 0 means no limit
+	 * @return true if the subscriber has beed added, false else (or if he's already added)
+	 */
+	public Subscription addSubscription(Channel channel, Long clientSessionId, Long subscriptionId,
+			String topic, Ack ackMode, int prefetchCount, long prefetchSize) {
+		return addSubscription(channel, clientSessionId, subscriptionId, topic, ackMode, prefetchCount,
+				prefetchSize, new OverflowBuffer());
+	}
+
+	/**
+	 * Add a subscriber for the given topic with a prefetch window, holding back its messages in the given buffer. If
+	 * the client has already subscribed to this topic, leave the subscribers list unchanged and return false. Else,
+	 * add the subscriber and return true
+	 * 
+	 * @param channel
+	 * @param clientSessionId
+	 * @param subscriptionId
+	 * @param topic
+	 * @param ackMode
+	 * @param prefetchCount
+	 *            maximum number of unacknowledged messages, 0 means no limit
+	 * @param prefetchSize
+	 *            maximum size of unacknowledged messages, 0 means no limit
+	 * @param backlog
+	 *            the buffer where messages are held back while the prefetch window is full
+	 * @return true if the subscriber has beed added, false else (or if he's already added)
+	 */
+	public synchronized Subscription addSubscription(Channel channel, Long clientSessionId, Long subscriptionId,
+			String topic, Ack ackMode, int prefetchCount, long prefetchSize, OverflowBuffer backlog) {
+		if (clientSessionId == null)
+			throw new NullPointerException("clientSessionId can't be null");
 		if (subscriptionId == null)
 			throw new NullPointerException("subscriptionId can't be null");
-		if (topic == null || clientSessionToken.isEmpty())
+		if (topic == null || topic.isEmpty())
 			throw new NullPointerException("topic can't be null nor empty");
 
-		Subscription subscription = new Subscription(channel, subscriptionId, topic, ackMode);
+		Subscription subscription = new Subscription(channel, subscriptionId, topic, ackMode, prefetchCount,
+				prefetchSize, backlog);
 
 		// Clients subscriptions
-		Map<Long, Subscription> clientSubscriptions = retrieveSubscriptionsByToken(clientSessionToken);
+		Map<Long, Subscription> clientSubscriptions = retrieveSubscriptionsBySession(clientSessionId);
 		if (clientSubscriptions == null) {
 			clientSubscriptions = new HashMap<Long, Subscription>();
-			clientsSubscriptions.put(clientSessionToken, clientSubscriptions);
+			clientsSubscriptions.put(clientSessionId, clientSubscriptions);
 		}
 		clientSubscriptions.put(subscriptionId, subscription);
 
@@ -107,18 +153,18 @@ public class SubscriptionManager {
 	/**
 	 * Remove a subscriber for the given topic.
 	 * 
-	 * @param clientSessionToken
+	 * @param clientSessionId
 	 * @param subscriptionId
 	 * @return true if the client has subscribed to this topic, false else
 	 */
-	public synchronized boolean removeSubscription(String clientSessionToken, Long subscriptionId) {
-		if (clientSessionToken == null || clientSessionToken.isEmpty())
+	public synchronized boolean removeSubscription(Long clientSessionId, Long subscriptionId) {
+		if (clientSessionId == null)
 			return false;
 		if (subscriptionId == null)
 			return false;
 
 		// Clients subscriptions
-		Map<Long, Subscription> clientSubscriptions = retrieveSubscriptionsByToken(clientSessionToken);
+		Map<Long, Subscription> clientSubscriptions = retrieveSubscriptionsBySession(clientSessionId);
 		if (clientSubscriptions == null) {
 			return false;
 		}
@@ -127,7 +173,7 @@ public class SubscriptionManager {
 
 		// If this client has no more subscriptions, remove his subscription Map to free memory
 		if (clientSubscriptions.isEmpty()) {
-			clientsSubscriptions.remove(clientSessionToken);
+			clientsSubscriptions.remove(clientSessionId);
 		}
 
 		if (removedSubscription != null) {
@@ -151,11 +197,11 @@ public class SubscriptionManager {
 	 * 
 	 * @param topic
 	 */
-	public synchronized boolean removeSubscriptions(String clientSessionToken) {
-		if (clientSessionToken == null || clientSessionToken.isEmpty())
+	public synchronized boolean removeSubscriptions(Long clientSessionId) {
+		if (clientSessionId == null)
 			return false;
 
-		Map<Long, Subscription> removedClientSubscriptions = clientsSubscriptions.remove(clientSessionToken);
+		Map<Long, Subscription> removedClientSubscriptions = clientsSubscriptions.remove(clientSessionId);
 		if (removedClientSubscriptions == null)
 			return false;
 
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.excilys.soja.server.model.StompSession;
+
+/**
+ * Registry of the metrics of a server, per destination and per connection. The metrics of a destination are created
+ * the first time a message is published on it and kept until {@link #removeDestination(String)} is called, the ones of
+ * a connection are kept while the client is connected.
+ * <p/>
+ * Counters are striped and histograms are lock-free, so recording doesn't add contention between the threads handling
+ * the clients.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class BrokerMetrics {
+
+	private final ConcurrentMap<String, DestinationMetrics> destinations =
+			new ConcurrentHashMap<String, DestinationMetrics>();
+	private final ConcurrentMap<Long, ConnectionMetrics> connections = new ConcurrentHashMap<Long, ConnectionMetrics>();
+
+	/**
+	 * @param destination
+	 *            the destination, frames without destination being counted on the empty one
+	 * @return the metrics of the destination, created if needed
+	 */
+	public DestinationMetrics getDestination(String destination) {
+		if (destination == null) {
+			destination = "";
+		}
+		DestinationMetrics destinationMetrics = destinations.get(destination);
+		if (destinationMetrics == null) {
+			destinationMetrics = new DestinationMetrics(destination);
+			DestinationMetrics existingMetrics = destinations.putIfAbsent(destination, destinationMetrics);
+			if (existingMetrics != null) {
+				destinationMetrics = existingMetrics;
+			}
+		}
+		return destinationMetrics;
+	}
+
+	/**
+	 * @return a copy of the metrics of all destinations
+	 */
+	public List<DestinationMetrics> getDestinations() {
+		return new ArrayList<DestinationMetrics>(destinations.values());
+	}
+
+	/**
+	 * @param destination
+	 * @return the removed metrics, or null if nothing has been published on this destination
+	 */
+	public DestinationMetrics removeDestination(String destination) {
+		return destinations.remove(destination);
+	}
+
+	/**
+	 * @param session
+	 *            the session of a client which just connected
+	 * @return the metrics of the connection
+	 */
+	public ConnectionMetrics openConnection(StompSession session) {
+		ConnectionMetrics connectionMetrics = new ConnectionMetrics(session);
+		connections.put(session.getId(), connectionMetrics);
+		return connectionMetrics;
+	}
+
+	public void closeConnection(StompSession session) {
+		connections.remove(session.getId());
+	}
+
+	/**
+	 * @param sessionId
+	 * @return the metrics of the connection, or null if no client is connected with this session
+	 */
+	public ConnectionMetrics getConnection(long sessionId) {
+		return connections.get(sessionId);
+	}
+
+	/**
+	 * @return a copy of the metrics of all connections
+	 */
+	public List<ConnectionMetrics> getConnections() {
+		return new ArrayList<ConnectionMetrics>(connections.values());
+	}
+
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.metrics;
+
+import com.excilys.soja.server.authentication.SessionIdGenerator;
+import com.excilys.soja.server.model.StompSession;
+import com.excilys.soja.server.model.Subscription;
+
+/**
+ * Metrics of the messages published and received by a connected client
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class ConnectionMetrics {
+
+	private final StompSession session;
+	private final StripedCounter messagesIn = new StripedCounter();
+	private final StripedCounter bytesIn = new StripedCounter();
+	private final StripedCounter messagesOut = new StripedCounter();
+	private final StripedCounter bytesOut = new StripedCounter();
+
+	public ConnectionMetrics(StompSession session) {
+		this.session = session;
+	}
+
+	public StompSession getSession() {
+		return session;
+	}
+
+	/**
+	 * The client published a message
+	 * 
+	 * @param bodySize
+	 */
+	public void messageReceived(int bodySize) {
+		messagesIn.increment();
+		bytesIn.add(bodySize);
+	}
+
+	/**
+	 * A message has been sent to one of the client's subscriptions
+	 * 
+	 * @param bodySize
+	 */
+	public void messageSent(int bodySize) {
+		messagesOut.increment();
+		bytesOut.add(bodySize);
+	}
+
+	public long getMessagesIn() {
+		return messagesIn.get();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	public long getMessagesOut() {
+		return messagesOut.get();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/**
+	 * @return the number of messages sent to the client's subscriptions which have not been acknowledged yet
+	 */
+	public long getPendingAcks() {
+		long pendingAcks = 0;
+		for (Subscription subscription : session.getSubscriptions()) {
+			pendingAcks += subscription.getPendingMessageCount();
+		}
+		return pendingAcks;
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectionMetrics [session=" + SessionIdGenerator.toString(session.getId()) + ", messagesIn="
+				+ messagesIn + ", bytesIn=" + bytesIn + ", messagesOut=" + messagesOut + ", bytesOut=" + bytesOut
+				+ ", pendingAcks=" + getPendingAcks() + "]";
+	}
+
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.metrics;
+
+/**
+ * Metrics of the messages published on a destination. Latencies are in microseconds, measured from the time the SEND
+ * frame is handled by the server.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class DestinationMetrics {
+
+	private final String destination;
+	private final StripedCounter messagesIn = new StripedCounter();
+	private final StripedCounter bytesIn = new StripedCounter();
+	private final StripedCounter messagesOut = new StripedCounter();
+	private final StripedCounter bytesOut = new StripedCounter();
+	private final StripedCounter droppedMessages = new StripedCounter();
+	private final StripedCounter deadLetteredMessages = new StripedCounter();
+	private final StripedCounter pendingAcks = new StripedCounter();
+	private final Histogram fanOut = new Histogram();
+	private final Histogram writeLatency = new Histogram();
+	private final Histogram receiptLatency = new Histogram();
+
+	public DestinationMetrics(String destination) {
+		this.destination = destination;
+	}
+
+	public String getDestination() {
+		return destination;
+	}
+
+	/**
+	 * A message has been published on the destination
+	 * 
+	 * @param bodySize
+	 * @param subscriberCount
+	 *            the number of subscriptions the message is sent to
+	 */
+	public void messageReceived(int bodySize, int subscriberCount) {
+		messagesIn.increment();
+		bytesIn.add(bodySize);
+		fanOut.record(subscriberCount);
+		if (subscriberCount == 0) {
+			droppedMessages.increment();
+		}
+	}
+
+	/**
+	 * A message of the destination has been sent to a subscription, redeliveries included
+	 * 
+	 * @param bodySize
+	 */
+	public void messageSent(int bodySize) {
+		messagesOut.increment();
+		bytesOut.add(bodySize);
+	}
+
+	/**
+	 * A message reached its maximum deliveries and has been sent to the dead letter destination
+	 */
+	public void messageDeadLettered() {
+		deadLetteredMessages.increment();
+	}
+
+	/**
+	 * @param count
+	 *            the number of subscriptions which have to acknowledge a published message
+	 */
+	public void pendingAcksAdded(int count) {
+		pendingAcks.add(count);
+	}
+
+	/**
+	 * A subscription doesn't have to acknowledge a message anymore : it did, it rejected it too many times or it left
+	 */
+	public void pendingAckReleased() {
+		pendingAcks.decrement();
+	}
+
+	public long getMessagesIn() {
+		return messagesIn.get();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	public long getMessagesOut() {
+		return messagesOut.get();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/**
+	 * @return the number of messages published while the destination had no subscriber
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages.get();
+	}
+
+	public long getDeadLetteredMessages() {
+		return deadLetteredMessages.get();
+	}
+
+	/**
+	 * @return the number of acknowledgments the subscriptions of the destination still owe
+	 */
+	public long getPendingAcks() {
+		return pendingAcks.get();
+	}
+
+	/**
+	 * @return the number of subscriptions each message has been sent to
+	 */
+	public Histogram getFanOut() {
+		return fanOut;
+	}
+
+	/**
+	 * @return the time until a message has been written to a subscriber
+	 */
+	public Histogram getWriteLatency() {
+		return writeLatency;
+	}
+
+	/**
+	 * @return the time until the receipt of a message has been written to its publisher. With subscriptions which
+	 *         have to acknowledge the messages, it includes the time they took to do so.
+	 */
+	public Histogram getReceiptLatency() {
+		return receiptLatency;
+	}
+
+	@Override
+	public String toString() {
+		return "DestinationMetrics [destination=" + destination + ", messagesIn=" + messagesIn + ", bytesIn=" + bytesIn
+				+ ", messagesOut=" + messagesOut + ", bytesOut=" + bytesOut + ", droppedMessages=" + droppedMessages
+				+ ", deadLetteredMessages=" + deadLetteredMessages + ", pendingAcks=" + pendingAcks + ", fanOut="
+				+ fanOut + ", writeLatency=" + writeLatency + ", receiptLatency=" + receiptLatency + "]";
+	}
+
+}
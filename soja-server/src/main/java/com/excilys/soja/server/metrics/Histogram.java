@@ -0,0 +1,127 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of positive values, recorded without locking. Each power of two is split in 8 buckets of equal width,
+ * so values are counted with a relative error below 12.5% whatever their magnitude, in a fixed number of buckets.
+ * Recording a value costs a few atomic operations and no allocation.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKET_COUNT);
+	private final StripedCounter count = new StripedCounter();
+	private final StripedCounter sum = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param value
+	 *            the value to record, negative values are recorded as 0
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		bucketCounts.incrementAndGet(getBucketIndex(value));
+		count.increment();
+		sum.add(value);
+
+		long currentMax = max.get();
+		while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the mean of the recorded values, or 0 if no value has been recorded
+	 */
+	public double getMean() {
+		long currentCount = count.get();
+		return currentCount == 0 ? 0 : (double) sum.get() / currentCount;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the highest value of the bucket holding the given percentile, or 0 if no value has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("Percentile have to be between 0 and 100");
+
+		long[] counts = new long[BUCKET_COUNT];
+		long totalCount = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = bucketCounts.get(i);
+			totalCount += counts[i];
+		}
+		if (totalCount == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percentile * totalCount / 100));
+		long cumulatedCount = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			cumulatedCount += counts[i];
+			if (cumulatedCount >= rank)
+				return Math.min(getBucketUpperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Values below 8 have a bucket of their own. Above, the bucket is given by the position of the highest bit set and
+	 * the 3 bits following it.
+	 */
+	static int getBucketIndex(long value) {
+		if (value < SUB_BUCKET_COUNT)
+			return (int) value;
+		int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+	}
+
+	static long getBucketUpperBound(int index) {
+		if (index < SUB_BUCKET_COUNT)
+			return index;
+		int shift = index / SUB_BUCKET_COUNT - 1;
+		long lowerBound = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+		return lowerBound + (1L << shift) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return "Histogram [count=" + getCount() + ", mean=" + String.format("%.1f", getMean()) + ", p50="
+				+ getValueAtPercentile(50) + ", p99=" + getValueAtPercentile(99) + ", max=" + getMax() + "]";
+	}
+
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter which can be updated by many threads without contention. It starts as a single atomic value ; the first
+ * time two threads update it at once, it's split in stripes, one per processor, each on its own cache line. Each
+ * thread then updates the stripe chosen by its id, and the value is the sum of all stripes.
+ * <p/>
+ * Reading the value is more expensive than updating it, and doesn't give a snapshot of concurrent updates.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class StripedCounter {
+
+	private static final int STRIPE_COUNT = nextPowerOfTwo(Runtime.getRuntime().availableProcessors());
+	/** Distance between two stripes in the array, so they're 64 bytes apart */
+	private static final int STRIPE_SPACING = 8;
+
+	private final AtomicLong base = new AtomicLong();
+	private volatile AtomicLongArray stripes;
+
+	public void increment() {
+		add(1);
+	}
+
+	public void decrement() {
+		add(-1);
+	}
+
+	public void add(long delta) {
+		AtomicLongArray currentStripes = stripes;
+		if (currentStripes == null) {
+			long value = base.get();
+			if (base.compareAndSet(value, value + delta))
+				return;
+			currentStripes = createStripes();
+		}
+		int stripe = (int) Thread.currentThread().getId() & (STRIPE_COUNT - 1);
+		currentStripes.addAndGet((stripe + 1) * STRIPE_SPACING, delta);
+	}
+
+	/**
+	 * @return the sum of all updates
+	 */
+	public long get() {
+		long value = base.get();
+		AtomicLongArray currentStripes = stripes;
+		if (currentStripes != null) {
+			for (int stripe = 1; stripe <= STRIPE_COUNT; stripe++) {
+				value += currentStripes.get(stripe * STRIPE_SPACING);
+			}
+		}
+		return value;
+	}
+
+	private synchronized AtomicLongArray createStripes() {
+		if (stripes == null) {
+			// The first and last lines are left empty, so the stripes don't share a line with other objects
+			stripes = new AtomicLongArray((STRIPE_COUNT + 2) * STRIPE_SPACING);
+		}
+		return stripes;
+	}
+
+	private static int nextPowerOfTwo(int value) {
+		return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(get());
+	}
+
+}
@@ -15,9 +15,12 @@
  */
 package com.excilys.soja.server.model;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
 
 import com.excilys.soja.core.model.Frame;
 
@@ -28,29 +31,79 @@ import com.excilys.soja.core.model.Frame;
 public class AckWaiting {
 
 	private final Channel channel;
-	private final Set<Long> subscriptionIds;
+	private final Set<Subscription> subscriptions;
 	private final Frame sendFrame;
+	private final ChannelFuture journalFuture;
+	private final long receivedTime;
+	private final Map<Subscription, Integer> redeliveryCounts = new HashMap<Subscription, Integer>();
 
-	public AckWaiting(Channel channel, Set<Long> subscriptionIds, Frame sendFrame) {
+	/**
+	 * @param channel
+	 * @param subscriptions
+	 * @param sendFrame
+	 *            the SEND frame, used for its receipt and its dead letter. Its body is not needed since the messages
+	 *            sent to each subscription are kept by the subscription itself
+	 * @param journalFuture
+	 * @param receivedTime
+	 *            the time the SEND frame has been handled, given by {@link System#nanoTime()}
+	 */
+	public AckWaiting(Channel channel, Set<Subscription> subscriptions, Frame sendFrame, ChannelFuture journalFuture,
+			long receivedTime) {
 		this.channel = channel;
-		this.subscriptionIds = subscriptionIds;
+		this.subscriptions = subscriptions;
 		this.sendFrame = sendFrame;
+		this.journalFuture = journalFuture;
+		this.receivedTime = receivedTime;
 	}
 
-	public Set<Long> getSubscriptionIds() {
-		return subscriptionIds;
+	public Set<Subscription> getSubscriptions() {
+		return subscriptions;
 	}
 
 	public Frame getSendFrame() {
 		return sendFrame;
 	}
 
+	/**
+	 * @return the future notified when the SEND frame has been written in the journal, or null if it's not
+	 *         persistent
+	 */
+	public ChannelFuture getJournalFuture() {
+		return journalFuture;
+	}
+
 	public Channel getChannel() {
 		return channel;
 	}
 
-	public void removeSubscriptionId(Long subscriptionId) {
-		subscriptionIds.remove(subscriptionId);
+	public long getReceivedTime() {
+		return receivedTime;
+	}
+
+	public void removeSubscription(Subscription subscription) {
+		subscriptions.remove(subscription);
+		redeliveryCounts.remove(subscription);
+	}
+
+	/**
+	 * @param subscription
+	 * @return the number of time the message has been redelivered to this subscription
+	 */
+	public int getRedeliveryCount(Subscription subscription) {
+		Integer redeliveryCount = redeliveryCounts.get(subscription);
+		return redeliveryCount == null ? 0 : redeliveryCount;
+	}
+
+	/**
+	 * Increment the number of time the message has been redelivered to this subscription
+	 * 
+	 * @param subscription
+	 * @return the new redelivery count
+	 */
+	public int incrementRedeliveryCount(Subscription subscription) {
+		int redeliveryCount = getRedeliveryCount(subscription) + 1;
+		redeliveryCounts.put(subscription, redeliveryCount);
+		return redeliveryCount;
 	}
 
 }
@@ -0,0 +1,333 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.LinkedList;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.excilys.soja.core.exception.ParseException;
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.core.utils.FrameSerializer;
+
+/**
+ * FIFO of frames which keeps its head in memory and spills its tail in memory-mapped overflow files once the frames
+ * in memory exceed {@link #getMaxMemorySize()} bytes. Spilled frames are paged back in memory as the head is consumed,
+ * so the next frames to poll are always in memory.
+ * <p/>
+ * Overflow files are created in the given directory when needed, and deleted as soon as all their frames have been
+ * polled. Without directory, all frames are kept in memory. If an overflow file can't be written, spilling is
+ * disabled for this buffer and the following frames are kept in memory.
+ * <p/>
+ * This class is not thread-safe.
+ *
+ * @author dvilleneuve
+ *
+ */
+public class OverflowBuffer {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(OverflowBuffer.class);
+
+	public static final long DEFAULT_MAX_MEMORY_SIZE = 1024 * 1024;
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private final File directory;
+	private final long maxMemorySize;
+	private final int segmentSize;
+
+	private final LinkedList<Frame> memoryFrames = new LinkedList<Frame>();
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private final LinkedList<Frame> fallbackFrames = new LinkedList<Frame>();
+	private long memorySize = 0;
+	private int spilledCount = 0;
+	private boolean spillingEnabled;
+
+	/**
+	 * Create a buffer keeping all its frames in memory
+	 */
+	public OverflowBuffer() {
+		this(null, DEFAULT_MAX_MEMORY_SIZE);
+	}
+
+	/**
+	 * @param directory
+	 *            the directory where overflow files are created, or null to keep all frames in memory
+	 * @param maxMemorySize
+	 *            size of the frames kept in memory above which the next ones are spilled
+	 */
+	public OverflowBuffer(File directory, long maxMemorySize) {
+		this(directory, maxMemorySize, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param directory
+	 *            the directory where overflow files are created, or null to keep all frames in memory
+	 * @param maxMemorySize
+	 *            size of the frames kept in memory above which the next ones are spilled
+	 * @param segmentSize
+	 *            size of each overflow file. A frame bigger than this size gets a file of its own
+	 */
+	public OverflowBuffer(File directory, long maxMemorySize, int segmentSize) {
+		if (maxMemorySize < 0)
+			throw new IllegalArgumentException("Maximum memory size have to be a positive number");
+		if (segmentSize <= 0)
+			throw new IllegalArgumentException("Segment size have to be a strictly positive number");
+		this.directory = directory;
+		this.maxMemorySize = maxMemorySize;
+		this.segmentSize = segmentSize;
+		this.spillingEnabled = directory != null;
+	}
+
+	/**
+	 * Append a frame at the tail of the buffer
+	 *
+	 * @param frame
+	 */
+	public void add(Frame frame) {
+		if (!fallbackFrames.isEmpty()) {
+			fallbackFrames.add(frame);
+			return;
+		}
+
+		// Keep the FIFO order : once a frame has been spilled, all the following ones are spilled too
+		int size = getFrameSize(frame);
+		boolean fitsInMemory = memoryFrames.isEmpty() || memorySize + size <= maxMemorySize;
+		if (!spillingEnabled || (segments.isEmpty() && fitsInMemory)) {
+			memoryFrames.add(frame);
+			memorySize += size;
+			return;
+		}
+
+		try {
+			spill(frame);
+		} catch (IOException e) {
+			LOGGER.error("Can't spill a frame in " + directory + ", keeping the next frames in memory", e);
+			spillingEnabled = false;
+			fallbackFrames.add(frame);
+		}
+	}
+
+	/**
+	 * Remove the frame at the head of the buffer
+	 *
+	 * @return the oldest frame, or null if the buffer is empty
+	 */
+	public Frame poll() {
+		if (memoryFrames.isEmpty()) {
+			pageIn();
+		}
+
+		Frame frame = memoryFrames.poll();
+		if (frame != null) {
+			memorySize -= getFrameSize(frame);
+			// Page the next frames in ahead of consumption
+			if (memorySize < maxMemorySize / 2) {
+				pageIn();
+			}
+		} else {
+			frame = fallbackFrames.poll();
+		}
+		return frame;
+	}
+
+	/**
+	 * Remove all frames and delete the overflow files
+	 */
+	public void clear() {
+		memoryFrames.clear();
+		fallbackFrames.clear();
+		memorySize = 0;
+		spilledCount = 0;
+		for (Segment segment : segments) {
+			segment.delete();
+		}
+		segments.clear();
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return the number of frames in the buffer, in memory or spilled
+	 */
+	public int size() {
+		return memoryFrames.size() + spilledCount + fallbackFrames.size();
+	}
+
+	/**
+	 * @return the number of frames currently in overflow files
+	 */
+	public int getSpilledCount() {
+		return spilledCount;
+	}
+
+	/**
+	 * @return the size of the frames currently kept in memory
+	 */
+	public long getMemorySize() {
+		return memorySize;
+	}
+
+	public long getMaxMemorySize() {
+		return maxMemorySize;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	private void spill(Frame frame) throws IOException {
+		ChannelBuffer record = FrameSerializer.serialize(frame);
+		int recordSize = record.readableBytes();
+
+		Segment segment = segments.peekLast();
+		if (segment == null || segment.getRemaining() < recordSize) {
+			segment = new Segment(Math.max(segmentSize, recordSize));
+			segments.add(segment);
+		}
+		segment.write(record);
+		spilledCount++;
+	}
+
+	/**
+	 * Move spilled frames in memory until the memory size is reached or there is no more spilled frame
+	 */
+	private void pageIn() {
+		while (!segments.isEmpty() && (memoryFrames.isEmpty() || memorySize < maxMemorySize)) {
+			Segment segment = segments.peek();
+			Frame frame = null;
+			try {
+				frame = segment.read();
+			} catch (ParseException e) {
+				LOGGER.error("Corrupted overflow file " + segment.getFile() + ", its remaining frames are lost", e);
+			}
+
+			if (frame != null) {
+				spilledCount--;
+				memoryFrames.add(frame);
+				memorySize += getFrameSize(frame);
+			} else {
+				spilledCount -= segment.getCount();
+				segment.skipAll();
+			}
+
+			// The file is deleted once all its frames are in memory, the next spilled ones go in a new file
+			if (segment.getCount() == 0) {
+				segment.delete();
+				segments.poll();
+			}
+		}
+	}
+
+	private static int getFrameSize(Frame frame) {
+		return frame.getBodySize();
+	}
+
+	/**
+	 * An overflow file, mapped in memory. Frames are written at its end and read from its beginning.
+	 *
+	 * @author dvilleneuve
+	 *
+	 */
+	private class Segment {
+
+		private final File file;
+		private final RandomAccessFile randomAccessFile;
+		private final MappedByteBuffer buffer;
+		private int readPosition = 0;
+		private int count = 0;
+
+		public Segment(int size) throws IOException {
+			if (!directory.isDirectory() && !directory.mkdirs())
+				throw new IOException("Can't create the overflow directory " + directory);
+
+			file = File.createTempFile("overflow-", ".dat", directory);
+			randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				buffer = randomAccessFile.getChannel().map(MapMode.READ_WRITE, 0, size);
+			} catch (IOException e) {
+				delete();
+				throw e;
+			}
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public int getRemaining() {
+			return buffer.remaining();
+		}
+
+		public void write(ChannelBuffer record) {
+			record.getBytes(record.readerIndex(), buffer);
+			count++;
+		}
+
+		/**
+		 * @return the next frame of the segment, or null if all the frames written so far have been read
+		 * @throws ParseException
+		 */
+		public Frame read() throws ParseException {
+			ByteBuffer readBuffer = buffer.duplicate();
+			readBuffer.limit(buffer.position()).position(readPosition);
+			ChannelBuffer record = ChannelBuffers.wrappedBuffer(readBuffer);
+
+			Frame frame = FrameSerializer.deserialize(record);
+			if (frame != null) {
+				readPosition += record.readerIndex();
+				count--;
+			}
+			return frame;
+		}
+
+		public void skipAll() {
+			count = 0;
+		}
+
+		/**
+		 * Close and delete the file. The mapping itself is released once the buffer is garbage collected.
+		 */
+		public void delete() {
+			try {
+				FileChannel channel = randomAccessFile.getChannel();
+				channel.close();
+				randomAccessFile.close();
+			} catch (IOException e) {
+				LOGGER.warn("Can't close the overflow file " + file, e);
+			}
+			if (!file.delete()) {
+				LOGGER.warn("Can't delete the overflow file {}", file);
+			}
+		}
+	}
+
+}
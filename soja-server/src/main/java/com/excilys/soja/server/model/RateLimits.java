@@ -0,0 +1,75 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.model;
+
+/**
+ * Rates allowed to a login, shared by all its connections. A rate of 0 means no limit. Each limit allows a burst of
+ * one second worth of tokens.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class RateLimits {
+
+	public static final RateLimits UNLIMITED = new RateLimits(0, 0, 0);
+
+	private final double connectionRate;
+	private final double sendFrameRate;
+	private final double sendByteRate;
+
+	/**
+	 * @param connectionRate
+	 *            new connections per second
+	 * @param sendFrameRate
+	 *            SEND frames per second
+	 * @param sendByteRate
+	 *            bytes of SEND frame bodies per second
+	 */
+	public RateLimits(double connectionRate, double sendFrameRate, double sendByteRate) {
+		if (connectionRate < 0 || sendFrameRate < 0 || sendByteRate < 0)
+			throw new IllegalArgumentException("Rates have to be positive numbers");
+		this.connectionRate = connectionRate;
+		this.sendFrameRate = sendFrameRate;
+		this.sendByteRate = sendByteRate;
+	}
+
+	public double getConnectionRate() {
+		return connectionRate;
+	}
+
+	public double getSendFrameRate() {
+		return sendFrameRate;
+	}
+
+	public double getSendByteRate() {
+		return sendByteRate;
+	}
+
+	/**
+	 * @param rate
+	 * @return a bucket for this rate, or null if the rate is unlimited
+	 */
+	public static TokenBucket createBucket(double rate) {
+		return rate > 0 ? new TokenBucket(rate, Math.max(1, rate)) : null;
+	}
+
+	@Override
+	public String toString() {
+		return "RateLimits [connectionRate=" + connectionRate + ", sendFrameRate=" + sendFrameRate + ", sendByteRate="
+				+ sendByteRate + "]";
+	}
+
+}
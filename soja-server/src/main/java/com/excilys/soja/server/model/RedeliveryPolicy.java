@@ -0,0 +1,127 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.model;
+
+/**
+ * Configure how a NACK-ed message is redelivered to its subscriber.
+ * <p/>
+ * The first redelivery is delayed by {@link #getInitialDelay()} milliseconds, then each following one is multiplied by
+ * {@link #getBackOffMultiplier()} up to {@link #getMaxDelay()}. Once a message has been delivered
+ * {@link #getMaxDeliveries()} times to a subscription, the next NACK moves it to the dead letter destination of its
+ * topic.
+ *
+ * @author dvilleneuve
+ *
+ */
+public class RedeliveryPolicy {
+
+	public static final long DEFAULT_INITIAL_DELAY = 1000;
+	public static final double DEFAULT_BACK_OFF_MULTIPLIER = 2;
+	public static final long DEFAULT_MAX_DELAY = 60000;
+	public static final int DEFAULT_MAX_DELIVERIES = 10;
+	public static final String DEFAULT_DEAD_LETTER_PREFIX = "/dlq";
+
+	private long initialDelay = DEFAULT_INITIAL_DELAY;
+	private double backOffMultiplier = DEFAULT_BACK_OFF_MULTIPLIER;
+	private long maxDelay = DEFAULT_MAX_DELAY;
+	private int maxDeliveries = DEFAULT_MAX_DELIVERIES;
+	private String deadLetterPrefix = DEFAULT_DEAD_LETTER_PREFIX;
+
+	/**
+	 * Compute the delay to wait before redelivering a message.
+	 *
+	 * @param redeliveryCount
+	 *            number of time the message has already been redelivered
+	 * @return the delay in milliseconds
+	 */
+	public long getRedeliveryDelay(int redeliveryCount) {
+		double delay = initialDelay * Math.pow(backOffMultiplier, redeliveryCount);
+		return (long) Math.min(delay, maxDelay);
+	}
+
+	/**
+	 * @param deliveryCount
+	 *            number of time the message has been delivered to the subscription, including the first one
+	 * @return true if the message can't be redelivered anymore and must be sent to the dead letter destination
+	 */
+	public boolean isExhausted(int deliveryCount) {
+		return maxDeliveries > 0 && deliveryCount >= maxDeliveries;
+	}
+
+	/**
+	 * @param topic
+	 * @return the destination on which messages of <code>topic</code> are dead-lettered
+	 */
+	public String getDeadLetterDestination(String topic) {
+		return deadLetterPrefix + topic;
+	}
+
+	public long getInitialDelay() {
+		return initialDelay;
+	}
+
+	public void setInitialDelay(long initialDelay) {
+		if (initialDelay < 0)
+			throw new IllegalArgumentException("Initial redelivery delay have to be a positive number");
+		this.initialDelay = initialDelay;
+	}
+
+	public double getBackOffMultiplier() {
+		return backOffMultiplier;
+	}
+
+	public void setBackOffMultiplier(double backOffMultiplier) {
+		if (backOffMultiplier < 1)
+			throw new IllegalArgumentException("Back-off multiplier have to be greater or equal to 1");
+		this.backOffMultiplier = backOffMultiplier;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	public void setMaxDelay(long maxDelay) {
+		if (maxDelay < 0)
+			throw new IllegalArgumentException("Maximum redelivery delay have to be a positive number");
+		this.maxDelay = maxDelay;
+	}
+
+	public int getMaxDeliveries() {
+		return maxDeliveries;
+	}
+
+	/**
+	 * @param maxDeliveries
+	 *            maximum number of deliveries of a message to a subscription. 0 means the message will be redelivered
+	 *            forever
+	 */
+	public void setMaxDeliveries(int maxDeliveries) {
+		if (maxDeliveries < 0)
+			throw new IllegalArgumentException("Maximum deliveries have to be a positive number");
+		this.maxDeliveries = maxDeliveries;
+	}
+
+	public String getDeadLetterPrefix() {
+		return deadLetterPrefix;
+	}
+
+	public void setDeadLetterPrefix(String deadLetterPrefix) {
+		if (deadLetterPrefix == null || deadLetterPrefix.isEmpty())
+			throw new IllegalArgumentException("Dead letter prefix can't be null nor empty");
+		this.deadLetterPrefix = deadLetterPrefix;
+	}
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+
+import com.excilys.soja.server.authentication.SessionIdGenerator;
+import com.excilys.soja.server.metrics.ConnectionMetrics;
+
+/**
+ * State of a connected client, attached to its channel from the CONNECT frame until the channel is closed. It owns the
+ * client's subscriptions, and through them the messages they didn't acknowledge yet.
+ *
+ * @author dvilleneuve
+ *
+ */
+public class StompSession {
+
+	private final long id;
+	private final Channel channel;
+	private final String token;
+	private final long connectionTime = System.currentTimeMillis();
+	private final ConcurrentMap<Long, Subscription> subscriptions = new ConcurrentHashMap<Long, Subscription>();
+	private final AtomicLong receivedFrameCount = new AtomicLong();
+	private final AtomicLong sentFrameCount = new AtomicLong();
+	private volatile long localHeartBeat;
+	private volatile long remoteHeartBeat;
+	private volatile ConnectionMetrics metrics;
+
+	/**
+	 * @param id
+	 *            identifier of the session in this server, cheaper than the token to use as a key
+	 * @param channel
+	 * @param token
+	 *            the token given by the authentication
+	 */
+	public StompSession(long id, Channel channel, String token) {
+		this.id = id;
+		this.channel = channel;
+		this.token = token;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public Channel getChannel() {
+		return channel;
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * @return the time this session has been opened, in milliseconds
+	 */
+	public long getConnectionTime() {
+		return connectionTime;
+	}
+
+	/**
+	 * @param subscriptionId
+	 * @return the subscription or null if the client has no subscription with this id
+	 */
+	public Subscription getSubscription(Long subscriptionId) {
+		return subscriptions.get(subscriptionId);
+	}
+
+	/**
+	 * @return a copy of the subscriptions of this session
+	 */
+	public List<Subscription> getSubscriptions() {
+		return new ArrayList<Subscription>(subscriptions.values());
+	}
+
+	public void addSubscription(Subscription subscription) {
+		subscriptions.put(subscription.getSubscriptionId(), subscription);
+	}
+
+	/**
+	 * @param subscriptionId
+	 * @return the removed subscription, or null if the client has no subscription with this id
+	 */
+	public Subscription removeSubscription(Long subscriptionId) {
+		return subscriptions.remove(subscriptionId);
+	}
+
+	/**
+	 * Negotiated heart-beat intervals of this session
+	 *
+	 * @param localHeartBeat
+	 *            interval between the heart-beats sent to the client, 0 if none are sent
+	 * @param remoteHeartBeat
+	 *            interval between the heart-beats expected from the client, 0 if none are expected
+	 */
+	public void setHeartBeat(long localHeartBeat, long remoteHeartBeat) {
+		this.localHeartBeat = localHeartBeat;
+		this.remoteHeartBeat = remoteHeartBeat;
+	}
+
+	public long getLocalHeartBeat() {
+		return localHeartBeat;
+	}
+
+	public long getRemoteHeartBeat() {
+		return remoteHeartBeat;
+	}
+
+	public long incrementReceivedFrameCount() {
+		return receivedFrameCount.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of frames received from the client since the session has been opened
+	 */
+	public long getReceivedFrameCount() {
+		return receivedFrameCount.get();
+	}
+
+	public long incrementSentFrameCount() {
+		return sentFrameCount.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of frames sent to the client since the session has been opened
+	 */
+	public long getSentFrameCount() {
+		return sentFrameCount.get();
+	}
+
+	/**
+	 * @return the metrics of the connection, set when the session is opened
+	 */
+	public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(ConnectionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public String toString() {
+		return "StompSession [id=" + SessionIdGenerator.toString(id) + ", token=" + token + ", channel=" + channel
+				+ ", subscriptions=" + subscriptions.size() + "]";
+	}
+
+}
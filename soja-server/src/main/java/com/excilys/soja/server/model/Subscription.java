@@ -15,9 +15,21 @@
  */
 package com.excilys.soja.server.model;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
 import org.jboss.netty.channel.Channel;
 
 import com.excilys.soja.core.model.Ack;
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.core.model.Header;
 
 /**
  * @author dvilleneuve
@@ -28,6 +40,16 @@ public class Subscription implements Comparable<Subscription> {
 	private final Long subscriptionId;
 	private final String topic;
 	private final Ack ackMode;
+	private final int prefetchCount;
+	private final long prefetchSize;
+	/** Pending messages by delivery sequence, so a cumulative acknowledgment releases a range of them */
+	private final TreeMap<Long, PendingMessage> pendingMessages = new TreeMap<Long, PendingMessage>();
+	private final Map<String, Long> pendingSequences = new HashMap<String, Long>();
+	private final OverflowBuffer backlog;
+	/** Ids of the held back messages, so the backlog can be dropped without reading its spilled frames back */
+	private final Set<String> backlogMessageIds = new LinkedHashSet<String>();
+	private long nextSequence = 0;
+	private long pendingSize = 0;
 
 	/**
 	 * @param topic
@@ -35,10 +57,43 @@ public class Subscription implements Comparable<Subscription> {
 	 * @param subscriptionId
 	 */
 	public Subscription(Channel channel, Long subscriptionId, String topic, Ack ackMode) {
+		this(channel, subscriptionId, topic, ackMode, 0, 0, new OverflowBuffer());
+	}
+
+	/**
+	 * @param topic
+	 * @param ackMode
+	 * @param subscriptionId
+	 * @param prefetchCount
+	 *            maximum number of messages sent to this subscription and not acknowledged yet. 0 means no limit
+	 * @param prefetchSize
+	 *            maximum size of the messages sent to this subscription and not acknowledged yet. 0 means no limit
+	 */
+	public Subscription(Channel channel, Long subscriptionId, String topic, Ack ackMode, int prefetchCount,
+			long prefetchSize) {
+		this(channel, subscriptionId, topic, ackMode, prefetchCount, prefetchSize, new OverflowBuffer());
+	}
+
+	/**
+	 * @param topic
+	 * @param ackMode
+	 * @param subscriptionId
+	 * @param prefetchCount
+	 *            maximum number of messages sent to this subscription and not acknowledged yet. 0 means no limit
+	 * @param prefetchSize
+	 *            maximum size of the messages sent to this subscription and not acknowledged yet. 0 means no limit
+	 * @param backlog
+	 *            the buffer where messages are held back while the prefetch window is full
+	 */
+	public Subscription(Channel channel, Long subscriptionId, String topic, Ack ackMode, int prefetchCount,
+			long prefetchSize, OverflowBuffer backlog) {
 		this.channel = channel;
 		this.subscriptionId = subscriptionId;
 		this.topic = topic;
 		this.ackMode = ackMode;
+		this.prefetchCount = prefetchCount;
+		this.prefetchSize = prefetchSize;
+		this.backlog = backlog;
 	}
 
 	public Channel getChannel() {
@@ -57,6 +112,258 @@ public class Subscription implements Comparable<Subscription> {
 		return ackMode;
 	}
 
+	public int getPrefetchCount() {
+		return prefetchCount;
+	}
+
+	public long getPrefetchSize() {
+		return prefetchSize;
+	}
+
+	/**
+	 * Keep track of a message sent to this subscription which has not been acknowledged yet. Messages are kept in
+	 * their delivery order.
+	 * 
+	 * @param messageId
+	 */
+	public synchronized void addPendingMessage(String messageId) {
+		if (!pendingSequences.containsKey(messageId)) {
+			putPendingMessage(new PendingMessage(messageId, null));
+		}
+	}
+
+	/**
+	 * Keep track of a message sent to this subscription which has not been acknowledged yet, so it can be redelivered.
+	 * Messages are kept in their delivery order.
+	 * 
+	 * @param messageFrame
+	 *            the MESSAGE frame, with this subscription's header. Its body size is counted in the prefetch window
+	 */
+	public synchronized void addPendingMessage(Frame messageFrame) {
+		String messageId = messageFrame.getHeaderValue(Header.HEADER_MESSAGE_ID);
+		PendingMessage pendingMessage = getPending(messageId);
+		if (pendingMessage == null) {
+			pendingSize += getBodySize(messageFrame);
+			putPendingMessage(new PendingMessage(messageId, messageFrame));
+		} else {
+			pendingMessage.frame = messageFrame;
+		}
+	}
+
+	/**
+	 * @param messageId
+	 * @return the MESSAGE frame sent to this subscription, or null if the message is not pending
+	 */
+	public synchronized Frame getPendingMessage(String messageId) {
+		PendingMessage pendingMessage = getPending(messageId);
+		return pendingMessage == null ? null : pendingMessage.frame;
+	}
+
+	/**
+	 * Remove a single message from the pending ones, regardless of the ACK mode.
+	 * 
+	 * @param messageId
+	 * @return true if the message was pending
+	 */
+	public synchronized boolean removePendingMessage(String messageId) {
+		Long sequence = pendingSequences.remove(messageId);
+		if (sequence == null)
+			return false;
+
+		pendingSize -= getBodySize(pendingMessages.remove(sequence).frame);
+		return true;
+	}
+
+	/**
+	 * Mark a pending message as rejected by a NACK : until it's redelivered, cumulative acknowledgments of the
+	 * following messages don't cover it.
+	 * 
+	 * @param messageId
+	 */
+	public synchronized void rejectPendingMessage(String messageId) {
+		PendingMessage pendingMessage = getPending(messageId);
+		if (pendingMessage != null) {
+			pendingMessage.rejected = true;
+		}
+	}
+
+	/**
+	 * Take a rejected message back for its redelivery. It becomes the last delivered message, so only the
+	 * acknowledgments sent after the redelivery cover it.
+	 * 
+	 * @param messageId
+	 * @return the MESSAGE frame to redeliver, or null if the message is not pending anymore
+	 */
+	public synchronized Frame redeliverPendingMessage(String messageId) {
+		Long sequence = pendingSequences.get(messageId);
+		if (sequence == null)
+			return null;
+
+		PendingMessage pendingMessage = pendingMessages.remove(sequence);
+		pendingMessage.rejected = false;
+		putPendingMessage(pendingMessage);
+		return pendingMessage.frame;
+	}
+
+	/**
+	 * Retrieve the pending messages covered by an ACK or a NACK of <code>messageId</code>. With {@link Ack#CLIENT}
+	 * mode, it's a cumulative acknowledgment so all messages delivered before <code>messageId</code> are returned too,
+	 * in their delivery order, except the ones waiting for their redelivery. With other modes, only
+	 * <code>messageId</code> is returned.
+	 * <p/>
+	 * Only the range of messages delivered up to <code>messageId</code> is visited, whatever the number of messages
+	 * delivered after it.
+	 * 
+	 * @param messageId
+	 * @return the ids of the acknowledged messages, or an empty list if <code>messageId</code> is not pending
+	 */
+	public synchronized List<String> getPendingMessagesUntil(String messageId) {
+		return collectPendingMessagesUntil(messageId, false);
+	}
+
+	/**
+	 * Same as {@link #getPendingMessagesUntil(String)} but the returned messages are not pending anymore.
+	 * 
+	 * @param messageId
+	 * @return the ids of the acknowledged messages, or an empty list if <code>messageId</code> is not pending
+	 */
+	public synchronized List<String> removePendingMessagesUntil(String messageId) {
+		return collectPendingMessagesUntil(messageId, true);
+	}
+
+	private List<String> collectPendingMessagesUntil(String messageId, boolean remove) {
+		Long sequence = pendingSequences.get(messageId);
+		if (sequence == null)
+			return Collections.emptyList();
+		if (ackMode != Ack.CLIENT) {
+			if (remove) {
+				removePendingMessage(messageId);
+			}
+			return Collections.singletonList(messageId);
+		}
+
+		List<String> messageIds = new ArrayList<String>();
+		Iterator<PendingMessage> iterator = pendingMessages.headMap(sequence, true).values().iterator();
+		while (iterator.hasNext()) {
+			PendingMessage pendingMessage = iterator.next();
+			if (pendingMessage.rejected && !pendingMessage.messageId.equals(messageId))
+				continue;
+
+			messageIds.add(pendingMessage.messageId);
+			if (remove) {
+				iterator.remove();
+				pendingSequences.remove(pendingMessage.messageId);
+				pendingSize -= getBodySize(pendingMessage.frame);
+			}
+		}
+		return messageIds;
+	}
+
+	/**
+	 * Remove all pending messages, and the ones which have not been sent yet, for instance when the subscription is
+	 * removed. The held back messages are dropped without reading back the ones spilled on the disk.
+	 * 
+	 * @return the ids of the messages which were pending, in their delivery order
+	 */
+	public synchronized List<String> removePendingMessages() {
+		List<String> messageIds = new ArrayList<String>(pendingMessages.size() + backlogMessageIds.size());
+		for (PendingMessage pendingMessage : pendingMessages.values()) {
+			messageIds.add(pendingMessage.messageId);
+		}
+		messageIds.addAll(backlogMessageIds);
+		backlogMessageIds.clear();
+		backlog.clear();
+		pendingMessages.clear();
+		pendingSequences.clear();
+		pendingSize = 0;
+		return messageIds;
+	}
+
+	/**
+	 * @return the number of messages sent to this subscription which have not been acknowledged yet
+	 */
+	public synchronized int getPendingMessageCount() {
+		return pendingMessages.size();
+	}
+
+	/**
+	 * @return the size of the messages sent to this subscription which have not been acknowledged yet
+	 */
+	public synchronized long getPendingSize() {
+		return pendingSize;
+	}
+
+	/**
+	 * @return true if the prefetch window is full : no more message can be sent until some are acknowledged
+	 */
+	public synchronized boolean isWindowFull() {
+		return (prefetchCount > 0 && pendingMessages.size() >= prefetchCount)
+				|| (prefetchSize > 0 && pendingSize >= prefetchSize);
+	}
+
+	/**
+	 * Check if a message can be sent right now to the subscription. If so, the message become pending. Else, it's
+	 * held back until the subscription acknowledges enough messages.
+	 * 
+	 * @param messageFrame
+	 *            the MESSAGE frame, with this subscription's header
+	 * @return true if the message can be sent, false if it has been held back
+	 */
+	public synchronized boolean offerMessage(Frame messageFrame) {
+		if (!backlog.isEmpty() || isWindowFull()) {
+			backlog.add(messageFrame);
+			backlogMessageIds.add(messageFrame.getHeaderValue(Header.HEADER_MESSAGE_ID));
+			return false;
+		}
+
+		addPendingMessage(messageFrame);
+		return true;
+	}
+
+	/**
+	 * Retrieve the next held back message if the prefetch window allows to send it. The returned message become
+	 * pending.
+	 * 
+	 * @return the next message to send, or null if there is none or if the window is full
+	 */
+	public synchronized Frame pollMessage() {
+		if (backlog.isEmpty() || isWindowFull())
+			return null;
+
+		Frame messageFrame = backlog.poll();
+		if (messageFrame == null)
+			return null;
+
+		backlogMessageIds.remove(messageFrame.getHeaderValue(Header.HEADER_MESSAGE_ID));
+		addPendingMessage(messageFrame);
+		return messageFrame;
+	}
+
+	/**
+	 * @return the number of messages held back because the prefetch window is full, in memory or spilled on the disk
+	 */
+	public synchronized int getBacklogSize() {
+		return backlog.size();
+	}
+
+	private PendingMessage getPending(String messageId) {
+		Long sequence = pendingSequences.get(messageId);
+		return sequence == null ? null : pendingMessages.get(sequence);
+	}
+
+	/**
+	 * Give the message the next delivery sequence
+	 */
+	private void putPendingMessage(PendingMessage pendingMessage) {
+		long sequence = nextSequence++;
+		pendingMessages.put(sequence, pendingMessage);
+		pendingSequences.put(pendingMessage.messageId, sequence);
+	}
+
+	private static int getBodySize(Frame frame) {
+		return frame == null ? 0 : frame.getBodySize();
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -102,10 +409,31 @@ public class Subscription implements Comparable<Subscription> {
 		if (o == null)
 			return -1;
 
-		String channel1 = channel == null ? "" : channel.getId().toString();
-		String channel2 = o.getChannel() == null ? "" : o.getChannel().getId().toString();
-		String id1 = channel1 + subscriptionId;
-		String id2 = channel2 + o.getSubscriptionId();
-		return id1.compareTo(id2);
+		// Order by channel, subscriptions without channel first, then by subscription id
+		long channelId1 = channel == null ? Long.MIN_VALUE : channel.getId();
+		long channelId2 = o.getChannel() == null ? Long.MIN_VALUE : o.getChannel().getId();
+		if (channelId1 != channelId2)
+			return channelId1 < channelId2 ? -1 : 1;
+		return subscriptionId.compareTo(o.getSubscriptionId());
 	}
+
+	/**
+	 * A message sent to the subscription and not acknowledged yet
+	 * 
+	 * @author dvilleneuve
+	 * 
+	 */
+	private static class PendingMessage {
+
+		private final String messageId;
+		private Frame frame;
+		/** Rejected by a NACK and waiting for its redelivery */
+		private boolean rejected = false;
+
+		public PendingMessage(String messageId, Frame frame) {
+			this.messageId = messageId;
+			this.frame = frame;
+		}
+	}
+
 }
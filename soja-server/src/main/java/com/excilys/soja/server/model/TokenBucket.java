@@ -0,0 +1,89 @@
+/**
+ * Copyright 2010-2011 eBusiness Information, Groupe Excilys (www.excilys.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.excilys.soja.server.model;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket refilled at a constant rate, up to a maximum burst. Tokens are always granted, even when the bucket is
+ * empty : the bucket goes in debt, and the caller is told how long it has to wait before the debt is repaid. This way a
+ * client is throttled instead of rejected.
+ * 
+ * @author dvilleneuve
+ * 
+ */
+public class TokenBucket {
+
+	private final double rate;
+	private final double burst;
+	private double tokens;
+	private long lastRefillTime;
+
+	/**
+	 * @param rate
+	 *            number of tokens added per second
+	 * @param burst
+	 *            maximum number of tokens in the bucket
+	 */
+	public TokenBucket(double rate, double burst) {
+		if (rate <= 0)
+			throw new IllegalArgumentException("Rate have to be a strictly positive number");
+		if (burst <= 0)
+			throw new IllegalArgumentException("Burst have to be a strictly positive number");
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastRefillTime = System.nanoTime();
+	}
+
+	/**
+	 * Take tokens from the bucket.
+	 * 
+	 * @param count
+	 *            number of tokens to take
+	 * @return the number of milliseconds to wait until the bucket isn't in debt anymore, 0 if it's not
+	 */
+	public synchronized long acquire(double count) {
+		refill();
+		tokens -= count;
+		if (tokens >= 0)
+			return 0;
+		return (long) Math.ceil(-tokens * 1000 / rate);
+	}
+
+	/**
+	 * @return true if the bucket is full, meaning it hasn't been used for a while and can be dropped
+	 */
+	public synchronized boolean isFull() {
+		refill();
+		return tokens >= burst;
+	}
+
+	public double getRate() {
+		return rate;
+	}
+
+	public double getBurst() {
+		return burst;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - lastRefillTime) * rate / TimeUnit.SECONDS.toNanos(1));
+		lastRefillTime = now;
+	}
+
+}
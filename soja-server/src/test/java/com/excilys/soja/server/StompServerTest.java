@@ -0,0 +1,136 @@
+package com.excilys.soja.server;
+
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jboss.netty.channel.group.ChannelGroupFuture;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.excilys.soja.server.authentication.Authentication;
+
+public class StompServerTest {
+
+	private static final String TOPIC = "/topic/stomp-server-test";
+
+	private final List<Socket> sockets = new ArrayList<Socket>();
+	private int port;
+	private StompServer stompServer;
+
+	@Before
+	public void setUp() throws Exception {
+		stompServer = new StompServer("localhost", findFreePort(), Authentication.ALLOW_ALL_INSTANCE);
+		assertTrue(stompServer.start());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+	}
+
+	private int findFreePort() throws IOException {
+		ServerSocket serverSocket = new ServerSocket(0);
+		try {
+			port = serverSocket.getLocalPort();
+			return port;
+		} finally {
+			serverSocket.close();
+		}
+	}
+
+	private Socket connect(int receiveBufferSize) throws IOException {
+		Socket socket = new Socket();
+		sockets.add(socket);
+		if (receiveBufferSize > 0) {
+			socket.setReceiveBufferSize(receiveBufferSize);
+		}
+		socket.connect(new InetSocketAddress("localhost", port));
+		write(socket, "CONNECT\naccept-version:" + StompServer.STOMP_VERSION + "\nhost:localhost\n\n");
+		assertTrue(readFrame(socket).startsWith("CONNECTED\n"));
+		return socket;
+	}
+
+	private static void write(Socket socket, String frame) throws IOException {
+		OutputStream outputStream = socket.getOutputStream();
+		outputStream.write(frame.getBytes(CharsetUtil.UTF_8));
+		outputStream.write(0);
+		outputStream.flush();
+	}
+
+	/**
+	 * @return the next frame read from the socket, without its null terminator, or null if the socket was closed
+	 */
+	private static String readFrame(Socket socket) throws IOException {
+		InputStream inputStream = socket.getInputStream();
+		StringBuilder frame = new StringBuilder();
+		int c;
+		while ((c = inputStream.read()) > 0) {
+			// Heart-beats and end of lines between frames
+			if (c != '\n' || frame.length() > 0) {
+				frame.append((char) c);
+			}
+		}
+		return c < 0 ? null : frame.toString();
+	}
+
+	@Test
+	public void testStopAsync_drained() throws Exception {
+		Socket socket = connect(0);
+		long start = System.currentTimeMillis();
+
+		ChannelGroupFuture future = stompServer.stopAsync(10000);
+
+		assertTrue(future.await(5000));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertNull(readFrame(socket));
+	}
+
+	@Test
+	public void testStopAsync_drain_timeout() throws Exception {
+		Socket subscriber = connect(4096);
+		write(subscriber, "SUBSCRIBE\ndestination:" + TOPIC + "\nid:1\nreceipt:subscribed\n\n");
+		assertTrue(readFrame(subscriber).startsWith("RECEIPT\n"));
+
+		// The subscriber doesn't read anymore, the messages pile up in its write queue
+		final Socket publisher = connect(0);
+		final char[] body = new char[64 * 1024];
+		Arrays.fill(body, 'x');
+		Thread publishing = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 256; i++) {
+						write(publisher, "SEND\ndestination:" + TOPIC + "\ncontent-length:" + body.length + "\n\n"
+								+ new String(body));
+					}
+				} catch (IOException e) {
+					// The server is stopped while publishing
+				}
+			}
+		}, "Publisher");
+		publishing.setDaemon(true);
+		publishing.start();
+		Thread.sleep(500);
+		long start = System.currentTimeMillis();
+
+		ChannelGroupFuture future = stompServer.stopAsync(500);
+
+		// The subscriber can't receive its frames, it's disconnected once the drain timeout elapsed
+		assertTrue(future.await(5000));
+		assertTrue(System.currentTimeMillis() - start >= 400);
+	}
+}
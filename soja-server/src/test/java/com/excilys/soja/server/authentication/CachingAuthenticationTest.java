@@ -0,0 +1,106 @@
+package com.excilys.soja.server.authentication;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.concurrent.Executor;
+
+import javax.security.auth.login.LoginException;
+
+import org.junit.Test;
+
+import com.excilys.soja.core.future.StompFuture;
+
+public class CachingAuthenticationTest extends AuthenticationTest {
+
+	private static final Executor SAME_THREAD_EXECUTOR = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private final CountingAuthentication countingAuthentication = new CountingAuthentication();
+	private final CachingAuthentication cachingAuthentication;
+
+	public CachingAuthenticationTest() {
+		cachingAuthentication = new CachingAuthentication(countingAuthentication);
+		authentication = cachingAuthentication;
+	}
+
+	@Test
+	public void testConnect_cached() throws Exception {
+		assertNotNull(authentication.connect("username", "password"));
+		assertNotNull(authentication.connect("username", "password"));
+
+		assertEquals(1, countingAuthentication.connectCount);
+		assertEquals(1, cachingAuthentication.getHitCount());
+	}
+
+	@Test
+	public void testConnect_other_password() throws Exception {
+		authentication.connect("username", "password");
+		try {
+			authentication.connect("username", "wrong");
+		} catch (LoginException e) {
+		}
+
+		assertEquals(2, countingAuthentication.connectCount);
+		assertEquals(0, cachingAuthentication.getHitCount());
+	}
+
+	@Test
+	public void testConnectAsync_failure_not_cached() throws Exception {
+		StompFuture<String> future1 = authentication.connectAsync("username", "wrong", SAME_THREAD_EXECUTOR);
+		StompFuture<String> future2 = authentication.connectAsync("username", "wrong", SAME_THREAD_EXECUTOR);
+
+		assertFalse(future1.isSuccess());
+		assertTrue(future2.getCause() instanceof LoginException);
+		assertEquals(2, countingAuthentication.connectCount);
+	}
+
+	@Test
+	public void testConnectAsync_cached() throws Exception {
+		authentication.connectAsync("username", "password", SAME_THREAD_EXECUTOR);
+		StompFuture<String> future = authentication.connectAsync("username", "password", null);
+
+		assertTrue(future.isSuccess());
+		assertNotNull(future.getNow());
+		assertEquals(1, countingAuthentication.connectCount);
+	}
+
+	@Test
+	public void testConnect_expired() throws Exception {
+		CachingAuthentication expiringAuthentication = new CachingAuthentication(countingAuthentication, 1, 10);
+		expiringAuthentication.connect("username", "password");
+		Thread.sleep(10);
+		expiringAuthentication.connect("username", "password");
+
+		assertEquals(2, countingAuthentication.connectCount);
+	}
+
+	@Test
+	public void testInvalidate() throws Exception {
+		authentication.connect("username", "password");
+		cachingAuthentication.invalidate("username");
+		authentication.connect("username", "password");
+
+		assertEquals(2, countingAuthentication.connectCount);
+	}
+
+	private static class CountingAuthentication extends AllowAllAuthentication {
+
+		private int connectCount = 0;
+
+		@Override
+		public String connect(String username, String password) throws LoginException {
+			connectCount++;
+			if ("wrong".equals(password))
+				throw new LoginException("Wrong password");
+			return super.connect(username, password);
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package com.excilys.soja.server.authentication;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SessionIdGeneratorTest {
+
+	@Test
+	public void testNextId_node_id() throws Exception {
+		SessionIdGenerator generator = new SessionIdGenerator(42);
+
+		assertEquals(42, SessionIdGenerator.getNodeId(generator.nextId()));
+	}
+
+	@Test
+	public void testNextId_max_node_id() throws Exception {
+		SessionIdGenerator generator = new SessionIdGenerator(SessionIdGenerator.MAX_NODE_ID);
+		long id1 = generator.nextId();
+		long id2 = generator.nextId();
+
+		assertEquals(SessionIdGenerator.MAX_NODE_ID, SessionIdGenerator.getNodeId(id1));
+		assertFalse(id1 == id2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSessionIdGenerator_invalid_node_id() throws Exception {
+		new SessionIdGenerator(SessionIdGenerator.MAX_NODE_ID + 1);
+	}
+
+	@Test
+	public void testNextId_concurrent() throws Exception {
+		final SessionIdGenerator generator = new SessionIdGenerator(1);
+		final Set<Long> ids = Collections.synchronizedSet(new HashSet<Long>());
+		final int idsPerThread = 3 * SessionIdGenerator.BLOCK_SIZE;
+
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < idsPerThread; j++) {
+						ids.add(generator.nextId());
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(threads.length * idsPerThread, ids.size());
+	}
+
+	@Test
+	public void testNextToken() throws Exception {
+		SessionIdGenerator generator = new SessionIdGenerator(0x1234);
+		String token = generator.nextToken();
+
+		assertEquals(32, token.length());
+		assertTrue(token.matches("[0-9a-f]+"));
+		assertTrue(token.startsWith("1234"));
+		assertFalse(token.equals(generator.nextToken()));
+	}
+
+	@Test
+	public void testToString() throws Exception {
+		assertEquals("000000000000002a", SessionIdGenerator.toString(42));
+		assertEquals("ffffffffffffffff", SessionIdGenerator.toString(-1));
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.excilys.soja.server.benchmark;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import com.excilys.soja.core.factory.SslHandlerFactory;
+import com.excilys.soja.server.StompServer;
+import com.excilys.soja.server.authentication.Authentication;
+
+/**
+ * Compare the throughput of full TLS handshakes with the throughput of resumed ones, against a server using the
+ * benchmark key store of the test resources. Each connection does its handshake, sends a CONNECT frame and waits for
+ * the CONNECTED frame.
+ * <p/>
+ * Arguments : [connections] [handshake threads, 0 to run the handshakes in the I/O threads] [port]
+ */
+public class SslHandshakeBenchmark {
+
+	private static final char[] PASSWORD = "soja-benchmark".toCharArray();
+	private static final byte[] CONNECT_FRAME = "CONNECT\naccept-version:1.1\n\n\0".getBytes();
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int handshakeThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 61650;
+
+		KeyStore keyStore = loadKeyStore();
+		SslHandlerFactory serverFactory = new SslHandlerFactory(SslHandlerFactory.createContext(keyStore, PASSWORD,
+				null), false);
+		ExecutorService handshakeExecutor = null;
+		if (handshakeThreads > 0) {
+			handshakeExecutor = Executors.newFixedThreadPool(handshakeThreads);
+			serverFactory.setHandshakeExecutor(handshakeExecutor);
+		}
+
+		StompServer server = new StompServer("localhost", port, Authentication.ALLOW_ALL_INSTANCE);
+		server.setSslHandlerFactory(serverFactory);
+		server.start();
+		try {
+			// A new client context for each connection, so there is no session to resume
+			SSLContext[] fullContexts = new SSLContext[connections];
+			for (int i = 0; i < connections; i++) {
+				fullContexts[i] = SslHandlerFactory.createContext(null, null, keyStore);
+			}
+			SSLContext resumedContext = SslHandlerFactory.createContext(null, null, keyStore);
+
+			// Warm up both paths
+			run(fullContexts, port, Math.min(50, connections));
+			run(new SSLContext[] { resumedContext }, port, 50);
+
+			long fullTime = run(fullContexts, port, connections);
+			long resumedTime = run(new SSLContext[] { resumedContext }, port, connections);
+
+			System.out.println(String.format("Full handshakes    : %d in %d ms (%.1f/s)", connections, fullTime,
+					connections * 1000.0 / fullTime));
+			System.out.println(String.format("Resumed handshakes : %d in %d ms (%.1f/s)", connections, resumedTime,
+					connections * 1000.0 / resumedTime));
+		} finally {
+			server.stop();
+			if (handshakeExecutor != null) {
+				handshakeExecutor.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Open connections one after the other, with the given client contexts in turn
+	 * 
+	 * @return the elapsed time in milliseconds
+	 */
+	private static long run(SSLContext[] contexts, int port, int connections) throws Exception {
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < connections; i++) {
+			SSLSocket socket = (SSLSocket) contexts[i % contexts.length].getSocketFactory().createSocket("localhost",
+					port);
+			try {
+				socket.setTcpNoDelay(true);
+				socket.startHandshake();
+				OutputStream outputStream = socket.getOutputStream();
+				outputStream.write(CONNECT_FRAME);
+				outputStream.flush();
+
+				InputStream inputStream = socket.getInputStream();
+				int read;
+				while ((read = inputStream.read()) > 0) {
+					// Read until the end of the CONNECTED frame
+				}
+				if (read < 0)
+					throw new IllegalStateException("Connection closed before the CONNECTED frame");
+			} finally {
+				socket.close();
+			}
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	private static KeyStore loadKeyStore() throws Exception {
+		InputStream inputStream = SslHandshakeBenchmark.class.getResourceAsStream("/benchmark.jks");
+		try {
+			return SslHandlerFactory.loadKeyStore(inputStream, PASSWORD);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+package com.excilys.soja.server.handler;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.excilys.soja.core.model.frame.ConnectFrame;
+import com.excilys.soja.core.model.frame.SendFrame;
+import com.excilys.soja.server.StompServer;
+import com.excilys.soja.server.authentication.Authentication;
+import com.excilys.soja.server.model.RateLimits;
+
+public class AdmissionHandlerTest {
+
+	private static final String LOGIN = "login";
+
+	private final List<TestChannel> channels = new ArrayList<TestChannel>();
+	private TestTimer timer;
+	private AdmissionHandler admissionHandler;
+
+	@Before
+	public void setUp() {
+		timer = new TestTimer();
+		admissionHandler = new AdmissionHandler(Authentication.ALLOW_ALL_INSTANCE, timer);
+	}
+
+	@After
+	public void tearDown() {
+		for (TestChannel channel : channels) {
+			channel.close();
+		}
+	}
+
+	private TestChannel openChannel() {
+		TestChannel channel = new TestChannel(admissionHandler).connect();
+		channels.add(channel);
+		return channel;
+	}
+
+	private TestChannel openServerChannel(Authentication authentication) {
+		ServerHandler serverHandler = new ServerHandler(authentication, timer);
+		serverHandler.setAdmissionHandler(admissionHandler);
+		TestChannel channel = new TestChannel(admissionHandler, serverHandler).connect();
+		channels.add(channel);
+		return channel;
+	}
+
+	@Test
+	public void testChannelConnected_throttle_and_resume() throws Exception {
+		admissionHandler.setAddressConnectionRate(2);
+		assertTrue(openChannel().isReadable());
+		assertTrue(openChannel().isReadable());
+
+		TestChannel throttledChannel = openChannel();
+
+		assertFalse(throttledChannel.isReadable());
+		assertEquals(1, admissionHandler.getThrottleCount());
+
+		// The bucket is in debt of a single connection, repaid in 500 ms
+		Thread.sleep(600);
+		timer.runPending();
+
+		assertTrue(throttledChannel.isReadable());
+	}
+
+	@Test
+	public void testChannelConnected_resume_too_early() throws Exception {
+		admissionHandler.setAddressConnectionRate(1);
+		openChannel();
+		TestChannel throttledChannel = openChannel();
+
+		timer.runPending();
+
+		// The debt isn't repaid yet, the resume is rescheduled
+		assertFalse(throttledChannel.isReadable());
+		assertEquals(2, timer.getPendingTimeouts().size());
+	}
+
+	@Test
+	public void testChannelConnected_rate_changed() throws Exception {
+		admissionHandler.setAddressConnectionRate(1);
+		openChannel();
+
+		admissionHandler.setAddressConnectionRate(2);
+
+		// The bucket of the address is replaced by a full one with the new rate
+		assertTrue(openChannel().isReadable());
+		assertTrue(openChannel().isReadable());
+		assertFalse(openChannel().isReadable());
+		assertEquals(1, admissionHandler.getAddressBucketCount());
+	}
+
+	@Test
+	public void testChannelConnected_no_limit() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			assertTrue(openChannel().isReadable());
+		}
+		assertEquals(0, admissionHandler.getAddressBucketCount());
+		assertEquals(0, admissionHandler.getThrottleCount());
+	}
+
+	@Test
+	public void testMessageReceived_connect_not_charged() throws Exception {
+		admissionHandler.setDefaultRateLimits(new RateLimits(1, 0, 0));
+		TestChannel channel1 = openChannel();
+		TestChannel channel2 = openChannel();
+
+		channel1.receive(new ConnectFrame(StompServer.STOMP_VERSION, "localhost", LOGIN, "password"));
+		channel2.receive(new ConnectFrame(StompServer.STOMP_VERSION, "localhost", LOGIN, "password"));
+
+		assertTrue(channel2.isReadable());
+		assertEquals(0, admissionHandler.getLoginBucketCount());
+	}
+
+	@Test
+	public void testLoginAuthenticated() throws Exception {
+		admissionHandler.setDefaultRateLimits(new RateLimits(1, 0, 0));
+		TestChannel channel1 = openChannel();
+		TestChannel channel2 = openChannel();
+
+		admissionHandler.loginAuthenticated(channel1, LOGIN);
+		assertTrue(channel1.isReadable());
+		admissionHandler.loginAuthenticated(channel2, LOGIN);
+
+		assertFalse(channel2.isReadable());
+		assertEquals(1, admissionHandler.getLoginBucketCount());
+	}
+
+	@Test
+	public void testLoginAuthenticated_send_during_authentication() throws Exception {
+		admissionHandler.setDefaultRateLimits(new RateLimits(0, 1, 0));
+		TestChannel channel = openChannel();
+
+		channel.receive(new SendFrame("/topic", "message 1"));
+		channel.receive(new SendFrame("/topic", "message 2"));
+		assertTrue(channel.isReadable());
+
+		// Both frames are charged once the login is known, the second one is over the limit
+		admissionHandler.loginAuthenticated(channel, LOGIN);
+
+		assertFalse(channel.isReadable());
+	}
+
+	@Test
+	public void testMessageReceived_send() throws Exception {
+		admissionHandler.setDefaultRateLimits(new RateLimits(0, 0, 10));
+		TestChannel channel = openChannel();
+		admissionHandler.loginAuthenticated(channel, LOGIN);
+
+		channel.receive(new SendFrame("/topic", "0123456789"));
+		assertTrue(channel.isReadable());
+		channel.receive(new SendFrame("/topic", "0"));
+
+		assertFalse(channel.isReadable());
+	}
+
+	@Test
+	public void testConnect_authenticated() throws Exception {
+		admissionHandler.setDefaultRateLimits(new RateLimits(1, 0, 0));
+
+		openServerChannel(Authentication.ALLOW_ALL_INSTANCE).receive(
+				new ConnectFrame(StompServer.STOMP_VERSION, "localhost", LOGIN, "password"));
+
+		assertEquals(1, admissionHandler.getLoginBucketCount());
+	}
+
+	@Test
+	public void testConnect_rejected() throws Exception {
+		admissionHandler.setDefaultRateLimits(new RateLimits(1, 0, 0));
+
+		openServerChannel(Authentication.DENY_ALL_INSTANCE).receive(
+				new ConnectFrame(StompServer.STOMP_VERSION, "localhost", LOGIN, "password"));
+
+		// The claimed login isn't charged, so it can't be used to throttle its owner
+		assertEquals(0, admissionHandler.getLoginBucketCount());
+	}
+
+	@Test
+	public void testSweeper() throws Exception {
+		admissionHandler.setDefaultRateLimits(new RateLimits(1, 0, 0));
+		admissionHandler.setAddressConnectionRate(1000);
+		TestChannel channel = openChannel();
+		admissionHandler.loginAuthenticated(channel, LOGIN);
+		assertEquals(1, admissionHandler.getAddressBucketCount());
+		assertEquals(1, admissionHandler.getLoginBucketCount());
+
+		// The address bucket is full again after 1 ms, the login one after a second
+		Thread.sleep(20);
+		assertEquals(1, timer.runPending());
+
+		assertEquals(0, admissionHandler.getAddressBucketCount());
+		assertEquals(1, admissionHandler.getLoginBucketCount());
+		assertEquals(1, timer.getPendingTimeouts().size());
+		assertEquals(60000, timer.getPendingTimeouts().get(0).getDelay());
+	}
+}
@@ -0,0 +1,91 @@
+package com.excilys.soja.server.handler;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.junit.Test;
+
+public class ReadSuspensionTest {
+
+	private final List<Boolean> readableCalls = new ArrayList<Boolean>();
+
+	private Channel createChannel() {
+		return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+				new InvocationHandler() {
+					private DefaultChannelFuture closeFuture;
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("getId") || name.equals("hashCode"))
+							return System.identityHashCode(proxy);
+						if (name.equals("equals"))
+							return proxy == args[0];
+						if (name.equals("isOpen"))
+							return true;
+						if (name.equals("getCloseFuture")) {
+							if (closeFuture == null) {
+								closeFuture = new DefaultChannelFuture((Channel) proxy, false);
+							}
+							return closeFuture;
+						}
+						if (name.equals("setReadable")) {
+							readableCalls.add((Boolean) args[0]);
+							return null;
+						}
+						throw new UnsupportedOperationException(name);
+					}
+				});
+	}
+
+	@Test
+	public void testResume_single_reason() throws Exception {
+		Channel channel = createChannel();
+
+		ReadSuspension.suspend(channel, ReadSuspension.AUTHENTICATION);
+		assertTrue(ReadSuspension.isSuspended(channel));
+		ReadSuspension.resume(channel, ReadSuspension.AUTHENTICATION);
+
+		assertFalse(ReadSuspension.isSuspended(channel));
+		assertEquals(2, readableCalls.size());
+		assertFalse(readableCalls.get(0));
+		assertTrue(readableCalls.get(1));
+	}
+
+	@Test
+	public void testResume_throttled_during_authentication() throws Exception {
+		Channel channel = createChannel();
+
+		ReadSuspension.suspend(channel, ReadSuspension.THROTTLE);
+		ReadSuspension.suspend(channel, ReadSuspension.AUTHENTICATION);
+		ReadSuspension.resume(channel, ReadSuspension.AUTHENTICATION);
+
+		assertTrue(ReadSuspension.isSuspended(channel));
+		assertEquals(1, readableCalls.size());
+
+		ReadSuspension.resume(channel, ReadSuspension.THROTTLE);
+
+		assertFalse(ReadSuspension.isSuspended(channel));
+		assertEquals(2, readableCalls.size());
+		assertTrue(readableCalls.get(1));
+	}
+
+	@Test
+	public void testResume_not_suspended() throws Exception {
+		Channel channel = createChannel();
+
+		ReadSuspension.resume(channel, ReadSuspension.THROTTLE);
+
+		assertFalse(ReadSuspension.isSuspended(channel));
+		assertTrue(readableCalls.isEmpty());
+	}
+}
@@ -0,0 +1,256 @@
+package com.excilys.soja.server.handler;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.channel.group.ChannelGroupFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.excilys.soja.core.model.Ack;
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.core.model.Header;
+import com.excilys.soja.core.model.frame.ConnectFrame;
+import com.excilys.soja.core.model.frame.NackFrame;
+import com.excilys.soja.core.model.frame.SendFrame;
+import com.excilys.soja.core.model.frame.SubscribeFrame;
+import com.excilys.soja.server.StompServer;
+import com.excilys.soja.server.authentication.Authentication;
+import com.excilys.soja.server.model.RedeliveryPolicy;
+import com.excilys.soja.server.model.StompSession;
+import com.excilys.soja.server.model.Subscription;
+
+public class ServerHandlerTest {
+
+	private static final String TOPIC = "/topic/server-handler-test";
+
+	private final List<TestChannel> channels = new ArrayList<TestChannel>();
+	private TestTimer timer;
+	private ServerHandler serverHandler;
+
+	@Before
+	public void setUp() {
+		timer = new TestTimer();
+		serverHandler = new ServerHandler(Authentication.ALLOW_ALL_INSTANCE, timer);
+	}
+
+	@After
+	public void tearDown() {
+		// Subscriptions are shared by all the handlers, they are removed when their channel is closed
+		for (TestChannel channel : channels) {
+			channel.close();
+		}
+	}
+
+	private TestChannel openChannel() {
+		TestChannel channel = new TestChannel(serverHandler).connect();
+		channels.add(channel);
+		return channel;
+	}
+
+	private TestChannel connectClient() {
+		TestChannel channel = openChannel();
+		channel.receive(new ConnectFrame(StompServer.STOMP_VERSION, "localhost"));
+		assertEquals(Frame.COMMAND_CONNECTED, pollFrame(channel).getCommand());
+		return channel;
+	}
+
+	private Frame pollFrame(TestChannel channel) {
+		List<Object> messages = channel.pollWrittenMessages();
+		assertEquals(1, messages.size());
+		return (Frame) messages.get(0);
+	}
+
+	private TestChannel subscribe(String topic, long subscriptionId) {
+		TestChannel channel = connectClient();
+		SubscribeFrame subscribeFrame = new SubscribeFrame(topic, subscriptionId);
+		subscribeFrame.setAck(Ack.CLIENT_INDIVIDUAL);
+		channel.receive(subscribeFrame);
+		return channel;
+	}
+
+	private Frame publish(String topic, String message, TestChannel subscriber) {
+		connectClient().receive(new SendFrame(topic, message));
+		Frame messageFrame = pollFrame(subscriber);
+		assertEquals(Frame.COMMAND_MESSAGE, messageFrame.getCommand());
+		return messageFrame;
+	}
+
+	private static NackFrame createNackFrame(Frame messageFrame) {
+		return new NackFrame(messageFrame.getHeaderValue(Header.HEADER_MESSAGE_ID), Long.valueOf(messageFrame
+				.getHeaderValue(Header.HEADER_SUBSCRIPTION)));
+	}
+
+	@Test
+	public void testHandleSubscribe() throws Exception {
+		TestChannel channel = connectClient();
+		SubscribeFrame subscribeFrame = new SubscribeFrame(TOPIC, 7);
+		subscribeFrame.setHeaderValue(Header.HEADER_RECEIPT_ID_REQUEST, "subscribed");
+
+		channel.receive(subscribeFrame);
+
+		Frame receiptFrame = pollFrame(channel);
+		assertEquals(Frame.COMMAND_RECEIPT, receiptFrame.getCommand());
+		assertEquals("subscribed", receiptFrame.getHeaderValue(Header.HEADER_RECEIPT_ID_RESPONSE));
+		StompSession session = serverHandler.getSession(channel);
+		Subscription subscription = session.getSubscription(7L);
+		assertNotNull(subscription);
+		assertEquals(TOPIC, subscription.getTopic());
+		assertEquals(channel, subscription.getChannel());
+	}
+
+	@Test
+	public void testHandleSubscribe_not_connected() throws Exception {
+		TestChannel channel = openChannel();
+
+		channel.receive(new SubscribeFrame(TOPIC, 7));
+
+		Frame errorFrame = pollFrame(channel);
+		assertEquals(Frame.COMMAND_ERROR, errorFrame.getCommand());
+		assertEquals("Not connected", errorFrame.getHeaderValue(Header.HEADER_MESSAGE));
+		assertNull(serverHandler.getSession(channel));
+		assertTrue(channel.isConnected());
+	}
+
+	@Test
+	public void testDisconnectAllClients() throws Exception {
+		TestChannel channel = connectClient();
+
+		ChannelGroupFuture future = serverHandler.disconnectAllClients(0);
+
+		assertTrue(future.isCompleteSuccess());
+		assertFalse(channel.isOpen());
+		assertTrue(timer.getPendingTimeouts().isEmpty());
+	}
+
+	@Test
+	public void testDisconnectAllClients_drained() throws Exception {
+		TestChannel drainedChannel = connectClient();
+		TestChannel slowChannel = connectClient();
+		slowChannel.holdWrites();
+
+		ChannelGroupFuture future = serverHandler.disconnectAllClients(1000);
+
+		// The slow client is kept until its queued frames are written
+		assertFalse(drainedChannel.isOpen());
+		assertTrue(slowChannel.isOpen());
+		assertFalse(future.isDone());
+		assertEquals(1000, timer.getPendingTimeouts().get(0).getDelay());
+
+		slowChannel.releaseWrites();
+
+		assertFalse(slowChannel.isOpen());
+		assertTrue(future.isCompleteSuccess());
+		assertTrue(timer.getPendingTimeouts().isEmpty());
+	}
+
+	@Test
+	public void testDisconnectAllClients_drain_timeout() throws Exception {
+		TestChannel slowChannel = connectClient();
+		slowChannel.holdWrites();
+		ChannelGroupFuture future = serverHandler.disconnectAllClients(1000);
+		assertFalse(future.isDone());
+
+		timer.runPending();
+
+		assertFalse(slowChannel.isOpen());
+		assertTrue(future.isCompleteSuccess());
+	}
+
+	@Test
+	public void testHandleNack() throws Exception {
+		String topic = TOPIC + "/nack";
+		TestChannel subscriber = subscribe(topic, 1);
+		Frame messageFrame = publish(topic, "message", subscriber);
+
+		subscriber.receive(createNackFrame(messageFrame));
+
+		// The message is redelivered after the initial delay of the policy, not right away
+		assertTrue(subscriber.pollWrittenMessages().isEmpty());
+		assertEquals(1, timer.getPendingTimeouts().size());
+		assertEquals(RedeliveryPolicy.DEFAULT_INITIAL_DELAY, timer.getPendingTimeouts().get(0).getDelay());
+
+		assertEquals(1, timer.runPending());
+
+		Frame redeliveredFrame = pollFrame(subscriber);
+		assertEquals(Frame.COMMAND_MESSAGE, redeliveredFrame.getCommand());
+		assertEquals(messageFrame.getHeaderValue(Header.HEADER_MESSAGE_ID),
+				redeliveredFrame.getHeaderValue(Header.HEADER_MESSAGE_ID));
+		assertEquals("1", redeliveredFrame.getHeaderValue(Header.HEADER_REDELIVERY_COUNT));
+		assertEquals("message", redeliveredFrame.getBody());
+	}
+
+	@Test
+	public void testHandleNack_back_off() throws Exception {
+		String topic = TOPIC + "/back-off";
+		TestChannel subscriber = subscribe(topic, 1);
+		Frame messageFrame = publish(topic, "message", subscriber);
+
+		subscriber.receive(createNackFrame(messageFrame));
+		timer.runPending();
+		Frame redeliveredFrame = pollFrame(subscriber);
+		subscriber.receive(createNackFrame(redeliveredFrame));
+
+		// Each redelivery waits longer than the previous one
+		long expectedDelay = (long) (RedeliveryPolicy.DEFAULT_INITIAL_DELAY
+				* RedeliveryPolicy.DEFAULT_BACK_OFF_MULTIPLIER);
+		assertEquals(expectedDelay, timer.getPendingTimeouts().get(0).getDelay());
+		timer.runPending();
+		assertEquals("2", pollFrame(subscriber).getHeaderValue(Header.HEADER_REDELIVERY_COUNT));
+	}
+
+	@Test
+	public void testHandleNack_dead_letter() throws Exception {
+		String topic = TOPIC + "/dead-letter";
+		RedeliveryPolicy redeliveryPolicy = new RedeliveryPolicy();
+		redeliveryPolicy.setMaxDeliveries(2);
+		serverHandler.setRedeliveryPolicy(redeliveryPolicy);
+		TestChannel subscriber = subscribe(topic, 1);
+		TestChannel deadLetterSubscriber = subscribe(redeliveryPolicy.getDeadLetterDestination(topic), 2);
+		Frame messageFrame = publish(topic, "message", subscriber);
+
+		subscriber.receive(createNackFrame(messageFrame));
+		timer.runPending();
+		subscriber.receive(createNackFrame(pollFrame(subscriber)));
+
+		// The second delivery was the last one, the message goes to the dead letter destination
+		assertTrue(timer.getPendingTimeouts().isEmpty());
+		assertTrue(subscriber.pollWrittenMessages().isEmpty());
+		Frame deadLetterFrame = pollFrame(deadLetterSubscriber);
+		assertEquals(Frame.COMMAND_MESSAGE, deadLetterFrame.getCommand());
+		assertEquals(redeliveryPolicy.getDeadLetterDestination(topic),
+				deadLetterFrame.getHeaderValue(Header.HEADER_DESTINATION));
+		assertEquals(topic, deadLetterFrame.getHeaderValue(Header.HEADER_ORIGINAL_DESTINATION));
+		assertEquals("message", deadLetterFrame.getBody());
+	}
+
+	@Test
+	public void testHandleNack_unknown_subscription() throws Exception {
+		TestChannel channel = connectClient();
+
+		channel.receive(new NackFrame("unknown", 99L));
+
+		assertTrue(channel.pollWrittenMessages().isEmpty());
+		assertTrue(timer.getPendingTimeouts().isEmpty());
+	}
+
+	@Test
+	public void testRedelivery_subscriber_left() throws Exception {
+		String topic = TOPIC + "/subscriber-left";
+		TestChannel subscriber = subscribe(topic, 1);
+		Frame messageFrame = publish(topic, "message", subscriber);
+		subscriber.receive(createNackFrame(messageFrame));
+
+		subscriber.close();
+		timer.runPending();
+
+		assertTrue(subscriber.pollWrittenMessages().isEmpty());
+	}
+}
@@ -0,0 +1,164 @@
+package com.excilys.soja.server.handler;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.channel.AbstractChannel;
+import org.jboss.netty.channel.AbstractChannelSink;
+import org.jboss.netty.channel.ChannelConfig;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultChannelConfig;
+import org.jboss.netty.channel.MessageEvent;
+
+/**
+ * Channel running a pipeline of handlers in memory. The written messages are recorded instead of being sent, and the
+ * writes can be held back to simulate a slow remote.
+ */
+class TestChannel extends AbstractChannel {
+
+	private static final InetSocketAddress LOCAL_ADDRESS = new InetSocketAddress("localhost", 61613);
+	private static final InetSocketAddress REMOTE_ADDRESS = new InetSocketAddress("localhost", 40000);
+
+	private final ChannelConfig config = new DefaultChannelConfig();
+	private final List<Object> writtenMessages = new ArrayList<Object>();
+	private final List<MessageEvent> heldWrites = new ArrayList<MessageEvent>();
+	private boolean writesHeld = false;
+
+	public TestChannel(ChannelHandler... handlers) {
+		super(null, null, createPipeline(handlers), new TestChannelSink());
+	}
+
+	private static ChannelPipeline createPipeline(ChannelHandler... handlers) {
+		ChannelPipeline pipeline = Channels.pipeline();
+		for (int i = 0; i < handlers.length; i++) {
+			pipeline.addLast("handler" + i, handlers[i]);
+		}
+		return pipeline;
+	}
+
+	/**
+	 * Fire the events of a new connection through the pipeline
+	 */
+	public TestChannel connect() {
+		Channels.fireChannelOpen(this);
+		Channels.fireChannelBound(this, LOCAL_ADDRESS);
+		Channels.fireChannelConnected(this, REMOTE_ADDRESS);
+		return this;
+	}
+
+	/**
+	 * Fire a message received from the remote through the pipeline
+	 */
+	public void receive(Object message) {
+		Channels.fireMessageReceived(this, message);
+	}
+
+	/**
+	 * @return the messages written on this channel since the last call, in order
+	 */
+	public synchronized List<Object> pollWrittenMessages() {
+		List<Object> messages = new ArrayList<Object>(writtenMessages);
+		writtenMessages.clear();
+		return messages;
+	}
+
+	/**
+	 * Keep the next writes pending until {@link #releaseWrites()} is called
+	 */
+	public synchronized void holdWrites() {
+		writesHeld = true;
+	}
+
+	/**
+	 * Complete the writes held back, then complete the next writes immediately
+	 */
+	public void releaseWrites() {
+		List<MessageEvent> writes;
+		synchronized (this) {
+			writesHeld = false;
+			writes = new ArrayList<MessageEvent>(heldWrites);
+			heldWrites.clear();
+		}
+		for (MessageEvent write : writes) {
+			write.getFuture().setSuccess();
+		}
+	}
+
+	private void write(MessageEvent event) {
+		synchronized (this) {
+			writtenMessages.add(event.getMessage());
+			if (writesHeld) {
+				heldWrites.add(event);
+				return;
+			}
+		}
+		event.getFuture().setSuccess();
+	}
+
+	private void closeNow(ChannelStateEvent event) {
+		if (setClosed()) {
+			Channels.fireChannelDisconnected(this);
+			Channels.fireChannelUnbound(this);
+			Channels.fireChannelClosed(this);
+		}
+		event.getFuture().setSuccess();
+	}
+
+	private void setInterestOps(ChannelStateEvent event) {
+		setInterestOpsNow((Integer) event.getValue());
+		event.getFuture().setSuccess();
+		Channels.fireChannelInterestChanged(this);
+	}
+
+	@Override
+	public ChannelConfig getConfig() {
+		return config;
+	}
+
+	@Override
+	public boolean isBound() {
+		return isOpen();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return isOpen();
+	}
+
+	@Override
+	public SocketAddress getLocalAddress() {
+		return LOCAL_ADDRESS;
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return REMOTE_ADDRESS;
+	}
+
+	private static class TestChannelSink extends AbstractChannelSink {
+
+		@Override
+		public void eventSunk(ChannelPipeline pipeline, ChannelEvent e) throws Exception {
+			TestChannel channel = (TestChannel) e.getChannel();
+			if (e instanceof MessageEvent) {
+				channel.write((MessageEvent) e);
+			} else if (e instanceof ChannelStateEvent) {
+				ChannelStateEvent event = (ChannelStateEvent) e;
+				if (event.getState() == ChannelState.INTEREST_OPS) {
+					channel.setInterestOps(event);
+				} else if (event.getValue() == null || Boolean.FALSE.equals(event.getValue())) {
+					channel.closeNow(event);
+				} else {
+					event.getFuture().setSuccess();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,442 @@
+package com.excilys.soja.server.handler;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import com.excilys.soja.core.handler.StompFrameDecoder;
+import com.excilys.soja.core.handler.StompFrameEncoder;
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.core.model.frame.SendFrame;
+
+public class WebSocketHandlerTest {
+
+	private static final String PATH = "/stomp";
+	private static final int THRESHOLD = 64;
+	private static final String DEFLATE_RESPONSE = "permessage-deflate; server_no_context_takeover; "
+			+ "client_no_context_takeover";
+	private static final byte[] DEFLATE_TAIL = { 0x00, 0x00, (byte) 0xFF, (byte) 0xFF };
+
+	private final List<Frame> receivedFrames = new ArrayList<Frame>();
+
+	private TestChannel createChannel(boolean compressionEnabled) {
+		return new TestChannel(new HttpRequestDecoder(), new HttpChunkAggregator(65536), new HttpResponseEncoder(),
+				new WebSocketHandler(PATH, compressionEnabled, THRESHOLD), new StompFrameDecoder(),
+				new StompFrameEncoder(), new SimpleChannelUpstreamHandler() {
+					@Override
+					public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+						receivedFrames.add((Frame) e.getMessage());
+					}
+				}).connect();
+	}
+
+	/**
+	 * Send a handshake request and return the response
+	 */
+	private String handshake(TestChannel channel, String path, String protocols, String extensions) {
+		StringBuilder request = new StringBuilder();
+		request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+		request.append("Host: localhost:61614\r\n");
+		request.append("Upgrade: websocket\r\n");
+		request.append("Connection: Upgrade\r\n");
+		request.append("Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n");
+		request.append("Sec-WebSocket-Version: 13\r\n");
+		if (protocols != null) {
+			request.append("Sec-WebSocket-Protocol: ").append(protocols).append("\r\n");
+		}
+		if (extensions != null) {
+			request.append("Sec-WebSocket-Extensions: ").append(extensions).append("\r\n");
+		}
+		request.append("\r\n");
+		channel.receive(ChannelBuffers.copiedBuffer(request.toString(), CharsetUtil.UTF_8));
+
+		List<Object> messages = channel.pollWrittenMessages();
+		assertEquals(1, messages.size());
+		return ((ChannelBuffer) messages.get(0)).toString(CharsetUtil.UTF_8);
+	}
+
+	private TestChannel connect(boolean compressionEnabled, String extensions) {
+		TestChannel channel = createChannel(compressionEnabled);
+		assertTrue(handshake(channel, PATH, "v11.stomp", extensions).startsWith("HTTP/1.1 101"));
+		return channel;
+	}
+
+	/**
+	 * Encode a frame as a client does, masked
+	 */
+	private void receive(TestChannel channel, WebSocketFrame frame) {
+		receive(channel, frame, true);
+	}
+
+	private void receive(TestChannel channel, WebSocketFrame frame, boolean masked) {
+		EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(new WebSocket13FrameEncoder(masked));
+		encoder.offer(frame);
+		channel.receive(encoder.poll());
+	}
+
+	/**
+	 * Decode the frames written to the client. The Netty decoder can't be used, it rejects compressed text frames
+	 */
+	private List<WebSocketFrame> pollWrittenFrames(TestChannel channel) {
+		List<WebSocketFrame> frames = new ArrayList<WebSocketFrame>();
+		for (Object message : channel.pollWrittenMessages()) {
+			ChannelBuffer buffer = (ChannelBuffer) message;
+			while (buffer.readable()) {
+				byte firstByte = buffer.readByte();
+				boolean finalFragment = (firstByte & 0x80) != 0;
+				int rsv = (firstByte & 0x70) >> 4;
+
+				// Frames sent by the server aren't masked
+				int length = buffer.readByte() & 0x7F;
+				if (length == 126) {
+					length = buffer.readUnsignedShort();
+				} else if (length == 127) {
+					length = (int) buffer.readLong();
+				}
+				ChannelBuffer payload = buffer.readBytes(length);
+
+				switch (firstByte & 0x0F) {
+				case 0x1:
+					frames.add(new TextWebSocketFrame(finalFragment, rsv, payload));
+					break;
+				case 0x2:
+					frames.add(new BinaryWebSocketFrame(finalFragment, rsv, payload));
+					break;
+				case 0xA:
+					frames.add(new PongWebSocketFrame(finalFragment, rsv, payload));
+					break;
+				default:
+					fail("Unexpected opcode " + (firstByte & 0x0F));
+				}
+			}
+		}
+		return frames;
+	}
+
+	private void assertReceived(Frame expectedFrame) {
+		assertEquals(1, receivedFrames.size());
+		assertEquals(encode(expectedFrame), encode(receivedFrames.get(0)));
+	}
+
+	private static String header(String response, String name) {
+		for (String line : response.split("\r\n")) {
+			if (line.toLowerCase().startsWith(name.toLowerCase() + ":")) {
+				return line.substring(name.length() + 1).trim();
+			}
+		}
+		return null;
+	}
+
+	private static String encode(Frame frame) {
+		ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+		StompFrameEncoder.writeFrame(frame, frame.getBodyBytes(), buffer);
+		return buffer.toString(CharsetUtil.UTF_8);
+	}
+
+	private static ChannelBuffer deflate(String message) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(message.getBytes(CharsetUtil.UTF_8));
+		deflater.finish();
+		byte[] chunk = new byte[8192];
+		int length = deflater.deflate(chunk);
+		deflater.end();
+		return ChannelBuffers.copiedBuffer(chunk, 0, length);
+	}
+
+	private static String inflate(ChannelBuffer message) throws Exception {
+		byte[] input = new byte[message.readableBytes() + DEFLATE_TAIL.length];
+		message.readBytes(input, 0, message.readableBytes());
+		System.arraycopy(DEFLATE_TAIL, 0, input, input.length - DEFLATE_TAIL.length, DEFLATE_TAIL.length);
+
+		Inflater inflater = new Inflater(true);
+		inflater.setInput(input);
+		byte[] chunk = new byte[8192];
+		int length = inflater.inflate(chunk);
+		inflater.end();
+		return new String(chunk, 0, length, CharsetUtil.UTF_8);
+	}
+
+	private static ChannelBuffer bytes(int... values) {
+		ChannelBuffer buffer = ChannelBuffers.buffer(values.length);
+		for (int value : values) {
+			buffer.writeByte(value);
+		}
+		return buffer;
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	@Test
+	public void testHandshake() throws Exception {
+		String response = handshake(createChannel(false), PATH, "v12.stomp, v11.stomp", null);
+
+		assertTrue(response.startsWith("HTTP/1.1 101"));
+		assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", header(response, "Sec-WebSocket-Accept"));
+		assertEquals("v11.stomp", header(response, "Sec-WebSocket-Protocol"));
+		assertNull(header(response, "Sec-WebSocket-Extensions"));
+	}
+
+	@Test
+	public void testHandshake_subprotocol_v10() throws Exception {
+		String response = handshake(createChannel(false), PATH, "v10.stomp", null);
+
+		assertEquals("v10.stomp", header(response, "Sec-WebSocket-Protocol"));
+	}
+
+	@Test
+	public void testHandshake_wrong_path() throws Exception {
+		TestChannel channel = createChannel(false);
+
+		String response = handshake(channel, "/other", "v11.stomp", null);
+
+		assertTrue(response.startsWith("HTTP/1.1 404"));
+		assertFalse(channel.isOpen());
+	}
+
+	@Test
+	public void testHandshake_compression_disabled() throws Exception {
+		String response = handshake(createChannel(false), PATH, "v11.stomp", "permessage-deflate");
+
+		assertNull(header(response, "Sec-WebSocket-Extensions"));
+	}
+
+	@Test
+	public void testHandshake_compression() throws Exception {
+		String response = handshake(createChannel(true), PATH, "v11.stomp",
+				"permessage-deflate; server_max_window_bits=10, permessage-deflate; client_max_window_bits");
+
+		assertEquals(DEFLATE_RESPONSE, header(response, "Sec-WebSocket-Extensions"));
+	}
+
+	@Test
+	public void testHandshake_compression_declined() throws Exception {
+		String response = handshake(createChannel(true), PATH, "v11.stomp", "x-webkit-deflate-frame");
+
+		assertNull(header(response, "Sec-WebSocket-Extensions"));
+	}
+
+	@Test
+	public void testNegotiateDeflate() throws Exception {
+		assertEquals(DEFLATE_RESPONSE, WebSocketHandler.negotiateDeflate(Arrays.asList("permessage-deflate")));
+		assertEquals(DEFLATE_RESPONSE, WebSocketHandler.negotiateDeflate(Arrays
+				.asList("permessage-deflate; server_no_context_takeover; client_no_context_takeover")));
+		assertEquals(DEFLATE_RESPONSE, WebSocketHandler.negotiateDeflate(Arrays
+				.asList("permessage-deflate; client_max_window_bits=\"10\"")));
+		assertEquals(DEFLATE_RESPONSE + "; server_max_window_bits=15", WebSocketHandler.negotiateDeflate(Arrays
+				.asList("permessage-deflate; server_max_window_bits=15")));
+	}
+
+	@Test
+	public void testNegotiateDeflate_first_supported_offer() throws Exception {
+		assertEquals(DEFLATE_RESPONSE, WebSocketHandler.negotiateDeflate(Arrays.asList(
+				"permessage-deflate; server_max_window_bits=8", "x-custom, permessage-deflate")));
+	}
+
+	@Test
+	public void testNegotiateDeflate_declined() throws Exception {
+		assertNull(WebSocketHandler.negotiateDeflate(Collections.<String> emptyList()));
+		assertNull(WebSocketHandler.negotiateDeflate(Arrays.asList("permessage-deflate-x")));
+		assertNull(WebSocketHandler.negotiateDeflate(Arrays.asList("permessage-deflate; server_max_window_bits=10")));
+		assertNull(WebSocketHandler.negotiateDeflate(Arrays.asList("permessage-deflate; server_max_window_bits")));
+		assertNull(WebSocketHandler.negotiateDeflate(Arrays.asList("permessage-deflate; client_max_window_bits=7")));
+		assertNull(WebSocketHandler.negotiateDeflate(Arrays.asList("permessage-deflate; client_max_window_bits=015")));
+		assertNull(WebSocketHandler.negotiateDeflate(Arrays.asList("permessage-deflate; unknown")));
+		assertNull(WebSocketHandler.negotiateDeflate(Arrays
+				.asList("permessage-deflate; server_no_context_takeover; server_no_context_takeover")));
+		assertNull(WebSocketHandler.negotiateDeflate(Arrays.asList("permessage-deflate; client_no_context_takeover=1")));
+	}
+
+	@Test
+	public void testMessageReceived_text() throws Exception {
+		TestChannel channel = connect(false, null);
+		SendFrame sendFrame = new SendFrame("/topic", "message");
+
+		receive(channel, new TextWebSocketFrame(encode(sendFrame)));
+
+		assertReceived(sendFrame);
+	}
+
+	@Test
+	public void testMessageReceived_fragmented() throws Exception {
+		TestChannel channel = connect(false, null);
+		SendFrame sendFrame = new SendFrame("/topic", "message");
+		String encodedFrame = encode(sendFrame);
+
+		receive(channel, new BinaryWebSocketFrame(false, 0, ChannelBuffers.copiedBuffer(encodedFrame.substring(0, 10),
+				CharsetUtil.UTF_8)));
+		assertTrue(receivedFrames.isEmpty());
+		receive(channel, new ContinuationWebSocketFrame(true, 0, encodedFrame.substring(10)));
+
+		assertReceived(sendFrame);
+	}
+
+	@Test
+	public void testMessageReceived_large() throws Exception {
+		TestChannel channel = connect(false, null);
+		SendFrame sendFrame = new SendFrame("/topic", repeat('a', 70000));
+
+		receive(channel, new TextWebSocketFrame(encode(sendFrame)));
+
+		assertReceived(sendFrame);
+	}
+
+	@Test
+	public void testMessageReceived_unmasked() throws Exception {
+		TestChannel channel = connect(false, null);
+
+		receive(channel, new TextWebSocketFrame(encode(new SendFrame("/topic", "message"))), false);
+
+		assertTrue(receivedFrames.isEmpty());
+		assertFalse(channel.isOpen());
+	}
+
+	@Test
+	public void testMessageReceived_ping() throws Exception {
+		TestChannel channel = connect(false, null);
+
+		receive(channel, new PingWebSocketFrame(ChannelBuffers.copiedBuffer("ping", CharsetUtil.UTF_8)));
+
+		List<WebSocketFrame> frames = pollWrittenFrames(channel);
+		assertEquals(1, frames.size());
+		assertTrue(frames.get(0) instanceof PongWebSocketFrame);
+		assertEquals("ping", frames.get(0).getBinaryData().toString(CharsetUtil.UTF_8));
+	}
+
+	@Test
+	public void testMessageReceived_compressed() throws Exception {
+		TestChannel channel = connect(true, "permessage-deflate");
+		SendFrame sendFrame = new SendFrame("/topic", repeat('a', 1000));
+
+		receive(channel, new TextWebSocketFrame(true, 4, deflate(encode(sendFrame))));
+
+		assertReceived(sendFrame);
+	}
+
+	@Test
+	public void testMessageReceived_compressed_fragmented() throws Exception {
+		TestChannel channel = connect(true, "permessage-deflate");
+		SendFrame sendFrame = new SendFrame("/topic", repeat('a', 1000));
+		ChannelBuffer deflated = deflate(encode(sendFrame));
+
+		// Only the first fragment has the RSV1 bit
+		receive(channel, new TextWebSocketFrame(false, 4, deflated.readSlice(5)));
+		receive(channel, new ContinuationWebSocketFrame(true, 0, deflated));
+
+		assertReceived(sendFrame);
+	}
+
+	@Test
+	public void testMessageReceived_compressed_not_negotiated() throws Exception {
+		TestChannel channel = connect(false, "permessage-deflate");
+
+		receive(channel, new TextWebSocketFrame(true, 4, deflate(encode(new SendFrame("/topic", "message")))));
+
+		assertTrue(receivedFrames.isEmpty());
+		assertFalse(channel.isOpen());
+	}
+
+	@Test
+	public void testWriteRequested_text() throws Exception {
+		TestChannel channel = connect(false, null);
+		Frame frame = new SendFrame("/topic", "message");
+
+		channel.write(frame);
+
+		List<WebSocketFrame> frames = pollWrittenFrames(channel);
+		assertEquals(1, frames.size());
+		assertTrue(frames.get(0) instanceof TextWebSocketFrame);
+		assertEquals(0, frames.get(0).getRsv());
+		assertEquals(encode(frame), frames.get(0).getBinaryData().toString(CharsetUtil.UTF_8));
+	}
+
+	@Test
+	public void testWriteRequested_binary_client() throws Exception {
+		TestChannel channel = connect(false, null);
+		receive(channel, new BinaryWebSocketFrame(ChannelBuffers.copiedBuffer(
+				encode(new SendFrame("/topic", "message")), CharsetUtil.UTF_8)));
+
+		channel.write(new SendFrame("/topic", "message"));
+
+		List<WebSocketFrame> frames = pollWrittenFrames(channel);
+		assertEquals(1, frames.size());
+		assertTrue(frames.get(0) instanceof BinaryWebSocketFrame);
+	}
+
+	@Test
+	public void testWriteRequested_binary_body() throws Exception {
+		TestChannel channel = connect(false, null);
+		Frame frame = new SendFrame("/topic", "message");
+		frame.setBodyBytes(new byte[] { 0x00, (byte) 0xFF, (byte) 0xC0, (byte) 0x80 });
+
+		channel.write(frame);
+
+		// A text frame must be valid UTF-8, the body delimited by its content-length is not
+		List<WebSocketFrame> frames = pollWrittenFrames(channel);
+		assertEquals(1, frames.size());
+		assertTrue(frames.get(0) instanceof BinaryWebSocketFrame);
+	}
+
+	@Test
+	public void testIsValidUtf8() throws Exception {
+		assertTrue(WebSocketHandler.isValidUtf8(ChannelBuffers.copiedBuffer("STOMP\n\u00E9\u20AC\uD83D\uDE00",
+				CharsetUtil.UTF_8)));
+		assertTrue(WebSocketHandler.isValidUtf8(ChannelBuffers.EMPTY_BUFFER));
+		// Overlong encoding of '/', surrogate, above U+10FFFF, truncated sequence, lone continuation byte
+		assertFalse(WebSocketHandler.isValidUtf8(bytes(0xC0, 0xAF)));
+		assertFalse(WebSocketHandler.isValidUtf8(bytes(0xED, 0xA0, 0x80)));
+		assertFalse(WebSocketHandler.isValidUtf8(bytes(0xF4, 0x90, 0x80, 0x80)));
+		assertFalse(WebSocketHandler.isValidUtf8(bytes(0x41, 0xE2, 0x82)));
+		assertFalse(WebSocketHandler.isValidUtf8(bytes(0x80)));
+	}
+
+	@Test
+	public void testWriteRequested_compressed() throws Exception {
+		TestChannel channel = connect(true, "permessage-deflate");
+		Frame largeFrame = new SendFrame("/topic", repeat('a', 1000));
+		Frame smallFrame = new SendFrame("/topic", "message");
+
+		channel.write(largeFrame);
+		channel.write(smallFrame);
+
+		List<WebSocketFrame> frames = pollWrittenFrames(channel);
+		assertEquals(2, frames.size());
+		assertEquals(4, frames.get(0).getRsv());
+		assertTrue(frames.get(0).getBinaryData().readableBytes() < 100);
+		assertEquals(encode(largeFrame), inflate(frames.get(0).getBinaryData()));
+		// Frames under the threshold aren't worth compressing
+		assertEquals(0, frames.get(1).getRsv());
+		assertEquals(encode(smallFrame), frames.get(1).getBinaryData().toString(CharsetUtil.UTF_8));
+	}
+}
@@ -0,0 +1,160 @@
+package com.excilys.soja.server.journal;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.core.model.frame.SendFrame;
+import com.excilys.soja.core.utils.FrameSerializer;
+
+public class JournalTest {
+
+	private File directory;
+	private Journal journal;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+		journal = new Journal(directory);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		journal.close();
+		if (directory.isDirectory()) {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	private List<Frame> readSegment(String fileName) throws IOException {
+		File file = new File(directory, fileName);
+		byte[] bytes = new byte[(int) file.length()];
+		FileInputStream inputStream = new FileInputStream(file);
+		try {
+			inputStream.read(bytes);
+		} finally {
+			inputStream.close();
+		}
+
+		List<Frame> frames = new ArrayList<Frame>();
+		ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(bytes);
+		Frame frame = null;
+		while ((frame = FrameSerializer.deserialize(buffer)) != null) {
+			frames.add(frame);
+		}
+		return frames;
+	}
+
+	@Test
+	public void testAppend() throws Exception {
+		journal.setMaxBatchSize(3);
+		journal.setMaxBatchDelay(1000);
+		journal.open();
+
+		List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+		for (int i = 0; i < 3; i++) {
+			futures.add(journal.append(null, new SendFrame("/topic", "message " + i)));
+		}
+
+		for (ChannelFuture future : futures) {
+			assertTrue(future.awaitUninterruptibly(5000));
+			assertTrue(future.isSuccess());
+		}
+		List<Frame> frames = readSegment("journal-0.log");
+		assertEquals(3, frames.size());
+		assertEquals(Frame.COMMAND_SEND, frames.get(2).getCommand());
+		assertEquals("message 2", frames.get(2).getBody());
+	}
+
+	@Test
+	public void testAppend_delay() throws Exception {
+		journal.setMaxBatchDelay(10);
+		journal.open();
+
+		ChannelFuture future = journal.append(null, new SendFrame("/topic", "message"));
+
+		assertTrue(future.awaitUninterruptibly(5000));
+		assertTrue(future.isSuccess());
+	}
+
+	@Test
+	public void testAppend_closed() throws Exception {
+		ChannelFuture future = journal.append(null, new SendFrame("/topic", "message"));
+
+		assertTrue(future.isDone());
+		assertFalse(future.isSuccess());
+	}
+
+	@Test
+	public void testClose_flush() throws Exception {
+		journal.setMaxBatchDelay(60000);
+		journal.open();
+
+		ChannelFuture future = journal.append(null, new SendFrame("/topic", "message"));
+		journal.close();
+
+		assertTrue(future.isSuccess());
+		assertEquals(1, readSegment("journal-0.log").size());
+	}
+
+	@Test
+	public void testClose_concurrent_append() throws Exception {
+		journal.open();
+
+		final List<ChannelFuture> futures = Collections.synchronizedList(new ArrayList<ChannelFuture>());
+		final CountDownLatch started = new CountDownLatch(4);
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					started.countDown();
+					for (int j = 0; j < 2000; j++) {
+						futures.add(journal.append(null, new SendFrame("/topic", "message")));
+					}
+				}
+			};
+			threads[i].start();
+		}
+		started.await();
+		journal.close();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// Every future is completed, successfully or not, even for the frames appended while closing
+		for (ChannelFuture future : futures) {
+			assertTrue(future.isDone());
+		}
+	}
+
+	@Test
+	public void testOpen_new_segment() throws Exception {
+		journal.open();
+		journal.close();
+		journal.open();
+
+		assertTrue(new File(directory, "journal-1.log").exists());
+	}
+
+}
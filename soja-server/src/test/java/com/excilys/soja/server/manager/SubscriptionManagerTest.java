@@ -17,7 +17,7 @@ import com.excilys.soja.server.model.Subscription;
 
 public class SubscriptionManagerTest {
 
-	private static final String SESSION = "session";
+	private static final Long SESSION = 1L;
 	private static final Long SUBSCRIPTION_ID = 1L;
 	private static final String TOPIC = "/topic";
 	private static final Ack ACK = Ack.AUTO;
@@ -55,12 +55,12 @@ public class SubscriptionManagerTest {
 
 	@Test
 	public void testRetrieveSubscriptionsByTopic_null() throws Exception {
-		assertNull(subscriptionManager.retrieveSubscriptionsByToken(null));
+		assertNull(subscriptionManager.retrieveSubscriptionsBySession(null));
 	}
 
 	@Test
 	public void testRetrieveSubscriptionsByTopic_not_found() throws Exception {
-		assertNull(subscriptionManager.retrieveSubscriptionsByToken("unknown"));
+		assertNull(subscriptionManager.retrieveSubscriptionsBySession(2L));
 	}
 
 	@Test
@@ -68,8 +68,9 @@ public class SubscriptionManagerTest {
 		Subscription expectedSubscription = new Subscription(null, SUBSCRIPTION_ID, TOPIC, ACK);
 		Map<Long, Subscription> expectedSubscriptions = new HashMap<Long, Subscription>();
 		expectedSubscriptions.put(SUBSCRIPTION_ID, expectedSubscription);
+		subscriptionManager.addSubscription(null, SESSION, SUBSCRIPTION_ID, TOPIC, ACK);
 
-		Map<Long, Subscription> subscriptions = subscriptionManager.retrieveSubscriptionsByToken(SESSION);
+		Map<Long, Subscription> subscriptions = subscriptionManager.retrieveSubscriptionsBySession(SESSION);
 
 		assertTrue(subscriptions.size() > 0);
 		assertEquals(expectedSubscriptions, subscriptions);
@@ -90,6 +91,7 @@ public class SubscriptionManagerTest {
 		Subscription expectedSubscription = new Subscription(null, SUBSCRIPTION_ID, TOPIC, ACK);
 		Set<Subscription> expectedSubscriptions = new TreeSet<Subscription>();
 		expectedSubscriptions.add(expectedSubscription);
+		subscriptionManager.addSubscription(null, SESSION, SUBSCRIPTION_ID, TOPIC, ACK);
 
 		Set<Subscription> subscriptions = subscriptionManager.retrieveSubscriptionsByTopic(TOPIC);
 
@@ -111,14 +113,14 @@ public class SubscriptionManagerTest {
 	public void testRemoveSubscription() throws Exception {
 		subscriptionManager.addSubscription(null, SESSION, SUBSCRIPTION_ID, TOPIC, ACK);
 
-		Map<Long, Subscription> subscriptionsBySession = subscriptionManager.retrieveSubscriptionsByToken(SESSION);
+		Map<Long, Subscription> subscriptionsBySession = subscriptionManager.retrieveSubscriptionsBySession(SESSION);
 		Set<Subscription> subscriptionsByTopic = subscriptionManager.retrieveSubscriptionsByTopic(TOPIC);
 		assertTrue(subscriptionsBySession.size() == 1);
 		assertTrue(subscriptionsByTopic.size() == 1);
 
 		assertTrue(subscriptionManager.removeSubscription(SESSION, SUBSCRIPTION_ID));
 
-		assertNull(subscriptionManager.retrieveSubscriptionsByToken(SESSION));
+		assertNull(subscriptionManager.retrieveSubscriptionsBySession(SESSION));
 		assertNull(subscriptionManager.retrieveSubscriptionsByTopic(TOPIC));
 	}
 
@@ -0,0 +1,54 @@
+package com.excilys.soja.server.metrics;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void testGetBucketIndex() throws Exception {
+		assertEquals(7, Histogram.getBucketIndex(7));
+		assertEquals(8, Histogram.getBucketIndex(8));
+		assertEquals(16, Histogram.getBucketIndex(16));
+		assertEquals(16, Histogram.getBucketIndex(17));
+		assertEquals(17, Histogram.getBucketIndex(18));
+		assertEquals(Long.MAX_VALUE, Histogram.getBucketUpperBound(Histogram.getBucketIndex(Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void testGetBucketUpperBound() throws Exception {
+		for (long value = 0; value < 100000; value++) {
+			int index = Histogram.getBucketIndex(value);
+			assertTrue(value <= Histogram.getBucketUpperBound(index));
+			assertTrue(index == 0 || value > Histogram.getBucketUpperBound(index - 1));
+		}
+	}
+
+	@Test
+	public void testGetValueAtPercentile() throws Exception {
+		Histogram histogram = new Histogram();
+		for (int value = 1; value <= 1000; value++) {
+			histogram.record(value);
+		}
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500.5, histogram.getMean());
+		assertEquals(1000, histogram.getMax());
+		long median = histogram.getValueAtPercentile(50);
+		assertTrue(median >= 500 && median < 500 * 1.125);
+		assertEquals(1000, histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void testGetValueAtPercentile_empty() throws Exception {
+		assertEquals(0, new Histogram().getValueAtPercentile(99));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetValueAtPercentile_invalid() throws Exception {
+		new Histogram().getValueAtPercentile(101);
+	}
+
+}
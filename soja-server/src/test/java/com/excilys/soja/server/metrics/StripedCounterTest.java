@@ -0,0 +1,41 @@
+package com.excilys.soja.server.metrics;
+
+import static junit.framework.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class StripedCounterTest {
+
+	@Test
+	public void testAdd() throws Exception {
+		StripedCounter counter = new StripedCounter();
+		counter.add(10);
+		counter.increment();
+		counter.decrement();
+
+		assertEquals(10, counter.get());
+	}
+
+	@Test
+	public void testAdd_concurrent() throws Exception {
+		final StripedCounter counter = new StripedCounter();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 100000; j++) {
+						counter.increment();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(800000, counter.get());
+	}
+
+}
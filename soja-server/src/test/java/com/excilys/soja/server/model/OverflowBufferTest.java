@@ -0,0 +1,109 @@
+package com.excilys.soja.server.model;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.excilys.soja.core.model.Frame;
+import com.excilys.soja.core.model.frame.MessageFrame;
+
+public class OverflowBufferTest {
+
+	private static final String TOPIC = "/topic";
+
+	private File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("overflow", "");
+		directory.delete();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (directory.isDirectory()) {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void testAdd_memory() throws Exception {
+		OverflowBuffer buffer = new OverflowBuffer(null, 10);
+		for (int i = 0; i < 5; i++) {
+			buffer.add(new MessageFrame(TOPIC, "0123456789", null));
+		}
+
+		assertEquals(5, buffer.size());
+		assertEquals(0, buffer.getSpilledCount());
+		assertEquals(50, buffer.getMemorySize());
+	}
+
+	@Test
+	public void testAdd_spill() throws Exception {
+		OverflowBuffer buffer = new OverflowBuffer(directory, 10, 64);
+		for (int i = 0; i < 5; i++) {
+			buffer.add(new MessageFrame(TOPIC, "message " + i, null));
+		}
+
+		assertEquals(5, buffer.size());
+		assertEquals(4, buffer.getSpilledCount());
+		assertEquals(9, buffer.getMemorySize());
+		assertTrue(directory.listFiles().length > 1);
+	}
+
+	@Test
+	public void testPoll_order() throws Exception {
+		OverflowBuffer buffer = new OverflowBuffer(directory, 20, 64);
+		for (int i = 0; i < 10; i++) {
+			buffer.add(new MessageFrame(TOPIC, "message " + i, null));
+		}
+
+		for (int i = 0; i < 5; i++) {
+			assertEquals("message " + i, buffer.poll().getBody());
+		}
+		for (int i = 10; i < 15; i++) {
+			buffer.add(new MessageFrame(TOPIC, "message " + i, null));
+		}
+		for (int i = 5; i < 15; i++) {
+			Frame frame = buffer.poll();
+			assertEquals(Frame.COMMAND_MESSAGE, frame.getCommand());
+			assertEquals("message " + i, frame.getBody());
+		}
+		assertNull(buffer.poll());
+		assertEquals(0, buffer.size());
+		assertEquals(0, directory.listFiles().length);
+	}
+
+	@Test
+	public void testAdd_frame_bigger_than_segment() throws Exception {
+		OverflowBuffer buffer = new OverflowBuffer(directory, 0, 16);
+		buffer.add(new MessageFrame(TOPIC, "first", null));
+		buffer.add(new MessageFrame(TOPIC, "a body bigger than the segment", null));
+
+		assertEquals(1, buffer.getSpilledCount());
+		assertEquals("first", buffer.poll().getBody());
+		assertEquals("a body bigger than the segment", buffer.poll().getBody());
+	}
+
+	@Test
+	public void testClear() throws Exception {
+		OverflowBuffer buffer = new OverflowBuffer(directory, 0, 64);
+		for (int i = 0; i < 5; i++) {
+			buffer.add(new MessageFrame(TOPIC, "message " + i, null));
+		}
+		buffer.clear();
+
+		assertTrue(buffer.isEmpty());
+		assertEquals(0, directory.listFiles().length);
+	}
+
+}
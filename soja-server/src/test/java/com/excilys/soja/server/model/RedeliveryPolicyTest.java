@@ -0,0 +1,57 @@
+package com.excilys.soja.server.model;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RedeliveryPolicyTest {
+
+	private RedeliveryPolicy redeliveryPolicy = new RedeliveryPolicy();
+
+	@Test
+	public void testGetRedeliveryDelay() throws Exception {
+		redeliveryPolicy.setInitialDelay(100);
+		redeliveryPolicy.setBackOffMultiplier(2);
+		redeliveryPolicy.setMaxDelay(1000);
+
+		assertEquals(100, redeliveryPolicy.getRedeliveryDelay(0));
+		assertEquals(200, redeliveryPolicy.getRedeliveryDelay(1));
+		assertEquals(800, redeliveryPolicy.getRedeliveryDelay(3));
+		assertEquals(1000, redeliveryPolicy.getRedeliveryDelay(4));
+		assertEquals(1000, redeliveryPolicy.getRedeliveryDelay(Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testIsExhausted() throws Exception {
+		redeliveryPolicy.setMaxDeliveries(3);
+
+		assertFalse(redeliveryPolicy.isExhausted(1));
+		assertFalse(redeliveryPolicy.isExhausted(2));
+		assertTrue(redeliveryPolicy.isExhausted(3));
+	}
+
+	@Test
+	public void testIsExhausted_unlimited() throws Exception {
+		redeliveryPolicy.setMaxDeliveries(0);
+
+		assertFalse(redeliveryPolicy.isExhausted(Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testGetDeadLetterDestination() throws Exception {
+		assertEquals("/dlq/topic", redeliveryPolicy.getDeadLetterDestination("/topic"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetBackOffMultiplier_lower_than_one() throws Exception {
+		redeliveryPolicy.setBackOffMultiplier(0.5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetDeadLetterPrefix_empty() throws Exception {
+		redeliveryPolicy.setDeadLetterPrefix("");
+	}
+
+}
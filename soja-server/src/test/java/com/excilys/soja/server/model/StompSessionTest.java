@@ -0,0 +1,82 @@
+package com.excilys.soja.server.model;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.excilys.soja.core.model.Ack;
+import com.excilys.soja.server.authentication.SessionIdGenerator;
+
+public class StompSessionTest {
+
+	private static final String TOKEN = "token";
+
+	@Test
+	public void testGetId() throws Exception {
+		SessionIdGenerator sessionIdGenerator = new SessionIdGenerator();
+		long firstId = sessionIdGenerator.nextId();
+		long secondId = sessionIdGenerator.nextId();
+
+		StompSession firstSession = new StompSession(firstId, null, TOKEN);
+		StompSession secondSession = new StompSession(secondId, null, TOKEN);
+
+		assertEquals(firstId, firstSession.getId());
+		assertEquals(secondId, secondSession.getId());
+		assertTrue(firstSession.getId() != secondSession.getId());
+		assertEquals(TOKEN, firstSession.getToken());
+	}
+
+	@Test
+	public void testAddSubscription() throws Exception {
+		StompSession session = new StompSession(1, null, TOKEN);
+		Subscription subscription = new Subscription(null, 7L, "/topic", Ack.AUTO);
+
+		session.addSubscription(subscription);
+
+		assertSame(subscription, session.getSubscription(7L));
+		assertNull(session.getSubscription(8L));
+		assertEquals(1, session.getSubscriptions().size());
+	}
+
+	@Test
+	public void testAddSubscription_same_id() throws Exception {
+		StompSession session = new StompSession(1, null, TOKEN);
+		Subscription subscription = new Subscription(null, 7L, "/topic1", Ack.AUTO);
+		Subscription replacingSubscription = new Subscription(null, 7L, "/topic2", Ack.AUTO);
+
+		session.addSubscription(subscription);
+		session.addSubscription(replacingSubscription);
+
+		assertSame(replacingSubscription, session.getSubscription(7L));
+		assertEquals(1, session.getSubscriptions().size());
+	}
+
+	@Test
+	public void testRemoveSubscription() throws Exception {
+		StompSession session = new StompSession(1, null, TOKEN);
+		Subscription subscription = new Subscription(null, 7L, "/topic", Ack.AUTO);
+		session.addSubscription(subscription);
+
+		assertSame(subscription, session.removeSubscription(7L));
+
+		assertNull(session.getSubscription(7L));
+		assertTrue(session.getSubscriptions().isEmpty());
+		assertNull(session.removeSubscription(7L));
+	}
+
+	@Test
+	public void testGetSubscriptions_copy() throws Exception {
+		StompSession session = new StompSession(1, null, TOKEN);
+		session.addSubscription(new Subscription(null, 7L, "/topic", Ack.AUTO));
+
+		List<Subscription> subscriptions = session.getSubscriptions();
+		session.removeSubscription(7L);
+
+		assertEquals(1, subscriptions.size());
+	}
+}
@@ -0,0 +1,221 @@
+package com.excilys.soja.server.model;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeSet;
+
+import org.jboss.netty.channel.Channel;
+import org.junit.Test;
+
+import com.excilys.soja.core.model.Ack;
+import com.excilys.soja.core.model.frame.MessageFrame;
+
+public class SubscriptionTest {
+
+	private static final Long SUBSCRIPTION_ID = 1L;
+	private static final String TOPIC = "/topic";
+
+	private Subscription createSubscription(Ack ackMode) {
+		Subscription subscription = new Subscription(null, SUBSCRIPTION_ID, TOPIC, ackMode);
+		subscription.addPendingMessage("message-1");
+		subscription.addPendingMessage("message-2");
+		subscription.addPendingMessage("message-3");
+		return subscription;
+	}
+
+	@Test
+	public void testRemovePendingMessagesUntil_client() throws Exception {
+		Subscription subscription = createSubscription(Ack.CLIENT);
+
+		assertEquals(Arrays.asList("message-1", "message-2"), subscription.removePendingMessagesUntil("message-2"));
+		assertEquals(1, subscription.getPendingMessageCount());
+		assertEquals(Arrays.asList("message-3"), subscription.removePendingMessages());
+	}
+
+	@Test
+	public void testRemovePendingMessagesUntil_client_individual() throws Exception {
+		Subscription subscription = createSubscription(Ack.CLIENT_INDIVIDUAL);
+
+		assertEquals(Arrays.asList("message-2"), subscription.removePendingMessagesUntil("message-2"));
+		assertEquals(Arrays.asList("message-1", "message-3"), subscription.removePendingMessages());
+	}
+
+	@Test
+	public void testRemovePendingMessagesUntil_unknown() throws Exception {
+		Subscription subscription = createSubscription(Ack.CLIENT);
+
+		assertEquals(Collections.emptyList(), subscription.removePendingMessagesUntil("unknown"));
+		assertEquals(3, subscription.getPendingMessageCount());
+	}
+
+	@Test
+	public void testGetPendingMessagesUntil_client() throws Exception {
+		Subscription subscription = createSubscription(Ack.CLIENT);
+
+		assertEquals(Arrays.asList("message-1", "message-2", "message-3"),
+				subscription.getPendingMessagesUntil("message-3"));
+		assertEquals(3, subscription.getPendingMessageCount());
+	}
+
+	@Test
+	public void testRemovePendingMessage() throws Exception {
+		Subscription subscription = createSubscription(Ack.CLIENT);
+
+		assertTrue(subscription.removePendingMessage("message-2"));
+		assertEquals(Arrays.asList("message-1", "message-3"), subscription.removePendingMessages());
+	}
+
+	@Test
+	public void testRemovePendingMessagesUntil_rejected() throws Exception {
+		Subscription subscription = createSubscription(Ack.CLIENT);
+		subscription.rejectPendingMessage("message-2");
+
+		assertEquals(Arrays.asList("message-1", "message-3"), subscription.removePendingMessagesUntil("message-3"));
+		assertEquals(1, subscription.getPendingMessageCount());
+	}
+
+	@Test
+	public void testRemovePendingMessagesUntil_range() throws Exception {
+		Subscription subscription = createSubscription(Ack.CLIENT);
+		subscription.addPendingMessage("message-4");
+		subscription.addPendingMessage("message-5");
+		subscription.rejectPendingMessage("message-2");
+
+		assertEquals(Arrays.asList("message-1", "message-3"), subscription.removePendingMessagesUntil("message-3"));
+		assertEquals(Arrays.asList("message-4"), subscription.removePendingMessagesUntil("message-4"));
+		assertEquals(Arrays.asList("message-2", "message-5"), subscription.removePendingMessages());
+	}
+
+	@Test
+	public void testRedeliverPendingMessage() throws Exception {
+		Subscription subscription = new Subscription(null, SUBSCRIPTION_ID, TOPIC, Ack.CLIENT);
+		MessageFrame message1 = new MessageFrame(TOPIC, "1", null);
+		MessageFrame message2 = new MessageFrame(TOPIC, "2", null);
+		subscription.addPendingMessage(message1);
+		subscription.addPendingMessage(message2);
+		subscription.rejectPendingMessage(message1.getMessageId());
+
+		assertEquals(message1, subscription.redeliverPendingMessage(message1.getMessageId()));
+		assertEquals(Arrays.asList(message2.getMessageId()),
+				subscription.removePendingMessagesUntil(message2.getMessageId()));
+		assertNull(subscription.redeliverPendingMessage(message2.getMessageId()));
+	}
+
+	private static Channel createChannel(final int id) {
+		return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("getId") || method.getName().equals("hashCode"))
+							return id;
+						if (method.getName().equals("equals"))
+							return proxy == args[0];
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	@Test
+	public void testCompareTo_concatenated_ids() throws Exception {
+		Subscription subscription1 = new Subscription(createChannel(1), 23L, TOPIC, Ack.CLIENT);
+		Subscription subscription2 = new Subscription(createChannel(12), 3L, TOPIC, Ack.CLIENT);
+
+		assertTrue(subscription1.compareTo(subscription2) < 0);
+		assertTrue(subscription2.compareTo(subscription1) > 0);
+		assertEquals(2, new TreeSet<Subscription>(Arrays.asList(subscription1, subscription2)).size());
+	}
+
+	@Test
+	public void testCompareTo_same_channel() throws Exception {
+		Channel channel = createChannel(1);
+
+		assertTrue(new Subscription(channel, 2L, TOPIC, Ack.CLIENT).compareTo(
+				new Subscription(channel, 10L, TOPIC, Ack.CLIENT)) < 0);
+		assertEquals(0, new Subscription(channel, 2L, TOPIC, Ack.CLIENT).compareTo(
+				new Subscription(channel, 2L, TOPIC, Ack.AUTO)));
+	}
+
+	@Test
+	public void testRemovePendingMessages_spilled_backlog() throws Exception {
+		File directory = File.createTempFile("overflow", "");
+		directory.delete();
+		try {
+			Subscription subscription = new Subscription(null, SUBSCRIPTION_ID, TOPIC, Ack.CLIENT, 1, 0,
+					new OverflowBuffer(directory, 0));
+			MessageFrame message1 = new MessageFrame(TOPIC, "1", null);
+			MessageFrame message2 = new MessageFrame(TOPIC, "2", null);
+			MessageFrame message3 = new MessageFrame(TOPIC, "3", null);
+			subscription.offerMessage(message1);
+			subscription.offerMessage(message2);
+			subscription.offerMessage(message3);
+			assertEquals(1, directory.listFiles().length);
+
+			assertEquals(Arrays.asList(message1.getMessageId(), message2.getMessageId(), message3.getMessageId()),
+					subscription.removePendingMessages());
+			assertEquals(0, subscription.getBacklogSize());
+			assertEquals(0, directory.listFiles().length);
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void testOfferMessage_prefetch_count() throws Exception {
+		Subscription subscription = new Subscription(null, SUBSCRIPTION_ID, TOPIC, Ack.CLIENT_INDIVIDUAL, 2, 0);
+		MessageFrame message1 = new MessageFrame(TOPIC, "1", null);
+		MessageFrame message2 = new MessageFrame(TOPIC, "2", null);
+		MessageFrame message3 = new MessageFrame(TOPIC, "3", null);
+
+		assertTrue(subscription.offerMessage(message1));
+		assertTrue(subscription.offerMessage(message2));
+		assertFalse(subscription.offerMessage(message3));
+		assertTrue(subscription.isWindowFull());
+		assertNull(subscription.pollMessage());
+
+		subscription.removePendingMessagesUntil(message1.getMessageId());
+		assertEquals(message3, subscription.pollMessage());
+		assertEquals(0, subscription.getBacklogSize());
+		assertEquals(2, subscription.getPendingMessageCount());
+	}
+
+	@Test
+	public void testOfferMessage_prefetch_size() throws Exception {
+		Subscription subscription = new Subscription(null, SUBSCRIPTION_ID, TOPIC, Ack.CLIENT, 0, 10);
+		MessageFrame message1 = new MessageFrame(TOPIC, "0123456789", null);
+		MessageFrame message2 = new MessageFrame(TOPIC, "0", null);
+
+		assertTrue(subscription.offerMessage(message1));
+		assertFalse(subscription.offerMessage(message2));
+		assertEquals(10, subscription.getPendingSize());
+
+		subscription.removePendingMessagesUntil(message1.getMessageId());
+		assertEquals(message2, subscription.pollMessage());
+		assertEquals(1, subscription.getPendingSize());
+	}
+
+	@Test
+	public void testRemovePendingMessages_backlog() throws Exception {
+		Subscription subscription = new Subscription(null, SUBSCRIPTION_ID, TOPIC, Ack.CLIENT, 1, 0);
+		MessageFrame message1 = new MessageFrame(TOPIC, "1", null);
+		MessageFrame message2 = new MessageFrame(TOPIC, "2", null);
+		subscription.offerMessage(message1);
+		subscription.offerMessage(message2);
+
+		assertEquals(Arrays.asList(message1.getMessageId(), message2.getMessageId()),
+				subscription.removePendingMessages());
+		assertEquals(0, subscription.getBacklogSize());
+	}
+
+}
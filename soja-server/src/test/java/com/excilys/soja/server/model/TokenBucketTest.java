@@ -0,0 +1,43 @@
+package com.excilys.soja.server.model;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+	@Test
+	public void testAcquire_burst() throws Exception {
+		TokenBucket tokenBucket = new TokenBucket(1, 10);
+
+		assertEquals(0, tokenBucket.acquire(10));
+	}
+
+	@Test
+	public void testAcquire_debt() throws Exception {
+		TokenBucket tokenBucket = new TokenBucket(10, 10);
+		tokenBucket.acquire(10);
+
+		long delay = tokenBucket.acquire(5);
+		assertTrue(delay > 400 && delay <= 500);
+		assertFalse(tokenBucket.isFull());
+	}
+
+	@Test
+	public void testAcquire_refill() throws Exception {
+		TokenBucket tokenBucket = new TokenBucket(1000, 10);
+		tokenBucket.acquire(10);
+		Thread.sleep(20);
+
+		assertTrue(tokenBucket.isFull());
+		assertEquals(0, tokenBucket.acquire(10));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTokenBucket_rate_zero() throws Exception {
+		new TokenBucket(0, 10);
+	}
+
+}